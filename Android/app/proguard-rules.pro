@@ -14,8 +14,19 @@
 
 # Uncomment this to preserve the line number information for
 # debugging stack traces.
-#-keepattributes SourceFile,LineNumberTable
+-keepattributes SourceFile,LineNumberTable
 
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
-#-renamesourcefileattribute SourceFile
\ No newline at end of file
+-renamesourcefileattribute SourceFile
+
+# Phase and link profile names appear in the provisioning trace reports.
+-keepclassmembers enum com.example.wifibleconfig.** {
+    <fields>;
+}
+
+# The framework calls hidden BluetoothGattCallback methods, such as onConnectionUpdated,
+# through the callback object; nothing in the app references them.
+-keepclassmembers class * extends android.bluetooth.BluetoothGattCallback {
+    public void on*(...);
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.os.Handler;
+
+import com.example.wifibleconfig.protocol.gatt.GattLayoutCache;
+import com.example.wifibleconfig.protocol.gatt.SessionKeyCache;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+import com.example.wifibleconfig.provisioning.DeviceConnector;
+import com.example.wifibleconfig.provisioning.ProvisioningTrace;
+import com.example.wifibleconfig.provisioning.ProvisioningTracer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * {@link DeviceConnector} over Android GATT: one {@link GattSession} per device address. The
+ * session callbacks are passed on to an optional {@link GattSession.Listener}.
+ */
+public class AndroidDeviceConnector implements DeviceConnector, GattSession.Listener {
+    private final Context context;
+    private final BluetoothAdapter adapter;
+    private final ScheduledExecutorService scheduler;
+    private final Handler handler;
+    private final GattLayoutCache layoutCache;
+    private final ProvisioningTracer tracer;
+    private final GattSession.Listener sessionListener;
+    private final ConcurrentHashMap<String, GattSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ProvisioningTrace> traces = new ConcurrentHashMap<>();
+    private volatile LinkProfile linkProfile = LinkProfile.FAST_PROVISION;
+    private volatile SessionKeyCache sessionKeys;
+    private volatile DeviceConnector.Listener listener;
+
+    public AndroidDeviceConnector(Context context, BluetoothAdapter adapter,
+                                  ScheduledExecutorService scheduler, Handler handler,
+                                  GattLayoutCache layoutCache, ProvisioningTracer tracer) {
+        this(context, adapter, scheduler, handler, layoutCache, tracer, null);
+    }
+
+    /**
+     * @param tracer tracer every connection is traced with, or null to trace only the
+     *               connections given a trace by {@link #setTrace}
+     * @param sessionListener listener the session callbacks are passed on to, or null
+     */
+    public AndroidDeviceConnector(Context context, BluetoothAdapter adapter,
+                                  ScheduledExecutorService scheduler, Handler handler,
+                                  GattLayoutCache layoutCache, ProvisioningTracer tracer,
+                                  GattSession.Listener sessionListener) {
+        this.context = context.getApplicationContext();
+        this.adapter = adapter;
+        this.scheduler = scheduler;
+        this.handler = handler;
+        this.layoutCache = layoutCache;
+        this.tracer = tracer;
+        this.sessionListener = sessionListener;
+    }
+
+    @Override
+    public CompletableFuture<WiFiClient> connect(String address) {
+        GattSession session = new GattSession(adapter.getRemoteDevice(address), scheduler, handler,
+                this, layoutCache);
+        session.setLinkProfile(linkProfile);
+        session.setSessionKeys(sessionKeys);
+        ProvisioningTrace trace = traces.remove(address);
+        if (trace == null && tracer != null)
+            trace = tracer.begin();
+        session.setTrace(trace);
+        sessions.put(address, session);
+        return session.connect(context);
+    }
+
+    @Override
+    public void disconnect(String address) {
+        GattSession session = sessions.get(address);
+        if (session != null)
+            session.disconnect();
+    }
+
+    @Override
+    public void setListener(DeviceConnector.Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Trace the next connection to {@code address} records its phases into, one that began
+     * with the scan.
+     */
+    @Override
+    public void setTrace(String address, ProvisioningTrace trace) {
+        traces.put(address, trace);
+    }
+
+    public GattSession getSession(String address) {
+        return sessions.get(address);
+    }
+
+    /**
+     * Tuning for the connections opened from now on.
+     */
+    public void setLinkProfile(LinkProfile linkProfile) {
+        this.linkProfile = linkProfile;
+    }
+
+    /**
+     * Session keys shared by the connections opened from now on.
+     */
+    public void setSessionKeys(SessionKeyCache sessionKeys) {
+        this.sessionKeys = sessionKeys;
+    }
+
+    public void closeAll() {
+        for (GattSession session : sessions.values())
+            session.close();
+    }
+
+    //region GattSession.Listener
+    @Override
+    public void onConnected(GattSession session) {
+        if (sessionListener != null)
+            sessionListener.onConnected(session);
+    }
+
+    @Override
+    public void onReady(GattSession session, byte[] status) {
+        if (sessionListener != null)
+            sessionListener.onReady(session, status);
+    }
+
+    @Override
+    public void onStatusChanged(GattSession session, byte[] value) {
+        if (sessionListener != null)
+            sessionListener.onStatusChanged(session, value);
+    }
+
+    @Override
+    public void onTraceFinished(GattSession session, ProvisioningTrace trace) {
+        if (sessionListener != null)
+            sessionListener.onTraceFinished(session, trace);
+    }
+
+    @Override
+    public void onDisconnected(GattSession session) {
+        // A session replaced by a newer connection to the same device is not reported.
+        DeviceConnector.Listener current = listener;
+        if (sessions.remove(session.getAddress(), session) && current != null)
+            current.onDisconnected(session.getAddress());
+        if (sessionListener != null)
+            sessionListener.onDisconnected(session);
+    }
+    //endregion
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Build;
+
+import com.example.wifibleconfig.protocol.gatt.GattTransport;
+
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} over a BluetoothGatt. On Android 13 and later values are passed to the
+ * stack directly instead of through the shared BluetoothGattCharacteristic value, so a write
+ * cannot be clobbered by a notification arriving on the same object.
+ */
+public class AndroidGattTransport implements GattTransport {
+    private final BluetoothGatt gatt;
+    private volatile byte lastCommand;
+
+    public AndroidGattTransport(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGattService gattService = gatt.getService(service);
+        if (gattService == null)
+            return null;
+        return gattService.getCharacteristic(characteristic);
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean requestMtu(int mtu) {
+        return gatt.requestMtu(mtu);
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+        return gattCharacteristic != null && gatt.readCharacteristic(gattCharacteristic);
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                       int writeType) {
+        BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+        if (gattCharacteristic == null)
+            return false;
+
+        lastCommand = value.length > 0 ? value[0] : 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+            return gatt.writeCharacteristic(gattCharacteristic, value, writeType) ==
+                    BluetoothStatusCodes.SUCCESS;
+
+        gattCharacteristic.setWriteType(writeType);
+        if (!gattCharacteristic.setValue(value))
+            return false;
+        return gatt.writeCharacteristic(gattCharacteristic);
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                 boolean enable) {
+        BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+        return gattCharacteristic != null &&
+                gatt.setCharacteristicNotification(gattCharacteristic, enable);
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                   byte[] value) {
+        BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+        if (gattCharacteristic == null)
+            return false;
+
+        BluetoothGattDescriptor gattDescriptor = gattCharacteristic.getDescriptor(descriptor);
+        if (gattDescriptor == null)
+            return false;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+            return gatt.writeDescriptor(gattDescriptor, value) == BluetoothStatusCodes.SUCCESS;
+
+        if (!gattDescriptor.setValue(value))
+            return false;
+        return gatt.writeDescriptor(gattDescriptor);
+    }
+
+    /**
+     * First byte of the last characteristic write, the command of the write being acknowledged
+     * since the operation queue keeps one write in flight.
+     */
+    public byte getLastCommand() {
+        return lastCommand;
+    }
+}
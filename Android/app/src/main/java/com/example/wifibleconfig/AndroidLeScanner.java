@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import com.example.wifibleconfig.provisioning.LeScanner;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link LeScanner} over BluetoothLeScanner. Settings for each mode and the service UUID filter,
+ * which the controller applies itself where filtering is offloaded, are built once.
+ */
+public class AndroidLeScanner implements LeScanner {
+    private final BluetoothAdapter adapter;
+    private final ScanCallback callback;
+    private final List<ScanFilter> filters;
+    private final ScanSettings[] settings = new ScanSettings[Mode.values().length];
+    private BluetoothLeScanner scanner;
+
+    /**
+     * @param reportDelayMs batched delivery delay, used when the controller supports offloaded
+     *                      batching
+     */
+    public AndroidLeScanner(BluetoothAdapter adapter, ScanCallback callback, long reportDelayMs) {
+        this.adapter = adapter;
+        this.callback = callback;
+        filters = Collections.singletonList(new ScanFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString(WiFiGattServices.SERVICE_UUID))
+                .build());
+
+        long reportDelay = adapter.isOffloadedScanBatchingSupported() ? reportDelayMs : 0;
+        settings[Mode.LOW_LATENCY.ordinal()] = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                .setReportDelay(reportDelay)
+                .build();
+        settings[Mode.BALANCED.ordinal()] = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .setMatchMode(ScanSettings.MATCH_MODE_STICKY)
+                .setReportDelay(reportDelay)
+                .build();
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean start(Mode mode) {
+        // The scanner object goes away while Bluetooth is off.
+        BluetoothLeScanner leScanner = adapter.getBluetoothLeScanner();
+        if (leScanner == null)
+            return false;
+
+        try {
+            leScanner.startScan(filters, settings[mode.ordinal()], callback);
+        } catch (IllegalStateException e) {
+            return false;
+        }
+        scanner = leScanner;
+        return true;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void stop() {
+        if (scanner == null)
+            return;
+
+        try {
+            scanner.stopScan(callback);
+        } catch (IllegalStateException e) {
+            // Bluetooth was turned off, the scan is gone already.
+        }
+        scanner = null;
+    }
+}
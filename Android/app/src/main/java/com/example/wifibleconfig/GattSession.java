@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+import com.example.wifibleconfig.protocol.gatt.GattConnectionException;
+import com.example.wifibleconfig.protocol.gatt.GattException;
+import com.example.wifibleconfig.protocol.gatt.GattLayout;
+import com.example.wifibleconfig.protocol.gatt.GattLayoutCache;
+import com.example.wifibleconfig.protocol.gatt.GattOperationQueue;
+import com.example.wifibleconfig.protocol.gatt.SessionKeyCache;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+import com.example.wifibleconfig.provisioning.ProvisioningPhase;
+import com.example.wifibleconfig.provisioning.ProvisioningTrace;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One GATT connection to a WiFiBle device: connects, discovers services, starts the session and
+ * forwards the GATT callbacks to the operation queue. Closes the BluetoothGatt on disconnect.
+ * <p>
+ * With a {@link GattLayoutCache}, a reconnect to a known device verifies the discovered layout
+ * against the cached signature and starts the session without re-learning it.
+ * <p>
+ * The {@link LinkProfile} is applied before service discovery, so discovery already runs at
+ * the requested interval; the interval the device ends up with is recorded into the trace.
+ * <p>
+ * A session that fails to come up completes {@link #connect} with the reason: a
+ * {@link GattConnectionException} with the status of the link, a {@link GattException} with
+ * the status of service discovery, or the error of the session start.
+ */
+public class GattSession extends BluetoothGattCallback {
+
+    public interface Listener {
+        default void onConnected(GattSession session) {
+        }
+
+        default void onReady(GattSession session, byte[] status) {
+        }
+
+        default void onStatusChanged(GattSession session, byte[] value) {
+        }
+
+        default void onDisconnected(GattSession session) {
+        }
+
+        default void onTraceFinished(GattSession session, ProvisioningTrace trace) {
+        }
+    }
+
+    private final BluetoothDevice device;
+    private final ScheduledExecutorService scheduler;
+    private final Handler handler;
+    private final Listener listener;
+    private final GattLayoutCache layoutCache;
+    private final CompletableFuture<WiFiClient> ready = new CompletableFuture<>();
+
+    private volatile BluetoothGatt gatt;
+    private volatile AndroidGattTransport transport;
+    private volatile GattOperationQueue queue;
+    private volatile WiFiClient client;
+    private volatile WiFiClient startingClient;
+    private volatile long connectedNanos;
+    private volatile ProvisioningTrace trace;
+    private volatile LinkProfile linkProfile = LinkProfile.FAST_PROVISION;
+    private volatile SessionKeyCache sessionKeys;
+    private volatile int connectionIntervalMicros;
+    private volatile boolean le2MPhySupported;
+    // Why the session did not come up, reported once the connection is closed.
+    private volatile Throwable failure;
+
+    public GattSession(BluetoothDevice device, ScheduledExecutorService scheduler,
+                       Listener listener) {
+        this(device, scheduler, listener, null);
+    }
+
+    public GattSession(BluetoothDevice device, ScheduledExecutorService scheduler,
+                       Listener listener, GattLayoutCache layoutCache) {
+        this(device, scheduler, null, listener, layoutCache);
+    }
+
+    /**
+     * @param handler handler the GATT callbacks are delivered on, or null for binder threads
+     */
+    public GattSession(BluetoothDevice device, ScheduledExecutorService scheduler,
+                       Handler handler, Listener listener, GattLayoutCache layoutCache) {
+        this.device = device;
+        this.scheduler = scheduler;
+        this.handler = handler;
+        this.listener = listener;
+        this.layoutCache = layoutCache;
+    }
+
+    //region Connection control
+    @SuppressLint("MissingPermission")
+    public CompletableFuture<WiFiClient> connect(Context context) {
+        trace(ProvisioningPhase.CONNECT_GATT);
+        BluetoothManager manager =
+                (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        le2MPhySupported = manager.getAdapter().isLe2MPhySupported();
+        gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE,
+                BluetoothDevice.PHY_LE_1M_MASK, handler);
+        if (gatt == null) {
+            ready.completeExceptionally(new GattException("connectGatt failed",
+                    GattException.STATUS_NOT_STARTED));
+            listener.onDisconnected(this);
+        }
+        return ready;
+    }
+
+    @SuppressLint("MissingPermission")
+    public void disconnect() {
+        BluetoothGatt connection = gatt;
+        if (connection == null)
+            return;
+        // A connect still pending may never report the disconnect.
+        if (queue == null)
+            close();
+        else
+            connection.disconnect();
+    }
+
+    /**
+     * Releases the connection immediately, without waiting for the disconnect callback.
+     */
+    @SuppressLint("MissingPermission")
+    public void close() {
+        GattOperationQueue operations = queue;
+        WiFiClient wifiClient = client;
+        if (layoutCache != null && wifiClient != null)
+            layoutCache.update(getAddress(), wifiClient.getKnownProtocolVersion(),
+                    wifiClient.getQueue().getMtu());
+        if (operations != null)
+            operations.cancelAll();
+        if (wifiClient != null)
+            wifiClient.cancelCommands();
+        queue = null;
+        client = null;
+
+        BluetoothGatt connection = gatt;
+        gatt = null;
+        if (connection == null)
+            return;
+        connection.close();
+
+        Throwable error = failure;
+        ready.completeExceptionally(error != null ? error :
+                new GattConnectionException("Disconnected", GattException.STATUS_CANCELLED));
+        listener.onDisconnected(this);
+    }
+    //endregion
+
+    //region BluetoothGattCallback
+    @SuppressLint("MissingPermission")
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
+            connectedNanos = System.nanoTime();
+            trace(ProvisioningPhase.CONNECTED);
+            transport = new AndroidGattTransport(gatt);
+            queue = new GattOperationQueue(transport, scheduler);
+            applyLinkProfile(gatt);
+            listener.onConnected(this);
+            if (!gatt.discoverServices()) {
+                failure = new GattException("discoverServices failed",
+                        GattException.STATUS_NOT_STARTED);
+                gatt.disconnect();
+            }
+        } else if (status != BluetoothGatt.GATT_SUCCESS) {
+            // Also reported with STATE_CONNECTED, which never completes otherwise.
+            failure = new GattConnectionException("Connection failed with status " + status,
+                    status);
+            close();
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED)
+            close();
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        trace(ProvisioningPhase.SERVICES_DISCOVERED);
+        BluetoothGattService service = gatt.getService(WiFiGattAttributes.SERVICE_UUID);
+        GattOperationQueue operations = queue;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            failure = new GattException("Service discovery failed", status);
+            gatt.disconnect();
+            return;
+        }
+        if (service == null || operations == null ||
+                service.getCharacteristic(WiFiGattAttributes.CHARACTERISTIC_UUID) == null) {
+            failure = new IllegalStateException("WiFiBle service not found");
+            gatt.disconnect();
+            return;
+        }
+
+        long signature = GattLayoutCache.signatureSeed();
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics())
+            signature = GattLayoutCache.signature(signature, characteristic.getUuid(),
+                    characteristic.getProperties());
+        GattLayout layout = layoutCache == null ? null :
+                layoutCache.lookup(getAddress(), signature);
+
+        // Legacy firmware has no version characteristic, so its presence alone tells us the
+        // compound command is available without an extra read. Other firmware has its version
+        // read behind the subscription, with a cached layout too: layouts survive some firmware
+        // updates, so the version verifies the entry.
+        boolean hasVersion = service.getCharacteristic(
+                WiFiGattAttributes.VERSION_CHARACTERISTIC_UUID) != null;
+        WiFiClient wifiClient = new WiFiClient(operations, hasVersion);
+        // Warm: devices that kept the default MTU are not asked again.
+        boolean negotiateMtu = layout == null ||
+                layout.getMtu() != WiFiProtocol.DEFAULT_ATT_MTU;
+        wifiClient.setSeparateStatusCharacteristic(service.getCharacteristic(
+                WiFiGattAttributes.STATUS_CHARACTERISTIC_UUID) != null);
+        wifiClient.setSessionKeys(sessionKeys, getAddress());
+        startingClient = wifiClient;
+        CompletableFuture<byte[]> session = wifiClient.startSession(negotiateMtu);
+
+        long layoutSignature = signature;
+        session.whenComplete((value, error) -> {
+            startingClient = null;
+            if (error != null) {
+                if (layoutCache != null)
+                    layoutCache.invalidate(getAddress());
+                failure = error instanceof CompletionException && error.getCause() != null ?
+                        error.getCause() : error;
+                disconnect();
+                return;
+            }
+
+            long setupNanos = System.nanoTime() - connectedNanos;
+            // A layout the version contradicts is dropped, the next connection learns it again.
+            if (layoutCache != null) {
+                if (layout == null)
+                    layoutCache.put(getAddress(), layoutSignature,
+                            wifiClient.getKnownProtocolVersion(), operations.getMtu(),
+                            setupNanos);
+                else if (layoutCache.verify(getAddress(), layout,
+                        wifiClient.getKnownProtocolVersion()))
+                    layoutCache.recordWarmSetup(layout, setupNanos);
+            }
+
+            client = wifiClient;
+            listener.onReady(this, value);
+            ready.complete(wifiClient);
+        });
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt,
+                                        BluetoothGattCharacteristic characteristic) {
+        onNotification(characteristic.getUuid(), characteristic.getValue());
+    }
+
+    /**
+     * Android 13+: the value comes as its own array instead of the shared characteristic.
+     */
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt,
+                                        BluetoothGattCharacteristic characteristic,
+                                        byte[] value) {
+        onNotification(characteristic.getUuid(), value);
+    }
+
+    private void onNotification(UUID characteristic, byte[] value) {
+        if (WiFiGattAttributes.SCAN_CHARACTERISTIC_UUID.equals(characteristic)) {
+            WiFiClient wifiClient = client;
+            if (wifiClient != null)
+                wifiClient.onScanNotification(value);
+        } else if (WiFiGattAttributes.TELEMETRY_CHARACTERISTIC_UUID.equals(characteristic)) {
+            WiFiClient wifiClient = client;
+            if (wifiClient != null)
+                wifiClient.onTelemetryNotification(value);
+        } else if (isStatusCharacteristic(characteristic))
+            onStatusNotification(value);
+    }
+
+    private void onStatusNotification(byte[] value) {
+        int packedStatus = WiFiStatusCodec.decode(value);
+        if (packedStatus == WiFiStatusCodec.INVALID)
+            return;
+
+        // During setup the first notification is the status pushed on subscription, later
+        // ones may report commands done.
+        WiFiClient starting = startingClient;
+        WiFiClient wifiClient = client;
+        if (starting != null) {
+            trace(ProvisioningPhase.STATUS_READ);
+            starting.onStatusNotification(value);
+        } else if (wifiClient != null)
+            wifiClient.onStatusNotification(value);
+
+        if (WiFiStatusCodec.statusOf(packedStatus) == WiFiProtocol.WIFI_STATUS_STARTED)
+            trace(ProvisioningPhase.WIFI_STARTED);
+        listener.onStatusChanged(this, value);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt,
+                                     BluetoothGattCharacteristic characteristic, int status) {
+        onCharacteristicRead(characteristic.getUuid(), characteristic.getValue(), status);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt,
+                                     BluetoothGattCharacteristic characteristic, byte[] value,
+                                     int status) {
+        onCharacteristicRead(characteristic.getUuid(), value, status);
+    }
+
+    private void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS && isStatusCharacteristic(characteristic))
+            trace(ProvisioningPhase.STATUS_READ);
+        GattOperationQueue operations = queue;
+        if (operations != null)
+            operations.onCharacteristicRead(characteristic, value, status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt,
+                                      BluetoothGattCharacteristic characteristic, int status) {
+        AndroidGattTransport gattTransport = transport;
+        if (status == BluetoothGatt.GATT_SUCCESS && gattTransport != null)
+            traceWrite(gattTransport.getLastCommand());
+        GattOperationQueue operations = queue;
+        if (operations != null)
+            operations.onCharacteristicWrite(characteristic.getUuid(), status);
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                  int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS)
+            trace(ProvisioningPhase.NOTIFICATIONS_ENABLED);
+        GattOperationQueue operations = queue;
+        if (operations != null)
+            operations.onDescriptorWrite(descriptor.getUuid(), status);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        GattOperationQueue operations = queue;
+        if (operations != null)
+            operations.onMtuChanged(mtu, status);
+    }
+
+    /**
+     * Hidden in the SDK (API 26+) but called by the framework on every connection parameter
+     * update; interval is in 1.25 ms units.
+     */
+    public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout,
+                                    int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS)
+            return;
+        connectionIntervalMicros = interval * 1250;
+        ProvisioningTrace current = trace;
+        if (current != null)
+            current.setConnectionIntervalMicros(connectionIntervalMicros);
+    }
+    //endregion
+
+    //region Link tuning
+    @SuppressLint("MissingPermission")
+    private void applyLinkProfile(BluetoothGatt gatt) {
+        LinkProfile profile = linkProfile;
+        gatt.requestConnectionPriority(profile.getConnectionPriority());
+        // A device without 2M keeps 1M after the PHY update procedure; a phone without it is not
+        // asked at all.
+        int phyMask = profile.getPhyMask();
+        if (phyMask == BluetoothDevice.PHY_LE_2M_MASK && !le2MPhySupported)
+            return;
+        gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+    }
+
+    /**
+     * Selects the tuning applied when the connection comes up.
+     */
+    public void setLinkProfile(LinkProfile linkProfile) {
+        this.linkProfile = linkProfile;
+        ProvisioningTrace current = trace;
+        if (current != null)
+            current.setProfile(linkProfile.name());
+    }
+
+    /**
+     * Session keys the client reuses and records; set before {@link #connect}.
+     */
+    public void setSessionKeys(SessionKeyCache sessionKeys) {
+        this.sessionKeys = sessionKeys;
+    }
+
+    public LinkProfile getLinkProfile() {
+        return linkProfile;
+    }
+
+    /**
+     * Connection interval last reported by the framework in microseconds, 0 while unknown.
+     */
+    public int getConnectionIntervalMicros() {
+        return connectionIntervalMicros;
+    }
+    //endregion
+
+    //region Tracing
+    private void trace(ProvisioningPhase phase) {
+        ProvisioningTrace current = trace;
+        if (current != null && current.mark(phase))
+            listener.onTraceFinished(this, current);
+    }
+
+    private void traceWrite(byte command) {
+        switch (command) {
+            case WiFiProtocol.WIFI_CMD_SET_SSID:
+                trace(ProvisioningPhase.SSID_WRITTEN);
+                break;
+
+            case WiFiProtocol.WIFI_CMD_SET_PWD:
+                trace(ProvisioningPhase.PASSWORD_WRITTEN);
+                break;
+
+            case WiFiProtocol.WIFI_CMD_START:
+                trace(ProvisioningPhase.START_WRITTEN);
+                break;
+
+            case WiFiProtocol.WIFI_CMD_PROVISION:
+            case WiFiProtocol.WIFI_CMD_COMMIT:
+                trace(ProvisioningPhase.PROVISION_WRITTEN);
+                break;
+        }
+    }
+
+    /**
+     * Attaches the trace the session records its phases into.
+     */
+    public void setTrace(ProvisioningTrace trace) {
+        this.trace = trace;
+        if (trace != null)
+            trace.setProfile(linkProfile.name());
+    }
+
+    public ProvisioningTrace getTrace() {
+        return trace;
+    }
+    //endregion
+
+    //region Properties
+    /**
+     * Legacy firmware notifies on the command characteristic, newer on the status one; only
+     * the one subscribed to notifies, so both are accepted.
+     */
+    private static boolean isStatusCharacteristic(UUID characteristic) {
+        return WiFiGattAttributes.STATUS_CHARACTERISTIC_UUID.equals(characteristic) ||
+                WiFiGattAttributes.CHARACTERISTIC_UUID.equals(characteristic);
+    }
+
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    public WiFiClient getClient() {
+        return client;
+    }
+
+    public GattOperationQueue getQueue() {
+        return queue;
+    }
+    //endregion
+}
@@ -11,390 +11,435 @@
 
 package com.example.wifibleconfig;
 
-import android.annotation.SuppressLint;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
+import android.content.Intent;
+import android.content.res.Resources;
 import android.os.Bundle;
-import android.os.ParcelUuid;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 
-import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.UUID;
+import com.example.wifibleconfig.protocol.WiFiAccessPoint;
+import com.example.wifibleconfig.protocol.WiFiCommandCodec;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.WiFiTelemetrySeries;
+import com.example.wifibleconfig.provisioning.CredentialManifest;
+import com.example.wifibleconfig.provisioning.CredentialProvider;
+import com.example.wifibleconfig.provisioning.Credentials;
+import com.example.wifibleconfig.provisioning.FleetStats;
+
+import java.util.List;
 
 public class MainActivity extends BluetoothPermissionChecker {
+    /**
+     * Boolean extra that starts scanning right after launch. The activity then reports fully
+     * drawn at the first matching scan result, which makes launch to first result the time to
+     * full display of the launch.
+     */
+    public final static String EXTRA_START_SCAN = "com.example.wifibleconfig.START_SCAN";
 
-    //region Bluetooth objects
-    private BluetoothLeScanner bluetoothLeScanner;
-    private BluetoothGatt gattClient;
-    private BluetoothGattCharacteristic wifiCharacteristic;
-    //endregion
+    private final static int MANIFEST_REQUEST_CODE = 3;
+    private final static String[] MANIFEST_TYPES = {"text/csv", "text/comma-separated-values",
+            "application/json", "text/plain"};
+
+    // Block elements of rising height, one per telemetry bucket.
+    private final static String SPARK_LEVELS = "\u2581\u2582\u2583\u2584\u2585\u2586\u2587\u2588";
 
     //region UI objects
     private Button scanButton;
+    private CheckBox fleetCheck;
+    private Button manifestButton;
+    private TextView manifestLabel;
+    private Spinner linkProfileSpinner;
+    private Spinner deviceSpinner;
+    private ArrayAdapter<String> deviceAdapter;
     private TextView stateLabel;
     private EditText ssidEdit;
     private EditText passwordEdit;
     private Button startWiFiButton;
     private Button stopWiFiButton;
     private TextView wifiStatusLabel;
+    private WiFiStatusPresenter wifiStatusPresenter;
+    private Button surveyButton;
+    private TextView surveyLabel;
+    private Button monitorButton;
+    private TextView telemetryLabel;
     //endregion
 
-    private byte currentCommand;
-
-    //region Bluetooth callbacks
-    private BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+    private ProvisioningService service;
+    private ProvisioningState shownState;
+    private boolean scanLaunch;
 
-        @SuppressLint("MissingPermission")
-        private boolean enableNotifications() {
-            UUID cccdUuid = UUID.fromString(WiFiGattServices.CCC_DESCRIPTOR_UUID);
-
-            BluetoothGattDescriptor descriptor = wifiCharacteristic.getDescriptor(cccdUuid);
-            if (descriptor == null)
-                return false;
-
-            if (!gattClient.setCharacteristicNotification(wifiCharacteristic, true))
-                return false;
+    //region UI helpers
+    private void enableWiFiButtons(boolean enabled) {
+        startWiFiButton.setEnabled(enabled);
+        stopWiFiButton.setEnabled(enabled);
+    }
 
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            if (!gattClient.writeDescriptor(descriptor))
-                return false;
+    private void enableWiFiSettings(boolean enabled) {
+        ssidEdit.setEnabled(enabled);
+        passwordEdit.setEnabled(enabled);
+    }
 
-            return true;
+    private void showSurvey(ProvisioningState state) {
+        if (!state.isSurveyRunning() && state.getSurveyChannel() == 0) {
+            surveyLabel.setText("");
+            return;
         }
 
-        private void enableWiFiButtons(boolean enabled)
-        {
-            startWiFiButton.setEnabled(enabled);
-            stopWiFiButton.setEnabled(enabled);
+        Resources resources = getResources();
+        int summary = state.isSurveyRunning() ? R.string.survey_running :
+                state.isSurveyFailed() ? R.string.survey_failed : R.string.survey_done;
+        StringBuilder text = new StringBuilder(String.format(resources.getString(summary),
+                state.getSurveyTotal(), state.getSurveyChannel()));
+
+        List<WiFiAccessPoint> accessPoints = state.getSurveyAccessPoints();
+        int shown = Math.min(accessPoints.size(),
+                resources.getInteger(R.integer.survey_shown_networks));
+        String network = resources.getString(R.string.survey_network);
+        for (int i = 0; i < shown; i++) {
+            WiFiAccessPoint accessPoint = accessPoints.get(i);
+            String ssid = accessPoint.getSsid().isEmpty() ?
+                    resources.getString(R.string.survey_hidden_network) : accessPoint.getSsid();
+            text.append('\n').append(String.format(network, accessPoint.getRssi(),
+                    accessPoint.getChannel(), ssid));
         }
+        surveyLabel.setText(text);
+    }
 
-        private void enableWiFiSettings(boolean enabled) {
-            currentCommand = WiFiCommands.WIFI_CMD_NONE;
+    private void showTelemetry(ProvisioningState state) {
+        WiFiTelemetrySeries rssi = state.getTelemetryRssi();
+        if (!state.isMonitoring() || rssi == null) {
+            telemetryLabel.setText("");
+            return;
+        }
 
-            ssidEdit.setEnabled(enabled);
-            passwordEdit.setEnabled(enabled);
-            enableWiFiButtons(enabled);
+        Resources resources = getResources();
+        StringBuilder text = new StringBuilder(String.format(
+                resources.getString(R.string.telemetry), state.getTelemetryStations(),
+                state.getTelemetryFreeHeap() / 1024, state.getTelemetryLost()));
+
+        int min = 0;
+        int max = 0;
+        boolean any = false;
+        for (int i = 0; i < rssi.getBucketCount(); i++) {
+            if (!rssi.hasValue(i))
+                continue;
+            min = any ? Math.min(min, rssi.getMin(i)) : rssi.getMin(i);
+            max = any ? Math.max(max, rssi.getMax(i)) : rssi.getMax(i);
+            any = true;
+        }
+        if (any)
+            text.append('\n').append(String.format(resources.getString(R.string.telemetry_rssi),
+                    min, max, sparkline(rssi, min, max)));
+        telemetryLabel.setText(text);
+    }
 
-            wifiStatusLabel.setText(R.string.wifi_status_unknown);
-            if (enabled)
-                wifiStatusLabel.setVisibility(View.VISIBLE);
-            else
-                wifiStatusLabel.setVisibility(View.INVISIBLE);
+    private static String sparkline(WiFiTelemetrySeries series, int min, int max) {
+        StringBuilder line = new StringBuilder(series.getBucketCount());
+        int top = SPARK_LEVELS.length() - 1;
+        for (int i = 0; i < series.getBucketCount(); i++) {
+            if (!series.hasValue(i)) {
+                line.append(' ');
+                continue;
+            }
+            int level = max == min ? top :
+                    Math.round((series.getAverage(i) - min) * top / (max - min));
+            line.append(SPARK_LEVELS.charAt(level));
         }
+        return line.toString();
+    }
+    //endregion
 
-        private void updateWiFiStatus(byte[] value) {
-            String status;
-            switch (value[0]) {
-                case WiFiCommands.WIFI_STATUS_STARTED:
-                    status = String.format(getResources().getString(R.string.wifi_status_started),
-                            value[1]);
-                    break;
+    //region Provisioning state
+    private final ProvisioningService.Observer stateObserver = this::showState;
 
-                case WiFiCommands.WIFI_STATUS_STOPPED:
-                    status = getResources().getString(R.string.wifi_status_stopped);
+    private void showState(ProvisioningState state) {
+        ProvisioningState previous = shownState;
+        shownState = state;
+        boolean connected = state.getConnection() == ProvisioningState.Connection.CONNECTED;
+
+        boolean connectionChanged = previous == null ||
+                previous.getConnection() != state.getConnection() ||
+                previous.isFleet() != state.isFleet();
+        if (connectionChanged) {
+            switch (state.getConnection()) {
+                case STOPPED:
+                    scanButton.setEnabled(true);
+                    scanButton.setText(R.string.start_scan);
+                    stateLabel.setText(R.string.stopped);
                     break;
 
-                case WiFiCommands.WIFI_STATUS_NO_CONFIG:
-                    status = getResources().getString(R.string.wifi_status_not_configured);
+                case SCANNING:
+                    scanButton.setEnabled(true);
+                    scanButton.setText(R.string.stop_scan);
+                    stateLabel.setText(R.string.started);
                     break;
 
-                case WiFiCommands.WIFI_STATUS_ERROR:
-                    status = getResources().getString(R.string.wifi_status_error);
+                case CONNECTING:
+                    scanButton.setEnabled(false);
+                    scanButton.setText(R.string.start_scan);
+                    stateLabel.setText(String.format(getResources().getString(
+                            R.string.device_found), state.getDeviceAddress()));
+                    if (scanLaunch) {
+                        scanLaunch = false;
+                        reportFullyDrawn();
+                    }
                     break;
 
-                default:
-                    status = getResources().getString(R.string.wifi_status_unknown);
+                case CONNECTED:
+                    scanButton.setEnabled(true);
+                    scanButton.setText(R.string.disconnect);
+                    stateLabel.setText(R.string.connected);
                     break;
             }
 
-            MainActivity.this.runOnUiThread(new Runnable() {
-                public void run() {
-                    wifiStatusLabel.setText(status);
-                    stopWiFiButton.setEnabled(value[0] == WiFiCommands.WIFI_STATUS_STARTED);
-                }
-            });
+            wifiStatusPresenter.reset();
+            wifiStatusLabel.setVisibility(connected ? View.VISIBLE : View.INVISIBLE);
         }
 
-        @SuppressLint("MissingPermission")
-        private void setCharacteristicValue(byte[] value, byte command) {
-            boolean res = wifiCharacteristic.setValue(value);
-            if (res)
-                res = gattClient.writeCharacteristic(wifiCharacteristic);
-
-            if (!res)
-                gattClient.disconnect();
-            else
-                currentCommand = command;
+        boolean manifestChanged = previous == null ||
+                previous.getManifest() != state.getManifest() ||
+                previous.getManifestError() != state.getManifestError();
+        if (connectionChanged || manifestChanged) {
+            boolean idle = state.getConnection() == ProvisioningState.Connection.STOPPED ||
+                    state.getConnection() == ProvisioningState.Connection.SCANNING;
+            fleetCheck.setEnabled(idle && !state.isFleet());
+            manifestButton.setEnabled(idle && !state.isFleet());
+            // A manifest replaces the typed credentials of fleet runs.
+            enableWiFiSettings(connected || (idle && !state.isFleet() && fleetCheck.isChecked() &&
+                    state.getManifest() == null));
         }
+        if (manifestChanged)
+            showManifest(state);
+
+        FleetStats stats = state.getFleetStats();
+        if (stats != null && (previous == null || previous.getFleetStats() != stats))
+            stateLabel.setText(String.format(getResources().getString(R.string.fleet_stats),
+                    stats.getActive(), stats.getWaiting(), stats.getSucceeded(),
+                    stats.getFailed(), stats.getDevicesPerMinute()));
+
+        if (connected) {
+            if (connectionChanged || previous.isCommandPending() != state.isCommandPending())
+                enableWiFiButtons(!state.isCommandPending());
+            surveyButton.setEnabled(!state.isSurveyRunning() && !state.isCommandPending());
+            wifiStatusPresenter.onStatus(state.getWiFiStatus());
+        } else if (connectionChanged)
+            enableWiFiButtons(false);
+
+        if (connectionChanged || previous.getOpenDevices() != state.getOpenDevices())
+            showOpenDevices(state);
+
+        if (connectionChanged || previous.isSurveyAvailable() != state.isSurveyAvailable())
+            surveyButton.setVisibility(connected && state.isSurveyAvailable() ? View.VISIBLE :
+                    View.INVISIBLE);
+        if (connectionChanged || previous.isTelemetryAvailable() != state.isTelemetryAvailable())
+            monitorButton.setVisibility(connected && state.isTelemetryAvailable() ?
+                    View.VISIBLE : View.INVISIBLE);
+        if (connectionChanged || previous.isMonitoring() != state.isMonitoring())
+            monitorButton.setText(state.isMonitoring() ? R.string.stop_monitor : R.string.monitor);
+
+        // The list instance only changes when a chunk added networks.
+        if (connectionChanged || previous.isSurveyRunning() != state.isSurveyRunning() ||
+                previous.getSurveyAccessPoints() != state.getSurveyAccessPoints())
+            showSurvey(state);
+        if (connectionChanged || previous.isMonitoring() != state.isMonitoring() ||
+                previous.getTelemetryRssi() != state.getTelemetryRssi())
+            showTelemetry(state);
+    }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            byte[] value = characteristic.getValue();
-            if (value != null && value.length == 2)
-                updateWiFiStatus(value);
-        }
+    private void showManifest(ProvisioningState state) {
+        CredentialManifest manifest = state.getManifest();
+        if (manifest != null)
+            manifestLabel.setText(String.format(getResources().getString(
+                    R.string.manifest_loaded), manifest.getAddressCount(),
+                    manifest.getPatternCount(), manifest.getRejectedCount()));
+        else if (state.getManifestError() != null)
+            manifestLabel.setText(String.format(getResources().getString(
+                    R.string.manifest_failed), state.getManifestError()));
+        else
+            manifestLabel.setText("");
+    }
 
-        @SuppressLint("MissingPermission")
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status != BluetoothGatt.GATT_SUCCESS)
-                gattClient.disconnect();
-            else {
-                if (!enableNotifications())
-                    gattClient.disconnect();
-                else {
-                    byte[] value = characteristic.getValue();
-                    if (value != null && value.length == 2)
-                        updateWiFiStatus(value);
-                }
-            }
+    /**
+     * Lists the devices with an open session after a prompt, which stays selected while none
+     * of them is shown.
+     */
+    private void showOpenDevices(ProvisioningState state) {
+        List<String> devices = state.getOpenDevices();
+        deviceAdapter.clear();
+        deviceAdapter.add(getResources().getString(R.string.open_devices));
+        deviceAdapter.addAll(devices);
+        deviceSpinner.setSelection(devices.indexOf(state.getDeviceAddress()) + 1);
+        deviceSpinner.setVisibility(devices.isEmpty() ? View.INVISIBLE : View.VISIBLE);
+        deviceSpinner.setEnabled(!state.isFleet());
+    }
+    //endregion
+
+    //region Scanning control
+    private void startScanning() {
+        startScanning(null);
+    }
+
+    private void startScanning(CredentialProvider fleetCredentials) {
+        if (!hasRequiredRuntimePermissions())
+            requestRelevantRuntimePermissions();
+
+        boolean started = hasRequiredRuntimePermissions() && (fleetCredentials == null ?
+                service.startScanning() : service.startFleet(fleetCredentials));
+        if (!started)
+            stateLabel.setText(R.string.no_permissions);
+    }
+
+    private void startFleet() {
+        // Manifest entries were validated when it was read.
+        CredentialManifest manifest = shownState.getManifest();
+        if (manifest != null) {
+            startScanning(manifest);
+            return;
         }
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt,
-                                          BluetoothGattCharacteristic characteristic,
-                                          int status) {
-            byte[] value;
-            boolean res;
-            switch (currentCommand) {
-                case WiFiCommands.WIFI_CMD_SET_SSID:
-                    String password = passwordEdit.getText().toString();
-                    value = new byte[password.length() + 1];
-                    byte[] str = password.getBytes(StandardCharsets.US_ASCII);
-                    value[0] = WiFiCommands.WIFI_CMD_SET_PWD;
-                    System.arraycopy(str, 0, value, 1, str.length);
-                    setCharacteristicValue(value, WiFiCommands.WIFI_CMD_SET_PWD);
-                    break;
+        String ssid = ssidEdit.getText().toString();
+        String password = passwordEdit.getText().toString();
+        if (!validateSettings(ssid, password))
+            return;
 
-                case WiFiCommands.WIFI_CMD_SET_PWD:
-                    value = new byte[]{WiFiCommands.WIFI_CMD_START};
-                    setCharacteristicValue(value, WiFiCommands.WIFI_CMD_START);
-                    break;
+        // One immutable snapshot for the whole run: editing the boxes later does not change
+        // what is written to devices already admitted.
+        Credentials credentials = new Credentials(ssid, password);
+        startScanning((address, name) -> credentials);
+    }
+    //endregion
 
-                case WiFiCommands.WIFI_CMD_START:
-                case WiFiCommands.WIFI_CMD_STOP:
-                    currentCommand = WiFiCommands.WIFI_CMD_NONE;
-                    MainActivity.this.runOnUiThread(new Runnable() {
-                        public void run() {
-                            enableWiFiButtons(true);
-                        }
-                    });
-                    break;
-            }
+    //region UI events
+    private void scanButtonClicked() {
+        switch (shownState.getConnection()) {
+            case STOPPED:
+                if (fleetCheck.isChecked())
+                    startFleet();
+                else
+                    startScanning();
+                break;
+
+            case SCANNING:
+                service.stopScanning();
+                break;
+
+            default:
+                service.disconnect();
+                break;
         }
+    }
 
-        @SuppressLint("MissingPermission")
+    private final AdapterView.OnItemSelectedListener linkProfileListener =
+            new AdapterView.OnItemSelectedListener() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            MainActivity.this.runOnUiThread(new Runnable() {
-                public void run() {
-                    scanButton.setEnabled(true);
-                }
-            });
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                switch (newState) {
-                    case BluetoothProfile.STATE_CONNECTED:
-                        MainActivity.this.runOnUiThread(new Runnable() {
-                            public void run() {
-                                stateLabel.setText(R.string.connected);
-                                scanButton.setText(R.string.disconnect);
-                                enableWiFiSettings(true);
-                            }
-                        });
-                        gatt.discoverServices();
-                        break;
-
-                    case BluetoothProfile.STATE_DISCONNECTED:
-                        wifiCharacteristic = null;
-                        gattClient = null;
-                        MainActivity.this.runOnUiThread(new Runnable() {
-                            public void run() {
-                                stateLabel.setText(R.string.stopped);
-                                scanButton.setText(R.string.start_scan);
-                                enableWiFiSettings(false);
-                            }
-                        });
-                        break;
-                }
-            }
+        public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+            service.setLinkProfile(LinkProfile.values()[position]);
         }
 
-        @SuppressLint("MissingPermission")
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            UUID serviceUuid = UUID.fromString(WiFiGattServices.SERVICE_UUID);
-            UUID characteristicUuid = UUID.fromString(WiFiGattServices.CHARACTERISTIC_UUID);
-
-            BluetoothGattService service = gatt.getService(serviceUuid);
-            if (service != null) {
-                wifiCharacteristic = service.getCharacteristic(characteristicUuid);
-                if (wifiCharacteristic != null) {
-                    if (!gattClient.readCharacteristic(wifiCharacteristic))
-                        wifiCharacteristic = null;
-                }
-            }
-
-            if (wifiCharacteristic == null)
-                gattClient.disconnect();
+        public void onNothingSelected(AdapterView<?> parent) {
         }
     };
 
-    private ScanCallback scanCallback = new ScanCallback() {
-        @SuppressLint("MissingPermission")
+    private final AdapterView.OnItemSelectedListener deviceListener =
+            new AdapterView.OnItemSelectedListener() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            BluetoothDevice bluetoothDevice = result.getDevice();
-
-            stateLabel.setText(String.format(getResources().getString(R.string.device_found),
-                    result.getDevice().getAddress()));
-            stopScanning(true);
-            scanButton.setEnabled(false);
+        public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+            // Also called for the selection made by showOpenDevices.
+            String address = deviceAdapter.getItem(position);
+            if (position > 0 && !address.equals(shownState.getDeviceAddress()))
+                service.select(address);
+        }
 
-            gattClient = bluetoothDevice.connectGatt(MainActivity.this, false,
-                    gattCallback, BluetoothDevice.TRANSPORT_LE);
+        @Override
+        public void onNothingSelected(AdapterView<?> parent) {
         }
     };
-    //endregion
-
-    //region Bluetooth LE scanning control
-    @SuppressLint("MissingPermission")
-    private void startScanning() {
-        if (bluetoothLeScanner == null) {
-            if (!hasRequiredRuntimePermissions())
-                requestRelevantRuntimePermissions();
 
-            if (hasRequiredRuntimePermissions())
-                bluetoothLeScanner = getBluetoothAdapter().getBluetoothLeScanner();
-        }
+    private void fleetCheckClicked() {
+        enableWiFiSettings(fleetCheck.isChecked() && shownState.getManifest() == null);
+    }
 
-        if (bluetoothLeScanner == null)
-            stateLabel.setText(R.string.no_permissions);
-        else {
-            ScanSettings scanSettings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-                    .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-                    .build();
-            ScanFilter filter = new ScanFilter.Builder()
-                    .setServiceUuid(ParcelUuid.fromString(WiFiGattServices.SERVICE_UUID))
-                    .build();
-            bluetoothLeScanner.startScan(Collections.singletonList(filter), scanSettings,
-                    scanCallback);
-
-            scanButton.setText(R.string.stop_scan);
-            stateLabel.setText(R.string.started);
-        }
+    private void manifestButtonClicked() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, MANIFEST_TYPES);
+        startActivityForResult(intent, MANIFEST_REQUEST_CODE);
     }
 
-    private void stopScanning() {
-        stopScanning(false);
+    private boolean manifestButtonLongClicked() {
+        service.clearManifest();
+        return true;
     }
 
-    @SuppressLint("MissingPermission")
-    private void stopScanning(boolean deviceFound) {
-        if (bluetoothLeScanner != null) {
-            bluetoothLeScanner.stopScan(scanCallback);
-            bluetoothLeScanner = null;
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
 
-            scanButton.setText(R.string.start_scan);
-            if (!deviceFound)
-                stateLabel.setText(R.string.stopped);
+        if (requestCode == MANIFEST_REQUEST_CODE && resultCode == RESULT_OK && data != null &&
+                data.getData() != null) {
+            manifestLabel.setText(R.string.manifest_reading);
+            service.importManifest(data.getData());
         }
     }
-    //endregion
 
-    //region UI events
-    @SuppressLint("MissingPermission")
-    private void scanButtonClicked() {
-        if (gattClient == null) {
-            if (bluetoothLeScanner == null)
-                startScanning();
-            else
-                stopScanning();
-        } else {
-            gattClient.disconnect();
+    private boolean validateSettings(String ssid, String password) {
+        if (ssid.length() == 0) {
+            ErrorDialog.showErrorMessage(this, R.string.error_dlg_ssid_empty);
+            return false;
+        }
+        if (ssid.length() > WiFiProtocol.MAX_SSID_LENGTH) {
+            ErrorDialog.showErrorMessage(this, R.string.error_dlg_ssid_long);
+            return false;
+        }
+        if (!WiFiCommandCodec.isAscii(ssid)) {
+            ErrorDialog.showErrorMessage(this, R.string.error_dlg_ssid_charset);
+            return false;
         }
+
+        if (password.length() == 0) {
+            ErrorDialog.showErrorMessage(this, R.string.error_dlg_password_empty);
+            return false;
+        }
+        if (password.length() < WiFiProtocol.MIN_PASSWORD_LENGTH) {
+            ErrorDialog.showErrorMessage(this, R.string.error_dlg_password_short);
+            return false;
+        }
+        if (password.length() > WiFiProtocol.MAX_PASSWORD_LENGTH) {
+            ErrorDialog.showErrorMessage(this, R.string.error_dlg_password_long);
+            return false;
+        }
+        if (!WiFiCommandCodec.isAscii(password)) {
+            ErrorDialog.showErrorMessage(this, R.string.error_dlg_password_charset);
+            return false;
+        }
+        return true;
     }
 
-    @SuppressLint("MissingPermission")
     private void startWiFiButtonClicked() {
-        if (wifiCharacteristic != null) {
-            String ssid = ssidEdit.getText().toString();
-            String password = passwordEdit.getText().toString();
-
-            if (ssid.length() == 0) {
-                ErrorDialog.showErrorMessage(this, R.string.error_dlg_ssid_empty);
-                return;
-            }
-            if (ssid.length() > 16) {
-                ErrorDialog.showErrorMessage(this, R.string.error_dlg_ssid_long);
-                return;
-            }
-
-            if (password.length() == 0) {
-                ErrorDialog.showErrorMessage(this, R.string.error_dlg_password_empty);
-                return;
-            }
-            if (password.length() > 16) {
-                ErrorDialog.showErrorMessage(this, R.string.error_dlg_password_long);
-                return;
-            }
-
-            byte[] value = new byte[ssid.length() + 1];
-            byte[] str = ssid.getBytes(StandardCharsets.US_ASCII);
-            value[0] = WiFiCommands.WIFI_CMD_SET_SSID;
-            System.arraycopy(str, 0, value, 1, str.length);
-
-            boolean res = wifiCharacteristic.setValue(value);
-            if (res)
-                res = gattClient.writeCharacteristic(wifiCharacteristic);
+        String ssid = ssidEdit.getText().toString();
+        String password = passwordEdit.getText().toString();
+        if (validateSettings(ssid, password))
+            service.provision(new Credentials(ssid, password));
+    }
 
-            if (!res)
-                gattClient.disconnect();
-            else {
-                startWiFiButton.setEnabled(false);
-                stopWiFiButton.setEnabled(false);
+    private void stopWiFiButtonClicked() {
+        service.stopWiFi();
+    }
 
-                currentCommand = WiFiCommands.WIFI_CMD_SET_SSID;
-            }
-        }
+    private void surveyButtonClicked() {
+        service.survey();
     }
 
-    @SuppressLint("MissingPermission")
-    private void stopWiFiButtonClicked() {
-        if (wifiCharacteristic != null) {
-            byte[] value = new byte[]{WiFiCommands.WIFI_CMD_STOP};
-            boolean res = wifiCharacteristic.setValue(value);
-            if (res)
-                res = gattClient.writeCharacteristic(wifiCharacteristic);
-
-            if (!res)
-                gattClient.disconnect();
-            else {
-                startWiFiButton.setEnabled(false);
-                stopWiFiButton.setEnabled(false);
-
-                currentCommand = WiFiCommands.WIFI_CMD_STOP;
-            }
-        }
+    private void monitorButtonClicked() {
+        service.monitor(!shownState.isMonitoring());
     }
     //endregion
 
@@ -407,9 +452,18 @@ public class MainActivity extends BluetoothPermissionChecker {
         scanButton.setText(R.string.start_scan);
         scanButton.setOnClickListener(v -> scanButtonClicked());
 
+        fleetCheck = (CheckBox)findViewById(R.id.FleetCheck);
+        fleetCheck.setOnClickListener(v -> fleetCheckClicked());
+
+        manifestButton = (Button)findViewById(R.id.ManifestButton);
+        manifestButton.setOnClickListener(v -> manifestButtonClicked());
+        manifestButton.setOnLongClickListener(v -> manifestButtonLongClicked());
+
         stateLabel = (TextView)findViewById(R.id.StateLabel);
         stateLabel.setText(R.string.stopped);
 
+        manifestLabel = (TextView)findViewById(R.id.ManifestLabel);
+
         ssidEdit = (EditText)findViewById(R.id.EditSsdi);
         ssidEdit.setEnabled(false);
 
@@ -426,9 +480,55 @@ public class MainActivity extends BluetoothPermissionChecker {
 
         wifiStatusLabel = (TextView)findViewById(R.id.WiFiStatusLabel);
         wifiStatusLabel.setVisibility(View.INVISIBLE);
+        wifiStatusPresenter = new WiFiStatusPresenter(getResources(), wifiStatusLabel,
+                stopWiFiButton);
+
+        surveyButton = (Button)findViewById(R.id.SurveyButton);
+        surveyButton.setVisibility(View.INVISIBLE);
+        surveyButton.setOnClickListener(v -> surveyButtonClicked());
+
+        surveyLabel = (TextView)findViewById(R.id.SurveyLabel);
+
+        monitorButton = (Button)findViewById(R.id.MonitorButton);
+        monitorButton.setVisibility(View.INVISIBLE);
+        monitorButton.setOnClickListener(v -> monitorButtonClicked());
+
+        telemetryLabel = (TextView)findViewById(R.id.TelemetryLabel);
+
+        deviceAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item);
+        deviceAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        deviceSpinner = (Spinner)findViewById(R.id.DeviceSpinner);
+        deviceSpinner.setAdapter(deviceAdapter);
+        deviceSpinner.setVisibility(View.INVISIBLE);
+        deviceSpinner.setOnItemSelectedListener(deviceListener);
+
+        // Outlives the activity: a recreated activity picks up the running scan, connection
+        // or fleet from the first state delivered.
+        service = ProvisioningService.getInstance(this);
+        service.addObserver(stateObserver);
+
+        linkProfileSpinner = (Spinner)findViewById(R.id.LinkProfileSpinner);
+        linkProfileSpinner.setSelection(service.getLinkProfile().ordinal());
+        linkProfileSpinner.setOnItemSelectedListener(linkProfileListener);
+
+        if (savedInstanceState == null && getIntent().getBooleanExtra(EXTRA_START_SCAN, false)) {
+            scanLaunch = true;
+            startScanning();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        service.persist();
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        service.removeObserver(stateObserver);
+        if (isFinishing())
+            service.stopAll();
 
-        bluetoothLeScanner = null;
-        gattClient = null;
-        wifiCharacteristic = null;
+        super.onDestroy();
     }
 }
\ No newline at end of file
@@ -0,0 +1,969 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.content.Context;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+
+import com.example.wifibleconfig.protocol.WiFiAccessPoint;
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+import com.example.wifibleconfig.protocol.WiFiSurvey;
+import com.example.wifibleconfig.protocol.WiFiTelemetry;
+import com.example.wifibleconfig.protocol.WiFiTelemetrySeries;
+import com.example.wifibleconfig.protocol.gatt.GattLayoutCache;
+import com.example.wifibleconfig.protocol.gatt.SessionKeyCache;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+import com.example.wifibleconfig.provisioning.CredentialManifest;
+import com.example.wifibleconfig.provisioning.CredentialProvider;
+import com.example.wifibleconfig.provisioning.Credentials;
+import com.example.wifibleconfig.provisioning.DeviceResult;
+import com.example.wifibleconfig.provisioning.FleetListener;
+import com.example.wifibleconfig.provisioning.FleetProvisioner;
+import com.example.wifibleconfig.provisioning.FleetStats;
+import com.example.wifibleconfig.provisioning.ManifestReader;
+import com.example.wifibleconfig.provisioning.PooledConnector;
+import com.example.wifibleconfig.provisioning.ProvisioningEngine;
+import com.example.wifibleconfig.provisioning.ProvisioningJournal;
+import com.example.wifibleconfig.provisioning.ProvisioningPhase;
+import com.example.wifibleconfig.provisioning.ProvisioningTrace;
+import com.example.wifibleconfig.provisioning.ProvisioningTracer;
+import com.example.wifibleconfig.provisioning.RetryPolicy;
+import com.example.wifibleconfig.provisioning.RetryingConnector;
+import com.example.wifibleconfig.provisioning.ScanCache;
+import com.example.wifibleconfig.provisioning.ScanScheduler;
+import com.example.wifibleconfig.provisioning.SessionPool;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Scanning, GATT sessions and fleet runs of the whole process, independent of any activity.
+ * <p>
+ * All BLE work runs on a dedicated worker thread: GATT callbacks are delivered to its handler,
+ * scan results are handed over to it and every request from the UI is posted to it with an
+ * immutable {@link Credentials} snapshot. Nothing here touches views; the UI follows the single
+ * {@link ProvisioningState} stream, which is coalesced to one main thread delivery however fast
+ * the state changes. An activity being paused or recreated therefore neither stalls nor stops
+ * provisioning.
+ * <p>
+ * Attempts are recorded in a {@link ProvisioningJournal}, so a fleet run restarted after the
+ * process died skips the devices already provisioned.
+ * <p>
+ * Connected devices stay open in a {@link SessionPool}: the UI shows one of them at a time and
+ * switching back to another reuses its link, only the least recently used idle one is
+ * disconnected when the pool is full.
+ */
+public final class ProvisioningService implements GattSession.Listener {
+    public interface Observer {
+        void onStateChanged(ProvisioningState state);
+    }
+
+    private final static String TAG = "WiFiBleConfig";
+    private final static String LAYOUT_CACHE_FILE = "gatt_layouts";
+    private final static String LATENCY_FILE = "latency.json";
+    private final static String JOURNAL_FILE = "provisioning.journal";
+    private final static String SESSION_KEYS_FILE = "session_keys";
+    // Trace sections the :macrobenchmark scan journey measures.
+    private final static String TRACE_START_SCAN = "WiFiBle.startScan";
+    private final static String TRACE_SCAN_RESULT = "WiFiBle.scanResult";
+
+    private static ProvisioningService instance;
+
+    private final Context context;
+    private final BluetoothAdapter adapter;
+    private final HandlerThread workerThread = new HandlerThread("WiFiBle-GATT");
+    private final Handler worker;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    // Journal flushes block on storage, so they stay off the GATT timers.
+    private final ScheduledExecutorService journalScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final ScanCache scanCache = new ScanCache();
+    private final ScanScheduler scanScheduler;
+    private final GattLayoutCache layoutCache = new GattLayoutCache();
+    private final SessionKeyCache sessionKeys = new SessionKeyCache();
+    private final ProvisioningTracer tracer = new ProvisioningTracer();
+    private volatile LinkProfile linkProfile = LinkProfile.FAST_PROVISION;
+    private volatile ProvisioningJournal journal;
+    private final AndroidDeviceConnector sessionConnector;
+    private final RetryingConnector sessionRetries;
+    private final SessionPool sessions;
+
+    //region Worker thread state
+    // Device shown, its client once the session is ready and the acquire it came from.
+    private String selected;
+    private WiFiClient selectedClient;
+    private long selection;
+    private ProvisioningTrace scanTrace;
+    // Provisions the selected device on its pooled session; created once the journal is open.
+    private ProvisioningEngine engine;
+    private AndroidDeviceConnector fleetConnector;
+    private RetryingConnector fleetRetries;
+    private FleetProvisioner fleetProvisioner;
+    //endregion
+
+    //region Published state
+    private ProvisioningState.Connection connection = ProvisioningState.Connection.STOPPED;
+    private String deviceAddress;
+    private int wifiStatus = WiFiStatusCodec.INVALID;
+    private boolean commandPending;
+    private boolean fleet;
+    private FleetStats fleetStats;
+    private boolean surveyAvailable;
+    private boolean surveyRunning;
+    private boolean surveyFailed;
+    private List<WiFiAccessPoint> surveyAccessPoints = Collections.emptyList();
+    private int surveyTotal;
+    private int surveyChannel;
+    private boolean telemetryAvailable;
+    private boolean monitoring;
+    private int telemetryStations;
+    private int telemetryFreeHeap;
+    private long telemetryLost;
+    private WiFiTelemetrySeries telemetryRssi;
+    private List<String> openDevices = Collections.emptyList();
+    private CredentialManifest manifest;
+    private String manifestError;
+
+    private final CopyOnWriteArrayList<Observer> observers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean publishScheduled = new AtomicBoolean();
+    private final Runnable publish = this::publish;
+    //endregion
+
+    private ProvisioningService(Context context) {
+        this.context = context.getApplicationContext();
+        BluetoothManager manager =
+                (BluetoothManager) this.context.getSystemService(Context.BLUETOOTH_SERVICE);
+        adapter = manager.getAdapter();
+        scanScheduler = new ScanScheduler(new AndroidLeScanner(adapter, scanCallback,
+                this.context.getResources().getInteger(R.integer.scan_report_delay_ms)));
+
+        workerThread.start();
+        worker = new Handler(workerThread.getLooper());
+        // Connections of the pool are traced only when they come from a scan.
+        sessionConnector = new AndroidDeviceConnector(this.context, adapter, scheduler, worker,
+                layoutCache, null, this);
+        sessionConnector.setSessionKeys(sessionKeys);
+        // Connects failing with a transient status are retried before the pool sees them.
+        sessionRetries = new RetryingConnector(sessionConnector, scheduler);
+        sessions = new SessionPool(sessionRetries,
+                this.context.getResources().getInteger(R.integer.session_pool_capacity));
+        worker.post(this::loadLayoutCache);
+        worker.post(this::loadSessionKeys);
+        worker.post(this::openJournal);
+    }
+
+    public static synchronized ProvisioningService getInstance(Context context) {
+        if (instance == null)
+            instance = new ProvisioningService(context);
+        return instance;
+    }
+
+    //region State stream
+    /**
+     * Registers an observer and delivers the current state to it. Main thread only.
+     */
+    public void addObserver(Observer observer) {
+        observers.add(observer);
+        observer.onStateChanged(snapshot());
+    }
+
+    public void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    private synchronized ProvisioningState snapshot() {
+        return new ProvisioningState(connection, deviceAddress, wifiStatus, commandPending,
+                fleet, fleetStats, surveyAvailable, surveyRunning, surveyFailed,
+                surveyAccessPoints, surveyTotal, surveyChannel, telemetryAvailable, monitoring,
+                telemetryStations, telemetryFreeHeap, telemetryLost, telemetryRssi,
+                openDevices, manifest, manifestError);
+    }
+
+    private void stateChanged() {
+        if (publishScheduled.compareAndSet(false, true))
+            mainHandler.post(publish);
+    }
+
+    private void publish() {
+        publishScheduled.set(false);
+        ProvisioningState state = snapshot();
+        for (Observer observer : observers)
+            observer.onStateChanged(state);
+    }
+
+    private synchronized void setConnection(ProvisioningState.Connection connection,
+                                            String deviceAddress) {
+        this.connection = connection;
+        this.deviceAddress = deviceAddress;
+        wifiStatus = WiFiStatusCodec.INVALID;
+        commandPending = false;
+        surveyAvailable = false;
+        surveyRunning = false;
+        surveyFailed = false;
+        surveyAccessPoints = Collections.emptyList();
+        surveyTotal = 0;
+        surveyChannel = 0;
+        telemetryAvailable = false;
+        monitoring = false;
+        telemetryStations = 0;
+        telemetryFreeHeap = 0;
+        telemetryLost = 0;
+        telemetryRssi = null;
+        stateChanged();
+    }
+
+    private synchronized void sessionsChanged() {
+        List<String> addresses = sessions.getAddresses();
+        if (addresses.equals(openDevices))
+            return;
+        openDevices = Collections.unmodifiableList(addresses);
+        stateChanged();
+    }
+
+    private synchronized void setManifest(CredentialManifest manifest, String error) {
+        this.manifest = manifest;
+        manifestError = error;
+        stateChanged();
+    }
+
+    private synchronized void setFleet(boolean fleet) {
+        this.fleet = fleet;
+        fleetStats = null;
+        stateChanged();
+    }
+    //endregion
+
+    //region Requests
+    /**
+     * Starts scanning for the nearest unprovisioned device. Returns false when Bluetooth is
+     * off or scanning is not permitted.
+     */
+    public boolean startScanning() {
+        return startScanning(null);
+    }
+
+    /**
+     * Starts scanning and provisions every device found with the given credentials until
+     * {@link #stopScanning} is called.
+     */
+    public boolean startFleet(Credentials credentials) {
+        return startScanning((address, name) -> credentials);
+    }
+
+    /**
+     * Starts scanning and provisions every device found the provider has credentials for,
+     * such as a {@link CredentialManifest}, until {@link #stopScanning} is called.
+     */
+    public boolean startFleet(CredentialProvider credentialProvider) {
+        return startScanning(credentialProvider);
+    }
+
+    private boolean startScanning(CredentialProvider fleetCredentials) {
+        if (adapter.getBluetoothLeScanner() == null)
+            return false;
+
+        worker.post(() -> {
+            if (!scanScheduler.isActive() && selected == null)
+                doStartScanning(fleetCredentials);
+        });
+        return true;
+    }
+
+    public void stopScanning() {
+        worker.post(() -> doStopScanning(false));
+    }
+
+    /**
+     * Reads the credential manifest at {@code uri} in the background and publishes it, or the
+     * reason it could not be read, as {@link ProvisioningState#getManifest}.
+     */
+    public void importManifest(Uri uri) {
+        // Large manifests take a while and block on storage, like the journal.
+        journalScheduler.execute(() -> {
+            try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+                if (in == null)
+                    throw new FileNotFoundException(uri.toString());
+                CredentialManifest manifest = ManifestReader.read(in);
+                Log.i(TAG, "Manifest: " + manifest.getAddressCount() + " devices, " +
+                        manifest.getPatternCount() + " patterns, " +
+                        manifest.getRejectedCount() + " rejected " + manifest.getErrors());
+                setManifest(manifest, null);
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Manifest import failed", e);
+                setManifest(null, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Forgets the manifest; fleet runs use the typed credentials again.
+     */
+    public void clearManifest() {
+        setManifest(null, null);
+    }
+
+    /**
+     * Stops showing the device; its session stays open in the pool.
+     */
+    public void disconnect() {
+        worker.post(() -> {
+            if (selected == null)
+                return;
+            deselect();
+            setConnection(ProvisioningState.Connection.STOPPED, null);
+        });
+    }
+
+    /**
+     * Shows the device at {@code address}, one of {@link ProvisioningState#getOpenDevices} or
+     * a new one, and refreshes its status. Ignored during a fleet run.
+     */
+    public void select(String address) {
+        worker.post(() -> {
+            if (fleetProvisioner != null || address.equals(selected))
+                return;
+            doStopScanning(false);
+            open(address, null);
+        });
+    }
+
+    /**
+     * Writes the credentials to the connected device and starts its access point, on the
+     * least congested channel when a survey has finished.
+     */
+    public void provision(Credentials credentials) {
+        worker.post(() -> {
+            if (selectedClient == null)
+                return;
+
+            String address = selected;
+            int channel;
+            synchronized (this) {
+                channel = surveyRunning ? 0 : surveyChannel;
+            }
+            if (engine == null)
+                engine = new ProvisioningEngine(new PooledConnector(sessions), scheduler,
+                        FleetProvisioner.DEVICE_TIMEOUT_MS, RetryPolicy.DEFAULT, journal);
+            setCommandPending(true);
+            // Only a started access point counts; a failed attempt is retried on a new
+            // session and resumes after the writes the device acknowledged.
+            engine.provision(address, credentials, channel, null).thenAccept(result -> {
+                if (result.isSuccess())
+                    scanCache.markProvisioned(address);
+                else
+                    layoutCache.invalidate(address);
+                // A retry replaced the session shown; a failed one is closed below.
+                if (result.isSuccess() && result.getAttempts() > 1)
+                    worker.post(() -> {
+                        if (address.equals(selected))
+                            open(address, null);
+                    });
+                commandCompleted(result.getError());
+            });
+        });
+    }
+
+    public void stopWiFi() {
+        worker.post(() -> {
+            WiFiClient client = selectedClient;
+            if (client == null)
+                return;
+
+            setCommandPending(true);
+            client.stop().whenComplete((v, error) -> commandCompleted(error));
+        });
+    }
+
+    /**
+     * Surveys the access points around the connected device. Results are published as the
+     * chunks arrive.
+     */
+    public void survey() {
+        worker.post(() -> {
+            WiFiClient client = selectedClient;
+            if (client == null || !client.supportsScan())
+                return;
+
+            String address = selected;
+            synchronized (this) {
+                surveyRunning = true;
+                surveyFailed = false;
+            }
+            stateChanged();
+            client.scan(survey -> surveyProgress(address, survey))
+                    .whenComplete((survey, error) -> surveyCompleted(address, survey, error));
+        });
+    }
+
+    private void surveyCompleted(String address, WiFiSurvey survey, Throwable error) {
+        if (error != null)
+            Log.w(TAG, "Survey failed", error);
+        synchronized (this) {
+            if (!address.equals(deviceAddress))
+                return;
+            surveyRunning = false;
+            surveyFailed = error != null || survey.isFailed();
+        }
+        stateChanged();
+    }
+
+    /**
+     * Called per chunk; the copy of at most {@link WiFiSurvey#DEFAULT_CAPACITY} entries is
+     * what the coalesced publishing hands to the UI. Ignored once the device is gone.
+     */
+    private void surveyProgress(String address, WiFiSurvey survey) {
+        List<WiFiAccessPoint> accessPoints = survey.getAccessPoints();
+        synchronized (this) {
+            if (!address.equals(deviceAddress))
+                return;
+            surveyAccessPoints = Collections.unmodifiableList(accessPoints);
+            surveyTotal = survey.getTotalCount();
+            surveyChannel = survey.getLeastCongestedChannel();
+        }
+        stateChanged();
+    }
+
+    /**
+     * Starts or stops telemetry from the connected device. Every start keeps the frames in a
+     * new ring buffer of R.integer.telemetry_capacity samples, so hours of monitoring stay at
+     * the memory of the first hour; the UI gets the RSSI reduced to R.integer.telemetry_buckets.
+     */
+    public void monitor(boolean enable) {
+        worker.post(() -> {
+            WiFiClient client = selectedClient;
+            if (client == null || !client.supportsTelemetry())
+                return;
+
+            String address = selected;
+            setMonitoring(enable);
+            if (!enable) {
+                client.stopTelemetry().whenComplete((v, error) -> {
+                    if (error != null)
+                        Log.w(TAG, "Stopping telemetry failed", error);
+                });
+                return;
+            }
+
+            Resources resources = context.getResources();
+            WiFiTelemetry telemetry = new WiFiTelemetry(
+                    resources.getInteger(R.integer.telemetry_capacity));
+            int buckets = resources.getInteger(R.integer.telemetry_buckets);
+            client.startTelemetry(resources.getInteger(R.integer.telemetry_interval_ms),
+                    telemetry, received -> telemetryReceived(address, received, buckets))
+                    .whenComplete((v, error) -> {
+                        if (error == null)
+                            return;
+                        Log.w(TAG, "Starting telemetry failed", error);
+                        synchronized (this) {
+                            if (address.equals(deviceAddress))
+                                monitoring = false;
+                        }
+                        stateChanged();
+                    });
+        });
+    }
+
+    private synchronized void setMonitoring(boolean monitoring) {
+        this.monitoring = monitoring;
+        telemetryRssi = null;
+        telemetryLost = 0;
+        stateChanged();
+    }
+
+    /**
+     * Called per frame; the downsampled series is a fixed number of buckets however long the
+     * session runs. Ignored once monitoring stopped or the device is gone.
+     */
+    private void telemetryReceived(String address, WiFiTelemetry telemetry, int buckets) {
+        WiFiTelemetrySeries rssi = telemetry.downsample(WiFiTelemetry.Metric.RSSI, buckets);
+        synchronized (this) {
+            if (!monitoring || !address.equals(deviceAddress))
+                return;
+            telemetryStations = telemetry.getLatest(WiFiTelemetry.Metric.STATIONS);
+            telemetryFreeHeap = telemetry.getLatest(WiFiTelemetry.Metric.FREE_HEAP);
+            telemetryLost = telemetry.getLost();
+            telemetryRssi = rssi;
+        }
+        stateChanged();
+    }
+
+    /**
+     * Selects the connection tuning for the devices connected from now on.
+     */
+    public void setLinkProfile(LinkProfile linkProfile) {
+        this.linkProfile = linkProfile;
+        sessionConnector.setLinkProfile(linkProfile);
+        worker.post(() -> {
+            if (fleetConnector != null)
+                fleetConnector.setLinkProfile(linkProfile);
+        });
+    }
+
+    public LinkProfile getLinkProfile() {
+        return linkProfile;
+    }
+
+    /**
+     * Stops scanning and releases every connection, used when the UI is finished for good.
+     */
+    public void stopAll() {
+        worker.post(() -> {
+            doStopScanning(false);
+            if (fleetConnector != null)
+                fleetConnector.closeAll();
+            deselect();
+            sessions.closeAll();
+            sessionConnector.closeAll();
+        });
+    }
+
+    /**
+     * Saves the learned GATT layouts, the session keys and the latency histograms and flushes
+     * the journal in the background.
+     */
+    public void persist() {
+        worker.post(() -> {
+            storeLayoutCache();
+            storeSessionKeys();
+            storeLatency();
+            ProvisioningJournal journal = this.journal;
+            if (journal != null)
+                journal.flush();
+        });
+    }
+
+    private synchronized void setCommandPending(boolean commandPending) {
+        this.commandPending = commandPending;
+        stateChanged();
+    }
+
+    private void commandCompleted(Throwable error) {
+        if (error == null) {
+            setCommandPending(false);
+            return;
+        }
+        // The link is suspect: it is dropped instead of going back to the pool.
+        worker.post(() -> {
+            if (selected != null)
+                sessions.close(selected);
+        });
+    }
+    //endregion
+
+    //region Scanning
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            worker.post(() -> {
+                scanResultReceived(result);
+                scanResultsProcessed();
+            });
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            // Delivered on the main thread; only the hand-over happens there.
+            worker.post(() -> {
+                for (int i = 0; i < results.size(); i++)
+                    scanResultReceived(results.get(i));
+                scanResultsProcessed();
+            });
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            worker.post(() -> {
+                Log.w(TAG, "Scan failed: " + errorCode);
+                scanScheduler.onScanFailed();
+                scheduleScanTick();
+            });
+        }
+    };
+
+    private final Runnable scanTick = this::scanTick;
+
+    private void scanTick() {
+        scanScheduler.tick();
+        scheduleScanTick();
+    }
+
+    /**
+     * Wakes the worker when the scan scheduler is due next.
+     */
+    private void scheduleScanTick() {
+        worker.removeCallbacks(scanTick);
+        long delay = scanScheduler.getWakeUpDelayMillis();
+        if (delay != ScanScheduler.NO_WAKE_UP)
+            worker.postDelayed(scanTick, delay);
+    }
+
+    private void doStartScanning(CredentialProvider fleetCredentials) {
+        Trace.beginSection(TRACE_START_SCAN);
+        try {
+            startScan(fleetCredentials);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void startScan(CredentialProvider fleetCredentials) {
+        if (fleetCredentials != null) {
+            if (fleetConnector == null) {
+                fleetConnector = new AndroidDeviceConnector(context, adapter, scheduler, worker,
+                        layoutCache, tracer);
+                fleetConnector.setSessionKeys(sessionKeys);
+                fleetRetries = new RetryingConnector(fleetConnector, scheduler);
+            }
+            fleetConnector.setLinkProfile(linkProfile);
+            fleetProvisioner = new FleetProvisioner(fleetRetries, fleetCredentials,
+                    fleetListener, scheduler,
+                    context.getResources().getInteger(R.integer.fleet_max_connections), journal);
+            setFleet(true);
+        }
+
+        scanCache.evictExpired();
+        scanScheduler.start();
+        scheduleScanTick();
+
+        if (fleetProvisioner == null) {
+            scanTrace = tracer.begin();
+            scanTrace.mark(ProvisioningPhase.SCAN_STARTED);
+        }
+        setConnection(ProvisioningState.Connection.SCANNING, null);
+    }
+
+    private void doStopScanning(boolean deviceFound) {
+        if (!scanScheduler.isActive())
+            return;
+
+        scanScheduler.stop();
+        worker.removeCallbacks(scanTick);
+        Log.i(TAG, "Scan: " + scanScheduler.getStats());
+        scanTrace = deviceFound ? scanTrace : null;
+
+        // Devices already connected finish their provisioning.
+        if (fleetProvisioner != null) {
+            Log.i(TAG, "Fleet connects:\n" + fleetRetries.getStats().dump() +
+                    "Fleet provisioning:\n" + fleetProvisioner.getRetryStats().dump());
+            fleetProvisioner.stop();
+            fleetProvisioner = null;
+            setFleet(false);
+        }
+        if (!deviceFound)
+            setConnection(ProvisioningState.Connection.STOPPED, null);
+    }
+
+    @SuppressLint("MissingPermission")
+    private void scanResultReceived(ScanResult result) {
+        String address = result.getDevice().getAddress();
+        scanCache.update(address, result.getDevice().getName(), result.getRssi());
+
+        // Fleet mode: scanning continues, the provisioner decides what to admit. Rediscovered
+        // devices are offered again so failed ones get another attempt.
+        FleetProvisioner provisioner = fleetProvisioner;
+        if (provisioner != null && provisioner.offer(address, scanCache.getName(address)))
+            scanScheduler.onDiscovery();
+    }
+
+    private void scanResultsProcessed() {
+        if (!scanScheduler.isActive())
+            return;
+        if (fleetProvisioner != null) {
+            scheduleScanTick();
+            return;
+        }
+
+        String address = scanCache.bestUnprovisioned();
+        if (address == null)
+            return;
+
+        Trace.beginSection(TRACE_SCAN_RESULT);
+        try {
+            connect(address);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void connect(String address) {
+        scanScheduler.onDiscovery();
+        doStopScanning(true);
+        setConnection(ProvisioningState.Connection.CONNECTING, address);
+
+        ProvisioningTrace trace = scanTrace;
+        scanTrace = null;
+        if (trace != null)
+            trace.mark(ProvisioningPhase.SCAN_RESULT);
+        open(address, trace);
+    }
+    //endregion
+
+    //region Session pool
+    /**
+     * Shows {@code address} from now on and acquires its session from the pool.
+     */
+    private void open(String address, ProvisioningTrace trace) {
+        deselect();
+        long current = selection;
+        selected = address;
+        setConnection(ProvisioningState.Connection.CONNECTING, address);
+
+        if (trace != null && !sessions.getAddresses().contains(address))
+            sessionRetries.setTrace(address, trace);
+        sessions.acquire(address).whenComplete((client, error) ->
+                worker.post(() -> opened(current, address, client, error)));
+        sessionsChanged();
+    }
+
+    private void opened(long current, String address, WiFiClient client, Throwable error) {
+        sessionsChanged();
+        if (current != selection) {
+            // Another device was selected meanwhile.
+            if (client != null)
+                sessions.release(address, client);
+            return;
+        }
+        if (error != null) {
+            Log.w(TAG, "Connection to " + address + " failed", error);
+            selected = null;
+            selection++;
+            setConnection(ProvisioningState.Connection.STOPPED, null);
+            return;
+        }
+
+        selectedClient = client;
+        boolean refresh;
+        synchronized (this) {
+            // A new connection is shown from its callbacks already, a pooled one starts here.
+            if (connection != ProvisioningState.Connection.CONNECTED)
+                setConnection(ProvisioningState.Connection.CONNECTED, address);
+            surveyAvailable = client.supportsScan();
+            telemetryAvailable = client.supportsTelemetry();
+            refresh = wifiStatus == WiFiStatusCodec.INVALID;
+        }
+        stateChanged();
+        if (refresh)
+            client.requestStatus().whenComplete((value, statusError) -> {
+                if (statusError == null)
+                    worker.post(() -> showStatus(address, value));
+            });
+    }
+
+    /**
+     * Stops showing the selected device and returns its session to the pool.
+     */
+    private void deselect() {
+        if (selected != null && selectedClient != null) {
+            boolean streaming;
+            synchronized (this) {
+                streaming = monitoring;
+            }
+            // An idle session does not keep streaming telemetry nobody looks at.
+            if (streaming)
+                selectedClient.stopTelemetry();
+            sessions.release(selected, selectedClient);
+        }
+        selected = null;
+        selectedClient = null;
+        selection++;
+    }
+
+    private void showStatus(String address, byte[] value) {
+        int packedStatus = WiFiStatusCodec.decode(value);
+        if (packedStatus == WiFiStatusCodec.INVALID || !address.equals(selected))
+            return;
+
+        synchronized (this) {
+            wifiStatus = packedStatus;
+        }
+        stateChanged();
+    }
+    //endregion
+
+    //region GattSession.Listener
+    // Sessions of the pool call back on the worker thread; only the shown device is published.
+    @Override
+    public void onConnected(GattSession session) {
+        if (session.getAddress().equals(selected))
+            setConnection(ProvisioningState.Connection.CONNECTED, session.getAddress());
+    }
+
+    @Override
+    public void onReady(GattSession session, byte[] status) {
+        if (!session.getAddress().equals(selected))
+            return;
+        synchronized (this) {
+            surveyAvailable = session.getClient().supportsScan();
+            telemetryAvailable = session.getClient().supportsTelemetry();
+        }
+        showStatus(session.getAddress(), status);
+    }
+
+    @Override
+    public void onStatusChanged(GattSession session, byte[] value) {
+        showStatus(session.getAddress(), value);
+    }
+
+    @Override
+    public void onTraceFinished(GattSession session, ProvisioningTrace trace) {
+        Log.i(TAG, "Provisioning latency:\n" + tracer.dump() + "Connects:\n" +
+                sessionRetries.getStats().dump());
+    }
+
+    @Override
+    public void onDisconnected(GattSession session) {
+        worker.post(() -> {
+            sessionsChanged();
+            // A newer session of the device replaced this one, or a connect attempt failed
+            // and the outcome of the acquire is still to come.
+            String address = session.getAddress();
+            if (!address.equals(selected) || sessionConnector.getSession(address) != null ||
+                    selectedClient == null)
+                return;
+            selected = null;
+            selectedClient = null;
+            selection++;
+            setConnection(ProvisioningState.Connection.STOPPED, null);
+        });
+    }
+
+    private final FleetListener fleetListener = new FleetListener() {
+        @Override
+        public void onDeviceCompleted(DeviceResult result, FleetStats stats) {
+            if (result.isSuccess())
+                scanCache.markProvisioned(result.getAddress());
+            else
+                layoutCache.invalidate(result.getAddress());
+
+            synchronized (ProvisioningService.this) {
+                if (fleet)
+                    fleetStats = stats;
+            }
+            stateChanged();
+        }
+    };
+    //endregion
+
+    //region Persistence
+    private void storeLatency() {
+        try (Writer writer = new FileWriter(new File(context.getFilesDir(), LATENCY_FILE))) {
+            tracer.writeJson(writer);
+        } catch (IOException e) {
+            Log.w(TAG, "Latency export failed", e);
+        }
+    }
+
+    private File layoutCacheFile() {
+        return new File(context.getFilesDir(), LAYOUT_CACHE_FILE);
+    }
+
+    private void loadLayoutCache() {
+        File file = layoutCacheFile();
+        if (!file.exists())
+            return;
+        try (Reader reader = new FileReader(file)) {
+            layoutCache.load(reader);
+        } catch (IOException e) {
+            // A missing or broken cache only means cold connections.
+        }
+    }
+
+    private void openJournal() {
+        try {
+            journal = ProvisioningJournal.open(new File(context.getFilesDir(), JOURNAL_FILE),
+                    journalScheduler);
+        } catch (IOException e) {
+            // Runs are not resumable, provisioning itself is not affected.
+            Log.w(TAG, "Provisioning journal unavailable", e);
+        }
+    }
+
+    private void storeLayoutCache() {
+        try (Writer writer = new FileWriter(layoutCacheFile())) {
+            layoutCache.store(writer);
+        } catch (IOException e) {
+            // Not fatal, the layouts are learned again on the next connections.
+        }
+    }
+
+    private File sessionKeysFile() {
+        // Private app storage: the file holds key material.
+        return new File(context.getFilesDir(), SESSION_KEYS_FILE);
+    }
+
+    private void loadSessionKeys() {
+        File file = sessionKeysFile();
+        if (file.exists()) {
+            try (Reader reader = new FileReader(file)) {
+                sessionKeys.load(reader);
+            } catch (IOException e) {
+                // Devices without a key simply run a key exchange again.
+            }
+        }
+        // Only now, a save before the load would drop the stored keys.
+        sessionKeys.setPersister(this::writeSessionKeys);
+    }
+
+    private void storeSessionKeys() {
+        try {
+            sessionKeys.save();
+        } catch (IOException e) {
+            Log.w(TAG, "Session keys not saved", e);
+        }
+    }
+
+    /**
+     * Replaces the file in one rename: a torn write must not leave a counter below one in use.
+     * Called before sealing with a new block of counters, on the thread sealing.
+     */
+    private void writeSessionKeys(SessionKeyCache cache) throws IOException {
+        File file = sessionKeysFile();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.US_ASCII);
+            cache.store(writer);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+    }
+    //endregion
+}
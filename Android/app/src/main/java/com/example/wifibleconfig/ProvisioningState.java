@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig;
+
+import com.example.wifibleconfig.protocol.WiFiAccessPoint;
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+import com.example.wifibleconfig.protocol.WiFiSurvey;
+import com.example.wifibleconfig.protocol.WiFiTelemetry;
+import com.example.wifibleconfig.protocol.WiFiTelemetrySeries;
+import com.example.wifibleconfig.provisioning.CredentialManifest;
+import com.example.wifibleconfig.provisioning.FleetStats;
+
+import java.util.List;
+
+/**
+ * Immutable snapshot of what {@link ProvisioningService} is doing, published to the UI.
+ */
+public final class ProvisioningState {
+    public enum Connection {
+        STOPPED,
+        SCANNING,
+        CONNECTING,
+        CONNECTED
+    }
+
+    private final Connection connection;
+    private final String deviceAddress;
+    private final int wifiStatus;
+    private final boolean commandPending;
+    private final boolean fleet;
+    private final FleetStats fleetStats;
+    private final boolean surveyAvailable;
+    private final boolean surveyRunning;
+    private final boolean surveyFailed;
+    private final List<WiFiAccessPoint> surveyAccessPoints;
+    private final int surveyTotal;
+    private final int surveyChannel;
+    private final boolean telemetryAvailable;
+    private final boolean monitoring;
+    private final int telemetryStations;
+    private final int telemetryFreeHeap;
+    private final long telemetryLost;
+    private final WiFiTelemetrySeries telemetryRssi;
+    private final List<String> openDevices;
+    private final CredentialManifest manifest;
+    private final String manifestError;
+
+    ProvisioningState(Connection connection, String deviceAddress, int wifiStatus,
+                      boolean commandPending, boolean fleet, FleetStats fleetStats,
+                      boolean surveyAvailable, boolean surveyRunning, boolean surveyFailed,
+                      List<WiFiAccessPoint> surveyAccessPoints, int surveyTotal,
+                      int surveyChannel, boolean telemetryAvailable, boolean monitoring,
+                      int telemetryStations, int telemetryFreeHeap, long telemetryLost,
+                      WiFiTelemetrySeries telemetryRssi, List<String> openDevices,
+                      CredentialManifest manifest, String manifestError) {
+        this.connection = connection;
+        this.deviceAddress = deviceAddress;
+        this.wifiStatus = wifiStatus;
+        this.commandPending = commandPending;
+        this.fleet = fleet;
+        this.fleetStats = fleetStats;
+        this.surveyAvailable = surveyAvailable;
+        this.surveyRunning = surveyRunning;
+        this.surveyFailed = surveyFailed;
+        this.surveyAccessPoints = surveyAccessPoints;
+        this.surveyTotal = surveyTotal;
+        this.surveyChannel = surveyChannel;
+        this.telemetryAvailable = telemetryAvailable;
+        this.monitoring = monitoring;
+        this.telemetryStations = telemetryStations;
+        this.telemetryFreeHeap = telemetryFreeHeap;
+        this.telemetryLost = telemetryLost;
+        this.telemetryRssi = telemetryRssi;
+        this.openDevices = openDevices;
+        this.manifest = manifest;
+        this.manifestError = manifestError;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Device being connected or connected to, null otherwise.
+     */
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * Last WiFi status of the connected device packed by {@link WiFiStatusCodec}, or
+     * {@link WiFiStatusCodec#INVALID} while unknown.
+     */
+    public int getWiFiStatus() {
+        return wifiStatus;
+    }
+
+    /**
+     * A start or stop command is in flight.
+     */
+    public boolean isCommandPending() {
+        return commandPending;
+    }
+
+    public boolean isFleet() {
+        return fleet;
+    }
+
+    /**
+     * Statistics of the fleet run, null until its first device completes.
+     */
+    public FleetStats getFleetStats() {
+        return fleetStats;
+    }
+
+    /**
+     * Devices with an open session to switch to, most recently used first; the same list
+     * instance until the pool changes.
+     */
+    public List<String> getOpenDevices() {
+        return openDevices;
+    }
+
+    //region Credential manifest
+    /**
+     * Imported manifest fleet runs take their credentials from, null when none is loaded.
+     */
+    public CredentialManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Why the last manifest import failed, null when it succeeded or none was imported.
+     */
+    public String getManifestError() {
+        return manifestError;
+    }
+    //endregion
+
+    //region Access point survey
+    /**
+     * The connected device can survey the access points around it.
+     */
+    public boolean isSurveyAvailable() {
+        return surveyAvailable;
+    }
+
+    public boolean isSurveyRunning() {
+        return surveyRunning;
+    }
+
+    /**
+     * The last survey ended early; its partial results are still shown.
+     */
+    public boolean isSurveyFailed() {
+        return surveyFailed;
+    }
+
+    /**
+     * Strongest access points of the current or last survey, strongest first; the same list
+     * instance until the survey reports more.
+     */
+    public List<WiFiAccessPoint> getSurveyAccessPoints() {
+        return surveyAccessPoints;
+    }
+
+    /**
+     * Access points reported so far, including those not kept in the list.
+     */
+    public int getSurveyTotal() {
+        return surveyTotal;
+    }
+
+    /**
+     * Least congested channel by {@link WiFiSurvey#getLeastCongestedChannel()}, 0 before any
+     * survey results.
+     */
+    public int getSurveyChannel() {
+        return surveyChannel;
+    }
+    //endregion
+
+    //region Telemetry
+    /**
+     * The connected device can stream telemetry.
+     */
+    public boolean isTelemetryAvailable() {
+        return telemetryAvailable;
+    }
+
+    public boolean isMonitoring() {
+        return monitoring;
+    }
+
+    /**
+     * Station count of the newest telemetry frame.
+     */
+    public int getTelemetryStations() {
+        return telemetryStations;
+    }
+
+    /**
+     * Free heap of the device in bytes, from the newest telemetry frame.
+     */
+    public int getTelemetryFreeHeap() {
+        return telemetryFreeHeap;
+    }
+
+    /**
+     * Telemetry frames lost on the link since monitoring started.
+     */
+    public long getTelemetryLost() {
+        return telemetryLost;
+    }
+
+    /**
+     * Station RSSI over the kept samples, reduced by {@link WiFiTelemetry#downsample}; null
+     * before the first frame. A new instance per frame.
+     */
+    public WiFiTelemetrySeries getTelemetryRssi() {
+        return telemetryRssi;
+    }
+    //endregion
+}
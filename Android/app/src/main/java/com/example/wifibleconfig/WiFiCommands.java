@@ -11,16 +11,19 @@
 
 package com.example.wifibleconfig;
 
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+
 public class WiFiCommands {
-    public final static byte WIFI_STATUS_STARTED = 0x01;
-    public final static byte WIFI_STATUS_STOPPED = 0x02;
-    public final static byte WIFI_STATUS_NO_CONFIG = 0x03;
-    public final static byte WIFI_STATUS_ERROR = 0x04;
+    public final static byte WIFI_STATUS_STARTED = WiFiProtocol.WIFI_STATUS_STARTED;
+    public final static byte WIFI_STATUS_STOPPED = WiFiProtocol.WIFI_STATUS_STOPPED;
+    public final static byte WIFI_STATUS_NO_CONFIG = WiFiProtocol.WIFI_STATUS_NO_CONFIG;
+    public final static byte WIFI_STATUS_ERROR = WiFiProtocol.WIFI_STATUS_ERROR;
 
-    public final static byte WIFI_CMD_NONE = 0x00;
-    public final static byte WIFI_CMD_SET_SSID = 0x01;
-    public final static byte WIFI_CMD_SET_PWD = 0x02;
-    public final static byte WIFI_CMD_START = 0x03;
-    public final static byte WIFI_CMD_STOP = 0x04;
-    public final static byte WIFI_CMD_GET_STATUS = 0x05;
+    public final static byte WIFI_CMD_NONE = WiFiProtocol.WIFI_CMD_NONE;
+    public final static byte WIFI_CMD_SET_SSID = WiFiProtocol.WIFI_CMD_SET_SSID;
+    public final static byte WIFI_CMD_SET_PWD = WiFiProtocol.WIFI_CMD_SET_PWD;
+    public final static byte WIFI_CMD_START = WiFiProtocol.WIFI_CMD_START;
+    public final static byte WIFI_CMD_STOP = WiFiProtocol.WIFI_CMD_STOP;
+    public final static byte WIFI_CMD_GET_STATUS = WiFiProtocol.WIFI_CMD_GET_STATUS;
+    public final static byte WIFI_CMD_PROVISION = WiFiProtocol.WIFI_CMD_PROVISION;
 }
@@ -11,8 +11,15 @@
 
 package com.example.wifibleconfig;
 
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+
 public class WiFiGattServices {
-    public final static String SERVICE_UUID = "4fafc201-1fb5-459e-8fcc-c5c9c331914b";
-    public final static String CHARACTERISTIC_UUID = "beb5483e-36e1-4688-b7f5-ea07361b26a8";
-    public final static String CCC_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805f9b34fb";
+    public final static String SERVICE_UUID = WiFiGattAttributes.SERVICE;
+    public final static String CHARACTERISTIC_UUID = WiFiGattAttributes.CHARACTERISTIC;
+    public final static String VERSION_CHARACTERISTIC_UUID = WiFiGattAttributes.VERSION_CHARACTERISTIC;
+    public final static String STATUS_CHARACTERISTIC_UUID = WiFiGattAttributes.STATUS_CHARACTERISTIC;
+    public final static String SCAN_CHARACTERISTIC_UUID = WiFiGattAttributes.SCAN_CHARACTERISTIC;
+    public final static String TELEMETRY_CHARACTERISTIC_UUID = WiFiGattAttributes.TELEMETRY_CHARACTERISTIC;
+    public final static String SECURITY_CHARACTERISTIC_UUID = WiFiGattAttributes.SECURITY_CHARACTERISTIC;
+    public final static String CCC_DESCRIPTOR_UUID = WiFiGattAttributes.CCC_DESCRIPTOR;
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig;
+
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.widget.Button;
+import android.widget.TextView;
+
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shows the WiFi status from GATT notifications, coalesced to one refresh per display frame.
+ * <p>
+ * Notifications only store the packed status in an atomic slot; the first one after a refresh
+ * posts the single reusable runnable, which schedules a frame callback that renders the latest
+ * value. Status strings are resolved once, so a burst of station join/leave notifications costs
+ * no allocations and at most one layout pass per frame.
+ */
+public class WiFiStatusPresenter {
+    // ESP32 soft AP allows at most 10 stations; higher counts are formatted on demand.
+    private final static int CACHED_STATION_COUNTS = 11;
+    private final static int NOTHING_RENDERED = Integer.MIN_VALUE;
+
+    private final TextView statusLabel;
+    private final Button stopButton;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final String started;
+    private final String stopped;
+    private final String notConfigured;
+    private final String error;
+    private final String unknown;
+    private final String[] startedWithStations = new String[CACHED_STATION_COUNTS];
+
+    private final AtomicInteger latest = new AtomicInteger(WiFiStatusCodec.INVALID);
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private int rendered = NOTHING_RENDERED;
+
+    private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> render();
+    private final Runnable scheduleFrame = () -> Choreographer.getInstance()
+            .postFrameCallback(frameCallback);
+
+    public WiFiStatusPresenter(Resources resources, TextView statusLabel, Button stopButton) {
+        this.statusLabel = statusLabel;
+        this.stopButton = stopButton;
+
+        started = resources.getString(R.string.wifi_status_started);
+        stopped = resources.getString(R.string.wifi_status_stopped);
+        notConfigured = resources.getString(R.string.wifi_status_not_configured);
+        error = resources.getString(R.string.wifi_status_error);
+        unknown = resources.getString(R.string.wifi_status_unknown);
+    }
+
+    /**
+     * Accepts a status packed by {@link WiFiStatusCodec} from any thread.
+     */
+    public void onStatus(int packedStatus) {
+        if (packedStatus == WiFiStatusCodec.INVALID)
+            return;
+
+        latest.set(packedStatus);
+        if (scheduled.compareAndSet(false, true))
+            mainHandler.post(scheduleFrame);
+    }
+
+    /**
+     * Shows the unknown status and forgets pending values. Main thread only.
+     */
+    public void reset() {
+        latest.set(WiFiStatusCodec.INVALID);
+        rendered = NOTHING_RENDERED;
+        statusLabel.setText(unknown);
+    }
+
+    private void render() {
+        // Cleared before reading, so a notification arriving during rendering schedules the
+        // next frame instead of being lost.
+        scheduled.set(false);
+        int packedStatus = latest.get();
+        if (packedStatus == WiFiStatusCodec.INVALID || packedStatus == rendered)
+            return;
+
+        rendered = packedStatus;
+        byte wifiStatus = WiFiStatusCodec.statusOf(packedStatus);
+        statusLabel.setText(textOf(wifiStatus, WiFiStatusCodec.stationCountOf(packedStatus)));
+        stopButton.setEnabled(wifiStatus == WiFiCommands.WIFI_STATUS_STARTED);
+    }
+
+    private String textOf(byte wifiStatus, int stationCount) {
+        switch (wifiStatus) {
+            case WiFiCommands.WIFI_STATUS_STARTED:
+                if (stationCount >= CACHED_STATION_COUNTS)
+                    return String.format(started, stationCount);
+                String text = startedWithStations[stationCount];
+                if (text == null) {
+                    text = String.format(started, stationCount);
+                    startedWithStations[stationCount] = text;
+                }
+                return text;
+
+            case WiFiCommands.WIFI_STATUS_STOPPED:
+                return stopped;
+
+            case WiFiCommands.WIFI_STATUS_NO_CONFIG:
+                return notConfigured;
+
+            case WiFiCommands.WIFI_STATUS_ERROR:
+                return error;
+
+            default:
+                return unknown;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.bluez;
+
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+import com.example.wifibleconfig.protocol.gatt.GattOperationQueue;
+import com.example.wifibleconfig.protocol.gatt.SessionKeyCache;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+import com.example.wifibleconfig.provisioning.DeviceConnector;
+import com.example.wifibleconfig.provisioning.ProvisioningPhase;
+import com.example.wifibleconfig.provisioning.ProvisioningTrace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link DeviceConnector} over bluetoothd, so provisioning runs on Linux stations and CI
+ * machines with a Bluetooth adapter. Needs BlueZ 5.50 or later and the gdbus and bluetoothctl
+ * tools; the user must be allowed to talk to org.bluez, as members of the bluetooth group are.
+ * <p>
+ * A device bluetoothd does not know yet is scanned for first. After the connection is up and
+ * BlueZ has resolved the services, the regular {@link WiFiClient} session runs over a
+ * {@link BlueZGattTransport}. One gdbus monitor per connection delivers notifications and
+ * reports a lost link. Disconnecting also cancels a Connect call still pending, and the next
+ * connect to the device waits for that before it calls Connect again.
+ */
+public final class BlueZDeviceConnector implements DeviceConnector {
+    public final static String DEFAULT_ADAPTER = "hci0";
+    public final static int CONNECT_TIMEOUT_S = 20;
+    public final static long RESOLVE_TIMEOUT_MS = 10000;
+    public final static long DISCOVERY_TIMEOUT_MS = 10000;
+    private final static long POLL_MS = 200;
+
+    private final static class Connection {
+        final String address;
+        final String path;
+        final CountDownLatch resolved = new CountDownLatch(1);
+        volatile boolean closed;
+        volatile Process monitor;
+        volatile BlueZGattTransport transport;
+        volatile GattOperationQueue queue;
+        volatile WiFiClient client;
+        // Characteristic UUIDs by object path.
+        volatile Map<String, UUID> characteristics;
+
+        Connection(String address, String path) {
+            this.address = address;
+            this.path = path;
+        }
+    }
+
+    private final String adapterPath;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final Map<String, ProvisioningTrace> traces = new ConcurrentHashMap<>();
+    // Pending Disconnect calls by address.
+    private final Map<String, Future<?>> disconnects = new ConcurrentHashMap<>();
+    private volatile SessionKeyCache sessionKeys;
+    private volatile Listener listener;
+
+    public BlueZDeviceConnector(ScheduledExecutorService scheduler) {
+        this(DEFAULT_ADAPTER, scheduler);
+    }
+
+    /**
+     * @param adapter adapter the connections are made from, such as {@code hci0}
+     */
+    public BlueZDeviceConnector(String adapter, ScheduledExecutorService scheduler) {
+        this.adapterPath = "/org/bluez/" + adapter;
+        this.scheduler = scheduler;
+        // D-Bus calls block for up to CONNECT_TIMEOUT_S; each connection has at most one GATT
+        // operation in flight.
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "BlueZ");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Shares session keys across connections; without a cache every provisioning runs a key
+     * exchange.
+     */
+    public void setSessionKeys(SessionKeyCache sessionKeys) {
+        this.sessionKeys = sessionKeys;
+    }
+
+    //region DeviceConnector
+    @Override
+    public CompletableFuture<WiFiClient> connect(String address) {
+        Connection connection = new Connection(address, devicePath(address));
+        Connection previous = connections.put(address, connection);
+        if (previous != null)
+            close(previous);
+
+        ProvisioningTrace trace = traces.remove(address);
+        CompletableFuture<WiFiClient> ready = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                open(connection, trace, ready);
+            } catch (BlueZException e) {
+                lost(connection);
+                ready.completeExceptionally(e);
+            }
+        });
+        return ready;
+    }
+
+    @Override
+    public void disconnect(String address) {
+        Connection connection = connections.remove(address);
+        if (connection == null)
+            return;
+        close(connection);
+        // Runs beside a pending Connect call, which bluetoothd then cancels.
+        disconnects.put(address, executor.submit(() -> {
+            try {
+                GDBus.call(connection.path, "org.bluez.Device1.Disconnect",
+                        GDBus.DEFAULT_TIMEOUT_S);
+            } catch (BlueZException e) {
+                // Already gone.
+            }
+        }));
+        notifyDisconnected(address);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setTrace(String address, ProvisioningTrace trace) {
+        traces.put(address, trace);
+    }
+
+    /**
+     * Disconnects every device and stops the D-Bus threads.
+     */
+    public void close() {
+        for (String address : connections.keySet())
+            disconnect(address);
+        executor.shutdown();
+    }
+    //endregion
+
+    //region Connection
+    private void open(Connection connection, ProvisioningTrace trace,
+                      CompletableFuture<WiFiClient> ready) throws BlueZException {
+        connection.monitor = GDBus.monitor();
+        Thread reader = new Thread(() -> readSignals(connection),
+                "BlueZ monitor " + connection.address);
+        reader.setDaemon(true);
+        reader.start();
+
+        if (!isKnown(connection.path))
+            discover(connection);
+        awaitDisconnect(connection.address);
+        checkOpen(connection);
+        GDBus.call(connection.path, "org.bluez.Device1.Connect", CONNECT_TIMEOUT_S);
+        mark(trace, ProvisioningPhase.CONNECTED);
+        awaitResolved(connection);
+        mark(trace, ProvisioningPhase.SERVICES_DISCOVERED);
+
+        Map<UUID, String> paths = BlueZGattTransport.resolve(GDBus.call("/",
+                "org.freedesktop.DBus.ObjectManager.GetManagedObjects", GDBus.DEFAULT_TIMEOUT_S),
+                connection.path);
+        if (!paths.containsKey(WiFiGattAttributes.CHARACTERISTIC_UUID))
+            throw new BlueZException("Device " + connection.address +
+                    " has no WiFiBle service", null);
+        Map<String, UUID> characteristics = new HashMap<>();
+        for (Map.Entry<UUID, String> entry : paths.entrySet())
+            characteristics.put(entry.getValue(), entry.getKey());
+
+        GattOperationQueue[] queue = new GattOperationQueue[1];
+        BlueZGattTransport transport = new BlueZGattTransport(paths, executor,
+                new BlueZGattTransport.Callback() {
+            @Override
+            public void onMtuChanged(int mtu, int status) {
+                queue[0].onMtuChanged(mtu, status);
+            }
+
+            @Override
+            public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+                queue[0].onCharacteristicRead(characteristic, value, status);
+            }
+
+            @Override
+            public void onCharacteristicWrite(UUID characteristic, int status) {
+                queue[0].onCharacteristicWrite(characteristic, status);
+            }
+
+            @Override
+            public void onDescriptorWrite(UUID descriptor, int status) {
+                queue[0].onDescriptorWrite(descriptor, status);
+            }
+        });
+        queue[0] = new GattOperationQueue(transport, scheduler);
+        WiFiClient client = new WiFiClient(queue[0],
+                paths.containsKey(WiFiGattAttributes.VERSION_CHARACTERISTIC_UUID));
+        client.setSeparateStatusCharacteristic(
+                paths.containsKey(WiFiGattAttributes.STATUS_CHARACTERISTIC_UUID));
+        client.setSessionKeys(sessionKeys, connection.address);
+
+        connection.transport = transport;
+        connection.queue = queue[0];
+        connection.client = client;
+        connection.characteristics = characteristics;
+        // A disconnect while the fields were set up has missed them.
+        if (connection.closed)
+            close(connection);
+        checkOpen(connection);
+
+        client.startSession().whenComplete((value, error) -> {
+            if (error != null) {
+                lost(connection);
+                ready.completeExceptionally(error);
+                return;
+            }
+            mark(trace, ProvisioningPhase.STATUS_READ);
+            ready.complete(client);
+        });
+    }
+
+    /**
+     * Runs a scan until bluetoothd knows the device. bluetoothctl keeps the scan running, a
+     * discovery started through gdbus would end with the gdbus process.
+     */
+    private void discover(Connection connection) throws BlueZException {
+        Process scan;
+        try {
+            scan = new ProcessBuilder("bluetoothctl", "--timeout",
+                    Long.toString(TimeUnit.MILLISECONDS.toSeconds(DISCOVERY_TIMEOUT_MS)), "scan",
+                    "on").redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null")))
+                    .start();
+        } catch (IOException e) {
+            throw new BlueZException("Cannot run bluetoothctl: " + e.getMessage(), null);
+        }
+
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DISCOVERY_TIMEOUT_MS);
+            while (!isKnown(connection.path)) {
+                checkOpen(connection);
+                if (System.nanoTime() - deadline >= 0)
+                    throw new BlueZException("Device " + connection.address + " not found",
+                            null);
+                sleep(POLL_MS);
+            }
+        } finally {
+            scan.destroy();
+        }
+    }
+
+    private void awaitResolved(Connection connection) throws BlueZException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESOLVE_TIMEOUT_MS);
+        // The signal may have gone out before the monitor subscribed, so the property is polled
+        // as well.
+        while (!GDBus.parseBoolean(GDBus.getProperty(connection.path, "org.bluez.Device1",
+                "ServicesResolved"))) {
+            checkOpen(connection);
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                throw new BlueZException("Services of " + connection.address +
+                        " were not resolved", null);
+            try {
+                connection.resolved.await(Math.min(TimeUnit.MILLISECONDS.toNanos(POLL_MS), left),
+                        TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BlueZException("Connecting was interrupted", null);
+            }
+        }
+    }
+
+    private static boolean isKnown(String path) {
+        try {
+            GDBus.getProperty(path, "org.bluez.Device1", "Address");
+            return true;
+        } catch (BlueZException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the Disconnect call of the previous connection to {@code address} is done, a
+     * Connect issued before would be cancelled by it.
+     */
+    private void awaitDisconnect(String address) throws BlueZException {
+        Future<?> call = disconnects.get(address);
+        if (call == null)
+            return;
+        try {
+            call.get(GDBus.DEFAULT_TIMEOUT_S, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlueZException("Connecting was interrupted", null);
+        } catch (ExecutionException | TimeoutException e) {
+            // The call failed or hangs; bluetoothd answers the Connect either way.
+        }
+        disconnects.remove(address, call);
+    }
+
+    private static void checkOpen(Connection connection) throws BlueZException {
+        if (connection.closed)
+            throw new BlueZException("Device " + connection.address + " was disconnected", null);
+    }
+
+    private static void sleep(long millis) throws BlueZException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlueZException("Connecting was interrupted", null);
+        }
+    }
+
+    private static void close(Connection connection) {
+        connection.closed = true;
+        Process monitor = connection.monitor;
+        if (monitor != null)
+            monitor.destroy();
+        BlueZGattTransport transport = connection.transport;
+        if (transport != null)
+            transport.close();
+        GattOperationQueue queue = connection.queue;
+        if (queue != null)
+            queue.cancelAll();
+        WiFiClient client = connection.client;
+        if (client != null)
+            client.cancelCommands();
+    }
+
+    private void lost(Connection connection) {
+        if (!connections.remove(connection.address, connection))
+            return;
+        close(connection);
+        notifyDisconnected(connection.address);
+    }
+
+    private void notifyDisconnected(String address) {
+        Listener current = listener;
+        if (current != null)
+            current.onDisconnected(address);
+    }
+
+    private String devicePath(String address) {
+        return adapterPath + "/dev_" + address.toUpperCase(Locale.ROOT).replace(':', '_');
+    }
+
+    private static void mark(ProvisioningTrace trace, ProvisioningPhase phase) {
+        if (trace != null)
+            trace.mark(phase);
+    }
+    //endregion
+
+    //region Signals
+    /**
+     * Passes characteristic value changes to the client and watches the device properties,
+     * until the monitor ends. BlueZ reports read results through the same signal, so a status
+     * read while subscribed also arrives as a notification; it carries the current status,
+     * which the client takes like a pushed one.
+     */
+    private void readSignals(Connection connection) {
+        Process monitor = connection.monitor;
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(
+                monitor.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                int colon = line.indexOf(": ");
+                if (colon < 0 || !line.startsWith(connection.path) ||
+                        !line.contains("org.freedesktop.DBus.Properties.PropertiesChanged"))
+                    continue;
+
+                String path = line.substring(0, colon);
+                if (path.equals(connection.path)) {
+                    if (line.contains("'ServicesResolved': <true>"))
+                        connection.resolved.countDown();
+                    if (line.contains("'Connected': <false>"))
+                        break;
+                    continue;
+                }
+                onValueChanged(connection, path, line);
+            }
+        } catch (IOException e) {
+            // The monitor was destroyed.
+        }
+        // Without the monitor no notification arrives anymore.
+        lost(connection);
+    }
+
+    private static void onValueChanged(Connection connection, String path, String line) {
+        Map<String, UUID> characteristics = connection.characteristics;
+        WiFiClient client = connection.client;
+        int value = line.indexOf("'Value': <");
+        if (characteristics == null || client == null || value < 0)
+            return;
+        UUID characteristic = characteristics.get(path);
+        byte[] bytes = GDBus.parseBytes(line, value + "'Value': <".length());
+        if (characteristic == null || bytes == null)
+            return;
+
+        if (WiFiGattAttributes.SCAN_CHARACTERISTIC_UUID.equals(characteristic))
+            client.onScanNotification(bytes);
+        else if (WiFiGattAttributes.TELEMETRY_CHARACTERISTIC_UUID.equals(characteristic))
+            client.onTelemetryNotification(bytes);
+        else if (characteristic.equals(client.getStatusCharacteristic()))
+            client.onStatusNotification(bytes);
+    }
+    //endregion
+}
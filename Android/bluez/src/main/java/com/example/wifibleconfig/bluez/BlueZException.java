@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.bluez;
+
+import java.io.IOException;
+
+/**
+ * A BlueZ D-Bus call failed, or gdbus could not be run.
+ */
+public class BlueZException extends IOException {
+    private final static long serialVersionUID = 1L;
+
+    private final String errorName;
+
+    public BlueZException(String message, String errorName) {
+        super(message);
+        this.errorName = errorName;
+    }
+
+    /**
+     * D-Bus error name such as {@code org.bluez.Error.Failed}, or null when the call did not
+     * reach the bus.
+     */
+    public String getErrorName() {
+        return errorName;
+    }
+}
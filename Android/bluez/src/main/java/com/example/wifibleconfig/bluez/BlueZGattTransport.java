@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.bluez;
+
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.gatt.GattTransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link GattTransport} over the GATT client of bluetoothd, used by the client code in place of
+ * BluetoothGatt on Linux provisioning stations.
+ * <p>
+ * Characteristics are resolved once to the D-Bus objects BlueZ created for the WiFiBle service
+ * ({@link #resolve}). Each operation runs as a D-Bus call on the executor and reports back
+ * through a {@link Callback}, the counterpart of BluetoothGattCallback. BlueZ writes the CCC
+ * descriptor itself: writing it here starts or stops notifications, other descriptors are not
+ * supported. The MTU is negotiated by BlueZ when it connects, {@link #requestMtu} reports it.
+ */
+public final class BlueZGattTransport implements GattTransport {
+    /**
+     * Status of failures without a better ATT error, as Android reports GATT_FAILURE.
+     */
+    public final static int GATT_FAILURE = 0x101;
+
+    private final static int GATT_READ_NOT_PERMITTED = 0x02;
+    private final static int GATT_WRITE_NOT_PERMITTED = 0x03;
+    private final static int GATT_INSUFFICIENT_AUTHENTICATION = 0x05;
+    private final static int GATT_REQUEST_NOT_SUPPORTED = 0x06;
+    private final static int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+
+    private final static String OBJECT_PATH = "objectpath '";
+    private final static Pattern UUID_PROPERTY = Pattern.compile(
+            "'UUID': <'([0-9a-fA-F-]{36})'>");
+
+    public interface Callback {
+        void onMtuChanged(int mtu, int status);
+
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(UUID characteristic, int status);
+
+        void onDescriptorWrite(UUID descriptor, int status);
+    }
+
+    private final Map<UUID, String> paths;
+    private final Executor executor;
+    private final Callback callback;
+    private volatile boolean closed;
+
+    /**
+     * @param paths object paths of the characteristics by UUID, see {@link #resolve}
+     */
+    public BlueZGattTransport(Map<UUID, String> paths, Executor executor, Callback callback) {
+        this.paths = paths;
+        this.executor = executor;
+        this.callback = callback;
+    }
+
+    /**
+     * Nothing is reported after closing.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    //region Resolution
+    /**
+     * Object paths of the characteristics of the WiFiBle service of the device at
+     * {@code devicePath}, by UUID, from the output of ObjectManager.GetManagedObjects.
+     */
+    public static Map<UUID, String> resolve(String managedObjects, String devicePath) {
+        List<String> services = new ArrayList<>();
+        Map<String, UUID> characteristics = new HashMap<>();
+        String prefix = devicePath + "/";
+
+        int start = nextObject(managedObjects, 0);
+        while (start >= 0) {
+            int pathEnd = managedObjects.indexOf('\'', start + OBJECT_PATH.length());
+            if (pathEnd < 0)
+                break;
+            String path = managedObjects.substring(start + OBJECT_PATH.length(), pathEnd);
+            int next = nextObject(managedObjects, pathEnd);
+            String properties = managedObjects.substring(pathEnd, next < 0 ?
+                    managedObjects.length() : next);
+            start = next;
+            if (!path.startsWith(prefix))
+                continue;
+
+            Matcher uuid = UUID_PROPERTY.matcher(properties);
+            if (!uuid.find())
+                continue;
+            UUID value = UUID.fromString(uuid.group(1));
+            if (properties.contains("'org.bluez.GattService1'") &&
+                    WiFiGattAttributes.SERVICE_UUID.equals(value))
+                services.add(path + "/");
+            else if (properties.contains("'org.bluez.GattCharacteristic1'"))
+                characteristics.put(path, value);
+        }
+
+        Map<UUID, String> paths = new HashMap<>();
+        for (Map.Entry<String, UUID> entry : characteristics.entrySet())
+            for (String service : services)
+                if (entry.getKey().startsWith(service))
+                    paths.put(entry.getValue(), entry.getKey());
+        return Collections.unmodifiableMap(paths);
+    }
+
+    /**
+     * Start of the next dictionary key holding an object path; object paths inside variants,
+     * such as the Service property of a characteristic, are skipped.
+     */
+    private static int nextObject(String text, int from) {
+        int index = text.indexOf(OBJECT_PATH, from);
+        while (index > 0 && text.charAt(index - 1) == '<')
+            index = text.indexOf(OBJECT_PATH, index + 1);
+        return index;
+    }
+    //endregion
+
+    //region GattTransport
+    @Override
+    public boolean requestMtu(int mtu) {
+        String path = paths.get(WiFiGattAttributes.CHARACTERISTIC_UUID);
+        return run(() -> {
+            int negotiated;
+            try {
+                negotiated = GDBus.parseInt(GDBus.getProperty(path,
+                        "org.bluez.GattCharacteristic1", "MTU"));
+            } catch (BlueZException e) {
+                // BlueZ before 5.62 does not tell, the default MTU is always safe.
+                negotiated = -1;
+            }
+            callback.onMtuChanged(negotiated > 0 ? negotiated : WiFiProtocol.DEFAULT_ATT_MTU,
+                    GATT_SUCCESS);
+        });
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        String path = paths.get(characteristic);
+        return path != null && run(() -> {
+            try {
+                String result = GDBus.call(path, "org.bluez.GattCharacteristic1.ReadValue",
+                        GDBus.DEFAULT_TIMEOUT_S, "@a{sv} {}");
+                byte[] value = GDBus.parseBytes(result, result.indexOf('(') + 1);
+                if (value == null)
+                    callback.onCharacteristicRead(characteristic, null, GATT_FAILURE);
+                else
+                    callback.onCharacteristicRead(characteristic, value, GATT_SUCCESS);
+            } catch (BlueZException e) {
+                callback.onCharacteristicRead(characteristic, null,
+                        statusOf(e, GATT_READ_NOT_PERMITTED));
+            }
+        });
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                       int writeType) {
+        String path = paths.get(characteristic);
+        // A write command is only queued locally; BlueZ still answers the call.
+        String options = writeType == WRITE_TYPE_NO_RESPONSE ? "{'type': <'command'>}" :
+                "{'type': <'request'>}";
+        return path != null && run(() -> {
+            int status = GATT_SUCCESS;
+            try {
+                GDBus.call(path, "org.bluez.GattCharacteristic1.WriteValue",
+                        GDBus.DEFAULT_TIMEOUT_S, GDBus.formatBytes(value), options);
+            } catch (BlueZException e) {
+                status = statusOf(e, GATT_WRITE_NOT_PERMITTED);
+            }
+            callback.onCharacteristicWrite(characteristic, status);
+        });
+    }
+
+    /**
+     * Notifications are always delivered by the connector; only the CCC descriptor write
+     * subscribes.
+     */
+    @Override
+    public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                 boolean enable) {
+        return paths.containsKey(characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                   byte[] value) {
+        String path = paths.get(characteristic);
+        if (path == null || !WiFiGattAttributes.CCC_DESCRIPTOR_UUID.equals(descriptor))
+            return false;
+
+        boolean enable = value.length > 0 && value[0] != 0;
+        return run(() -> {
+            int status = GATT_SUCCESS;
+            try {
+                GDBus.call(path, enable ? "org.bluez.GattCharacteristic1.StartNotify" :
+                        "org.bluez.GattCharacteristic1.StopNotify", GDBus.DEFAULT_TIMEOUT_S);
+            } catch (BlueZException e) {
+                // Subscribing twice is fine.
+                if (!"org.bluez.Error.InProgress".equals(e.getErrorName()))
+                    status = statusOf(e, GATT_WRITE_NOT_PERMITTED);
+            }
+            callback.onDescriptorWrite(descriptor, status);
+        });
+    }
+
+    private boolean run(Runnable operation) {
+        if (closed)
+            return false;
+        try {
+            executor.execute(() -> {
+                if (!closed)
+                    operation.run();
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static int statusOf(BlueZException e, int notPermitted) {
+        String name = e.getErrorName();
+        if (name == null)
+            return GATT_FAILURE;
+        switch (name) {
+            case "org.bluez.Error.NotPermitted":
+                return notPermitted;
+
+            case "org.bluez.Error.NotAuthorized":
+                return GATT_INSUFFICIENT_AUTHENTICATION;
+
+            case "org.bluez.Error.NotSupported":
+                return GATT_REQUEST_NOT_SUPPORTED;
+
+            case "org.bluez.Error.InvalidValueLength":
+                return GATT_INVALID_ATTRIBUTE_LENGTH;
+
+            default:
+                return GATT_FAILURE;
+        }
+    }
+    //endregion
+
+    public Map<UUID, String> getPaths() {
+        return paths;
+    }
+}
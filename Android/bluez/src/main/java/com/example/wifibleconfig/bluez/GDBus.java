@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.bluez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Calls bluetoothd on the system bus through the gdbus tool and parses the GVariant text it
+ * prints. A call costs a process start, a few milliseconds, which is small next to a
+ * connection event.
+ */
+final class GDBus {
+    final static String BLUEZ = "org.bluez";
+    final static int DEFAULT_TIMEOUT_S = 10;
+
+    private final static Pattern ERROR_NAME = Pattern.compile("GDBus\\.Error:([\\w.]+)");
+    private final static Pattern HEX_BYTE = Pattern.compile("0x([0-9a-fA-F]{2})");
+
+    private GDBus() {
+    }
+
+    //region Processes
+    /**
+     * Calls {@code method}, the interface name followed by the method name, on the object at
+     * {@code path} and returns what gdbus printed, the tuple of return values.
+     *
+     * @param args arguments in GVariant text format
+     */
+    static String call(String path, String method, int timeoutSeconds, String... args)
+            throws BlueZException {
+        List<String> command = new ArrayList<>(Arrays.asList("gdbus", "call", "--system",
+                "--dest", BLUEZ, "--object-path", path, "--method", method, "--timeout",
+                Integer.toString(timeoutSeconds)));
+        command.addAll(Arrays.asList(args));
+
+        String output;
+        int exitCode;
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            output = read(process.getInputStream());
+            exitCode = process.waitFor();
+        } catch (IOException e) {
+            throw new BlueZException("Cannot run gdbus: " + e.getMessage(), null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlueZException(method + " was interrupted", null);
+        }
+
+        if (exitCode != 0) {
+            Matcher name = ERROR_NAME.matcher(output);
+            throw new BlueZException(method + " failed: " + output.trim(),
+                    name.find() ? name.group(1) : null);
+        }
+        return output.trim();
+    }
+
+    static String getProperty(String path, String iface, String property)
+            throws BlueZException {
+        return call(path, "org.freedesktop.DBus.Properties.Get", DEFAULT_TIMEOUT_S,
+                iface, property);
+    }
+
+    /**
+     * Starts printing the signals of bluetoothd, one line per signal: the object path, a colon,
+     * the signal name and its arguments.
+     */
+    static Process monitor() throws BlueZException {
+        try {
+            return new ProcessBuilder("gdbus", "monitor", "--system", "--dest", BLUEZ)
+                    .redirectErrorStream(true).start();
+        } catch (IOException e) {
+            throw new BlueZException("Cannot run gdbus: " + e.getMessage(), null);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1)
+            out.write(buffer, 0, count);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+    //endregion
+
+    //region GVariant text
+    /**
+     * Formats {@code value} as an {@code ay} argument.
+     */
+    static String formatBytes(byte[] value) {
+        if (value.length == 0)
+            return "@ay []";
+        StringBuilder builder = new StringBuilder("[byte ");
+        for (int i = 0; i < value.length; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append("0x").append(Character.forDigit((value[i] >> 4) & 0xF, 16))
+                    .append(Character.forDigit(value[i] & 0xF, 16));
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * Parses the byte array printed at {@code offset}, skipping leading blanks and a type
+     * annotation. GLib prints arrays holding a nul terminated string as a bytestring such as
+     * {@code b'\001'}; its terminator is part of the value. Returns null when there is no byte
+     * array at {@code offset}.
+     */
+    static byte[] parseBytes(String text, int offset) {
+        int i = offset;
+        while (i < text.length() && text.charAt(i) == ' ')
+            i++;
+        if (text.startsWith("@ay ", i))
+            i += 4;
+        if (i + 1 < text.length() && text.charAt(i) == 'b' &&
+                (text.charAt(i + 1) == '\'' || text.charAt(i + 1) == '"'))
+            return parseBytestring(text, i + 1);
+        if (i >= text.length() || text.charAt(i) != '[')
+            return null;
+
+        int end = text.indexOf(']', i);
+        if (end < 0)
+            return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Matcher hex = HEX_BYTE.matcher(text).region(i, end);
+        while (hex.find())
+            out.write(Integer.parseInt(hex.group(1), 16));
+        return out.toByteArray();
+    }
+
+    private static byte[] parseBytestring(String text, int quoteOffset) {
+        char quote = text.charAt(quoteOffset);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = quoteOffset + 1;
+        while (i < text.length()) {
+            char c = text.charAt(i++);
+            if (c == quote) {
+                out.write(0);
+                return out.toByteArray();
+            }
+            if (c != '\\' || i >= text.length()) {
+                out.write(c);
+                continue;
+            }
+
+            c = text.charAt(i++);
+            if (c >= '0' && c <= '7') {
+                // Octal escape of up to three digits, as g_strescape writes them.
+                int value = c - '0';
+                for (int digits = 1; digits < 3 && i < text.length() &&
+                        text.charAt(i) >= '0' && text.charAt(i) <= '7'; digits++)
+                    value = value * 8 + text.charAt(i++) - '0';
+                out.write(value);
+                continue;
+            }
+            switch (c) {
+                case 'b':
+                    out.write('\b');
+                    break;
+
+                case 'f':
+                    out.write('\f');
+                    break;
+
+                case 'n':
+                    out.write('\n');
+                    break;
+
+                case 'r':
+                    out.write('\r');
+                    break;
+
+                case 't':
+                    out.write('\t');
+                    break;
+
+                case 'v':
+                    out.write(0x0B);
+                    break;
+
+                default:
+                    out.write(c);
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Value of the boolean property printed by {@link #getProperty}, such as {@code (<true>,)}.
+     */
+    static boolean parseBoolean(String text) {
+        return text.contains("<true>");
+    }
+
+    /**
+     * Last unsigned number in {@code text}, such as the one of {@code (<uint16 247>,)}, or -1.
+     */
+    static int parseInt(String text) {
+        Matcher number = Pattern.compile("(\\d+)\\D*$").matcher(text);
+        return number.find() ? Integer.parseInt(number.group(1)) : -1;
+    }
+    //endregion
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.cli;
+
+import com.example.wifibleconfig.bluez.BlueZDeviceConnector;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.gatt.SessionKeyCache;
+import com.example.wifibleconfig.provisioning.CredentialManifest;
+import com.example.wifibleconfig.provisioning.CredentialProvider;
+import com.example.wifibleconfig.provisioning.Credentials;
+import com.example.wifibleconfig.provisioning.DeviceConnector;
+import com.example.wifibleconfig.provisioning.DeviceResult;
+import com.example.wifibleconfig.provisioning.FleetProvisioner;
+import com.example.wifibleconfig.provisioning.ManifestReader;
+import com.example.wifibleconfig.provisioning.ProvisioningEngine;
+import com.example.wifibleconfig.provisioning.ProvisioningPhase;
+import com.example.wifibleconfig.provisioning.ProvisioningTrace;
+import com.example.wifibleconfig.provisioning.ProvisioningTracer;
+import com.example.wifibleconfig.provisioning.RetryPolicy;
+import com.example.wifibleconfig.provisioning.RetryingConnector;
+import com.example.wifibleconfig.simulator.LinkConditions;
+import com.example.wifibleconfig.simulator.SimulatedDeviceConnector;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provisions the devices given as arguments with {@link ProvisioningEngine} and prints the
+ * phase timings of each device and the phase histograms of the run. Exits with 0 when every
+ * device was provisioned, 1 when one failed and 2 on invalid arguments.
+ * <p>
+ * Usage: {@code wifible-provision [options] ADDRESS...} with the options --ssid SSID,
+ * --password PASSWORD (or the WIFIBLE_PASSWORD environment variable, which keeps it out of the
+ * process list) or --manifest FILE, a CSV or JSON credential manifest read by
+ * {@link ManifestReader}, and --channel N, --concurrency N, --timeout MS, --attempts N, --json
+ * FILE, --transport bluez|loopback. BlueZ takes --adapter NAME; the in-memory loopback, for CI
+ * without a radio, takes --interval MS, --protocol VERSION, --seed N and, to exercise the
+ * retries, --connect-failure RATE and --connect-stall MS.
+ * <p>
+ * Connects and provisioning are retried under {@link RetryPolicy#DEFAULT}, or with --attempts
+ * attempts each; --attempts 1 turns retries and hedging off.
+ */
+public final class ProvisioningCli {
+    private final static String PASSWORD_VARIABLE = "WIFIBLE_PASSWORD";
+    private final static ProvisioningPhase[] PHASES = ProvisioningPhase.values();
+
+    private final List<String> addresses = new ArrayList<>();
+    private String transport = "bluez";
+    private String adapter = BlueZDeviceConnector.DEFAULT_ADAPTER;
+    private String ssid;
+    private String password = System.getenv(PASSWORD_VARIABLE);
+    private String manifestPath;
+    private int channel;
+    private int concurrency = 1;
+    private long timeoutMs = FleetProvisioner.DEVICE_TIMEOUT_MS;
+    private String jsonPath;
+    private double intervalMs = 30;
+    private int protocolVersion = WiFiProtocol.PROTOCOL_VERSION;
+    private long seed = 1;
+    private int attempts = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+    private double connectFailureRate;
+    private long connectStallMs = 100;
+
+    private final ProvisioningTracer tracer = new ProvisioningTracer();
+    private final AtomicInteger succeeded = new AtomicInteger();
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        ProvisioningCli cli = new ProvisioningCli();
+        CredentialProvider credentials;
+        try {
+            cli.parse(args);
+            if (cli.addresses.isEmpty())
+                throw new IllegalArgumentException("No device address given");
+            if (cli.concurrency < 1)
+                throw new IllegalArgumentException("--concurrency must be positive");
+            if (cli.attempts < 1)
+                throw new IllegalArgumentException("--attempts must be positive");
+            credentials = cli.manifestPath != null ? cli.readManifest() : cli.credentials();
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: wifible-provision [--transport bluez|loopback] " +
+                    "--ssid SSID --password PASSWORD | --manifest FILE [options] ADDRESS...");
+            System.exit(2);
+            return;
+        }
+        System.exit(cli.run(credentials) ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                addresses.add(args[i]);
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value of " + args[i]);
+
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--transport":
+                    if (!value.equals("bluez") && !value.equals("loopback"))
+                        throw new IllegalArgumentException("Unknown transport " + value);
+                    transport = value;
+                    break;
+
+                case "--adapter":
+                    adapter = value;
+                    break;
+
+                case "--ssid":
+                    ssid = value;
+                    break;
+
+                case "--password":
+                    password = value;
+                    break;
+
+                case "--manifest":
+                    manifestPath = value;
+                    break;
+
+                case "--channel":
+                    channel = Integer.parseInt(value);
+                    break;
+
+                case "--concurrency":
+                    concurrency = Integer.parseInt(value);
+                    break;
+
+                case "--timeout":
+                    timeoutMs = Long.parseLong(value);
+                    break;
+
+                case "--json":
+                    jsonPath = value;
+                    break;
+
+                case "--interval":
+                    intervalMs = Double.parseDouble(value);
+                    break;
+
+                case "--protocol":
+                    protocolVersion = Integer.parseInt(value);
+                    break;
+
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+
+                case "--attempts":
+                    attempts = Integer.parseInt(value);
+                    break;
+
+                case "--connect-failure":
+                    connectFailureRate = Double.parseDouble(value);
+                    break;
+
+                case "--connect-stall":
+                    connectStallMs = Long.parseLong(value);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+    }
+
+    private CredentialProvider credentials() {
+        if (ssid == null || password == null)
+            throw new IllegalArgumentException("--ssid and --password or --manifest are required");
+        Credentials credentials = new Credentials(ssid, password);
+        return (address, name) -> credentials;
+    }
+
+    /**
+     * Reads the manifest, reporting the entries it rejected.
+     */
+    private CredentialProvider readManifest() throws IOException {
+        CredentialManifest manifest;
+        try (InputStream in = new FileInputStream(manifestPath)) {
+            manifest = ManifestReader.read(in);
+        }
+        for (String error : manifest.getErrors())
+            System.err.println(manifestPath + ": " + error);
+        System.out.printf(Locale.ROOT, "Manifest: %d devices, %d patterns, %d rejected%n",
+                manifest.getAddressCount(), manifest.getPatternCount(),
+                manifest.getRejectedCount());
+        return manifest;
+    }
+
+    //region Provisioning
+    /**
+     * Returns true when every device was provisioned.
+     */
+    private boolean run(CredentialProvider credentials) throws InterruptedException, IOException {
+        // One thread keeps the callback order of every link, like the binder thread of a real
+        // BluetoothGatt.
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        SessionKeyCache sessionKeys = new SessionKeyCache();
+        DeviceConnector connector;
+        BlueZDeviceConnector bluez = null;
+        if (transport.equals("loopback")) {
+            SimulatedDeviceConnector simulated = new SimulatedDeviceConnector(
+                    LinkConditions.ideal(intervalMs), scheduler, seed, protocolVersion);
+            simulated.setSessionKeys(sessionKeys);
+            simulated.setConnectFailures(connectFailureRate, connectStallMs);
+            connector = simulated;
+        } else {
+            bluez = new BlueZDeviceConnector(adapter, scheduler);
+            bluez.setSessionKeys(sessionKeys);
+            connector = bluez;
+        }
+
+        RetryPolicy policy = attempts == 1 ? RetryPolicy.NONE : new RetryPolicy(attempts,
+                RetryPolicy.DEFAULT_BASE_DELAY_MS, RetryPolicy.DEFAULT_MAX_DELAY_MS, true);
+        RetryingConnector retries = new RetryingConnector(connector, scheduler, policy);
+        ProvisioningEngine engine = new ProvisioningEngine(retries, scheduler, timeoutMs, policy);
+        ArrayDeque<String> pending = new ArrayDeque<>(addresses);
+        CountDownLatch done = new CountDownLatch(addresses.size());
+        for (int i = 0; i < concurrency; i++)
+            next(engine, credentials, pending, done);
+        done.await();
+
+        if (bluez != null)
+            bluez.close();
+        scheduler.shutdownNow();
+        report();
+        System.out.print("Connect retries:\n" + retries.getStats().dump());
+        System.out.print("Provisioning retries:\n" + engine.getRetryStats().dump());
+        return succeeded.get() == addresses.size();
+    }
+
+    /**
+     * Starts the next pending device, and the one after it once it is done.
+     */
+    private void next(ProvisioningEngine engine, CredentialProvider credentials,
+                      ArrayDeque<String> pending, CountDownLatch done) {
+        String address;
+        synchronized (pending) {
+            address = pending.poll();
+        }
+        if (address == null)
+            return;
+
+        // Only addresses are known without a scan, name entries of a manifest do not apply.
+        Credentials deviceCredentials = credentials.credentialsFor(address, null);
+        if (deviceCredentials == null) {
+            System.out.println(address + " skipped: no credentials in the manifest");
+            done.countDown();
+            next(engine, credentials, pending, done);
+            return;
+        }
+        ProvisioningTrace trace = tracer.begin();
+        engine.provision(address, deviceCredentials, channel, trace).thenAccept(result -> {
+            if (result.isSuccess())
+                succeeded.incrementAndGet();
+            print(result, trace);
+            done.countDown();
+            next(engine, credentials, pending, done);
+        });
+    }
+    //endregion
+
+    //region Output
+    /**
+     * Prints the result and the time from the start to each recorded phase.
+     */
+    private static void print(DeviceResult result, ProvisioningTrace trace) {
+        StringBuilder line = new StringBuilder(result.toString());
+        for (ProvisioningPhase phase : PHASES) {
+            long elapsed = trace.getElapsedNanos(phase);
+            if (elapsed >= 0)
+                line.append(String.format(Locale.ROOT, " %s=%.1f", phase.name(),
+                        elapsed / 1e6));
+        }
+        System.out.println(line);
+    }
+
+    private void report() throws IOException {
+        System.out.printf(Locale.ROOT, "%d of %d devices provisioned%n", succeeded.get(),
+                addresses.size());
+        System.out.print(tracer.dump());
+        if (jsonPath == null)
+            return;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(jsonPath),
+                StandardCharsets.UTF_8)) {
+            tracer.writeJson(writer);
+        }
+    }
+    //endregion
+}
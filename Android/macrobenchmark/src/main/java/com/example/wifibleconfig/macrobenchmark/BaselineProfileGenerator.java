@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.macrobenchmark;
+
+import androidx.annotation.OptIn;
+import androidx.benchmark.macro.ExperimentalBaselineProfilesApi;
+import androidx.benchmark.macro.junit4.BaselineProfileRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * Records the baseline profile of startup and the scan journey. Needs a rooted device or an
+ * emulator without Google Play services, plus a WiFiBle board in range. Run
+ * {@code :macrobenchmark:connectedBenchmarkAndroidTest} with the runner argument {@code class}
+ * set to this class and copy {@code BaselineProfileGenerator_generate-baseline-prof.txt} from
+ * {@code macrobenchmark/build/outputs/connected_android_test_additional_output} over
+ * {@code app/src/main/baseline-prof.txt}.
+ */
+@RunWith(AndroidJUnit4.class)
+@OptIn(markerClass = ExperimentalBaselineProfilesApi.class)
+public class BaselineProfileGenerator {
+    @Rule
+    public BaselineProfileRule baselineProfileRule = new BaselineProfileRule();
+
+    @Test
+    public void generate() {
+        baselineProfileRule.collectBaselineProfile(Journeys.TARGET_PACKAGE,
+                Collections.emptyList(),
+                scope -> {
+                    Journeys.grantPermissions(scope);
+                    scope.pressHome();
+                    scope.startActivityAndWait();
+                    scope.pressHome();
+                    Journeys.scanToFirstResult(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}
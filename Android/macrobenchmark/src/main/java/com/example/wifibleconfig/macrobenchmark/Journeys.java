@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.macrobenchmark;
+
+import android.Manifest;
+import android.os.Build;
+
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.BySelector;
+import androidx.test.uiautomator.Until;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import kotlin.Unit;
+
+/**
+ * User journeys shared by the benchmarks and the baseline profile generator.
+ */
+final class Journeys {
+    final static String TARGET_PACKAGE = "com.example.wifibleconfig";
+    // MainActivity.EXTRA_START_SCAN; the app is not on the classpath of this module.
+    final static String EXTRA_START_SCAN = "com.example.wifibleconfig.START_SCAN";
+    final static long SCAN_TIMEOUT_MS = 30000;
+
+    // StateLabel leaves "Scanning" for "Device found %s" at the first matching result, and
+    // shows "Connected" if the connection completes before the label is polled.
+    private final static BySelector FIRST_RESULT = By.res(TARGET_PACKAGE, "StateLabel")
+            .text(Pattern.compile("Device found .*|Connected"));
+
+    private Journeys() {
+    }
+
+    /**
+     * Grants the runtime permissions up front, so no permission dialog covers the journey.
+     */
+    static void grantPermissions(MacrobenchmarkScope scope) {
+        String[] permissions = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ?
+                new String[]{Manifest.permission.BLUETOOTH_SCAN,
+                        Manifest.permission.BLUETOOTH_CONNECT} :
+                new String[]{Manifest.permission.ACCESS_FINE_LOCATION};
+        try {
+            for (String permission : permissions)
+                scope.getDevice().executeShellCommand("pm grant " + TARGET_PACKAGE + " " +
+                        permission);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot grant " + TARGET_PACKAGE + " permissions", e);
+        }
+    }
+
+    /**
+     * Launch, scan started, first matching scan result. Needs Bluetooth on and a WiFiBle board
+     * advertising in range; fails after {@link #SCAN_TIMEOUT_MS} without one.
+     */
+    static void scanToFirstResult(MacrobenchmarkScope scope) {
+        scope.startActivityAndWait(intent -> {
+            intent.putExtra(EXTRA_START_SCAN, true);
+            return Unit.INSTANCE;
+        });
+        if (!Boolean.TRUE.equals(scope.getDevice().wait(Until.hasObject(FIRST_RESULT),
+                SCAN_TIMEOUT_MS)))
+            throw new IllegalStateException("No WiFiBle device found in " + SCAN_TIMEOUT_MS +
+                    " ms");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.macrobenchmark;
+
+import androidx.annotation.OptIn;
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.ExperimentalMetricApi;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.TraceSectionMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import kotlin.Unit;
+
+/**
+ * Cold launch into a scan up to the first matching scan result, against a WiFiBle board (or
+ * any peripheral advertising the WiFiBle service) in range.
+ * <p>
+ * The activity reports fully drawn at the first result, so timeToFullDisplayMs is launch to
+ * first result; the trace sections add the cost of starting the scan and of handling the
+ * result on the worker thread.
+ */
+@RunWith(AndroidJUnit4.class)
+@OptIn(markerClass = ExperimentalMetricApi.class)
+public class ScanJourneyBenchmark {
+    private final static int ITERATIONS = 5;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    @Test
+    public void launchToFirstScanResult() {
+        benchmarkRule.measureRepeated(Journeys.TARGET_PACKAGE,
+                Arrays.asList(new StartupTimingMetric(),
+                        new TraceSectionMetric("WiFiBle.startScan"),
+                        new TraceSectionMetric("WiFiBle.scanResult")),
+                new CompilationMode.Partial(), StartupMode.COLD, ITERATIONS,
+                scope -> {
+                    Journeys.grantPermissions(scope);
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    Journeys.scanToFirstResult(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}
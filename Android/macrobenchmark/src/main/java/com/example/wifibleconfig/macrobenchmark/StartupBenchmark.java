@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.macrobenchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * Cold and warm startup of the launcher activity, without compilation and with the baseline
+ * profile, the difference being what the profile buys. Run with
+ * {@code ./gradlew :macrobenchmark:connectedBenchmarkAndroidTest}; results land as JSON in
+ * {@code macrobenchmark/build/outputs/connected_android_test_additional_output}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private final static int ITERATIONS = 10;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    //region Cold
+    @Test
+    public void coldStartupNoCompilation() {
+        startup(StartupMode.COLD, new CompilationMode.None());
+    }
+
+    @Test
+    public void coldStartupBaselineProfile() {
+        startup(StartupMode.COLD, new CompilationMode.Partial());
+    }
+    //endregion
+
+    //region Warm
+    @Test
+    public void warmStartupNoCompilation() {
+        startup(StartupMode.WARM, new CompilationMode.None());
+    }
+
+    @Test
+    public void warmStartupBaselineProfile() {
+        startup(StartupMode.WARM, new CompilationMode.Partial());
+    }
+    //endregion
+
+    private void startup(StartupMode startupMode, CompilationMode compilationMode) {
+        benchmarkRule.measureRepeated(Journeys.TARGET_PACKAGE,
+                Collections.singletonList(new StartupTimingMetric()), compilationMode,
+                startupMode, ITERATIONS,
+                scope -> {
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    scope.startActivityAndWait();
+                    return Unit.INSTANCE;
+                });
+    }
+}
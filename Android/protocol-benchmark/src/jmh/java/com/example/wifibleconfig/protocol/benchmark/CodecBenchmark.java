@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.benchmark;
+
+import com.example.wifibleconfig.protocol.WiFiCommandCodec;
+import com.example.wifibleconfig.protocol.WiFiCommandFrame;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the codec with the inline encoding previously used in MainActivity. Run with
+ * {@code ./gradlew :protocol-benchmark:jmh}; the gc profiler reports the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+    private String ssid;
+    private String password;
+
+    private byte[] frame;
+    private byte[] provisionFrame;
+    private ByteBuffer frameBuffer;
+    private byte[] status;
+    private byte[] ssidFrame;
+    private WiFiCommandFrame decodedFrame;
+
+    @Setup
+    public void setup() {
+        ssid = "WiFiBle-Line-01";
+        password = "123456789";
+
+        frame = new byte[WiFiProtocol.MAX_COMMAND_FRAME_LENGTH];
+        provisionFrame = new byte[WiFiProtocol.MAX_PROVISION_FRAME_LENGTH];
+        frameBuffer = ByteBuffer.allocateDirect(WiFiProtocol.MAX_COMMAND_FRAME_LENGTH);
+        status = new byte[]{WiFiProtocol.WIFI_STATUS_STARTED, 3};
+        ssidFrame = inlineEncode(WiFiProtocol.WIFI_CMD_SET_SSID, ssid);
+        decodedFrame = new WiFiCommandFrame();
+    }
+
+    private static byte[] inlineEncode(byte command, String text) {
+        byte[] value = new byte[text.length() + 1];
+        byte[] str = text.getBytes(StandardCharsets.US_ASCII);
+        value[0] = command;
+        System.arraycopy(str, 0, value, 1, str.length);
+        return value;
+    }
+
+    //region Encoding
+    @Benchmark
+    public void inlineEncodeCredentials(Blackhole bh) {
+        bh.consume(inlineEncode(WiFiProtocol.WIFI_CMD_SET_SSID, ssid));
+        bh.consume(inlineEncode(WiFiProtocol.WIFI_CMD_SET_PWD, password));
+        bh.consume(new byte[]{WiFiProtocol.WIFI_CMD_START});
+    }
+
+    @Benchmark
+    public void codecEncodeCredentials(Blackhole bh) {
+        bh.consume(WiFiCommandCodec.encodeSetSsid(ssid, frame, 0));
+        bh.consume(WiFiCommandCodec.encodeSetPassword(password, frame, 0));
+        bh.consume(WiFiCommandCodec.encodeStart(frame, 0));
+    }
+
+    @Benchmark
+    public int codecEncodeProvision() {
+        return WiFiCommandCodec.encodeProvision(ssid, password, true, provisionFrame, 0);
+    }
+
+    @Benchmark
+    public void codecEncodeCredentialsByteBuffer(Blackhole bh) {
+        frameBuffer.clear();
+        bh.consume(WiFiCommandCodec.encodeSetSsid(ssid, frameBuffer));
+        frameBuffer.clear();
+        bh.consume(WiFiCommandCodec.encodeSetPassword(password, frameBuffer));
+        frameBuffer.clear();
+        bh.consume(WiFiCommandCodec.encodeStart(frameBuffer));
+    }
+    //endregion
+
+    //region Decoding
+    @Benchmark
+    public void inlineDecodeStatus(Blackhole bh) {
+        byte[] value = status;
+        if (value != null && value.length == 2) {
+            switch (value[0]) {
+                case WiFiProtocol.WIFI_STATUS_STARTED:
+                    bh.consume(String.format("Started. Connected clients: %d", value[1]));
+                    break;
+
+                default:
+                    bh.consume(value[0]);
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    public int codecDecodeStatus() {
+        return WiFiStatusCodec.decode(status);
+    }
+
+    @Benchmark
+    public boolean codecDecodeCommand() {
+        return WiFiCommandCodec.decode(ssidFrame, decodedFrame);
+    }
+    //endregion
+}
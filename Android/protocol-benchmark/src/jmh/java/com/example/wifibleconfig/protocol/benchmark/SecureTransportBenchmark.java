@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.benchmark;
+
+import com.example.wifibleconfig.protocol.WiFiCommandCodec;
+import com.example.wifibleconfig.protocol.WiFiKeyExchange;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.WiFiSessionKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the encrypted credential transport: the key exchange paid once per device and the
+ * sealing paid per provisioning frame, next to encoding the frame in the clear. Run with
+ * {@code ./gradlew :protocol-benchmark:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SecureTransportBenchmark {
+    private KeyPair device;
+    private byte[] devicePublicKey;
+    private byte[] clientPublicKey;
+    private WiFiSessionKey clientKey;
+    private WiFiSessionKey deviceKey;
+
+    private byte[] provisionFrame;
+    private int provisionLength;
+    private byte[] sealedFrame;
+
+    @Setup
+    public void setup() {
+        device = WiFiKeyExchange.generateKeyPair();
+        devicePublicKey = WiFiKeyExchange.encodePublicKey((ECPublicKey) device.getPublic());
+        KeyPair client = WiFiKeyExchange.generateKeyPair();
+        clientPublicKey = WiFiKeyExchange.encodePublicKey((ECPublicKey) client.getPublic());
+        clientKey = WiFiKeyExchange.deriveClient(client, devicePublicKey);
+        deviceKey = WiFiKeyExchange.deriveDevice(device, clientPublicKey);
+
+        provisionFrame = new byte[WiFiProtocol.MAX_PROVISION_FRAME_LENGTH];
+        provisionLength = WiFiCommandCodec.encodeProvision("WiFiBle-Line-01", "123456789", true,
+                6, provisionFrame, 0);
+        sealedFrame = clientKey.seal(provisionFrame, 0, provisionLength);
+    }
+
+    //region Key exchange
+    /**
+     * Client side of a key exchange: a fresh key pair, ECDH and HKDF.
+     */
+    @Benchmark
+    public WiFiSessionKey clientKeyExchange() {
+        return WiFiKeyExchange.deriveClient(WiFiKeyExchange.generateKeyPair(), devicePublicKey);
+    }
+
+    /**
+     * Device side as the simulator runs it: point validation, ECDH and HKDF.
+     */
+    @Benchmark
+    public WiFiSessionKey deviceKeyExchange() {
+        return WiFiKeyExchange.deriveDevice(device, clientPublicKey);
+    }
+    //endregion
+
+    //region Frames
+    @Benchmark
+    public int encodeProvision() {
+        return WiFiCommandCodec.encodeProvision("WiFiBle-Line-01", "123456789", true, 6,
+                provisionFrame, 0);
+    }
+
+    @Benchmark
+    public byte[] sealProvision() {
+        return clientKey.seal(provisionFrame, 0, provisionLength);
+    }
+
+    @Benchmark
+    public byte[] openProvision() {
+        return deviceKey.open(sealedFrame, 0, sealedFrame.length, 0);
+    }
+    //endregion
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+/**
+ * One access point reported by a WIFI_CMD_SCAN survey.
+ */
+public final class WiFiAccessPoint {
+    /**
+     * wifi_auth_mode_t value of an open network.
+     */
+    public final static int AUTH_OPEN = 0;
+
+    private final String ssid;
+    private final int rssi;
+    private final int channel;
+    private final int authMode;
+
+    public WiFiAccessPoint(String ssid, int rssi, int channel, int authMode) {
+        this.ssid = ssid;
+        this.rssi = rssi;
+        this.channel = channel;
+        this.authMode = authMode;
+    }
+
+    /**
+     * Network name, empty for hidden networks.
+     */
+    public String getSsid() {
+        return ssid;
+    }
+
+    /**
+     * Signal strength in dBm.
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * ESP-IDF wifi_auth_mode_t of the network.
+     */
+    public int getAuthMode() {
+        return authMode;
+    }
+
+    public boolean isOpen() {
+        return authMode == AUTH_OPEN;
+    }
+
+    @Override
+    public String toString() {
+        return "WiFiAccessPoint{ssid=" + ssid + ", rssi=" + rssi + ", channel=" + channel + "}";
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder and decoder for the command frames written to the WiFi characteristic.
+ * <p>
+ * A frame is a one byte command followed by an optional ASCII payload. Encoding methods write
+ * into caller supplied storage and never allocate; they return the number of bytes written.
+ */
+public final class WiFiCommandCodec {
+
+    private WiFiCommandCodec() {
+    }
+
+    //region Validation
+    public static boolean isValidSsid(CharSequence ssid) {
+        return isValidText(ssid, WiFiProtocol.MAX_SSID_LENGTH);
+    }
+
+    public static boolean isValidPassword(CharSequence password) {
+        return password != null && password.length() >= WiFiProtocol.MIN_PASSWORD_LENGTH &&
+                isValidText(password, WiFiProtocol.MAX_PASSWORD_LENGTH);
+    }
+
+    public static boolean isValidChannel(int channel) {
+        return channel >= WiFiProtocol.MIN_CHANNEL && channel <= WiFiProtocol.MAX_CHANNEL;
+    }
+
+    /**
+     * Returns true when every character is printable ASCII. The firmware reads the payload as
+     * a C string, so control characters (NUL in particular) are rejected as well.
+     */
+    public static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 || c > 0x7E)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isValidText(CharSequence text, int maxLength) {
+        return text != null && text.length() > 0 && text.length() <= maxLength && isAscii(text);
+    }
+
+    private static void checkChannel(int channel) {
+        if (channel != 0 && !isValidChannel(channel))
+            throw new IllegalArgumentException("Channel must be " + WiFiProtocol.MIN_CHANNEL +
+                    ".." + WiFiProtocol.MAX_CHANNEL + ", or 0 for the firmware default");
+    }
+
+    private static void checkChunkLength(int maxChunkLength) {
+        if (maxChunkLength < WiFiProtocol.MIN_SCAN_CHUNK_LENGTH || maxChunkLength > 0xFFFF)
+            throw new IllegalArgumentException("Chunk length must be " +
+                    WiFiProtocol.MIN_SCAN_CHUNK_LENGTH + "..65535");
+    }
+
+    private static void checkTelemetryInterval(int intervalMs) {
+        if (intervalMs != 0 && (intervalMs < WiFiProtocol.MIN_TELEMETRY_INTERVAL_MS ||
+                intervalMs > WiFiProtocol.MAX_TELEMETRY_INTERVAL_MS))
+            throw new IllegalArgumentException("Telemetry interval must be " +
+                    WiFiProtocol.MIN_TELEMETRY_INTERVAL_MS + ".." +
+                    WiFiProtocol.MAX_TELEMETRY_INTERVAL_MS + " ms, or 0 to stop");
+    }
+
+    private static void checkText(CharSequence text, int minLength, int maxLength, String name) {
+        if (text == null)
+            throw new NullPointerException(name + " is null");
+        if (text.length() < minLength || text.length() > maxLength)
+            throw new IllegalArgumentException(name + " length must be " + minLength + ".." +
+                    maxLength);
+        if (!isAscii(text))
+            throw new IllegalArgumentException(name + " must be printable ASCII");
+    }
+    //endregion
+
+    //region Frame lengths
+    public static int setSsidFrameLength(CharSequence ssid) {
+        return WiFiProtocol.COMMAND_HEADER_LENGTH + ssid.length();
+    }
+
+    public static int setPasswordFrameLength(CharSequence password) {
+        return WiFiProtocol.COMMAND_HEADER_LENGTH + password.length();
+    }
+
+    public static int provisionFrameLength(CharSequence ssid, CharSequence password) {
+        return provisionFrameLength(ssid, password, 0);
+    }
+
+    /**
+     * @param channel soft AP channel, or 0 to leave the TLV out
+     */
+    public static int provisionFrameLength(CharSequence ssid, CharSequence password,
+                                           int channel) {
+        return WiFiProtocol.COMMAND_HEADER_LENGTH +
+                WiFiProtocol.TLV_HEADER_LENGTH + ssid.length() +
+                WiFiProtocol.TLV_HEADER_LENGTH + password.length() +
+                WiFiProtocol.TLV_HEADER_LENGTH + 1 +
+                (channel != 0 ? WiFiProtocol.TLV_HEADER_LENGTH + 1 : 0);
+    }
+    //endregion
+
+    //region Array encoding
+    public static int encodeSetSsid(CharSequence ssid, byte[] dst, int offset) {
+        checkText(ssid, 1, WiFiProtocol.MAX_SSID_LENGTH, "SSID");
+        return encodeText(WiFiProtocol.WIFI_CMD_SET_SSID, ssid, dst, offset);
+    }
+
+    public static int encodeSetPassword(CharSequence password, byte[] dst, int offset) {
+        checkText(password, WiFiProtocol.MIN_PASSWORD_LENGTH, WiFiProtocol.MAX_PASSWORD_LENGTH,
+                "Password");
+        return encodeText(WiFiProtocol.WIFI_CMD_SET_PWD, password, dst, offset);
+    }
+
+    /**
+     * Encodes WIFI_CMD_PROVISION: SSID, password and start flag as TLVs in a single frame.
+     * Requires firmware with {@link WiFiProtocol#PROTOCOL_VERSION_PROVISION} or later.
+     */
+    public static int encodeProvision(CharSequence ssid, CharSequence password, boolean start,
+                                      byte[] dst, int offset) {
+        return encodeProvision(ssid, password, start, 0, dst, offset);
+    }
+
+    /**
+     * Encodes WIFI_CMD_PROVISION with the soft AP channel picked from a survey. Firmware before
+     * {@link WiFiProtocol#PROTOCOL_VERSION_SCAN} skips the channel TLV and keeps its default.
+     *
+     * @param channel soft AP channel, or 0 for the firmware default
+     */
+    public static int encodeProvision(CharSequence ssid, CharSequence password, boolean start,
+                                      int channel, byte[] dst, int offset) {
+        checkText(ssid, 1, WiFiProtocol.MAX_SSID_LENGTH, "SSID");
+        checkText(password, WiFiProtocol.MIN_PASSWORD_LENGTH, WiFiProtocol.MAX_PASSWORD_LENGTH,
+                "Password");
+        checkChannel(channel);
+        int length = provisionFrameLength(ssid, password, channel);
+        checkRange(dst, offset, length);
+
+        dst[offset++] = WiFiProtocol.WIFI_CMD_PROVISION;
+        offset = putTlv(WiFiProtocol.TLV_SSID, ssid, dst, offset);
+        offset = putTlv(WiFiProtocol.TLV_PASSWORD, password, dst, offset);
+        dst[offset++] = WiFiProtocol.TLV_START;
+        dst[offset++] = 1;
+        dst[offset++] = (byte) (start ? 1 : 0);
+        if (channel != 0) {
+            dst[offset++] = WiFiProtocol.TLV_CHANNEL;
+            dst[offset++] = 1;
+            dst[offset] = (byte) channel;
+        }
+        return length;
+    }
+
+    public static int encodeStart(byte[] dst, int offset) {
+        return encodeCommand(WiFiProtocol.WIFI_CMD_START, dst, offset);
+    }
+
+    public static int encodeStop(byte[] dst, int offset) {
+        return encodeCommand(WiFiProtocol.WIFI_CMD_STOP, dst, offset);
+    }
+
+    public static int encodeGetStatus(byte[] dst, int offset) {
+        return encodeCommand(WiFiProtocol.WIFI_CMD_GET_STATUS, dst, offset);
+    }
+
+    /**
+     * Encodes WIFI_CMD_SCAN. {@code maxChunkLength} is the largest notification the client can
+     * receive, ATT MTU minus {@link WiFiProtocol#ATT_NOTIFICATION_OVERHEAD}.
+     */
+    public static int encodeScan(int maxChunkLength, byte[] dst, int offset) {
+        checkChunkLength(maxChunkLength);
+        checkRange(dst, offset, WiFiProtocol.SCAN_COMMAND_LENGTH);
+
+        dst[offset] = WiFiProtocol.WIFI_CMD_SCAN;
+        dst[offset + 1] = (byte) maxChunkLength;
+        dst[offset + 2] = (byte) (maxChunkLength >> 8);
+        return WiFiProtocol.SCAN_COMMAND_LENGTH;
+    }
+
+    /**
+     * Encodes WIFI_CMD_TELEMETRY: a frame every {@code intervalMs}, or 0 to stop.
+     * {@code maxFrameLength} is the largest notification the client can receive, as for
+     * {@link #encodeScan}; frames carry as many station RSSIs as fit.
+     */
+    public static int encodeTelemetry(int intervalMs, int maxFrameLength, byte[] dst,
+                                      int offset) {
+        checkTelemetryInterval(intervalMs);
+        checkChunkLength(maxFrameLength);
+        checkRange(dst, offset, WiFiProtocol.TELEMETRY_COMMAND_LENGTH);
+
+        dst[offset] = WiFiProtocol.WIFI_CMD_TELEMETRY;
+        dst[offset + 1] = (byte) intervalMs;
+        dst[offset + 2] = (byte) (intervalMs >> 8);
+        dst[offset + 3] = (byte) maxFrameLength;
+        dst[offset + 4] = (byte) (maxFrameLength >> 8);
+        return WiFiProtocol.TELEMETRY_COMMAND_LENGTH;
+    }
+
+    private static int encodeCommand(byte command, byte[] dst, int offset) {
+        checkRange(dst, offset, WiFiProtocol.COMMAND_HEADER_LENGTH);
+        dst[offset] = command;
+        return WiFiProtocol.COMMAND_HEADER_LENGTH;
+    }
+
+    private static int encodeText(byte command, CharSequence text, byte[] dst, int offset) {
+        int length = WiFiProtocol.COMMAND_HEADER_LENGTH + text.length();
+        checkRange(dst, offset, length);
+
+        dst[offset++] = command;
+        for (int i = 0; i < text.length(); i++)
+            dst[offset++] = (byte) text.charAt(i);
+        return length;
+    }
+
+    private static int putTlv(byte type, CharSequence text, byte[] dst, int offset) {
+        dst[offset++] = type;
+        dst[offset++] = (byte) text.length();
+        for (int i = 0; i < text.length(); i++)
+            dst[offset++] = (byte) text.charAt(i);
+        return offset;
+    }
+
+    private static void checkRange(byte[] dst, int offset, int length) {
+        if (offset < 0 || offset > dst.length - length)
+            throw new IndexOutOfBoundsException("Frame of " + length + " bytes does not fit at " +
+                    offset + " in buffer of " + dst.length + " bytes");
+    }
+    //endregion
+
+    //region ByteBuffer encoding
+    public static int encodeSetSsid(CharSequence ssid, ByteBuffer dst) {
+        checkText(ssid, 1, WiFiProtocol.MAX_SSID_LENGTH, "SSID");
+        return encodeText(WiFiProtocol.WIFI_CMD_SET_SSID, ssid, dst);
+    }
+
+    public static int encodeSetPassword(CharSequence password, ByteBuffer dst) {
+        checkText(password, WiFiProtocol.MIN_PASSWORD_LENGTH, WiFiProtocol.MAX_PASSWORD_LENGTH,
+                "Password");
+        return encodeText(WiFiProtocol.WIFI_CMD_SET_PWD, password, dst);
+    }
+
+    public static int encodeProvision(CharSequence ssid, CharSequence password, boolean start,
+                                      ByteBuffer dst) {
+        return encodeProvision(ssid, password, start, 0, dst);
+    }
+
+    public static int encodeProvision(CharSequence ssid, CharSequence password, boolean start,
+                                      int channel, ByteBuffer dst) {
+        checkText(ssid, 1, WiFiProtocol.MAX_SSID_LENGTH, "SSID");
+        checkText(password, WiFiProtocol.MIN_PASSWORD_LENGTH, WiFiProtocol.MAX_PASSWORD_LENGTH,
+                "Password");
+        checkChannel(channel);
+        int length = provisionFrameLength(ssid, password, channel);
+        if (dst.remaining() < length)
+            throw new BufferOverflowException();
+
+        dst.put(WiFiProtocol.WIFI_CMD_PROVISION);
+        putTlv(WiFiProtocol.TLV_SSID, ssid, dst);
+        putTlv(WiFiProtocol.TLV_PASSWORD, password, dst);
+        dst.put(WiFiProtocol.TLV_START);
+        dst.put((byte) 1);
+        dst.put((byte) (start ? 1 : 0));
+        if (channel != 0) {
+            dst.put(WiFiProtocol.TLV_CHANNEL);
+            dst.put((byte) 1);
+            dst.put((byte) channel);
+        }
+        return length;
+    }
+
+    public static int encodeStart(ByteBuffer dst) {
+        return encodeCommand(WiFiProtocol.WIFI_CMD_START, dst);
+    }
+
+    public static int encodeStop(ByteBuffer dst) {
+        return encodeCommand(WiFiProtocol.WIFI_CMD_STOP, dst);
+    }
+
+    public static int encodeGetStatus(ByteBuffer dst) {
+        return encodeCommand(WiFiProtocol.WIFI_CMD_GET_STATUS, dst);
+    }
+
+    public static int encodeScan(int maxChunkLength, ByteBuffer dst) {
+        checkChunkLength(maxChunkLength);
+        if (dst.remaining() < WiFiProtocol.SCAN_COMMAND_LENGTH)
+            throw new BufferOverflowException();
+
+        dst.put(WiFiProtocol.WIFI_CMD_SCAN);
+        dst.put((byte) maxChunkLength);
+        dst.put((byte) (maxChunkLength >> 8));
+        return WiFiProtocol.SCAN_COMMAND_LENGTH;
+    }
+
+    public static int encodeTelemetry(int intervalMs, int maxFrameLength, ByteBuffer dst) {
+        checkTelemetryInterval(intervalMs);
+        checkChunkLength(maxFrameLength);
+        if (dst.remaining() < WiFiProtocol.TELEMETRY_COMMAND_LENGTH)
+            throw new BufferOverflowException();
+
+        dst.put(WiFiProtocol.WIFI_CMD_TELEMETRY);
+        dst.put((byte) intervalMs);
+        dst.put((byte) (intervalMs >> 8));
+        dst.put((byte) maxFrameLength);
+        dst.put((byte) (maxFrameLength >> 8));
+        return WiFiProtocol.TELEMETRY_COMMAND_LENGTH;
+    }
+
+    private static int encodeCommand(byte command, ByteBuffer dst) {
+        if (dst.remaining() < WiFiProtocol.COMMAND_HEADER_LENGTH)
+            throw new BufferOverflowException();
+        dst.put(command);
+        return WiFiProtocol.COMMAND_HEADER_LENGTH;
+    }
+
+    private static int encodeText(byte command, CharSequence text, ByteBuffer dst) {
+        int length = WiFiProtocol.COMMAND_HEADER_LENGTH + text.length();
+        if (dst.remaining() < length)
+            throw new BufferOverflowException();
+
+        dst.put(command);
+        for (int i = 0; i < text.length(); i++)
+            dst.put((byte) text.charAt(i));
+        return length;
+    }
+
+    private static void putTlv(byte type, CharSequence text, ByteBuffer dst) {
+        dst.put(type);
+        dst.put((byte) text.length());
+        for (int i = 0; i < text.length(); i++)
+            dst.put((byte) text.charAt(i));
+    }
+    //endregion
+
+    //region Decoding
+    /**
+     * Decodes a command frame into {@code frame}. The payload is not copied: the frame keeps a
+     * reference to {@code src}. Returns false when the frame is malformed.
+     */
+    public static boolean decode(byte[] src, int offset, int length, WiFiCommandFrame frame) {
+        frame.clear();
+        if (src == null || length < WiFiProtocol.COMMAND_HEADER_LENGTH || offset < 0 ||
+                offset > src.length - length)
+            return false;
+
+        byte command = src[offset];
+        int payloadOffset = offset + WiFiProtocol.COMMAND_HEADER_LENGTH;
+        int payloadLength = length - WiFiProtocol.COMMAND_HEADER_LENGTH;
+        switch (command) {
+            case WiFiProtocol.WIFI_CMD_SET_SSID:
+                if (!isAsciiPayload(src, payloadOffset, payloadLength, WiFiProtocol.MAX_SSID_LENGTH))
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_SET_PWD:
+                if (!isAsciiPayload(src, payloadOffset, payloadLength,
+                        WiFiProtocol.MAX_PASSWORD_LENGTH))
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_PROVISION:
+                if (!isValidTlvPayload(src, payloadOffset, payloadLength))
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_FRAGMENT:
+                // Fragment index followed by a chunk of the frame being reassembled.
+                if (payloadLength < 1)
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_COMMIT:
+                if (length != WiFiProtocol.COMMIT_FRAME_LENGTH)
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_SCAN:
+                if (length != WiFiProtocol.SCAN_COMMAND_LENGTH)
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_TELEMETRY:
+                if (length != WiFiProtocol.TELEMETRY_COMMAND_LENGTH)
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_KEY_EXCHANGE:
+                if (length != WiFiProtocol.KEY_EXCHANGE_FRAME_LENGTH)
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_SECURE:
+                // At least the command byte of the sealed frame.
+                if (length <= WiFiProtocol.SECURE_OVERHEAD)
+                    return false;
+                break;
+
+            case WiFiProtocol.WIFI_CMD_START:
+            case WiFiProtocol.WIFI_CMD_STOP:
+            case WiFiProtocol.WIFI_CMD_GET_STATUS:
+                if (payloadLength != 0)
+                    return false;
+                break;
+
+            default:
+                return false;
+        }
+
+        frame.set(command, src, payloadOffset, payloadLength);
+        return true;
+    }
+
+    public static boolean decode(byte[] src, WiFiCommandFrame frame) {
+        return src != null && decode(src, 0, src.length, frame);
+    }
+
+    /**
+     * Decodes the TLVs of a WIFI_CMD_PROVISION frame. Unknown TLV types are skipped so newer
+     * clients can add fields. Returns false when the frame is malformed or has no SSID/password.
+     */
+    public static boolean decodeProvision(byte[] src, int offset, int length,
+                                          WiFiProvisionFrame frame) {
+        frame.clear();
+        if (src == null || length < WiFiProtocol.COMMAND_HEADER_LENGTH || offset < 0 ||
+                offset > src.length - length || src[offset] != WiFiProtocol.WIFI_CMD_PROVISION)
+            return false;
+
+        int end = offset + length;
+        int pos = offset + WiFiProtocol.COMMAND_HEADER_LENGTH;
+        while (pos < end) {
+            if (end - pos < WiFiProtocol.TLV_HEADER_LENGTH)
+                return false;
+            byte type = src[pos];
+            int valueLength = src[pos + 1] & 0xFF;
+            int valueOffset = pos + WiFiProtocol.TLV_HEADER_LENGTH;
+            if (valueLength > end - valueOffset)
+                return false;
+
+            switch (type) {
+                case WiFiProtocol.TLV_SSID:
+                    if (valueLength == 0 || !isAsciiPayload(src, valueOffset, valueLength,
+                            WiFiProtocol.MAX_SSID_LENGTH))
+                        return false;
+                    frame.setSsid(src, valueOffset, valueLength);
+                    break;
+
+                case WiFiProtocol.TLV_PASSWORD:
+                    if (valueLength == 0 || !isAsciiPayload(src, valueOffset, valueLength,
+                            WiFiProtocol.MAX_PASSWORD_LENGTH))
+                        return false;
+                    frame.setPassword(src, valueOffset, valueLength);
+                    break;
+
+                case WiFiProtocol.TLV_START:
+                    if (valueLength != 1)
+                        return false;
+                    frame.setStart(src[valueOffset] != 0);
+                    break;
+
+                case WiFiProtocol.TLV_CHANNEL:
+                    if (valueLength != 1 || !isValidChannel(src[valueOffset] & 0xFF))
+                        return false;
+                    frame.setChannel(src[valueOffset] & 0xFF);
+                    break;
+            }
+            pos = valueOffset + valueLength;
+        }
+
+        return frame.isComplete();
+    }
+
+    private static boolean isValidTlvPayload(byte[] src, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            if (end - offset < WiFiProtocol.TLV_HEADER_LENGTH)
+                return false;
+            offset += WiFiProtocol.TLV_HEADER_LENGTH + (src[offset + 1] & 0xFF);
+        }
+        return offset == end;
+    }
+
+    private static boolean isAsciiPayload(byte[] src, int offset, int length, int maxLength) {
+        // An empty payload is legal: the firmware treats it as "clear the value".
+        if (length > maxLength)
+            return false;
+        for (int i = offset; i < offset + length; i++) {
+            if (src[i] < 0x20 || src[i] > 0x7E)
+                return false;
+        }
+        return true;
+    }
+    //endregion
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable holder for a decoded command frame. The payload is a view over the decoded buffer and
+ * is only valid until that buffer is reused.
+ */
+public final class WiFiCommandFrame {
+    private byte command;
+    private byte[] payload;
+    private int payloadOffset;
+    private int payloadLength;
+
+    public WiFiCommandFrame() {
+        clear();
+    }
+
+    void set(byte command, byte[] payload, int payloadOffset, int payloadLength) {
+        this.command = command;
+        this.payload = payload;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    public void clear() {
+        command = WiFiProtocol.WIFI_CMD_NONE;
+        payload = null;
+        payloadOffset = 0;
+        payloadLength = 0;
+    }
+
+    //region Properties
+    public byte getCommand() {
+        return command;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public byte getPayloadByte(int index) {
+        if (index < 0 || index >= payloadLength)
+            throw new IndexOutOfBoundsException("Index " + index + ", length " + payloadLength);
+        return payload[payloadOffset + index];
+    }
+
+    public int copyPayload(byte[] dst, int offset) {
+        System.arraycopy(payload, payloadOffset, dst, offset, payloadLength);
+        return payloadLength;
+    }
+
+    public String getPayloadString() {
+        if (payloadLength == 0)
+            return "";
+        return new String(payload, payloadOffset, payloadLength, StandardCharsets.US_ASCII);
+    }
+    //endregion
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+/**
+ * Splits a command frame that does not fit into one ATT write into WIFI_CMD_FRAGMENT frames
+ * followed by a WIFI_CMD_COMMIT frame. Fragments are sent as write-without-response; the commit
+ * is acknowledged and makes the firmware execute the reassembled frame.
+ * <p>
+ * Fragment: {@code [WIFI_CMD_FRAGMENT][index][chunk...]}.
+ * Commit: {@code [WIFI_CMD_COMMIT][fragment count][frame length, little endian]}.
+ */
+public final class WiFiFragmenter {
+
+    private WiFiFragmenter() {
+    }
+
+    public static int maxWriteLength(int mtu) {
+        return Math.max(mtu, WiFiProtocol.DEFAULT_ATT_MTU) - WiFiProtocol.ATT_WRITE_OVERHEAD;
+    }
+
+    public static boolean needsFragmentation(int frameLength, int mtu) {
+        return frameLength > maxWriteLength(mtu);
+    }
+
+    public static int chunkLength(int mtu) {
+        return maxWriteLength(mtu) - WiFiProtocol.FRAGMENT_HEADER_LENGTH;
+    }
+
+    public static int fragmentCount(int frameLength, int mtu) {
+        int chunk = chunkLength(mtu);
+        return (frameLength + chunk - 1) / chunk;
+    }
+
+    /**
+     * Writes fragment {@code index} of {@code frame} into {@code dst} and returns its length.
+     */
+    public static int encodeFragment(byte[] frame, int frameLength, int index, int mtu,
+                                     byte[] dst, int offset) {
+        if (frameLength > WiFiProtocol.MAX_REASSEMBLY_LENGTH)
+            throw new IllegalArgumentException("Frame of " + frameLength +
+                    " bytes exceeds reassembly limit");
+        int count = fragmentCount(frameLength, mtu);
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Fragment " + index + " of " + count);
+
+        int chunk = chunkLength(mtu);
+        int start = index * chunk;
+        int length = Math.min(chunk, frameLength - start);
+        if (offset < 0 || offset > dst.length - WiFiProtocol.FRAGMENT_HEADER_LENGTH - length)
+            throw new IndexOutOfBoundsException("Fragment does not fit into buffer");
+
+        dst[offset] = WiFiProtocol.WIFI_CMD_FRAGMENT;
+        dst[offset + 1] = (byte) index;
+        System.arraycopy(frame, start, dst, offset + WiFiProtocol.FRAGMENT_HEADER_LENGTH, length);
+        return WiFiProtocol.FRAGMENT_HEADER_LENGTH + length;
+    }
+
+    public static int encodeCommit(int fragmentCount, int frameLength, byte[] dst, int offset) {
+        if (offset < 0 || offset > dst.length - WiFiProtocol.COMMIT_FRAME_LENGTH)
+            throw new IndexOutOfBoundsException("Commit does not fit into buffer");
+
+        dst[offset] = WiFiProtocol.WIFI_CMD_COMMIT;
+        dst[offset + 1] = (byte) fragmentCount;
+        dst[offset + 2] = (byte) frameLength;
+        dst[offset + 3] = (byte) (frameLength >>> 8);
+        return WiFiProtocol.COMMIT_FRAME_LENGTH;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.util.UUID;
+
+/**
+ * GATT layout of the WiFiBle firmware. Commands are written to {@link #CHARACTERISTIC}; since
+ * protocol version 5 the status is read and notified on {@link #STATUS_CHARACTERISTIC}, older
+ * firmware reports it on the command characteristic. Since version 6 access point survey results
+ * are notified on {@link #SCAN_CHARACTERISTIC}, since version 8 telemetry frames on
+ * {@link #TELEMETRY_CHARACTERISTIC}. Since version 9 {@link #SECURITY_CHARACTERISTIC} reads the
+ * device public key and its session key ids.
+ */
+public final class WiFiGattAttributes {
+    public final static String SERVICE = "4fafc201-1fb5-459e-8fcc-c5c9c331914b";
+    public final static String CHARACTERISTIC = "beb5483e-36e1-4688-b7f5-ea07361b26a8";
+    public final static String VERSION_CHARACTERISTIC = "beb5483f-36e1-4688-b7f5-ea07361b26a8";
+    public final static String STATUS_CHARACTERISTIC = "beb54840-36e1-4688-b7f5-ea07361b26a8";
+    public final static String SCAN_CHARACTERISTIC = "beb54841-36e1-4688-b7f5-ea07361b26a8";
+    public final static String TELEMETRY_CHARACTERISTIC = "beb54842-36e1-4688-b7f5-ea07361b26a8";
+    public final static String SECURITY_CHARACTERISTIC = "beb54843-36e1-4688-b7f5-ea07361b26a8";
+    public final static String CCC_DESCRIPTOR = "00002902-0000-1000-8000-00805f9b34fb";
+
+    public final static UUID SERVICE_UUID = UUID.fromString(SERVICE);
+    public final static UUID CHARACTERISTIC_UUID = UUID.fromString(CHARACTERISTIC);
+    public final static UUID VERSION_CHARACTERISTIC_UUID = UUID.fromString(VERSION_CHARACTERISTIC);
+    public final static UUID STATUS_CHARACTERISTIC_UUID = UUID.fromString(STATUS_CHARACTERISTIC);
+    public final static UUID SCAN_CHARACTERISTIC_UUID = UUID.fromString(SCAN_CHARACTERISTIC);
+    public final static UUID TELEMETRY_CHARACTERISTIC_UUID =
+            UUID.fromString(TELEMETRY_CHARACTERISTIC);
+    public final static UUID SECURITY_CHARACTERISTIC_UUID =
+            UUID.fromString(SECURITY_CHARACTERISTIC);
+    public final static UUID CCC_DESCRIPTOR_UUID = UUID.fromString(CCC_DESCRIPTOR);
+
+    public final static byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+
+    private WiFiGattAttributes() {
+    }
+}
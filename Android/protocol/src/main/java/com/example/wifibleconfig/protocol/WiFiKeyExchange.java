@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECField;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ECDH on P-256 that agrees a {@link WiFiSessionKey} with a device (WIFI_CMD_KEY_EXCHANGE).
+ * <p>
+ * The device keeps a static key pair and publishes its public key on the security
+ * characteristic; the client sends a fresh public key per exchange. The shared x coordinate
+ * goes through HKDF-SHA256, with both public keys as context, into the AES key and its id.
+ * Nothing authenticates the device key, so like Just Works pairing this protects against
+ * sniffing, not against an active attacker at the first exchange.
+ */
+public final class WiFiKeyExchange {
+    private final static String CURVE = "secp256r1";
+    private final static byte UNCOMPRESSED_POINT = 0x04;
+    private final static int COORDINATE_LENGTH = 32;
+    private final static byte[] HKDF_SALT = {'W', 'i', 'F', 'i', 'B', 'l', 'e', '-', 'E', 'C',
+            'D', 'H', '-', 'v', '1'};
+
+    private static volatile ECParameterSpec params;
+
+    private WiFiKeyExchange() {
+    }
+
+    //region Keys
+    public static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(CURVE));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("P-256 is not available", e);
+        }
+    }
+
+    /**
+     * Encodes {@code key} as an uncompressed point of {@link WiFiProtocol#PUBLIC_KEY_LENGTH}
+     * bytes.
+     */
+    public static byte[] encodePublicKey(ECPublicKey key) {
+        byte[] encoded = new byte[WiFiProtocol.PUBLIC_KEY_LENGTH];
+        encoded[0] = UNCOMPRESSED_POINT;
+        putCoordinate(key.getW().getAffineX(), encoded, 1);
+        putCoordinate(key.getW().getAffineY(), encoded, 1 + COORDINATE_LENGTH);
+        return encoded;
+    }
+
+    /**
+     * Decodes an uncompressed point. Throws IllegalArgumentException when it is not a point of
+     * P-256, which also rejects keys chosen to leak the private key through invalid curves.
+     */
+    public static ECPublicKey decodePublicKey(byte[] src, int offset) {
+        if (offset < 0 || offset > src.length - WiFiProtocol.PUBLIC_KEY_LENGTH ||
+                src[offset] != UNCOMPRESSED_POINT)
+            throw new IllegalArgumentException("Not an uncompressed P-256 point");
+
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(src, offset + 1,
+                offset + 1 + COORDINATE_LENGTH));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(src, offset + 1 + COORDINATE_LENGTH,
+                offset + WiFiProtocol.PUBLIC_KEY_LENGTH));
+        ECParameterSpec spec = params();
+        if (!isOnCurve(spec.getCurve(), x, y))
+            throw new IllegalArgumentException("Point is not on P-256");
+
+        try {
+            return (ECPublicKey) KeyFactory.getInstance("EC").generatePublic(
+                    new ECPublicKeySpec(new ECPoint(x, y), spec));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid P-256 key", e);
+        }
+    }
+
+    /**
+     * Encodes WIFI_CMD_KEY_EXCHANGE with the client public key.
+     */
+    public static int encodeKeyExchange(byte[] clientPublicKey, byte[] dst, int offset) {
+        if (clientPublicKey.length != WiFiProtocol.PUBLIC_KEY_LENGTH)
+            throw new IllegalArgumentException("Public key must be " +
+                    WiFiProtocol.PUBLIC_KEY_LENGTH + " bytes");
+        if (offset < 0 || offset > dst.length - WiFiProtocol.KEY_EXCHANGE_FRAME_LENGTH)
+            throw new IndexOutOfBoundsException("Frame of " +
+                    WiFiProtocol.KEY_EXCHANGE_FRAME_LENGTH + " bytes does not fit at " + offset +
+                    " in buffer of " + dst.length + " bytes");
+
+        dst[offset] = WiFiProtocol.WIFI_CMD_KEY_EXCHANGE;
+        System.arraycopy(clientPublicKey, 0, dst, offset + 1, WiFiProtocol.PUBLIC_KEY_LENGTH);
+        return WiFiProtocol.KEY_EXCHANGE_FRAME_LENGTH;
+    }
+
+    private static ECParameterSpec params() {
+        ECParameterSpec spec = params;
+        if (spec != null)
+            return spec;
+        try {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(CURVE));
+            spec = parameters.getParameterSpec(ECParameterSpec.class);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("P-256 is not available", e);
+        }
+        params = spec;
+        return spec;
+    }
+
+    private static boolean isOnCurve(EllipticCurve curve, BigInteger x, BigInteger y) {
+        ECField field = curve.getField();
+        if (!(field instanceof ECFieldFp))
+            return false;
+        BigInteger p = ((ECFieldFp) field).getP();
+        if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0)
+            return false;
+        BigInteger right = x.pow(3).add(curve.getA().multiply(x)).add(curve.getB()).mod(p);
+        return y.multiply(y).mod(p).equals(right);
+    }
+
+    private static void putCoordinate(BigInteger value, byte[] dst, int offset) {
+        byte[] bytes = value.toByteArray();
+        // Drop the sign byte, left pad short values.
+        int length = Math.min(bytes.length, COORDINATE_LENGTH);
+        System.arraycopy(bytes, bytes.length - length, dst, offset + COORDINATE_LENGTH - length,
+                length);
+    }
+    //endregion
+
+    //region Derivation
+    /**
+     * Client side: derives the session key from a fresh client key pair and the device public
+     * key read from the security characteristic.
+     */
+    public static WiFiSessionKey deriveClient(KeyPair client, byte[] devicePublicKey) {
+        return derive(client.getPrivate(), decodePublicKey(devicePublicKey, 0), devicePublicKey,
+                encodePublicKey((ECPublicKey) client.getPublic()));
+    }
+
+    /**
+     * Device side: derives the session key from the static device key pair and the client
+     * public key of a WIFI_CMD_KEY_EXCHANGE frame.
+     */
+    public static WiFiSessionKey deriveDevice(KeyPair device, byte[] clientPublicKey) {
+        return derive(device.getPrivate(), decodePublicKey(clientPublicKey, 0),
+                encodePublicKey((ECPublicKey) device.getPublic()), clientPublicKey);
+    }
+
+    private static WiFiSessionKey derive(PrivateKey privateKey, ECPublicKey peer,
+                                         byte[] devicePublicKey, byte[] clientPublicKey) {
+        try {
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(privateKey);
+            agreement.doPhase(peer, true);
+            byte[] shared = agreement.generateSecret();
+
+            // HKDF (RFC 5869) with a single output block.
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(HKDF_SALT, "HmacSHA256"));
+            byte[] prk = mac.doFinal(shared);
+            Arrays.fill(shared, (byte) 0);
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(devicePublicKey);
+            mac.update(clientPublicKey);
+            mac.update((byte) 1);
+            byte[] okm = mac.doFinal();
+            Arrays.fill(prk, (byte) 0);
+
+            int keyId = (okm[16] & 0xFF) | ((okm[17] & 0xFF) << 8) | ((okm[18] & 0xFF) << 16) |
+                    ((okm[19] & 0xFF) << 24);
+            WiFiSessionKey key = new WiFiSessionKey(keyId, Arrays.copyOf(okm,
+                    WiFiProtocol.SESSION_KEY_LENGTH), 1);
+            Arrays.fill(okm, (byte) 0);
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Key agreement failed", e);
+        }
+    }
+    //endregion
+
+    //region Security characteristic
+    /**
+     * Value of the security characteristic: the device public key and the ids of the session
+     * keys the device still keeps.
+     */
+    public final static class DeviceInfo {
+        private final byte[] publicKey;
+        private final int[] keyIds;
+
+        public DeviceInfo(byte[] publicKey, int[] keyIds) {
+            this.publicKey = publicKey;
+            this.keyIds = keyIds;
+        }
+
+        /**
+         * Parses a characteristic value; returns null when it is malformed or uses an unknown
+         * scheme.
+         */
+        public static DeviceInfo parse(byte[] value) {
+            if (value == null || value.length < WiFiProtocol.SECURITY_INFO_HEADER_LENGTH ||
+                    value[0] != WiFiProtocol.SECURITY_SCHEME_P256_AES128_GCM)
+                return null;
+
+            int count = value[1 + WiFiProtocol.PUBLIC_KEY_LENGTH] & 0xFF;
+            if (count > WiFiProtocol.MAX_SESSION_KEYS || value.length !=
+                    WiFiProtocol.SECURITY_INFO_HEADER_LENGTH + count * WiFiProtocol.KEY_ID_LENGTH)
+                return null;
+
+            int[] keyIds = new int[count];
+            int offset = WiFiProtocol.SECURITY_INFO_HEADER_LENGTH;
+            for (int i = 0; i < count; i++, offset += WiFiProtocol.KEY_ID_LENGTH)
+                keyIds[i] = (value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8) |
+                        ((value[offset + 2] & 0xFF) << 16) | ((value[offset + 3] & 0xFF) << 24);
+            return new DeviceInfo(Arrays.copyOfRange(value, 1,
+                    1 + WiFiProtocol.PUBLIC_KEY_LENGTH), keyIds);
+        }
+
+        public byte[] encode() {
+            byte[] value = new byte[WiFiProtocol.SECURITY_INFO_HEADER_LENGTH +
+                    keyIds.length * WiFiProtocol.KEY_ID_LENGTH];
+            value[0] = WiFiProtocol.SECURITY_SCHEME_P256_AES128_GCM;
+            System.arraycopy(publicKey, 0, value, 1, WiFiProtocol.PUBLIC_KEY_LENGTH);
+            value[1 + WiFiProtocol.PUBLIC_KEY_LENGTH] = (byte) keyIds.length;
+            int offset = WiFiProtocol.SECURITY_INFO_HEADER_LENGTH;
+            for (int keyId : keyIds) {
+                value[offset++] = (byte) keyId;
+                value[offset++] = (byte) (keyId >> 8);
+                value[offset++] = (byte) (keyId >> 16);
+                value[offset++] = (byte) (keyId >> 24);
+            }
+            return value;
+        }
+
+        public byte[] getPublicKey() {
+            return publicKey;
+        }
+
+        public boolean hasKey(int keyId) {
+            for (int id : keyIds)
+                if (id == keyId)
+                    return true;
+            return false;
+        }
+    }
+    //endregion
+}
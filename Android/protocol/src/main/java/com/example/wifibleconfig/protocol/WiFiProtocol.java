@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+/**
+ * Wire constants shared with the WiFiBle firmware (see WiFiBle.ino).
+ */
+public final class WiFiProtocol {
+    //region Protocol versions
+    public final static int PROTOCOL_VERSION_LEGACY = 1;
+    public final static int PROTOCOL_VERSION_PROVISION = 2;
+    public final static int PROTOCOL_VERSION_FRAGMENTS = 3;
+    public final static int PROTOCOL_VERSION_STATUS_PUSH = 4;
+    public final static int PROTOCOL_VERSION_STATUS_CHARACTERISTIC = 5;
+    public final static int PROTOCOL_VERSION_SCAN = 6;
+    public final static int PROTOCOL_VERSION_COMMAND_QUEUE = 7;
+    public final static int PROTOCOL_VERSION_TELEMETRY = 8;
+    public final static int PROTOCOL_VERSION_SECURE = 9;
+    public final static int PROTOCOL_VERSION = PROTOCOL_VERSION_SECURE;
+    //endregion
+
+    //region WiFi AP status
+    public final static byte WIFI_STATUS_STARTED = 0x01;
+    public final static byte WIFI_STATUS_STOPPED = 0x02;
+    public final static byte WIFI_STATUS_NO_CONFIG = 0x03;
+    public final static byte WIFI_STATUS_ERROR = 0x04;
+    //endregion
+
+    //region WiFi AP commands
+    public final static byte WIFI_CMD_NONE = 0x00;
+    public final static byte WIFI_CMD_SET_SSID = 0x01;
+    public final static byte WIFI_CMD_SET_PWD = 0x02;
+    public final static byte WIFI_CMD_START = 0x03;
+    public final static byte WIFI_CMD_STOP = 0x04;
+    public final static byte WIFI_CMD_GET_STATUS = 0x05;
+    public final static byte WIFI_CMD_PROVISION = 0x06;
+    public final static byte WIFI_CMD_FRAGMENT = 0x07;
+    public final static byte WIFI_CMD_COMMIT = 0x08;
+    public final static byte WIFI_CMD_SCAN = 0x09;
+    public final static byte WIFI_CMD_TELEMETRY = 0x0A;
+    public final static byte WIFI_CMD_KEY_EXCHANGE = 0x0B;
+    public final static byte WIFI_CMD_SECURE = 0x0C;
+    //endregion
+
+    //region WIFI_CMD_PROVISION TLV types
+    public final static byte TLV_SSID = 0x01;
+    public final static byte TLV_PASSWORD = 0x02;
+    public final static byte TLV_START = 0x03;
+    public final static byte TLV_CHANNEL = 0x04;
+
+    public final static int TLV_HEADER_LENGTH = 2;
+    //endregion
+
+    //region Frame limits
+    public final static int COMMAND_HEADER_LENGTH = 1;
+    public final static int STATUS_FRAME_LENGTH = 2;
+
+    public final static int MAX_SSID_LENGTH = 32;
+    public final static int MIN_PASSWORD_LENGTH = 8;
+    public final static int MAX_PASSWORD_LENGTH = 63;
+    public final static int MAX_COMMAND_FRAME_LENGTH = COMMAND_HEADER_LENGTH +
+            Math.max(MAX_SSID_LENGTH, MAX_PASSWORD_LENGTH);
+    public final static int MAX_PROVISION_FRAME_LENGTH = COMMAND_HEADER_LENGTH +
+            TLV_HEADER_LENGTH + MAX_SSID_LENGTH +
+            TLV_HEADER_LENGTH + MAX_PASSWORD_LENGTH +
+            TLV_HEADER_LENGTH + 1;
+    //endregion
+
+    //region Fragmentation
+    public final static int DEFAULT_ATT_MTU = 23;
+    public final static int PREFERRED_ATT_MTU = 517;
+    public final static int ATT_WRITE_OVERHEAD = 3;
+
+    public final static int FRAGMENT_HEADER_LENGTH = 2;
+    public final static int COMMIT_FRAME_LENGTH = 4;
+    public final static int MAX_REASSEMBLY_LENGTH = 512;
+    //endregion
+
+    //region WIFI_CMD_SCAN
+    /**
+     * Command: [cmd][max chunk length lo][max chunk length hi]. Results are notified on the
+     * scan characteristic as chunks [cmd][sequence][flags][records...]; records are
+     * [rssi][channel][auth mode][SSID length][SSID] and may span chunks.
+     */
+    public final static int SCAN_COMMAND_LENGTH = 3;
+    public final static int SCAN_CHUNK_HEADER_LENGTH = 3;
+    public final static int SCAN_RECORD_HEADER_LENGTH = 4;
+    public final static int MAX_SCAN_RECORD_LENGTH = SCAN_RECORD_HEADER_LENGTH +
+            MAX_SSID_LENGTH;
+    public final static int ATT_NOTIFICATION_OVERHEAD = 3;
+    public final static int MIN_SCAN_CHUNK_LENGTH = DEFAULT_ATT_MTU - ATT_NOTIFICATION_OVERHEAD;
+
+    public final static int SCAN_FLAG_LAST = 0x01;
+    public final static int SCAN_FLAG_FAILED = 0x02;
+
+    public final static int MIN_CHANNEL = 1;
+    public final static int MAX_CHANNEL = 13;
+    //endregion
+
+    //region WIFI_CMD_TELEMETRY
+    /**
+     * Command: [cmd][interval ms lo][interval ms hi][max frame length lo][max frame length hi],
+     * an interval of 0 stops. Frames are notified on the telemetry characteristic:
+     * [cmd][sequence lo][sequence hi][uptime ms, 4 bytes][free heap, 4 bytes][station count]
+     * followed by the RSSI of as many stations as fit, multi-byte values little endian.
+     */
+    public final static int TELEMETRY_COMMAND_LENGTH = 5;
+    public final static int TELEMETRY_HEADER_LENGTH = 12;
+
+    public final static int MIN_TELEMETRY_INTERVAL_MS = 250;
+    public final static int MAX_TELEMETRY_INTERVAL_MS = 60000;
+    //endregion
+
+    //region Credential encryption
+    /**
+     * The security characteristic reads [scheme][device public key][key count][key ids...]: the
+     * static P-256 key of the device, uncompressed, and the ids of the session keys it keeps,
+     * newest first. WIFI_CMD_KEY_EXCHANGE: [cmd][client public key] agrees a new session key
+     * (ECDH, then HKDF-SHA256 into an AES-128 key and a key id). WIFI_CMD_SECURE:
+     * [cmd][key id, 4 bytes][counter, 8 bytes][ciphertext][tag] carries a whole command frame
+     * sealed with AES-GCM; the nonce is key id and counter, and the counter must grow with
+     * every frame of a key. Multi-byte values little endian.
+     */
+    public final static int SECURITY_SCHEME_P256_AES128_GCM = 1;
+
+    public final static int PUBLIC_KEY_LENGTH = 65;
+    public final static int KEY_EXCHANGE_FRAME_LENGTH = COMMAND_HEADER_LENGTH + PUBLIC_KEY_LENGTH;
+    public final static int SECURITY_INFO_HEADER_LENGTH = 1 + PUBLIC_KEY_LENGTH + 1;
+    public final static int MAX_SESSION_KEYS = 4;
+
+    public final static int SESSION_KEY_LENGTH = 16;
+    public final static int KEY_ID_LENGTH = 4;
+    public final static int SECURE_COUNTER_LENGTH = 8;
+    public final static int SECURE_HEADER_LENGTH = COMMAND_HEADER_LENGTH + KEY_ID_LENGTH +
+            SECURE_COUNTER_LENGTH;
+    public final static int SECURE_TAG_LENGTH = 16;
+    public final static int SECURE_OVERHEAD = SECURE_HEADER_LENGTH + SECURE_TAG_LENGTH;
+    //endregion
+
+    private WiFiProtocol() {
+    }
+}
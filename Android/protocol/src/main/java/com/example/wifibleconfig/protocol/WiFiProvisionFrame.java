@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable holder for a decoded WIFI_CMD_PROVISION frame. SSID and password are views over the
+ * decoded buffer and are only valid until that buffer is reused.
+ */
+public final class WiFiProvisionFrame {
+    private byte[] buffer;
+    private int ssidOffset;
+    private int ssidLength;
+    private int passwordOffset;
+    private int passwordLength;
+    private boolean start;
+    private int channel;
+
+    public WiFiProvisionFrame() {
+        clear();
+    }
+
+    void setSsid(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        ssidOffset = offset;
+        ssidLength = length;
+    }
+
+    void setPassword(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        passwordOffset = offset;
+        passwordLength = length;
+    }
+
+    void setStart(boolean start) {
+        this.start = start;
+    }
+
+    void setChannel(int channel) {
+        this.channel = channel;
+    }
+
+    boolean isComplete() {
+        return ssidLength > 0 && passwordLength > 0;
+    }
+
+    public void clear() {
+        buffer = null;
+        ssidOffset = 0;
+        ssidLength = 0;
+        passwordOffset = 0;
+        passwordLength = 0;
+        start = false;
+        channel = 0;
+    }
+
+    //region Properties
+    public int getSsidLength() {
+        return ssidLength;
+    }
+
+    public int getPasswordLength() {
+        return passwordLength;
+    }
+
+    public boolean isStart() {
+        return start;
+    }
+
+    /**
+     * Soft AP channel, or 0 when the frame leaves it to the firmware.
+     */
+    public int getChannel() {
+        return channel;
+    }
+
+    public int copySsid(byte[] dst, int offset) {
+        System.arraycopy(buffer, ssidOffset, dst, offset, ssidLength);
+        return ssidLength;
+    }
+
+    public int copyPassword(byte[] dst, int offset) {
+        System.arraycopy(buffer, passwordOffset, dst, offset, passwordLength);
+        return passwordLength;
+    }
+
+    public String getSsid() {
+        return new String(buffer, ssidOffset, ssidLength, StandardCharsets.US_ASCII);
+    }
+
+    public String getPassword() {
+        return new String(buffer, passwordOffset, passwordLength, StandardCharsets.US_ASCII);
+    }
+    //endregion
+}
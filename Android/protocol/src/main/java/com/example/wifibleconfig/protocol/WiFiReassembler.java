@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+/**
+ * Receiving side of {@link WiFiFragmenter}, equivalent to the firmware reassembly in onWrite.
+ * Uses one fixed buffer; a fragment arriving out of order invalidates the frame until the next
+ * fragment with index 0.
+ */
+public final class WiFiReassembler {
+    private final byte[] buffer = new byte[WiFiProtocol.MAX_REASSEMBLY_LENGTH];
+    private int length;
+    private int nextIndex;
+    private boolean valid;
+
+    public WiFiReassembler() {
+        reset();
+    }
+
+    public void reset() {
+        length = 0;
+        nextIndex = 0;
+        valid = false;
+    }
+
+    /**
+     * Accepts a WIFI_CMD_FRAGMENT frame. Returns false when the fragment was rejected.
+     */
+    public boolean onFragment(byte[] src, int offset, int frameLength) {
+        if (frameLength < WiFiProtocol.FRAGMENT_HEADER_LENGTH ||
+                src[offset] != WiFiProtocol.WIFI_CMD_FRAGMENT)
+            return false;
+
+        int index = src[offset + 1] & 0xFF;
+        if (index == 0) {
+            length = 0;
+            nextIndex = 0;
+            valid = true;
+        }
+        if (!valid || index != nextIndex)
+            return valid = false;
+
+        int chunk = frameLength - WiFiProtocol.FRAGMENT_HEADER_LENGTH;
+        if (chunk > buffer.length - length)
+            return valid = false;
+
+        System.arraycopy(src, offset + WiFiProtocol.FRAGMENT_HEADER_LENGTH, buffer, length, chunk);
+        length += chunk;
+        nextIndex++;
+        return true;
+    }
+
+    /**
+     * Accepts a WIFI_CMD_COMMIT frame. Returns the length of the reassembled frame available in
+     * {@link #getBuffer()}, or -1 when the fragments do not match the commit.
+     */
+    public int onCommit(byte[] src, int offset, int frameLength) {
+        if (frameLength != WiFiProtocol.COMMIT_FRAME_LENGTH ||
+                src[offset] != WiFiProtocol.WIFI_CMD_COMMIT)
+            return -1;
+
+        int count = src[offset + 1] & 0xFF;
+        int total = (src[offset + 2] & 0xFF) | ((src[offset + 3] & 0xFF) << 8);
+        boolean complete = valid && count == nextIndex && total == length;
+        int result = complete ? length : -1;
+        valid = false;
+        nextIndex = 0;
+        return result;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+}
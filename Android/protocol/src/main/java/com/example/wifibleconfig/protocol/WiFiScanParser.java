@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses WIFI_CMD_SCAN notifications into a {@link WiFiSurvey} as they arrive. Records may
+ * span chunks; the unfinished one waits in a fixed buffer of one maximal record. A chunk out of
+ * sequence or a malformed record ends the survey as failed, keeping what was parsed.
+ */
+public final class WiFiScanParser {
+    private final WiFiSurvey survey;
+    private final byte[] record = new byte[WiFiProtocol.MAX_SCAN_RECORD_LENGTH];
+    private int recordLength;
+    private int nextSequence;
+
+    public WiFiScanParser(WiFiSurvey survey) {
+        this.survey = survey;
+    }
+
+    /**
+     * Accepts one notification. Returns the number of access points it completed, or -1 when
+     * the chunk was rejected or arrived after the survey ended.
+     */
+    public int onChunk(byte[] src, int offset, int length) {
+        if (survey.isComplete())
+            return -1;
+        if (src == null || length < WiFiProtocol.SCAN_CHUNK_HEADER_LENGTH || offset < 0 ||
+                offset > src.length - length || src[offset] != WiFiProtocol.WIFI_CMD_SCAN)
+            return -1;
+
+        int sequence = src[offset + 1] & 0xFF;
+        if (sequence != nextSequence) {
+            survey.fail();
+            return -1;
+        }
+        nextSequence = (nextSequence + 1) & 0xFF;
+
+        int flags = src[offset + 2] & 0xFF;
+        int pos = offset + WiFiProtocol.SCAN_CHUNK_HEADER_LENGTH;
+        int end = offset + length;
+        int count = 0;
+        while (pos < end) {
+            int needed = recordLength < WiFiProtocol.SCAN_RECORD_HEADER_LENGTH ?
+                    WiFiProtocol.SCAN_RECORD_HEADER_LENGTH - recordLength :
+                    recordEnd() - recordLength;
+            int chunk = Math.min(needed, end - pos);
+            System.arraycopy(src, pos, record, recordLength, chunk);
+            recordLength += chunk;
+            pos += chunk;
+
+            if (recordLength == WiFiProtocol.SCAN_RECORD_HEADER_LENGTH &&
+                    (record[3] & 0xFF) > WiFiProtocol.MAX_SSID_LENGTH) {
+                survey.fail();
+                return -1;
+            }
+            if (recordLength >= WiFiProtocol.SCAN_RECORD_HEADER_LENGTH &&
+                    recordLength == recordEnd()) {
+                survey.add(decodeRecord());
+                recordLength = 0;
+                count++;
+            }
+        }
+
+        if ((flags & WiFiProtocol.SCAN_FLAG_FAILED) != 0 ||
+                ((flags & WiFiProtocol.SCAN_FLAG_LAST) != 0 && recordLength != 0))
+            survey.fail();
+        else if ((flags & WiFiProtocol.SCAN_FLAG_LAST) != 0)
+            survey.complete();
+        return count;
+    }
+
+    public int onChunk(byte[] src) {
+        return src == null ? -1 : onChunk(src, 0, src.length);
+    }
+
+    /**
+     * Ends the survey as failed, for example when the last chunk did not come in time.
+     */
+    public void abort() {
+        survey.fail();
+    }
+
+    public WiFiSurvey getSurvey() {
+        return survey;
+    }
+
+    private int recordEnd() {
+        return WiFiProtocol.SCAN_RECORD_HEADER_LENGTH + (record[3] & 0xFF);
+    }
+
+    private WiFiAccessPoint decodeRecord() {
+        int ssidLength = record[3] & 0xFF;
+        String ssid = ssidLength > 0 ? new String(record, WiFiProtocol.SCAN_RECORD_HEADER_LENGTH,
+                ssidLength, StandardCharsets.UTF_8) : "";
+        return new WiFiAccessPoint(ssid, record[0], record[1] & 0xFF, record[2] & 0xFF);
+    }
+}
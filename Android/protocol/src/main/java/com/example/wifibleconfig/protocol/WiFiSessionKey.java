@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-128-GCM key agreed with a device by {@link WiFiKeyExchange}, which seals command frames
+ * into WIFI_CMD_SECURE frames and opens them.
+ * <p>
+ * The nonce is the key id followed by a counter sent along in the clear; it must never repeat
+ * under one key, so the sender takes a new counter for every frame and the receiver only
+ * accepts counters above the last one it opened. The frame header is authenticated as well.
+ * A key that outlives the process takes its counters in blocks of {@link #COUNTER_BLOCK}, each
+ * saved through its {@link CounterStore} before the first frame uses it.
+ * Every method is synchronized, one cipher is reused for all frames of the key.
+ */
+public final class WiFiSessionKey {
+    public final static long COUNTER_BLOCK = 256;
+
+    /**
+     * Saves the counter a key continues from after a restart.
+     */
+    public interface CounterStore {
+        /**
+         * Returns false when the reserved counter of {@code key} could not be saved.
+         */
+        boolean reserve(WiFiSessionKey key);
+    }
+
+    private final static int TAG_BITS = WiFiProtocol.SECURE_TAG_LENGTH * 8;
+    private final static int NONCE_OFFSET = WiFiProtocol.COMMAND_HEADER_LENGTH;
+    private final static int NONCE_LENGTH = WiFiProtocol.KEY_ID_LENGTH +
+            WiFiProtocol.SECURE_COUNTER_LENGTH;
+
+    private final int keyId;
+    private final SecretKeySpec key;
+    private long nextCounter;
+    private volatile long reservedCounter;
+    private CounterStore counterStore;
+    private Cipher cipher;
+
+    /**
+     * @param nextCounter counter of the next sealed frame; counters start at 1
+     */
+    public WiFiSessionKey(int keyId, byte[] key, long nextCounter) {
+        if (key.length != WiFiProtocol.SESSION_KEY_LENGTH)
+            throw new IllegalArgumentException("Key must be " + WiFiProtocol.SESSION_KEY_LENGTH +
+                    " bytes");
+        this.keyId = keyId;
+        this.key = new SecretKeySpec(key, "AES");
+        this.nextCounter = Math.max(1, nextCounter);
+        this.reservedCounter = this.nextCounter;
+    }
+
+    /**
+     * Reserves counters through {@code store} from the next sealed frame on, or stops reserving
+     * when null.
+     */
+    public synchronized void setCounterStore(CounterStore store) {
+        counterStore = store;
+    }
+
+    //region Sealing
+    public static int sealedLength(int frameLength) {
+        return frameLength + WiFiProtocol.SECURE_OVERHEAD;
+    }
+
+    /**
+     * Seals a command frame into a new WIFI_CMD_SECURE frame under the next counter. Fails
+     * without sealing when the next block of counters could not be reserved.
+     */
+    public synchronized byte[] seal(byte[] frame, int offset, int length) {
+        if (counterStore != null && Long.compareUnsigned(nextCounter, reservedCounter) >= 0) {
+            long previous = reservedCounter;
+            reservedCounter = nextCounter + COUNTER_BLOCK;
+            if (!counterStore.reserve(this)) {
+                reservedCounter = previous;
+                throw new IllegalStateException("Session key counters could not be reserved");
+            }
+        }
+        byte[] sealed = new byte[sealedLength(length)];
+        long counter = nextCounter++;
+        sealed[0] = WiFiProtocol.WIFI_CMD_SECURE;
+        putInt(keyId, sealed, 1);
+        putInt((int) counter, sealed, 5);
+        putInt((int) (counter >>> 32), sealed, 9);
+        try {
+            Cipher aes = init(Cipher.ENCRYPT_MODE, sealed, 0);
+            aes.updateAAD(sealed, 0, WiFiProtocol.SECURE_HEADER_LENGTH);
+            aes.doFinal(frame, offset, length, sealed, WiFiProtocol.SECURE_HEADER_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM failed", e);
+        }
+        return sealed;
+    }
+
+    /**
+     * Opens a WIFI_CMD_SECURE frame of this key. Returns the command frame it carries, or null
+     * when the frame is malformed, was not sealed with this key or tampered with, or does not
+     * carry a counter above {@code lastCounter}.
+     */
+    public synchronized byte[] open(byte[] src, int offset, int length, long lastCounter) {
+        if (length <= WiFiProtocol.SECURE_OVERHEAD || offset < 0 ||
+                offset > src.length - length || src[offset] != WiFiProtocol.WIFI_CMD_SECURE ||
+                keyIdOf(src, offset) != keyId ||
+                Long.compareUnsigned(counterOf(src, offset), lastCounter) <= 0)
+            return null;
+
+        try {
+            Cipher aes = init(Cipher.DECRYPT_MODE, src, offset);
+            aes.updateAAD(src, offset, WiFiProtocol.SECURE_HEADER_LENGTH);
+            return aes.doFinal(src, offset + WiFiProtocol.SECURE_HEADER_LENGTH,
+                    length - WiFiProtocol.SECURE_HEADER_LENGTH);
+        } catch (AEADBadTagException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM failed", e);
+        }
+    }
+
+    private Cipher init(int mode, byte[] header, int offset) throws GeneralSecurityException {
+        if (cipher == null)
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, header, offset + NONCE_OFFSET,
+                NONCE_LENGTH));
+        return cipher;
+    }
+    //endregion
+
+    //region Header
+    public static int keyIdOf(byte[] src, int offset) {
+        return getInt(src, offset + 1);
+    }
+
+    public static long counterOf(byte[] src, int offset) {
+        return (getInt(src, offset + 5) & 0xFFFFFFFFL) | ((long) getInt(src, offset + 9) << 32);
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) | ((src[offset + 1] & 0xFF) << 8) |
+                ((src[offset + 2] & 0xFF) << 16) | ((src[offset + 3] & 0xFF) << 24);
+    }
+
+    private static void putInt(int value, byte[] dst, int offset) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+        dst[offset + 2] = (byte) (value >> 16);
+        dst[offset + 3] = (byte) (value >> 24);
+    }
+    //endregion
+
+    //region Properties
+    public int getKeyId() {
+        return keyId;
+    }
+
+    public byte[] getKey() {
+        return key.getEncoded();
+    }
+
+    public synchronized long getNextCounter() {
+        return nextCounter;
+    }
+
+    /**
+     * Counter a restart continues from: no frame sealed so far used it or a later one.
+     * Not synchronized, so a {@link CounterStore} may read it while a frame is being sealed.
+     */
+    public long getReservedCounter() {
+        return reservedCounter;
+    }
+    //endregion
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder and decoder for the 2-byte status value: the status code in the low byte and the
+ * number of connected stations in the high byte (only meaningful for WIFI_STATUS_STARTED).
+ */
+public final class WiFiStatusCodec {
+    public final static int INVALID = -1;
+
+    private WiFiStatusCodec() {
+    }
+
+    public static boolean isKnownStatus(int status) {
+        return status >= WiFiProtocol.WIFI_STATUS_STARTED && status <= WiFiProtocol.WIFI_STATUS_ERROR;
+    }
+
+    //region Packed form
+    /**
+     * Packs status and station count into a non-negative int: {@code stations << 8 | status}.
+     */
+    public static int pack(int status, int stationCount) {
+        return ((stationCount & 0xFF) << 8) | (status & 0xFF);
+    }
+
+    public static byte statusOf(int packed) {
+        return (byte) (packed & 0xFF);
+    }
+
+    public static int stationCountOf(int packed) {
+        return (packed >>> 8) & 0xFF;
+    }
+    //endregion
+
+    //region Encoding
+    public static int encode(int status, int stationCount, byte[] dst, int offset) {
+        if (!isKnownStatus(status))
+            throw new IllegalArgumentException("Unknown status " + status);
+        if (stationCount < 0 || stationCount > 0xFF)
+            throw new IllegalArgumentException("Station count must be 0..255");
+        if (offset < 0 || offset > dst.length - WiFiProtocol.STATUS_FRAME_LENGTH)
+            throw new IndexOutOfBoundsException("Status does not fit at " + offset +
+                    " in buffer of " + dst.length + " bytes");
+
+        dst[offset] = (byte) status;
+        dst[offset + 1] = (byte) stationCount;
+        return WiFiProtocol.STATUS_FRAME_LENGTH;
+    }
+
+    public static int encode(int status, int stationCount, ByteBuffer dst) {
+        if (!isKnownStatus(status))
+            throw new IllegalArgumentException("Unknown status " + status);
+        if (stationCount < 0 || stationCount > 0xFF)
+            throw new IllegalArgumentException("Station count must be 0..255");
+        if (dst.remaining() < WiFiProtocol.STATUS_FRAME_LENGTH)
+            throw new BufferOverflowException();
+
+        dst.put((byte) status);
+        dst.put((byte) stationCount);
+        return WiFiProtocol.STATUS_FRAME_LENGTH;
+    }
+    //endregion
+
+    //region Decoding
+    /**
+     * Decodes a status value into its packed form, or returns {@link #INVALID} when the value
+     * has the wrong length or an unknown status code.
+     */
+    public static int decode(byte[] src, int offset, int length) {
+        if (src == null || length != WiFiProtocol.STATUS_FRAME_LENGTH || offset < 0 ||
+                offset > src.length - length)
+            return INVALID;
+
+        int status = src[offset] & 0xFF;
+        if (!isKnownStatus(status))
+            return INVALID;
+
+        int stationCount = status == WiFiProtocol.WIFI_STATUS_STARTED ? src[offset + 1] & 0xFF : 0;
+        return pack(status, stationCount);
+    }
+
+    public static int decode(byte[] src) {
+        return src == null ? INVALID : decode(src, 0, src.length);
+    }
+
+    public static int decode(ByteBuffer src) {
+        if (src.remaining() != WiFiProtocol.STATUS_FRAME_LENGTH)
+            return INVALID;
+
+        int status = src.get(src.position()) & 0xFF;
+        if (!isKnownStatus(status))
+            return INVALID;
+
+        int stationCount = status == WiFiProtocol.WIFI_STATUS_STARTED ?
+                src.get(src.position() + 1) & 0xFF : 0;
+        src.position(src.position() + WiFiProtocol.STATUS_FRAME_LENGTH);
+        return pack(status, stationCount);
+    }
+    //endregion
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of one WIFI_CMD_SCAN, filled incrementally by {@link WiFiScanParser} and readable at
+ * any time from other threads.
+ * <p>
+ * Memory is bounded: only the strongest {@code capacity} access points are kept, while the
+ * channel load counts every access point reported. The load of a channel is the signal
+ * strength of every network on the channels its 20 MHz overlaps, weighted by the overlap, so
+ * {@link #getLeastCongestedChannel()} works on partial results as well.
+ */
+public final class WiFiSurvey {
+    public final static int DEFAULT_CAPACITY = 32;
+
+    // Channels 1, 6 and 11 are the ones that do not overlap each other.
+    private final static int[] CANDIDATE_CHANNELS = {1, 6, 11};
+    // A 20 MHz channel overlaps the 4 channels on either side (5 MHz spacing).
+    private final static int OVERLAP_CHANNELS = 5;
+    private final static int NOISE_FLOOR_DBM = -100;
+
+    private final WiFiAccessPoint[] accessPoints;
+    private final int[] channelWeight = new int[WiFiProtocol.MAX_CHANNEL + 2];
+    private int size;
+    private int totalCount;
+    private boolean complete;
+    private boolean failed;
+
+    public WiFiSurvey() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public WiFiSurvey(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        accessPoints = new WiFiAccessPoint[capacity];
+    }
+
+    //region Filling
+    synchronized void add(WiFiAccessPoint accessPoint) {
+        totalCount++;
+        int channel = accessPoint.getChannel();
+        if (channel >= WiFiProtocol.MIN_CHANNEL && channel < channelWeight.length)
+            channelWeight[channel] += weightOf(accessPoint.getRssi());
+
+        if (size < accessPoints.length) {
+            accessPoints[size++] = accessPoint;
+            return;
+        }
+
+        // Full: the new one replaces the weakest if it is stronger.
+        int weakest = 0;
+        for (int i = 1; i < size; i++) {
+            if (accessPoints[i].getRssi() < accessPoints[weakest].getRssi())
+                weakest = i;
+        }
+        if (accessPoint.getRssi() > accessPoints[weakest].getRssi())
+            accessPoints[weakest] = accessPoint;
+    }
+
+    synchronized void complete() {
+        complete = true;
+    }
+
+    synchronized void fail() {
+        if (complete)
+            return;
+        complete = true;
+        failed = true;
+    }
+
+    private static int weightOf(int rssi) {
+        return Math.max(1, rssi - NOISE_FLOOR_DBM);
+    }
+    //endregion
+
+    //region Results
+    /**
+     * Kept access points, strongest first.
+     */
+    public synchronized List<WiFiAccessPoint> getAccessPoints() {
+        List<WiFiAccessPoint> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(accessPoints[i]);
+        Collections.sort(list, (a, b) -> Integer.compare(b.getRssi(), a.getRssi()));
+        return list;
+    }
+
+    /**
+     * Number of access points reported so far, including those not kept.
+     */
+    public synchronized int getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Load of a channel in weighted dB above the noise floor; lower is better.
+     */
+    public synchronized int getChannelLoad(int channel) {
+        int load = 0;
+        for (int other = WiFiProtocol.MIN_CHANNEL; other < channelWeight.length; other++) {
+            int distance = Math.abs(other - channel);
+            if (distance < OVERLAP_CHANNELS)
+                load += channelWeight[other] * (OVERLAP_CHANNELS - distance) / OVERLAP_CHANNELS;
+        }
+        return load;
+    }
+
+    /**
+     * Non-overlapping channel with the lowest load, or 0 while nothing is known yet.
+     */
+    public synchronized int getLeastCongestedChannel() {
+        if (totalCount == 0 && !complete)
+            return 0;
+
+        int best = CANDIDATE_CHANNELS[0];
+        int bestLoad = getChannelLoad(best);
+        for (int i = 1; i < CANDIDATE_CHANNELS.length; i++) {
+            int load = getChannelLoad(CANDIDATE_CHANNELS[i]);
+            if (load < bestLoad) {
+                best = CANDIDATE_CHANNELS[i];
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The last chunk arrived, or the survey ended early.
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The firmware could not scan, a chunk was lost or the survey timed out; results received
+     * before that are kept.
+     */
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+    //endregion
+}
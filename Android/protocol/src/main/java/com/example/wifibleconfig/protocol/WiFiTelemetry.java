@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+/**
+ * Telemetry frames of one device (WIFI_CMD_TELEMETRY) in a fixed-size ring buffer of primitive
+ * columns. Once full, every frame overwrites the oldest sample, so hours of monitoring take the
+ * memory of the first {@code capacity} frames and nothing is allocated per frame.
+ * <p>
+ * A sample keeps the uptime, free heap and station count of its frame, plus the weakest,
+ * strongest and mean RSSI of the stations it carried. {@link #downsample} reduces the kept
+ * samples to a few buckets for display. Frames arrive on the notification thread while the UI
+ * reads, so every method is synchronized.
+ */
+public final class WiFiTelemetry {
+    public enum Metric {
+        STATIONS,
+        RSSI,
+        FREE_HEAP
+    }
+
+    /**
+     * One hour at one frame per second, about 60 KB.
+     */
+    public final static int DEFAULT_CAPACITY = 3600;
+
+    // RSSI columns of a sample without stations; real readings are negative.
+    private final static byte NO_RSSI = 0;
+
+    private final long[] uptimeMs;
+    private final int[] freeHeap;
+    private final byte[] stationCount;
+    private final byte[] rssiMin;
+    private final byte[] rssiMax;
+    private final byte[] rssiMean;
+    private int next;
+    private int size;
+    private long received;
+    private long lost;
+    private int nextSequence = -1;
+
+    public WiFiTelemetry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public WiFiTelemetry(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        uptimeMs = new long[capacity];
+        freeHeap = new int[capacity];
+        stationCount = new byte[capacity];
+        rssiMin = new byte[capacity];
+        rssiMax = new byte[capacity];
+        rssiMean = new byte[capacity];
+    }
+
+    //region Filling
+    /**
+     * Appends a telemetry frame. Returns false, keeping nothing, when it is malformed.
+     */
+    public synchronized boolean onFrame(byte[] src, int offset, int length) {
+        if (src == null || length < WiFiProtocol.TELEMETRY_HEADER_LENGTH || offset < 0 ||
+                offset > src.length - length || src[offset] != WiFiProtocol.WIFI_CMD_TELEMETRY)
+            return false;
+
+        int stations = src[offset + 11] & 0xFF;
+        int rssiCount = length - WiFiProtocol.TELEMETRY_HEADER_LENGTH;
+        if (rssiCount > stations)
+            return false;
+
+        // Sequence numbers run for the whole uptime of the device; a jump back means it
+        // restarted and is not counted as loss.
+        int sequence = (src[offset + 1] & 0xFF) | ((src[offset + 2] & 0xFF) << 8);
+        if (nextSequence >= 0) {
+            int gap = (sequence - nextSequence) & 0xFFFF;
+            if (gap < 0x8000)
+                lost += gap;
+        }
+        nextSequence = (sequence + 1) & 0xFFFF;
+        received++;
+
+        int min = NO_RSSI;
+        int max = NO_RSSI;
+        int sum = 0;
+        for (int i = 0; i < rssiCount; i++) {
+            int rssi = src[offset + WiFiProtocol.TELEMETRY_HEADER_LENGTH + i];
+            min = i == 0 ? rssi : Math.min(min, rssi);
+            max = i == 0 ? rssi : Math.max(max, rssi);
+            sum += rssi;
+        }
+
+        uptimeMs[next] = readInt(src, offset + 3) & 0xFFFFFFFFL;
+        freeHeap[next] = readInt(src, offset + 7);
+        stationCount[next] = (byte) stations;
+        rssiMin[next] = (byte) min;
+        rssiMax[next] = (byte) max;
+        rssiMean[next] = (byte) (rssiCount == 0 ? NO_RSSI : Math.round((float) sum / rssiCount));
+        next = (next + 1) % uptimeMs.length;
+        if (size < uptimeMs.length)
+            size++;
+        return true;
+    }
+
+    public boolean onFrame(byte[] src) {
+        return src != null && onFrame(src, 0, src.length);
+    }
+
+    private static int readInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) | ((src[offset + 1] & 0xFF) << 8) |
+                ((src[offset + 2] & 0xFF) << 16) | ((src[offset + 3] & 0xFF) << 24);
+    }
+    //endregion
+
+    //region Samples
+    public int getCapacity() {
+        return uptimeMs.length;
+    }
+
+    /**
+     * Samples kept, at most the capacity.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Frames received since creation, including those overwritten since.
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * Frames the sequence numbers show missing, for example notifications dropped by a
+     * congested link.
+     */
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    /**
+     * Value of the newest sample; for RSSI the mean over its stations. 0 when empty.
+     */
+    public synchronized int getLatest(Metric metric) {
+        return size == 0 ? 0 : value(metric, index(size - 1));
+    }
+
+    /**
+     * Device uptime of the newest sample, 0 when empty.
+     */
+    public synchronized long getLatestUptimeMs() {
+        return size == 0 ? 0 : uptimeMs[index(size - 1)];
+    }
+
+    /**
+     * Splits the kept samples, oldest first, into at most {@code buckets} runs of equal length
+     * and returns the minimum, maximum and average of {@code metric} in each. For RSSI the
+     * minimum and maximum are over single stations, the average over the sample means; samples
+     * without station readings do not count.
+     */
+    public synchronized WiFiTelemetrySeries downsample(Metric metric, int buckets) {
+        if (buckets < 1)
+            throw new IllegalArgumentException("Bucket count must be positive");
+
+        int bucketCount = Math.min(buckets, size);
+        WiFiTelemetrySeries series = new WiFiTelemetrySeries(metric, bucketCount);
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            int from = (int) ((long) bucket * size / bucketCount);
+            int to = (int) ((long) (bucket + 1) * size / bucketCount);
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            long sum = 0;
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                int sample = index(i);
+                int value = value(metric, sample);
+                if (metric == Metric.RSSI) {
+                    if (value == NO_RSSI)
+                        continue;
+                    min = Math.min(min, rssiMin[sample]);
+                    max = Math.max(max, rssiMax[sample]);
+                } else {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                sum += value;
+                count++;
+            }
+            if (count == 0)
+                series.set(bucket, 0, 0, Float.NaN);
+            else
+                series.set(bucket, min, max, (float) sum / count);
+        }
+        return series;
+    }
+
+    private int index(int sample) {
+        return (next - size + sample + uptimeMs.length) % uptimeMs.length;
+    }
+
+    private int value(Metric metric, int index) {
+        switch (metric) {
+            case STATIONS:
+                return stationCount[index] & 0xFF;
+            case RSSI:
+                return rssiMean[index];
+            default:
+                return freeHeap[index];
+        }
+    }
+    //endregion
+}
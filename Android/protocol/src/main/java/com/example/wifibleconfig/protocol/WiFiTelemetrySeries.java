@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+/**
+ * One {@link WiFiTelemetry.Metric} reduced to buckets by {@link WiFiTelemetry#downsample}, oldest
+ * bucket first. A bucket without values (RSSI while no station was connected) has an average
+ * of NaN.
+ */
+public final class WiFiTelemetrySeries {
+    private final WiFiTelemetry.Metric metric;
+    private final int[] min;
+    private final int[] max;
+    private final float[] average;
+
+    WiFiTelemetrySeries(WiFiTelemetry.Metric metric, int bucketCount) {
+        this.metric = metric;
+        this.min = new int[bucketCount];
+        this.max = new int[bucketCount];
+        this.average = new float[bucketCount];
+    }
+
+    void set(int bucket, int min, int max, float average) {
+        this.min[bucket] = min;
+        this.max[bucket] = max;
+        this.average[bucket] = average;
+    }
+
+    public WiFiTelemetry.Metric getMetric() {
+        return metric;
+    }
+
+    public int getBucketCount() {
+        return average.length;
+    }
+
+    public boolean hasValue(int bucket) {
+        return !Float.isNaN(average[bucket]);
+    }
+
+    public int getMin(int bucket) {
+        return min[bucket];
+    }
+
+    public int getMax(int bucket) {
+        return max[bucket];
+    }
+
+    public float getAverage(int bucket) {
+        return average[bucket];
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+/**
+ * The link to the device failed to come up or was lost. The status is the reason the platform
+ * reported, such as an HCI disconnect reason or {@link #GATT_ERROR}, or
+ * {@link #STATUS_CANCELLED} when the connection was closed locally.
+ */
+public class GattConnectionException extends GattException {
+    private final static long serialVersionUID = 1L;
+
+    /**
+     * Android's catch-all connection failure, typically reported when the device did not
+     * answer the connection request or the stack ran out of client slots.
+     */
+    public final static int GATT_ERROR = 133;
+
+    public GattConnectionException(String message, int status) {
+        super(message, status);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+/**
+ * A GATT operation could not be started or completed with a non-success status.
+ */
+public class GattException extends Exception {
+    private final static long serialVersionUID = 1L;
+
+    public final static int STATUS_NOT_STARTED = -1;
+    public final static int STATUS_CANCELLED = -2;
+
+    private final int status;
+
+    public GattException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+/**
+ * Validated GATT layout of one device as cached by {@link GattLayoutCache}.
+ */
+public final class GattLayout {
+    private final long signature;
+    private final int protocolVersion;
+    private final int mtu;
+    private final long coldSetupNanos;
+
+    GattLayout(long signature, int protocolVersion, int mtu, long coldSetupNanos) {
+        this.signature = signature;
+        this.protocolVersion = protocolVersion;
+        this.mtu = mtu;
+        this.coldSetupNanos = coldSetupNanos;
+    }
+
+    /**
+     * Hash of the characteristic UUIDs and properties of the WiFi service.
+     */
+    public long getSignature() {
+        return signature;
+    }
+
+    /**
+     * Firmware protocol version, or 0 when it was never read.
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * ATT MTU negotiated on the last connection.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Session setup time (connected to ready) of the connection that populated the entry.
+     */
+    public long getColdSetupNanos() {
+        return coldSetupNanos;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers the validated GATT layout of each device by address, so a reconnect to a known
+ * board that keeps the default MTU can skip the MTU exchange.
+ * <p>
+ * A cached entry is only used when the signature of the freshly discovered service matches;
+ * a firmware update that changes the layout invalidates it. Some updates keep the layout, so
+ * the session still reads the version and {@link #verify verifies} the entry with it, a single
+ * read queued behind the status subscription. Entries are bounded by LRU order and persist
+ * through {@link #store(Writer)} and {@link #load(Reader)}.
+ */
+public final class GattLayoutCache {
+    public final static int DEFAULT_CAPACITY = 256;
+
+    private final static long SIGNATURE_SEED = 0xCBF29CE484222325L;
+    private final static long SIGNATURE_PRIME = 0x100000001B3L;
+
+    private final LinkedHashMap<String, GattLayout> layouts;
+
+    //region Metrics
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long savedNanos;
+    //endregion
+
+    public GattLayoutCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public GattLayoutCache(int capacity) {
+        layouts = new LinkedHashMap<String, GattLayout>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GattLayout> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    //region Signature
+    public static long signatureSeed() {
+        return SIGNATURE_SEED;
+    }
+
+    /**
+     * Folds one discovered characteristic into a layout signature. Characteristics are folded
+     * in discovery (handle) order.
+     */
+    public static long signature(long signature, UUID characteristic, int properties) {
+        signature = (signature ^ characteristic.getMostSignificantBits()) * SIGNATURE_PRIME;
+        signature = (signature ^ characteristic.getLeastSignificantBits()) * SIGNATURE_PRIME;
+        return (signature ^ properties) * SIGNATURE_PRIME;
+    }
+    //endregion
+
+    //region Lookup
+    /**
+     * Returns the cached layout when it matches the discovered {@code signature}. A stale entry
+     * is removed.
+     */
+    public synchronized GattLayout lookup(String address, long signature) {
+        GattLayout layout = layouts.get(address);
+        if (layout == null) {
+            misses++;
+            return null;
+        }
+        if (layout.getSignature() != signature) {
+            layouts.remove(address);
+            invalidations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return layout;
+    }
+
+    /**
+     * Checks a layout returned by {@link #lookup} against the protocol version the device
+     * reported on this connection. A different version drops the entry and returns false.
+     */
+    public synchronized boolean verify(String address, GattLayout layout, int protocolVersion) {
+        // 0: the version of the entry was never read.
+        if (layout.getProtocolVersion() == 0 || layout.getProtocolVersion() == protocolVersion)
+            return true;
+        if (layouts.remove(address, layout))
+            invalidations++;
+        // The lookup counted a hit.
+        hits--;
+        misses++;
+        return false;
+    }
+
+    /**
+     * Records a session set up without the cache.
+     */
+    public synchronized void put(String address, long signature, int protocolVersion, int mtu,
+                                 long setupNanos) {
+        layouts.put(address, new GattLayout(signature, protocolVersion, mtu, setupNanos));
+    }
+
+    /**
+     * Records a session set up from {@code layout}, accounting the time saved.
+     */
+    public synchronized void recordWarmSetup(GattLayout layout, long setupNanos) {
+        savedNanos += Math.max(0, layout.getColdSetupNanos() - setupNanos);
+    }
+
+    /**
+     * Updates what was learned during a session (lazily read version, negotiated MTU) while
+     * keeping the cold setup time.
+     */
+    public synchronized void update(String address, int protocolVersion, int mtu) {
+        GattLayout layout = layouts.get(address);
+        if (layout != null && (layout.getProtocolVersion() != protocolVersion ||
+                layout.getMtu() != mtu))
+            layouts.put(address, new GattLayout(layout.getSignature(), protocolVersion, mtu,
+                    layout.getColdSetupNanos()));
+    }
+
+    /**
+     * Drops the entry of a device whose cached layout led to a failure.
+     */
+    public synchronized void invalidate(String address) {
+        if (layouts.remove(address) != null)
+            invalidations++;
+    }
+
+    public synchronized GattLayoutCacheMetrics getMetrics() {
+        return new GattLayoutCacheMetrics(layouts.size(), hits, misses, invalidations,
+                savedNanos);
+    }
+    //endregion
+
+    //region Persistence
+    /**
+     * Writes one line per entry: address, signature, version, MTU and cold setup time.
+     */
+    public void store(Writer writer) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        synchronized (this) {
+            for (Map.Entry<String, GattLayout> entry : layouts.entrySet()) {
+                GattLayout layout = entry.getValue();
+                builder.append(entry.getKey()).append(' ')
+                        .append(Long.toHexString(layout.getSignature())).append(' ')
+                        .append(layout.getProtocolVersion()).append(' ')
+                        .append(layout.getMtu()).append(' ')
+                        .append(layout.getColdSetupNanos()).append('\n');
+            }
+        }
+        writer.write(builder.toString());
+        writer.flush();
+    }
+
+    /**
+     * Adds the entries written by {@link #store(Writer)}. Malformed lines are skipped.
+     */
+    public void load(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 5)
+                continue;
+            try {
+                put(fields[0], Long.parseUnsignedLong(fields[1], 16),
+                        Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                        Long.parseLong(fields[4]));
+            } catch (NumberFormatException e) {
+                // Skip the line; the device is simply discovered cold again.
+            }
+        }
+    }
+    //endregion
+}
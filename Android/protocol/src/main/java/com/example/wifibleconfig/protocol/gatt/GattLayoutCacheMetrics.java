@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of {@link GattLayoutCache} counters. Time saved is the cold setup time of a device
+ * minus its warm setup time, summed over all warm sessions.
+ */
+public final class GattLayoutCacheMetrics {
+    private final int size;
+    private final long hits;
+    private final long misses;
+    private final long invalidations;
+    private final long savedNanos;
+
+    GattLayoutCacheMetrics(int size, long hits, long misses, long invalidations,
+                           long savedNanos) {
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+        this.invalidations = invalidations;
+        this.savedNanos = savedNanos;
+    }
+
+    //region Properties
+    public int getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public double getSavedMillis() {
+        return savedNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getAverageSavedMillis() {
+        return hits == 0 ? 0 : getSavedMillis() / hits;
+    }
+    //endregion
+
+    @Override
+    public String toString() {
+        return String.format("size=%d hits=%d misses=%d invalidations=%d saved=%.1fms " +
+                        "avgSaved=%.1fms", size, hits, misses, invalidations, getSavedMillis(),
+                getAverageSavedMillis());
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serializes GATT operations over a {@link GattTransport}.
+ * <p>
+ * Android allows a single outstanding GATT operation per connection and silently rejects the
+ * rest, so every read, write and descriptor write goes through this queue. The next operation
+ * is issued directly from the callback of the previous one, keeping the link busy without
+ * thread hops. Each operation has its own timeout and completes a {@link CompletableFuture}.
+ * <p>
+ * The owner forwards the BluetoothGattCallback results to the {@code on...} methods and calls
+ * {@link #cancelAll()} when the connection goes away.
+ */
+public final class GattOperationQueue {
+    public final static long DEFAULT_TIMEOUT_MS = 5000;
+    public final static int DEFAULT_MTU = 23;
+
+    private enum Type {
+        REQUEST_MTU,
+        READ,
+        WRITE,
+        WRITE_DESCRIPTOR,
+        ENABLE_NOTIFICATIONS
+    }
+
+    private final static class Operation {
+        final Type type;
+        final UUID service;
+        final UUID characteristic;
+        final UUID descriptor;
+        final byte[] value;
+        // Write type for writes, requested MTU for REQUEST_MTU.
+        final int parameter;
+        final long timeoutMs;
+        final long enqueuedNanos;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        long startedNanos;
+        ScheduledFuture<?> timeout;
+
+        Operation(Type type, UUID service, UUID characteristic, UUID descriptor, byte[] value,
+                  int parameter, long timeoutMs) {
+            this.type = type;
+            this.service = service;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.parameter = parameter;
+            this.timeoutMs = timeoutMs;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    private final GattTransport transport;
+    private final ScheduledExecutorService scheduler;
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    private Operation current;
+    private boolean closed;
+    private int mtu = DEFAULT_MTU;
+
+    //region Metrics
+    private int maxDepth;
+    private long completed;
+    private long failed;
+    private long timedOut;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private long totalServiceNanos;
+    //endregion
+
+    public GattOperationQueue(GattTransport transport, ScheduledExecutorService scheduler) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+    }
+
+    //region Operations
+    /**
+     * Requests an ATT MTU and completes with the negotiated value.
+     */
+    public CompletableFuture<Integer> requestMtu(int mtu) {
+        return enqueue(new Operation(Type.REQUEST_MTU, null, null, null, null, mtu,
+                DEFAULT_TIMEOUT_MS)).thenApply(value -> getMtu());
+    }
+
+    public CompletableFuture<byte[]> read(UUID service, UUID characteristic) {
+        return read(service, characteristic, DEFAULT_TIMEOUT_MS);
+    }
+
+    public CompletableFuture<byte[]> read(UUID service, UUID characteristic, long timeoutMs) {
+        return enqueue(new Operation(Type.READ, service, characteristic, null, null, 0,
+                timeoutMs));
+    }
+
+    public CompletableFuture<byte[]> write(UUID service, UUID characteristic, byte[] value) {
+        return write(service, characteristic, value, GattTransport.WRITE_TYPE_DEFAULT,
+                DEFAULT_TIMEOUT_MS);
+    }
+
+    public CompletableFuture<byte[]> write(UUID service, UUID characteristic, byte[] value,
+                                           int writeType, long timeoutMs) {
+        return enqueue(new Operation(Type.WRITE, service, characteristic, null, value, writeType,
+                timeoutMs));
+    }
+
+    public CompletableFuture<byte[]> writeDescriptor(UUID service, UUID characteristic,
+                                                     UUID descriptor, byte[] value) {
+        return enqueue(new Operation(Type.WRITE_DESCRIPTOR, service, characteristic, descriptor,
+                value, 0, DEFAULT_TIMEOUT_MS));
+    }
+
+    /**
+     * Enables local notification delivery and writes {@code value} to the CCC descriptor.
+     */
+    public CompletableFuture<byte[]> enableNotifications(UUID service, UUID characteristic,
+                                                         UUID cccDescriptor, byte[] value) {
+        return enqueue(new Operation(Type.ENABLE_NOTIFICATIONS, service, characteristic,
+                cccDescriptor, value, 0, DEFAULT_TIMEOUT_MS));
+    }
+
+    private CompletableFuture<byte[]> enqueue(Operation operation) {
+        boolean rejected;
+        synchronized (this) {
+            rejected = closed;
+            if (!rejected) {
+                pending.add(operation);
+                maxDepth = Math.max(maxDepth, depth());
+            }
+        }
+
+        if (rejected)
+            operation.future.completeExceptionally(new GattException("Queue is closed",
+                    GattException.STATUS_CANCELLED));
+        else
+            drain();
+        return operation.future;
+    }
+
+    private void drain() {
+        while (true) {
+            Operation operation;
+            synchronized (this) {
+                if (current != null || pending.isEmpty())
+                    return;
+                operation = pending.poll();
+                current = operation;
+                operation.startedNanos = System.nanoTime();
+                operation.timeout = scheduler.schedule(() -> onTimeout(operation),
+                        operation.timeoutMs, TimeUnit.MILLISECONDS);
+            }
+
+            if (!start(operation))
+                complete(operation, null, new GattException("Operation " + operation.type +
+                        " was not started", GattException.STATUS_NOT_STARTED));
+        }
+    }
+
+    private boolean start(Operation operation) {
+        switch (operation.type) {
+            case REQUEST_MTU:
+                return transport.requestMtu(operation.parameter);
+
+            case READ:
+                return transport.readCharacteristic(operation.service, operation.characteristic);
+
+            case WRITE:
+                return transport.writeCharacteristic(operation.service, operation.characteristic,
+                        operation.value, operation.parameter);
+
+            case ENABLE_NOTIFICATIONS:
+                if (!transport.setCharacteristicNotification(operation.service,
+                        operation.characteristic, true))
+                    return false;
+                return transport.writeDescriptor(operation.service, operation.characteristic,
+                        operation.descriptor, operation.value);
+
+            case WRITE_DESCRIPTOR:
+                return transport.writeDescriptor(operation.service, operation.characteristic,
+                        operation.descriptor, operation.value);
+        }
+        return false;
+    }
+    //endregion
+
+    //region Completion
+    private void complete(Operation operation, byte[] value, Throwable error) {
+        synchronized (this) {
+            if (current != operation)
+                return;
+            current = null;
+            if (operation.timeout != null)
+                operation.timeout.cancel(false);
+
+            long now = System.nanoTime();
+            long latency = now - operation.enqueuedNanos;
+            totalLatencyNanos += latency;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            totalServiceNanos += now - operation.startedNanos;
+            if (error == null)
+                completed++;
+            else if (error instanceof TimeoutException)
+                timedOut++;
+            else
+                failed++;
+        }
+
+        // Completed outside the lock: dependent stages usually enqueue the next operation.
+        if (error == null)
+            operation.future.complete(value);
+        else
+            operation.future.completeExceptionally(error);
+        drain();
+    }
+
+    private void onTimeout(Operation operation) {
+        complete(operation, null, new TimeoutException("Operation " + operation.type +
+                " timed out after " + operation.timeoutMs + " ms"));
+    }
+
+    private synchronized Operation currentFor(Type type, UUID uuid) {
+        if (current == null)
+            return null;
+        if (type == Type.REQUEST_MTU)
+            return current.type == Type.REQUEST_MTU ? current : null;
+        if (type == Type.WRITE_DESCRIPTOR) {
+            if (current.type != Type.WRITE_DESCRIPTOR && current.type != Type.ENABLE_NOTIFICATIONS)
+                return null;
+            return uuid.equals(current.descriptor) ? current : null;
+        }
+        return current.type == type && uuid.equals(current.characteristic) ? current : null;
+    }
+
+    private void onResult(Type type, UUID uuid, byte[] value, int status) {
+        Operation operation = currentFor(type, uuid);
+        if (operation == null)
+            return;
+
+        if (status == GattTransport.GATT_SUCCESS)
+            complete(operation, value, null);
+        else
+            complete(operation, null, new GattException("Operation " + operation.type +
+                    " failed with status " + status, status));
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        if (status == GattTransport.GATT_SUCCESS) {
+            synchronized (this) {
+                this.mtu = mtu;
+            }
+        }
+        onResult(Type.REQUEST_MTU, null, null, status);
+    }
+
+    public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+        onResult(Type.READ, characteristic, value, status);
+    }
+
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        Operation operation = currentFor(Type.WRITE, characteristic);
+        onResult(Type.WRITE, characteristic, operation == null ? null : operation.value, status);
+    }
+
+    public void onDescriptorWrite(UUID descriptor, int status) {
+        Operation operation = currentFor(Type.WRITE_DESCRIPTOR, descriptor);
+        onResult(Type.WRITE_DESCRIPTOR, descriptor, operation == null ? null : operation.value,
+                status);
+    }
+
+    /**
+     * Fails the current and all pending operations and rejects new ones. Called on disconnect.
+     */
+    public void cancelAll() {
+        Operation active;
+        Operation[] queued;
+        synchronized (this) {
+            closed = true;
+            active = current;
+            queued = pending.toArray(new Operation[0]);
+            pending.clear();
+        }
+
+        if (active != null)
+            complete(active, null, new GattException("Connection closed",
+                    GattException.STATUS_CANCELLED));
+        for (Operation operation : queued)
+            operation.future.completeExceptionally(new GattException("Connection closed",
+                    GattException.STATUS_CANCELLED));
+    }
+    //endregion
+
+    //region Properties
+    private int depth() {
+        return pending.size() + (current == null ? 0 : 1);
+    }
+
+    public synchronized int getMtu() {
+        return mtu;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public synchronized int getDepth() {
+        return depth();
+    }
+
+    public synchronized GattQueueMetrics getMetrics() {
+        return new GattQueueMetrics(depth(), maxDepth, completed, failed, timedOut,
+                totalLatencyNanos, maxLatencyNanos, totalServiceNanos);
+    }
+    //endregion
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of {@link GattOperationQueue} counters. Latency is measured from enqueue to
+ * completion, service time from issuing the operation to its callback.
+ */
+public final class GattQueueMetrics {
+    private final int depth;
+    private final int maxDepth;
+    private final long completed;
+    private final long failed;
+    private final long timedOut;
+    private final long totalLatencyNanos;
+    private final long maxLatencyNanos;
+    private final long totalServiceNanos;
+
+    GattQueueMetrics(int depth, int maxDepth, long completed, long failed, long timedOut,
+                     long totalLatencyNanos, long maxLatencyNanos, long totalServiceNanos) {
+        this.depth = depth;
+        this.maxDepth = maxDepth;
+        this.completed = completed;
+        this.failed = failed;
+        this.timedOut = timedOut;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.totalServiceNanos = totalServiceNanos;
+    }
+
+    //region Properties
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getTimedOut() {
+        return timedOut;
+    }
+
+    public double getAverageLatencyMillis() {
+        return average(totalLatencyNanos);
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getAverageServiceMillis() {
+        return average(totalServiceNanos);
+    }
+    //endregion
+
+    private double average(long totalNanos) {
+        long count = completed + failed + timedOut;
+        if (count == 0)
+            return 0;
+        return totalNanos / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth=%d maxDepth=%d completed=%d failed=%d timedOut=%d " +
+                        "avgLatency=%.1fms maxLatency=%.1fms avgService=%.1fms",
+                depth, maxDepth, completed, failed, timedOut, getAverageLatencyMillis(),
+                getMaxLatencyMillis(), getAverageServiceMillis());
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import java.util.UUID;
+
+/**
+ * Minimal view of a GATT client connection. Methods only start an operation and return false
+ * when it could not be issued; results are reported back through {@link GattOperationQueue}.
+ * The Android implementation wraps BluetoothGatt, tests can use a fake.
+ */
+public interface GattTransport {
+    int GATT_SUCCESS = 0;
+
+    int WRITE_TYPE_NO_RESPONSE = 1;
+    int WRITE_TYPE_DEFAULT = 2;
+
+    boolean requestMtu(int mtu);
+
+    boolean readCharacteristic(UUID service, UUID characteristic);
+
+    boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType);
+
+    boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable);
+
+    boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value);
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntPredicate;
+
+/**
+ * Commands waiting for the status notification that reports them done.
+ * <p>
+ * Firmware with a command queue only acknowledges a write; its worker task runs the commands
+ * in write order and notifies the status once per command. A notification therefore completes
+ * the oldest pending command, if that command accepts the status (see {@link #track}); the
+ * rest, such as station count changes, are left to the caller as unsolicited.
+ */
+public final class PendingCommandTracker {
+    /**
+     * How long a command may take after its write; starting the soft AP takes about a second.
+     */
+    public final static long DEFAULT_TIMEOUT_MS = 10000;
+
+    private final static class PendingCommand {
+        final byte command;
+        final IntPredicate completesOn;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        ScheduledFuture<?> timeout;
+
+        PendingCommand(byte command, IntPredicate completesOn) {
+            this.command = command;
+            this.completesOn = completesOn;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final ArrayDeque<PendingCommand> pending = new ArrayDeque<>();
+
+    public PendingCommandTracker(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Registers a command about to be written; register in write order.
+     *
+     * @param completesOn tested with the packed status (see {@link WiFiStatusCodec#pack}) of a
+     *                    notification; a command that has to change the status rejects the
+     *                    ones sent before it ran
+     * @return completes with the status value that reported the command done
+     */
+    public CompletableFuture<byte[]> track(byte command, IntPredicate completesOn) {
+        return track(command, completesOn, DEFAULT_TIMEOUT_MS);
+    }
+
+    public CompletableFuture<byte[]> track(byte command, IntPredicate completesOn,
+                                           long timeoutMs) {
+        PendingCommand pendingCommand = new PendingCommand(command, completesOn);
+        synchronized (this) {
+            pending.add(pendingCommand);
+            pendingCommand.timeout = scheduler.schedule(() -> complete(pendingCommand, null,
+                    new TimeoutException("Command " + command + " not reported done after " +
+                            timeoutMs + " ms")), timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return pendingCommand.future;
+    }
+
+    /**
+     * Passes a status notification. Returns false when it completed no command.
+     */
+    public boolean onStatus(byte[] value) {
+        int packed = WiFiStatusCodec.decode(value);
+        if (packed == WiFiStatusCodec.INVALID)
+            return false;
+
+        PendingCommand head;
+        synchronized (this) {
+            head = pending.peek();
+            if (head == null || !head.completesOn.test(packed))
+                return false;
+        }
+        return complete(head, value, null);
+    }
+
+    /**
+     * Fails the command behind {@code future}, for example when its write failed.
+     */
+    public void fail(CompletableFuture<byte[]> future, Throwable error) {
+        PendingCommand failed = null;
+        synchronized (this) {
+            for (PendingCommand pendingCommand : pending) {
+                if (pendingCommand.future == future) {
+                    failed = pendingCommand;
+                    break;
+                }
+            }
+        }
+        if (failed != null)
+            complete(failed, null, error);
+    }
+
+    /**
+     * Fails every pending command; call when the connection goes away.
+     */
+    public void cancelAll() {
+        PendingCommand[] cancelled;
+        synchronized (this) {
+            cancelled = pending.toArray(new PendingCommand[0]);
+        }
+        for (PendingCommand pendingCommand : cancelled)
+            complete(pendingCommand, null, new GattException("Connection closed",
+                    GattException.STATUS_CANCELLED));
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    private boolean complete(PendingCommand pendingCommand, byte[] value, Throwable error) {
+        synchronized (this) {
+            // Removed by whoever completes it first: notification, timeout or failure.
+            boolean removed = false;
+            for (Iterator<PendingCommand> it = pending.iterator(); it.hasNext(); ) {
+                if (it.next() == pendingCommand) {
+                    it.remove();
+                    removed = true;
+                    break;
+                }
+            }
+            if (!removed)
+                return false;
+        }
+
+        pendingCommand.timeout.cancel(false);
+        if (error != null)
+            pendingCommand.future.completeExceptionally(error);
+        else
+            pendingCommand.future.complete(value);
+        return true;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import com.example.wifibleconfig.protocol.WiFiSessionKey;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Session keys by device address, so a reconnect to a known board seals its credentials right
+ * away instead of running a key exchange. Entries are bounded by LRU order and persist through
+ * {@link #store(Writer)} and {@link #load(Reader)}.
+ * <p>
+ * Keys of the cache reserve their counters in blocks (see {@link WiFiSessionKey}), and every
+ * block is saved through the {@link Persister} before a frame uses it. The stored counters are
+ * these reservations, so a key loaded after a crash never reuses a nonce. Without a persister
+ * the keys live in memory only.
+ */
+public final class SessionKeyCache {
+    public final static int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Writes the cache to its storage, usually through {@link #store(Writer)}.
+     */
+    public interface Persister {
+        void persist(SessionKeyCache cache) throws IOException;
+    }
+
+    private final LinkedHashMap<String, WiFiSessionKey> keys;
+    private final WiFiSessionKey.CounterStore counterStore = key -> trySave();
+    // Orders the writes of the persister; taken before the lock of the cache.
+    private final Object saveLock = new Object();
+    private volatile Persister persister;
+
+    //region Metrics
+    private long hits;
+    private long misses;
+    //endregion
+
+    public SessionKeyCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SessionKeyCache(int capacity) {
+        keys = new LinkedHashMap<String, WiFiSessionKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WiFiSessionKey> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    //region Lookup
+    public synchronized WiFiSessionKey get(String address) {
+        WiFiSessionKey key = keys.get(address);
+        if (key == null)
+            misses++;
+        else
+            hits++;
+        return key;
+    }
+
+    public void put(String address, WiFiSessionKey key) {
+        key.setCounterStore(counterStore);
+        synchronized (this) {
+            keys.put(address, key);
+        }
+    }
+
+    /**
+     * Drops the key of a device that no longer knows it.
+     */
+    public synchronized void invalidate(String address, WiFiSessionKey key) {
+        keys.remove(address, key);
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * Lookups that found a key, each a key exchange saved.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+    //endregion
+
+    //region Persistence
+    public void setPersister(Persister persister) {
+        this.persister = persister;
+    }
+
+    /**
+     * Writes the cache through the persister, if any.
+     */
+    public void save() throws IOException {
+        Persister current = persister;
+        if (current == null)
+            return;
+        synchronized (saveLock) {
+            current.persist(this);
+        }
+    }
+
+    private boolean trySave() {
+        try {
+            save();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes one line per entry: address, key id, key and reserved counter. The file holds key
+     * material and belongs in private app storage.
+     */
+    public void store(Writer writer) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        synchronized (this) {
+            for (Map.Entry<String, WiFiSessionKey> entry : keys.entrySet()) {
+                WiFiSessionKey key = entry.getValue();
+                builder.append(entry.getKey()).append(' ')
+                        .append(Integer.toHexString(key.getKeyId())).append(' ');
+                for (byte b : key.getKey())
+                    builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                            .append(Character.forDigit(b & 0xF, 16));
+                builder.append(' ').append(Long.toUnsignedString(key.getReservedCounter()))
+                        .append('\n');
+            }
+        }
+        writer.write(builder.toString());
+        writer.flush();
+    }
+
+    /**
+     * Adds the entries written by {@link #store(Writer)}. Malformed lines are skipped.
+     */
+    public void load(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 4 || (fields[2].length() & 1) != 0)
+                continue;
+            try {
+                byte[] key = new byte[fields[2].length() / 2];
+                for (int i = 0; i < key.length; i++)
+                    key[i] = (byte) Integer.parseInt(fields[2].substring(i * 2, i * 2 + 2), 16);
+                put(fields[0], new WiFiSessionKey(Integer.parseUnsignedInt(fields[1], 16), key,
+                        Long.parseUnsignedLong(fields[3])));
+            } catch (IllegalArgumentException e) {
+                // Skip the line; the device simply gets a new key exchange.
+            }
+        }
+    }
+    //endregion
+}
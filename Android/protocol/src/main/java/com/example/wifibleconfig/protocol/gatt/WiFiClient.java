@@ -0,0 +1,700 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import com.example.wifibleconfig.protocol.WiFiCommandCodec;
+import com.example.wifibleconfig.protocol.WiFiFragmenter;
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+import com.example.wifibleconfig.protocol.WiFiKeyExchange;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.WiFiScanParser;
+import com.example.wifibleconfig.protocol.WiFiSessionKey;
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+import com.example.wifibleconfig.protocol.WiFiSurvey;
+import com.example.wifibleconfig.protocol.WiFiTelemetry;
+
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * WiFiBle command flow on top of a {@link GattOperationQueue}: session setup, provisioning,
+ * access point surveys, telemetry and the frame transport (single write, or fragments plus commit when the
+ * frame exceeds the MTU).
+ * <p>
+ * From {@link WiFiProtocol#PROTOCOL_VERSION_COMMAND_QUEUE} on, the firmware runs commands on a
+ * worker task after acknowledging the write, so commands complete with the status notification
+ * that reports them done rather than with the write. From
+ * {@link WiFiProtocol#PROTOCOL_VERSION_SECURE} on, credentials only go out sealed with a session
+ * key (see {@link WiFiSessionKey}), agreed once per device and reused from a
+ * {@link SessionKeyCache} on later connections.
+ */
+public final class WiFiClient {
+    /**
+     * Writes of the legacy provisioning sequence, in the order they are sent.
+     */
+    public final static int LEGACY_WRITE_SSID = 0;
+    public final static int LEGACY_WRITE_PASSWORD = 1;
+    public final static int LEGACY_WRITE_START = 2;
+    public final static int LEGACY_WRITES = 3;
+
+    private final static int VERSION_UNKNOWN = 0;
+    /**
+     * How long to wait for the status pushed on subscription before reading it instead.
+     */
+    private final static long STATUS_PUSH_TIMEOUT_MS = 500;
+    /**
+     * How long a survey may take; an ESP32 scan of all channels takes 2 to 4 seconds.
+     */
+    private final static long SCAN_TIMEOUT_MS = 15000;
+
+    private final static IntPredicate ANY_STATUS = packed -> true;
+    private final static IntPredicate NOT_STARTED = packed ->
+            WiFiStatusCodec.statusOf(packed) != WiFiProtocol.WIFI_STATUS_STARTED;
+
+    private final GattOperationQueue queue;
+    private final PendingCommandTracker commands;
+    private final CompletableFuture<byte[]> pushedStatus = new CompletableFuture<>();
+    private volatile int protocolVersion;
+    private volatile UUID statusCharacteristic = WiFiGattAttributes.CHARACTERISTIC_UUID;
+    private volatile byte[] sessionStatus;
+
+    private final Object scanLock = new Object();
+    private WiFiScanParser scanParser;
+    private Consumer<WiFiSurvey> scanListener;
+    private CompletableFuture<WiFiSurvey> scanResult;
+    private ScheduledFuture<?> scanTimeout;
+    private volatile boolean scanSubscribed;
+
+    private volatile WiFiTelemetry telemetry;
+    private volatile Consumer<WiFiTelemetry> telemetryListener;
+    private volatile boolean telemetrySubscribed;
+
+    private volatile SessionKeyCache sessionKeys;
+    private volatile String address;
+    // Key the device confirmed on this connection.
+    private volatile WiFiSessionKey sessionKey;
+
+    /**
+     * @param hasVersionCharacteristic whether service discovery found the version
+     *                                 characteristic; legacy firmware does not have it
+     */
+    public WiFiClient(GattOperationQueue queue, boolean hasVersionCharacteristic) {
+        this(queue, hasVersionCharacteristic ? VERSION_UNKNOWN :
+                WiFiProtocol.PROTOCOL_VERSION_LEGACY);
+    }
+
+    /**
+     * @param protocolVersion firmware protocol version already known from a cached layout, or
+     *                        0 when it still has to be read
+     */
+    public WiFiClient(GattOperationQueue queue, int protocolVersion) {
+        this.queue = queue;
+        this.commands = new PendingCommandTracker(queue.getScheduler());
+        this.protocolVersion = protocolVersion;
+    }
+
+    //region Session
+    /**
+     * Negotiates the MTU, subscribes to status notifications and obtains the current status.
+     * Completes with the initial status value.
+     */
+    public CompletableFuture<byte[]> startSession() {
+        return startSession(true);
+    }
+
+    /**
+     * @param negotiateMtu false skips the MTU exchange, for devices known to keep the default
+     */
+    public CompletableFuture<byte[]> startSession(boolean negotiateMtu) {
+        // MTU negotiation is best effort: the default MTU still works, only with fragments.
+        if (negotiateMtu)
+            queue.requestMtu(WiFiProtocol.PREFERRED_ATT_MTU);
+
+        return initialStatus().thenApply(value -> {
+            sessionStatus = value;
+            return value;
+        });
+    }
+
+    private CompletableFuture<byte[]> initialStatus() {
+        int version = protocolVersion;
+        if (version != VERSION_UNKNOWN && version < WiFiProtocol.PROTOCOL_VERSION_STATUS_PUSH) {
+            // Older firmware stays silent on subscription: read and subscribe, queued at once.
+            CompletableFuture<byte[]> status = readStatus();
+            return status.thenCombine(enableNotifications(), (value, descriptor) -> value);
+        }
+
+        // Subscribe first; the firmware answers the CCCD write with its status. An unknown
+        // version is read right behind the subscription and decides whether to wait for it.
+        CompletableFuture<byte[]> subscribed = enableNotifications();
+        CompletableFuture<Integer> known = version != VERSION_UNKNOWN ?
+                subscribed.thenApply(descriptor -> version) :
+                subscribed.thenCombine(getProtocolVersion(), (descriptor, read) -> read);
+        return known.thenCompose(read -> read >= WiFiProtocol.PROTOCOL_VERSION_STATUS_PUSH ?
+                awaitPushedStatus() : readStatus());
+    }
+
+    /**
+     * Status the device reported when the session started, before any command of this
+     * connection, or null while the session is starting.
+     */
+    public byte[] getSessionStatus() {
+        return sessionStatus;
+    }
+
+    /**
+     * Passes a status notification to the client; the first one completes session setup on
+     * firmware that pushes its status on subscription, later ones complete pending commands.
+     * Returns false for a notification that completed nothing, such as a station count change.
+     */
+    public boolean onStatusNotification(byte[] value) {
+        if (!pushedStatus.isDone() && WiFiStatusCodec.decode(value) != WiFiStatusCodec.INVALID)
+            return pushedStatus.complete(value);
+        return commands.onStatus(value);
+    }
+
+    /**
+     * Fails the commands still waiting for their status; call when the connection goes away.
+     */
+    public void cancelCommands() {
+        commands.cancelAll();
+    }
+
+    /**
+     * Moves status reads and notifications to the status characteristic when service discovery
+     * found it, leaving the command characteristic to writes. Call before
+     * {@link #startSession}.
+     */
+    public void setSeparateStatusCharacteristic(boolean separate) {
+        statusCharacteristic = separate ? WiFiGattAttributes.STATUS_CHARACTERISTIC_UUID :
+                WiFiGattAttributes.CHARACTERISTIC_UUID;
+    }
+
+    /**
+     * Characteristic the status is read from and notified on.
+     */
+    public UUID getStatusCharacteristic() {
+        return statusCharacteristic;
+    }
+
+    private CompletableFuture<byte[]> readStatus() {
+        return queue.read(WiFiGattAttributes.SERVICE_UUID, statusCharacteristic);
+    }
+
+    private CompletableFuture<byte[]> enableNotifications() {
+        return queue.enableNotifications(WiFiGattAttributes.SERVICE_UUID, statusCharacteristic,
+                WiFiGattAttributes.CCC_DESCRIPTOR_UUID,
+                WiFiGattAttributes.ENABLE_NOTIFICATION_VALUE);
+    }
+
+    private CompletableFuture<byte[]> awaitPushedStatus() {
+        if (pushedStatus.isDone())
+            return pushedStatus;
+
+        // A lost notification costs the read the push was meant to save, not the session.
+        CompletableFuture<byte[]> status = new CompletableFuture<>();
+        ScheduledFuture<?> fallback = queue.getScheduler().schedule(() ->
+                readStatus().whenComplete((value, error) -> {
+                    if (error != null)
+                        status.completeExceptionally(error);
+                    else
+                        status.complete(value);
+                }), STATUS_PUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        pushedStatus.thenAccept(value -> {
+            fallback.cancel(false);
+            status.complete(value);
+        });
+        return status;
+    }
+
+    /**
+     * Completes with the firmware protocol version, reading the version characteristic the
+     * first time it is needed.
+     */
+    public CompletableFuture<Integer> getProtocolVersion() {
+        int version = protocolVersion;
+        if (version != VERSION_UNKNOWN)
+            return CompletableFuture.completedFuture(version);
+
+        return queue.read(WiFiGattAttributes.SERVICE_UUID,
+                WiFiGattAttributes.VERSION_CHARACTERISTIC_UUID).thenApply(value -> {
+            int readVersion = (value != null && value.length > 0) ? value[0] & 0xFF :
+                    WiFiProtocol.PROTOCOL_VERSION_PROVISION;
+            protocolVersion = readVersion;
+            return readVersion;
+        });
+    }
+
+    /**
+     * Protocol version without reading it, or 0 when it has not been read yet.
+     */
+    public int getKnownProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public boolean supportsProvisionCommand() {
+        return protocolVersion != WiFiProtocol.PROTOCOL_VERSION_LEGACY;
+    }
+
+    public GattOperationQueue getQueue() {
+        return queue;
+    }
+    //endregion
+
+    //region Commands
+    public CompletableFuture<byte[]> provision(String ssid, String password) {
+        return provision(ssid, password, 0);
+    }
+
+    /**
+     * @param channel soft AP channel, for example {@link WiFiSurvey#getLeastCongestedChannel()},
+     *                or 0 for the firmware default; legacy firmware always uses its default
+     */
+    public CompletableFuture<byte[]> provision(String ssid, String password, int channel) {
+        return provision(ssid, password, channel, LEGACY_WRITE_SSID, write -> { });
+    }
+
+    /**
+     * Like {@link #provision(String, String, int)}, but resumes the legacy sequence at write
+     * {@code from}, such as {@link #LEGACY_WRITE_PASSWORD}: the firmware keeps what it was
+     * written across connections until it restarts. Every acknowledged legacy write is
+     * reported to {@code acknowledged}; firmware with the provision command gets it whole.
+     *
+     * @param from first legacy write to send, or {@link #LEGACY_WRITES} to send none
+     */
+    public CompletableFuture<byte[]> provision(String ssid, String password, int channel,
+                                               int from, IntConsumer acknowledged) {
+        if (supportsProvisionCommand()) {
+            byte[] value = new byte[WiFiCommandCodec.provisionFrameLength(ssid, password,
+                    channel)];
+            WiFiCommandCodec.encodeProvision(ssid, password, true, channel, value, 0);
+            return getProtocolVersion().thenCompose(version ->
+                    version < WiFiProtocol.PROTOCOL_VERSION_SECURE ?
+                            execute(WiFiProtocol.WIFI_CMD_PROVISION, value, ANY_STATUS) :
+                            executeSecure(value));
+        }
+
+        // Legacy firmware: SET_SSID -> SET_PWD -> START, each write acknowledged.
+        byte[] ssidValue = new byte[WiFiCommandCodec.setSsidFrameLength(ssid)];
+        WiFiCommandCodec.encodeSetSsid(ssid, ssidValue, 0);
+        byte[] passwordValue = new byte[WiFiCommandCodec.setPasswordFrameLength(password)];
+        WiFiCommandCodec.encodeSetPassword(password, passwordValue, 0);
+        byte[] startValue = new byte[WiFiProtocol.COMMAND_HEADER_LENGTH];
+        WiFiCommandCodec.encodeStart(startValue, 0);
+
+        byte[][] frames = {ssidValue, passwordValue, startValue};
+        CompletableFuture<byte[]> result = CompletableFuture.completedFuture(null);
+        for (int i = from; i < LEGACY_WRITES; i++) {
+            int write = i;
+            result = result.thenCompose(v -> writeFrame(frames[write])).thenApply(value -> {
+                acknowledged.accept(write);
+                return value;
+            });
+        }
+        return result;
+    }
+
+    public CompletableFuture<byte[]> stop() {
+        byte[] value = new byte[WiFiProtocol.COMMAND_HEADER_LENGTH];
+        WiFiCommandCodec.encodeStop(value, 0);
+        // A station count change of the running AP is not the answer.
+        return execute(WiFiProtocol.WIFI_CMD_STOP, value, NOT_STARTED);
+    }
+
+    public CompletableFuture<byte[]> requestStatus() {
+        byte[] value = new byte[WiFiProtocol.COMMAND_HEADER_LENGTH];
+        WiFiCommandCodec.encodeGetStatus(value, 0);
+        return execute(WiFiProtocol.WIFI_CMD_GET_STATUS, value, ANY_STATUS);
+    }
+
+    /**
+     * Writes a command frame and completes when the firmware reports it done: with the status
+     * notification on firmware with a command queue, with the write on older firmware.
+     */
+    private CompletableFuture<byte[]> execute(byte command, byte[] frame,
+                                              IntPredicate completesOn) {
+        if (protocolVersion < WiFiProtocol.PROTOCOL_VERSION_COMMAND_QUEUE)
+            return writeFrame(frame);
+
+        // Tracked before the write goes out: the notification may overtake the write response.
+        CompletableFuture<byte[]> done = commands.track(command, completesOn);
+        writeFrame(frame).whenComplete((value, error) -> {
+            if (error != null)
+                commands.fail(done, error);
+        });
+        return done;
+    }
+    //endregion
+
+    //region Credential encryption
+    public boolean supportsEncryption() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_SECURE;
+    }
+
+    /**
+     * Reuses and records the session key of the device at {@code address} in {@code cache}.
+     * Without a cache every connection runs its own key exchange.
+     */
+    public void setSessionKeys(SessionKeyCache cache, String address) {
+        this.sessionKeys = cache;
+        this.address = address;
+    }
+
+    /**
+     * Seals a command frame with the session key and completes when the firmware reports the
+     * command it carries done.
+     */
+    private CompletableFuture<byte[]> executeSecure(byte[] frame) {
+        return executeSecure(frame, true);
+    }
+
+    /**
+     * A device that cannot open the frame reports {@link WiFiProtocol#WIFI_STATUS_ERROR}: it
+     * dropped the key, or restarted and now refuses counters below its saved reservation.
+     * The key is forgotten and, when {@code retry} is set, the frame sent once more under a
+     * new one.
+     */
+    private CompletableFuture<byte[]> executeSecure(byte[] frame, boolean retry) {
+        return sessionKey().thenCompose(key -> execute(WiFiProtocol.WIFI_CMD_SECURE,
+                key.seal(frame, 0, frame.length), ANY_STATUS).thenCompose(status -> {
+            if (!isError(status))
+                return CompletableFuture.completedFuture(status);
+            forgetKey(key);
+            if (!retry)
+                throw new IllegalStateException("Device could not open the sealed command");
+            return executeSecure(frame, false);
+        }));
+    }
+
+    private void forgetKey(WiFiSessionKey key) {
+        sessionKey = null;
+        SessionKeyCache cache = sessionKeys;
+        if (cache != null)
+            cache.invalidate(address, key);
+    }
+
+    private static boolean isError(byte[] status) {
+        int packed = WiFiStatusCodec.decode(status);
+        return packed != WiFiStatusCodec.INVALID &&
+                WiFiStatusCodec.statusOf(packed) == WiFiProtocol.WIFI_STATUS_ERROR;
+    }
+
+    /**
+     * Completes with a key the device knows: the cached one when the security characteristic
+     * still lists it, otherwise a new one from a key exchange.
+     */
+    private CompletableFuture<WiFiSessionKey> sessionKey() {
+        WiFiSessionKey confirmed = sessionKey;
+        if (confirmed != null)
+            return CompletableFuture.completedFuture(confirmed);
+
+        SessionKeyCache cache = sessionKeys;
+        String device = address;
+        WiFiSessionKey cached = cache != null ? cache.get(device) : null;
+        return queue.read(WiFiGattAttributes.SERVICE_UUID,
+                WiFiGattAttributes.SECURITY_CHARACTERISTIC_UUID).thenCompose(value -> {
+            WiFiKeyExchange.DeviceInfo info = WiFiKeyExchange.DeviceInfo.parse(value);
+            if (info == null)
+                throw new IllegalStateException("Unsupported security characteristic");
+
+            if (cached != null) {
+                if (info.hasKey(cached.getKeyId())) {
+                    sessionKey = cached;
+                    return CompletableFuture.completedFuture(cached);
+                }
+                // The device dropped the key, e.g. after a reset or for newer clients.
+                cache.invalidate(device, cached);
+            }
+            return exchangeKeys(info.getPublicKey());
+        });
+    }
+
+    private CompletableFuture<WiFiSessionKey> exchangeKeys(byte[] devicePublicKey) {
+        KeyPair pair = WiFiKeyExchange.generateKeyPair();
+        WiFiSessionKey key = WiFiKeyExchange.deriveClient(pair, devicePublicKey);
+        byte[] frame = new byte[WiFiProtocol.KEY_EXCHANGE_FRAME_LENGTH];
+        WiFiKeyExchange.encodeKeyExchange(WiFiKeyExchange.encodePublicKey(
+                (ECPublicKey) pair.getPublic()), frame, 0);
+
+        // The device only installed the key when the security characteristic lists it.
+        return execute(WiFiProtocol.WIFI_CMD_KEY_EXCHANGE, frame, ANY_STATUS)
+                .thenCompose(status -> {
+                    if (isError(status))
+                        throw new IllegalStateException("Device rejected the key exchange");
+                    return queue.read(WiFiGattAttributes.SERVICE_UUID,
+                            WiFiGattAttributes.SECURITY_CHARACTERISTIC_UUID);
+                })
+                .thenApply(value -> {
+                    WiFiKeyExchange.DeviceInfo info = WiFiKeyExchange.DeviceInfo.parse(value);
+                    if (info == null || !info.hasKey(key.getKeyId()))
+                        throw new IllegalStateException("Device did not install the session key");
+                    sessionKey = key;
+                    SessionKeyCache cache = sessionKeys;
+                    if (cache != null)
+                        cache.put(address, key);
+                    return key;
+                });
+    }
+    //endregion
+
+    //region Survey
+    public boolean supportsScan() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_SCAN;
+    }
+
+    /**
+     * Runs an access point survey on the device, streamed back in chunks as the firmware
+     * reads its scan results. {@code listener} gets the same survey after every chunk that
+     * added access points and once more when it ends, on the thread delivering notifications.
+     * <p>
+     * Completes with the survey when it ends, also when it ended early (see
+     * {@link WiFiSurvey#isFailed()}); fails when the request could not be written or the
+     * firmware is older than {@link WiFiProtocol#PROTOCOL_VERSION_SCAN}. A survey requested
+     * while one is running joins the running one.
+     */
+    public CompletableFuture<WiFiSurvey> scan(Consumer<WiFiSurvey> listener) {
+        return getProtocolVersion().thenCompose(version -> {
+            if (version < WiFiProtocol.PROTOCOL_VERSION_SCAN) {
+                CompletableFuture<WiFiSurvey> unsupported = new CompletableFuture<>();
+                unsupported.completeExceptionally(new UnsupportedOperationException(
+                        "Firmware protocol version " + version + " cannot scan"));
+                return unsupported;
+            }
+            return startScan(listener);
+        });
+    }
+
+    /**
+     * Passes a notification of the scan characteristic to the running survey.
+     */
+    public void onScanNotification(byte[] value) {
+        WiFiSurvey survey;
+        Consumer<WiFiSurvey> listener;
+        CompletableFuture<WiFiSurvey> result;
+        boolean changed;
+        synchronized (scanLock) {
+            if (scanParser == null)
+                return;
+            int added = scanParser.onChunk(value);
+            survey = scanParser.getSurvey();
+            listener = scanListener;
+            result = scanResult;
+            changed = added > 0 || survey.isComplete();
+            if (survey.isComplete())
+                endScan();
+        }
+
+        if (changed && listener != null)
+            listener.accept(survey);
+        if (survey.isComplete())
+            result.complete(survey);
+    }
+
+    private CompletableFuture<WiFiSurvey> startScan(Consumer<WiFiSurvey> listener) {
+        CompletableFuture<WiFiSurvey> result = new CompletableFuture<>();
+        synchronized (scanLock) {
+            if (scanParser != null)
+                return scanResult;
+            scanParser = new WiFiScanParser(new WiFiSurvey());
+            scanListener = listener;
+            scanResult = result;
+            scanTimeout = queue.getScheduler().schedule(() -> scanTimedOut(result),
+                    SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // Chunks as large as the link carries; the firmware never sends more.
+        byte[] command = new byte[WiFiProtocol.SCAN_COMMAND_LENGTH];
+        WiFiCommandCodec.encodeScan(Math.min(queue.getMtu() -
+                WiFiProtocol.ATT_NOTIFICATION_OVERHEAD, 0xFFFF), command, 0);
+
+        // Subscription (first survey only) and command are queued back to back.
+        CompletableFuture<byte[]> subscribed = scanSubscribed ?
+                CompletableFuture.completedFuture(null) :
+                queue.enableNotifications(WiFiGattAttributes.SERVICE_UUID,
+                        WiFiGattAttributes.SCAN_CHARACTERISTIC_UUID,
+                        WiFiGattAttributes.CCC_DESCRIPTOR_UUID,
+                        WiFiGattAttributes.ENABLE_NOTIFICATION_VALUE)
+                        .thenApply(descriptor -> {
+                            scanSubscribed = true;
+                            return descriptor;
+                        });
+        subscribed.thenCombine(write(command), (descriptor, value) -> value)
+                .whenComplete((value, error) -> {
+                    if (error != null)
+                        scanFailed(result, error);
+                });
+        return result;
+    }
+
+    private void scanTimedOut(CompletableFuture<WiFiSurvey> result) {
+        WiFiSurvey survey;
+        Consumer<WiFiSurvey> listener;
+        synchronized (scanLock) {
+            if (scanResult != result || scanParser == null)
+                return;
+            scanParser.abort();
+            survey = scanParser.getSurvey();
+            listener = scanListener;
+            endScan();
+        }
+
+        if (listener != null)
+            listener.accept(survey);
+        result.complete(survey);
+    }
+
+    private void scanFailed(CompletableFuture<WiFiSurvey> result, Throwable error) {
+        synchronized (scanLock) {
+            if (scanResult == result && scanParser != null)
+                endScan();
+        }
+        result.completeExceptionally(error);
+    }
+
+    private void endScan() {
+        scanParser = null;
+        scanListener = null;
+        if (scanTimeout != null)
+            scanTimeout.cancel(false);
+        scanTimeout = null;
+    }
+    //endregion
+
+    //region Telemetry
+    public boolean supportsTelemetry() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_TELEMETRY;
+    }
+
+    /**
+     * Has the firmware send a telemetry frame every {@code intervalMs}, appended to
+     * {@code telemetry}; {@code listener} gets it after every frame, on the thread delivering
+     * notifications. The interval bounds the link load: one notification of at most MTU - 3
+     * bytes per interval. Starting again changes the interval and the target.
+     * <p>
+     * Completes once the firmware has applied the setting; fails on firmware older than
+     * {@link WiFiProtocol#PROTOCOL_VERSION_TELEMETRY}. Telemetry ends with the connection.
+     */
+    public CompletableFuture<byte[]> startTelemetry(int intervalMs, WiFiTelemetry telemetry,
+                                                    Consumer<WiFiTelemetry> listener) {
+        if (intervalMs < WiFiProtocol.MIN_TELEMETRY_INTERVAL_MS ||
+                intervalMs > WiFiProtocol.MAX_TELEMETRY_INTERVAL_MS)
+            throw new IllegalArgumentException("Telemetry interval must be " +
+                    WiFiProtocol.MIN_TELEMETRY_INTERVAL_MS + ".." +
+                    WiFiProtocol.MAX_TELEMETRY_INTERVAL_MS + " ms");
+
+        return getProtocolVersion().thenCompose(version -> {
+            if (version < WiFiProtocol.PROTOCOL_VERSION_TELEMETRY) {
+                CompletableFuture<byte[]> unsupported = new CompletableFuture<>();
+                unsupported.completeExceptionally(new UnsupportedOperationException(
+                        "Firmware protocol version " + version + " has no telemetry"));
+                return unsupported;
+            }
+
+            this.telemetry = telemetry;
+            this.telemetryListener = listener;
+            // Subscription (first start only) and command are queued back to back.
+            CompletableFuture<byte[]> subscribed = telemetrySubscribed ?
+                    CompletableFuture.completedFuture(null) :
+                    queue.enableNotifications(WiFiGattAttributes.SERVICE_UUID,
+                            WiFiGattAttributes.TELEMETRY_CHARACTERISTIC_UUID,
+                            WiFiGattAttributes.CCC_DESCRIPTOR_UUID,
+                            WiFiGattAttributes.ENABLE_NOTIFICATION_VALUE)
+                            .thenApply(descriptor -> {
+                                telemetrySubscribed = true;
+                                return descriptor;
+                            });
+            return subscribed.thenCombine(writeTelemetry(intervalMs),
+                    (descriptor, status) -> status);
+        });
+    }
+
+    /**
+     * Stops the telemetry frames; frames already on their way are still appended.
+     */
+    public CompletableFuture<byte[]> stopTelemetry() {
+        return writeTelemetry(0);
+    }
+
+    /**
+     * Passes a notification of the telemetry characteristic to the running telemetry.
+     */
+    public void onTelemetryNotification(byte[] value) {
+        WiFiTelemetry target = telemetry;
+        Consumer<WiFiTelemetry> listener = telemetryListener;
+        if (target != null && target.onFrame(value) && listener != null)
+            listener.accept(target);
+    }
+
+    private CompletableFuture<byte[]> writeTelemetry(int intervalMs) {
+        byte[] command = new byte[WiFiProtocol.TELEMETRY_COMMAND_LENGTH];
+        WiFiCommandCodec.encodeTelemetry(intervalMs, Math.min(queue.getMtu() -
+                WiFiProtocol.ATT_NOTIFICATION_OVERHEAD, 0xFFFF), command, 0);
+        return execute(WiFiProtocol.WIFI_CMD_TELEMETRY, command, ANY_STATUS);
+    }
+    //endregion
+
+    //region Frame transport
+    /**
+     * Writes a command frame. Frames that fit into the negotiated MTU go out as one
+     * acknowledged write. Larger frames go out as write-without-response fragments and one
+     * acknowledged commit when the firmware supports it; otherwise as a regular write, which
+     * the platform turns into a prepared (long) write.
+     */
+    public CompletableFuture<byte[]> writeFrame(byte[] frame) {
+        int mtu = queue.getMtu();
+        if (!WiFiFragmenter.needsFragmentation(frame.length, mtu) ||
+                frame.length > WiFiProtocol.MAX_REASSEMBLY_LENGTH ||
+                protocolVersion == WiFiProtocol.PROTOCOL_VERSION_LEGACY)
+            return write(frame);
+
+        return getProtocolVersion().thenCompose(version -> {
+            if (version < WiFiProtocol.PROTOCOL_VERSION_FRAGMENTS)
+                return write(frame);
+            return writeFragments(frame, queue.getMtu());
+        });
+    }
+
+    private CompletableFuture<byte[]> write(byte[] frame) {
+        return queue.write(WiFiGattAttributes.SERVICE_UUID,
+                WiFiGattAttributes.CHARACTERISTIC_UUID, frame);
+    }
+
+    private CompletableFuture<byte[]> writeFragments(byte[] frame, int mtu) {
+        int count = WiFiFragmenter.fragmentCount(frame.length, mtu);
+        CompletableFuture<?>[] fragments = new CompletableFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            byte[] fragment = new byte[WiFiFragmenter.maxWriteLength(mtu)];
+            int length = WiFiFragmenter.encodeFragment(frame, frame.length, i, mtu, fragment, 0);
+            byte[] value = length == fragment.length ? fragment : Arrays.copyOf(fragment, length);
+            fragments[i] = queue.write(WiFiGattAttributes.SERVICE_UUID,
+                    WiFiGattAttributes.CHARACTERISTIC_UUID, value,
+                    GattTransport.WRITE_TYPE_NO_RESPONSE, GattOperationQueue.DEFAULT_TIMEOUT_MS);
+        }
+
+        byte[] commit = new byte[WiFiProtocol.COMMIT_FRAME_LENGTH];
+        WiFiFragmenter.encodeCommit(count, frame.length, commit, 0);
+        CompletableFuture<byte[]> committed = write(commit);
+
+        // All writes are queued back to back; the result is the acknowledged commit, but a
+        // failed fragment fails the whole frame.
+        return CompletableFuture.allOf(fragments).thenCombine(committed, (v, value) -> value);
+    }
+    //endregion
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WiFiCommandCodecTest {
+    private final static String SSID = "Workshop";
+    private final static String PASSWORD = "correct horse";
+
+    private final WiFiCommandFrame command = new WiFiCommandFrame();
+    private final WiFiProvisionFrame provision = new WiFiProvisionFrame();
+
+    //region Symmetry
+    @Test
+    public void decodesTextCommandsItEncodes() {
+        byte[] ssid = new byte[WiFiCommandCodec.setSsidFrameLength(SSID)];
+        WiFiCommandCodec.encodeSetSsid(SSID, ssid, 0);
+        assertTrue(WiFiCommandCodec.decode(ssid, command));
+        assertEquals(WiFiProtocol.WIFI_CMD_SET_SSID, command.getCommand());
+        assertEquals(SSID, command.getPayloadString());
+
+        byte[] password = new byte[WiFiCommandCodec.setPasswordFrameLength(PASSWORD)];
+        WiFiCommandCodec.encodeSetPassword(PASSWORD, password, 0);
+        assertTrue(WiFiCommandCodec.decode(password, command));
+        assertEquals(WiFiProtocol.WIFI_CMD_SET_PWD, command.getCommand());
+        assertEquals(PASSWORD, command.getPayloadString());
+
+        byte[] start = new byte[WiFiProtocol.COMMAND_HEADER_LENGTH];
+        WiFiCommandCodec.encodeStart(start, 0);
+        assertTrue(WiFiCommandCodec.decode(start, command));
+        assertEquals(WiFiProtocol.WIFI_CMD_START, command.getCommand());
+        assertEquals(0, command.getPayloadLength());
+    }
+
+    @Test
+    public void decodesProvisionFramesItEncodes() {
+        for (int channel : new int[] {0, WiFiProtocol.MIN_CHANNEL, WiFiProtocol.MAX_CHANNEL}) {
+            byte[] frame = provisionFrame(SSID, PASSWORD, channel);
+            assertTrue(WiFiCommandCodec.decode(frame, command));
+            assertEquals(WiFiProtocol.WIFI_CMD_PROVISION, command.getCommand());
+            assertTrue(WiFiCommandCodec.decodeProvision(frame, 0, frame.length, provision));
+            assertEquals(SSID, provision.getSsid());
+            assertEquals(PASSWORD, provision.getPassword());
+            assertTrue(provision.isStart());
+            assertEquals(channel, provision.getChannel());
+        }
+    }
+
+    @Test
+    public void decodesLongestFields() {
+        String ssid = repeat('s', WiFiProtocol.MAX_SSID_LENGTH);
+        String password = repeat('p', WiFiProtocol.MAX_PASSWORD_LENGTH);
+        byte[] frame = provisionFrame(ssid, password, 0);
+        assertEquals(WiFiProtocol.MAX_PROVISION_FRAME_LENGTH, frame.length);
+        assertTrue(WiFiCommandCodec.decodeProvision(frame, 0, frame.length, provision));
+        assertEquals(ssid, provision.getSsid());
+        assertEquals(password, provision.getPassword());
+    }
+
+    @Test
+    public void encodesTheSameIntoArraysAndBuffers() {
+        byte[] array = provisionFrame(SSID, PASSWORD, 6);
+        ByteBuffer buffer = ByteBuffer.allocate(array.length);
+        assertEquals(array.length, WiFiCommandCodec.encodeProvision(SSID, PASSWORD, true, 6,
+                buffer));
+        assertArrayEquals(array, buffer.array());
+    }
+
+    @Test
+    public void decodesAtAnOffset() {
+        byte[] frame = provisionFrame(SSID, PASSWORD, 0);
+        byte[] padded = new byte[frame.length + 5];
+        System.arraycopy(frame, 0, padded, 3, frame.length);
+        assertTrue(WiFiCommandCodec.decode(padded, 3, frame.length, command));
+        assertTrue(WiFiCommandCodec.decodeProvision(padded, 3, frame.length, provision));
+        assertEquals(SSID, provision.getSsid());
+    }
+
+    @Test
+    public void roundTripsStatus() {
+        byte[] value = new byte[WiFiProtocol.STATUS_FRAME_LENGTH];
+        WiFiStatusCodec.encode(WiFiProtocol.WIFI_STATUS_STARTED, 3, value, 0);
+        int packed = WiFiStatusCodec.decode(value);
+        assertEquals(WiFiProtocol.WIFI_STATUS_STARTED, WiFiStatusCodec.statusOf(packed));
+        assertEquals(3, WiFiStatusCodec.stationCountOf(packed));
+
+        // Only a running access point has stations.
+        value[0] = WiFiProtocol.WIFI_STATUS_STOPPED;
+        assertEquals(0, WiFiStatusCodec.stationCountOf(WiFiStatusCodec.decode(value)));
+
+        assertEquals(WiFiStatusCodec.INVALID, WiFiStatusCodec.decode(new byte[] {0x7F, 0}));
+        assertEquals(WiFiStatusCodec.INVALID, WiFiStatusCodec.decode(new byte[] {1}));
+    }
+    //endregion
+
+    //region Malformed TLVs
+    @Test
+    public void rejectsTruncatedTlvHeader() {
+        byte[] frame = provisionFrame(SSID, PASSWORD, 0);
+        byte[] truncated = Arrays.copyOf(frame, frame.length + 1);
+        truncated[frame.length] = WiFiProtocol.TLV_CHANNEL;
+        assertFalse(WiFiCommandCodec.decode(truncated, command));
+        assertFalse(WiFiCommandCodec.decodeProvision(truncated, 0, truncated.length,
+                provision));
+    }
+
+    @Test
+    public void rejectsTruncatedTlvValue() {
+        byte[] frame = provisionFrame(SSID, PASSWORD, 0);
+        for (int length = WiFiProtocol.COMMAND_HEADER_LENGTH + 1; length < frame.length;
+             length++) {
+            // Cut right after a complete TLV, the frame is merely missing fields.
+            if (isTlvBoundary(frame, length))
+                continue;
+            assertFalse("length " + length, WiFiCommandCodec.decode(frame, 0, length, command));
+            assertFalse("length " + length, WiFiCommandCodec.decodeProvision(frame, 0, length,
+                    provision));
+        }
+    }
+
+    @Test
+    public void rejectsTlvLongerThanTheFrame() {
+        byte[] frame = provisionFrame(SSID, PASSWORD, 0);
+        // The SSID TLV claims the rest of the frame and one byte more.
+        frame[2] = (byte) (frame.length - 2);
+        assertFalse(WiFiCommandCodec.decode(frame, command));
+        assertFalse(WiFiCommandCodec.decodeProvision(frame, 0, frame.length, provision));
+    }
+
+    @Test
+    public void rejectsOversizedFields() {
+        byte[] ssid = tlvFrame(WiFiProtocol.TLV_SSID,
+                repeat('s', WiFiProtocol.MAX_SSID_LENGTH + 1), WiFiProtocol.TLV_PASSWORD,
+                PASSWORD);
+        assertFalse(WiFiCommandCodec.decodeProvision(ssid, 0, ssid.length, provision));
+
+        byte[] password = tlvFrame(WiFiProtocol.TLV_SSID, SSID, WiFiProtocol.TLV_PASSWORD,
+                repeat('p', WiFiProtocol.MAX_PASSWORD_LENGTH + 1));
+        assertFalse(WiFiCommandCodec.decodeProvision(password, 0, password.length, provision));
+
+        byte[] text = new byte[WiFiProtocol.COMMAND_HEADER_LENGTH +
+                WiFiProtocol.MAX_SSID_LENGTH + 1];
+        Arrays.fill(text, (byte) 's');
+        text[0] = WiFiProtocol.WIFI_CMD_SET_SSID;
+        assertFalse(WiFiCommandCodec.decode(text, command));
+    }
+
+    @Test
+    public void rejectsInvalidFixedLengthTlvs() {
+        byte[] start = Arrays.copyOf(provisionFrame(SSID, PASSWORD, 0),
+                WiFiCommandCodec.provisionFrameLength(SSID, PASSWORD));
+        // TLV_START is the last TLV: type, length, value.
+        start[start.length - 2] = 2;
+        assertFalse(WiFiCommandCodec.decodeProvision(start, 0, start.length, provision));
+
+        byte[] channel = provisionFrame(SSID, PASSWORD, 6);
+        channel[channel.length - 1] = (byte) (WiFiProtocol.MAX_CHANNEL + 1);
+        assertFalse(WiFiCommandCodec.decodeProvision(channel, 0, channel.length, provision));
+    }
+
+    @Test
+    public void rejectsFramesWithoutCredentials() {
+        byte[] frame = tlvFrame(WiFiProtocol.TLV_SSID, SSID, (byte) 0x7E, "x");
+        assertTrue(WiFiCommandCodec.decode(frame, command));
+        assertFalse(WiFiCommandCodec.decodeProvision(frame, 0, frame.length, provision));
+    }
+
+    @Test
+    public void skipsUnknownTags() {
+        byte[] frame = provisionFrame(SSID, PASSWORD, 0);
+        // A TLV of a newer client and an empty one, which is complete too.
+        byte[] unknown = {0x7E, 2, (byte) 0xFF, 0x00, 0x7D, 0};
+        byte[] extended = Arrays.copyOf(frame, frame.length + unknown.length);
+        System.arraycopy(unknown, 0, extended, frame.length, unknown.length);
+
+        assertTrue(WiFiCommandCodec.decode(extended, command));
+        assertTrue(WiFiCommandCodec.decodeProvision(extended, 0, extended.length, provision));
+        assertEquals(SSID, provision.getSsid());
+        assertEquals(PASSWORD, provision.getPassword());
+        assertEquals(0, provision.getChannel());
+    }
+
+    @Test
+    public void rejectsUnknownCommandsAndStrayPayloads() {
+        assertFalse(WiFiCommandCodec.decode(new byte[] {0x7F}, command));
+        assertFalse(WiFiCommandCodec.decode(new byte[] {WiFiProtocol.WIFI_CMD_START, 0},
+                command));
+        assertFalse(WiFiCommandCodec.decode(new byte[0], command));
+        assertFalse(WiFiCommandCodec.decode(null, command));
+        assertFalse(WiFiCommandCodec.decode(new byte[] {WiFiProtocol.WIFI_CMD_SET_SSID, 0x0A},
+                command));
+    }
+    //endregion
+
+    private static byte[] provisionFrame(String ssid, String password, int channel) {
+        byte[] frame = new byte[WiFiCommandCodec.provisionFrameLength(ssid, password, channel)];
+        assertEquals(frame.length, WiFiCommandCodec.encodeProvision(ssid, password, true,
+                channel, frame, 0));
+        return frame;
+    }
+
+    /**
+     * WIFI_CMD_PROVISION with the given TLVs, written without the checks of the encoder.
+     */
+    private static byte[] tlvFrame(byte firstType, String first, byte secondType,
+                                   String second) {
+        byte[] frame = new byte[WiFiProtocol.COMMAND_HEADER_LENGTH +
+                2 * WiFiProtocol.TLV_HEADER_LENGTH + first.length() + second.length()];
+        frame[0] = WiFiProtocol.WIFI_CMD_PROVISION;
+        int offset = putTlv(firstType, first, frame, WiFiProtocol.COMMAND_HEADER_LENGTH);
+        putTlv(secondType, second, frame, offset);
+        return frame;
+    }
+
+    private static int putTlv(byte type, String value, byte[] dst, int offset) {
+        dst[offset++] = type;
+        dst[offset++] = (byte) value.length();
+        for (int i = 0; i < value.length(); i++)
+            dst[offset++] = (byte) value.charAt(i);
+        return offset;
+    }
+
+    private static boolean isTlvBoundary(byte[] frame, int length) {
+        int offset = WiFiProtocol.COMMAND_HEADER_LENGTH;
+        while (offset < length)
+            offset += WiFiProtocol.TLV_HEADER_LENGTH + (frame[offset + 1] & 0xFF);
+        return offset == length;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
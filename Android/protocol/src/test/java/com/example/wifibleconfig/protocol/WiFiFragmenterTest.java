@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WiFiFragmenterTest {
+    private final WiFiReassembler reassembler = new WiFiReassembler();
+
+    //region Symmetry
+    @Test
+    public void reassemblesWhatItFragments() {
+        for (int mtu : new int[] {WiFiProtocol.DEFAULT_ATT_MTU, 64, 185, 517}) {
+            for (int length : new int[] {1, 20, 100, WiFiProtocol.MAX_REASSEMBLY_LENGTH}) {
+                byte[] frame = frame(length);
+                byte[][] fragments = fragments(frame, mtu);
+                assertEquals(WiFiFragmenter.fragmentCount(length, mtu), fragments.length);
+                for (byte[] fragment : fragments) {
+                    assertTrue(fragment.length <= WiFiFragmenter.maxWriteLength(mtu));
+                    assertTrue(reassembler.onFragment(fragment, 0, fragment.length));
+                }
+                assertEquals(length, reassembler.onCommit(commit(fragments.length, length), 0,
+                        WiFiProtocol.COMMIT_FRAME_LENGTH));
+                assertArrayEquals(frame, Arrays.copyOf(reassembler.getBuffer(), length));
+            }
+        }
+    }
+
+    @Test
+    public void fragmentsOnlyWhatExceedsOneWrite() {
+        assertEquals(20, WiFiFragmenter.maxWriteLength(WiFiProtocol.DEFAULT_ATT_MTU));
+        // Below the default MTU counts as the default.
+        assertEquals(20, WiFiFragmenter.maxWriteLength(0));
+        assertFalse(WiFiFragmenter.needsFragmentation(20, WiFiProtocol.DEFAULT_ATT_MTU));
+        assertTrue(WiFiFragmenter.needsFragmentation(21, WiFiProtocol.DEFAULT_ATT_MTU));
+        assertEquals(18, WiFiFragmenter.chunkLength(WiFiProtocol.DEFAULT_ATT_MTU));
+        assertEquals(2, WiFiFragmenter.fragmentCount(21, WiFiProtocol.DEFAULT_ATT_MTU));
+        assertEquals(29, WiFiFragmenter.fragmentCount(WiFiProtocol.MAX_REASSEMBLY_LENGTH,
+                WiFiProtocol.DEFAULT_ATT_MTU));
+    }
+
+    @Test
+    public void restartsOnAFirstFragment() {
+        byte[][] fragments = fragments(frame(60), WiFiProtocol.DEFAULT_ATT_MTU);
+        assertTrue(reassembler.onFragment(fragments[0], 0, fragments[0].length));
+        assertTrue(reassembler.onFragment(fragments[1], 0, fragments[1].length));
+        // An interrupted write sends the frame again from the start.
+        for (byte[] fragment : fragments)
+            assertTrue(reassembler.onFragment(fragment, 0, fragment.length));
+        assertEquals(60, reassembler.onCommit(commit(fragments.length, 60), 0,
+                WiFiProtocol.COMMIT_FRAME_LENGTH));
+    }
+    //endregion
+
+    //region Rejections
+    @Test
+    public void rejectsFragmentsOutOfOrder() {
+        byte[][] fragments = fragments(frame(60), WiFiProtocol.DEFAULT_ATT_MTU);
+        assertTrue(reassembler.onFragment(fragments[0], 0, fragments[0].length));
+        assertFalse(reassembler.onFragment(fragments[2], 0, fragments[2].length));
+        // Stays rejected until the next first fragment.
+        assertFalse(reassembler.onFragment(fragments[1], 0, fragments[1].length));
+        assertFalse(reassembler.onFragment(fragments[2], 0, fragments[2].length));
+        assertEquals(-1, reassembler.onCommit(commit(fragments.length, 60), 0,
+                WiFiProtocol.COMMIT_FRAME_LENGTH));
+
+        // A fragment without its predecessors.
+        reassembler.reset();
+        assertFalse(reassembler.onFragment(fragments[1], 0, fragments[1].length));
+        assertFalse(reassembler.onFragment(new byte[] {WiFiProtocol.WIFI_CMD_FRAGMENT}, 0, 1));
+    }
+
+    @Test
+    public void rejectsACommitThatDoesNotMatch() {
+        byte[][] fragments = fragments(frame(60), WiFiProtocol.DEFAULT_ATT_MTU);
+        int count = fragments.length;
+        assertEquals(-1, commitAfter(fragments, commit(count - 1, 60)));
+        assertEquals(-1, commitAfter(fragments, commit(count + 1, 60)));
+        assertEquals(-1, commitAfter(fragments, commit(count, 59)));
+        assertEquals(-1, commitAfter(fragments, commit(count, 60 + 256)));
+        byte[] notACommit = commit(count, 60);
+        notACommit[0] = WiFiProtocol.WIFI_CMD_FRAGMENT;
+        assertEquals(-1, commitAfter(fragments, notACommit));
+        assertEquals(-1, commitAfter(fragments, Arrays.copyOf(commit(count, 60), 3)));
+
+        // A commit ends the frame, whether it matched or not.
+        assertEquals(60, commitAfter(fragments, commit(count, 60)));
+        assertEquals(-1, reassembler.onCommit(commit(count, 60), 0,
+                WiFiProtocol.COMMIT_FRAME_LENGTH));
+    }
+
+    @Test
+    public void holdsNoMoreThanTheReassemblyLimit() {
+        byte[][] fragments = fragments(frame(WiFiProtocol.MAX_REASSEMBLY_LENGTH), 517);
+        for (byte[] fragment : fragments)
+            assertTrue(reassembler.onFragment(fragment, 0, fragment.length));
+        // One byte beyond the limit.
+        byte[] extra = {WiFiProtocol.WIFI_CMD_FRAGMENT, (byte) fragments.length, 0};
+        assertFalse(reassembler.onFragment(extra, 0, extra.length));
+        assertEquals(-1, reassembler.onCommit(commit(fragments.length + 1,
+                WiFiProtocol.MAX_REASSEMBLY_LENGTH + 1), 0, WiFiProtocol.COMMIT_FRAME_LENGTH));
+
+        try {
+            WiFiFragmenter.encodeFragment(frame(WiFiProtocol.MAX_REASSEMBLY_LENGTH + 1),
+                    WiFiProtocol.MAX_REASSEMBLY_LENGTH + 1, 0, 517, new byte[600], 0);
+            fail("Fragmented a frame beyond the reassembly limit");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsFragmentsThatDoNotFit() {
+        byte[] frame = frame(60);
+        try {
+            WiFiFragmenter.encodeFragment(frame, 60, 4, WiFiProtocol.DEFAULT_ATT_MTU,
+                    new byte[20], 0);
+            fail("Encoded fragment 4 of 4");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+        try {
+            WiFiFragmenter.encodeFragment(frame, 60, 0, WiFiProtocol.DEFAULT_ATT_MTU,
+                    new byte[20], 1);
+            fail("Encoded a fragment beyond the buffer");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+        try {
+            WiFiFragmenter.encodeCommit(4, 60, new byte[4], 1);
+            fail("Encoded a commit beyond the buffer");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+    }
+    //endregion
+
+    private int commitAfter(byte[][] fragments, byte[] commit) {
+        for (byte[] fragment : fragments)
+            assertTrue(reassembler.onFragment(fragment, 0, fragment.length));
+        return reassembler.onCommit(commit, 0, commit.length);
+    }
+
+    private static byte[][] fragments(byte[] frame, int mtu) {
+        byte[][] fragments = new byte[WiFiFragmenter.fragmentCount(frame.length, mtu)][];
+        byte[] buffer = new byte[WiFiFragmenter.maxWriteLength(mtu)];
+        for (int i = 0; i < fragments.length; i++)
+            fragments[i] = Arrays.copyOf(buffer, WiFiFragmenter.encodeFragment(frame,
+                    frame.length, i, mtu, buffer, 0));
+        return fragments;
+    }
+
+    private static byte[] commit(int count, int length) {
+        byte[] commit = new byte[WiFiProtocol.COMMIT_FRAME_LENGTH];
+        WiFiFragmenter.encodeCommit(count, length, commit, 0);
+        return commit;
+    }
+
+    private static byte[] frame(int length) {
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++)
+            frame[i] = (byte) (i * 31 + 7);
+        return frame;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WiFiScanParserTest {
+    private final WiFiSurvey survey = new WiFiSurvey();
+    private final WiFiScanParser parser = new WiFiScanParser(survey);
+
+    //region Parsing
+    @Test
+    public void parsesRecordsSplitAcrossChunks() {
+        byte[] records = records(record("Workshop", -40, 6), record("", -70, 11),
+                record("Office", -55, 1));
+        // Five bytes a chunk: every record spans chunks, some headers too.
+        List<byte[]> chunks = chunks(records, 5);
+        int completed = 0;
+        for (byte[] chunk : chunks) {
+            int count = parser.onChunk(chunk);
+            assertTrue(count >= 0);
+            completed += count;
+        }
+        assertEquals(3, completed);
+        assertTrue(survey.isComplete());
+        assertFalse(survey.isFailed());
+
+        List<WiFiAccessPoint> accessPoints = survey.getAccessPoints();
+        assertEquals("Workshop", accessPoints.get(0).getSsid());
+        assertEquals(6, accessPoints.get(0).getChannel());
+        assertEquals("Office", accessPoints.get(1).getSsid());
+        assertEquals("", accessPoints.get(2).getSsid());
+        assertEquals(-70, accessPoints.get(2).getRssi());
+
+        // Nothing is taken once the survey is over.
+        assertEquals(-1, parser.onChunk(chunk(chunks.size(), 0, new byte[0])));
+    }
+
+    @Test
+    public void parsesSeveralRecordsInOneChunk() {
+        byte[] records = records(record("A", -40, 1), record("B", -50, 6),
+                record("C", -60, 11));
+        assertEquals(3, parser.onChunk(chunk(0, WiFiProtocol.SCAN_FLAG_LAST, records)));
+        assertEquals(3, survey.getTotalCount());
+        assertEquals(11, survey.getLeastCongestedChannel());
+    }
+
+    @Test
+    public void followsTheSequenceAcrossItsWrap() {
+        for (int i = 0; i < 300; i++)
+            assertEquals(0, parser.onChunk(chunk(i & 0xFF, 0, new byte[0])));
+        assertFalse(survey.isComplete());
+        assertEquals(1, parser.onChunk(chunk(300 & 0xFF, WiFiProtocol.SCAN_FLAG_LAST,
+                record("Late", -30, 6))));
+        assertTrue(survey.isComplete());
+        assertFalse(survey.isFailed());
+    }
+
+    @Test
+    public void keepsTheStrongestWithinItsCapacity() {
+        WiFiSurvey bounded = new WiFiSurvey(3);
+        WiFiScanParser boundedParser = new WiFiScanParser(bounded);
+        int[] rssi = {-80, -45, -90, -60, -30, -75, -50, -85, -65, -70};
+        byte[][] records = new byte[rssi.length][];
+        for (int i = 0; i < rssi.length; i++)
+            records[i] = record("AP" + i, rssi[i], 1 + i % 11);
+        for (byte[] chunk : chunks(records(records), 16))
+            boundedParser.onChunk(chunk);
+
+        assertTrue(bounded.isComplete());
+        assertEquals(rssi.length, bounded.getTotalCount());
+        List<WiFiAccessPoint> kept = bounded.getAccessPoints();
+        assertEquals(3, kept.size());
+        assertEquals(-30, kept.get(0).getRssi());
+        assertEquals(-45, kept.get(1).getRssi());
+        assertEquals(-50, kept.get(2).getRssi());
+    }
+    //endregion
+
+    //region Failures
+    @Test
+    public void failsOnASequenceGap() {
+        List<byte[]> chunks = chunks(records(record("Workshop", -40, 6),
+                record("Office", -55, 1), record("Lab", -60, 11)), 12);
+        assertEquals(1, parser.onChunk(chunks.get(0)));
+        // The second chunk was lost.
+        assertEquals(-1, parser.onChunk(chunks.get(2)));
+        assertTrue(survey.isComplete());
+        assertTrue(survey.isFailed());
+        assertEquals(-1, parser.onChunk(chunks.get(1)));
+
+        // What came before the gap is kept.
+        assertEquals(1, survey.getAccessPoints().size());
+        assertEquals("Workshop", survey.getAccessPoints().get(0).getSsid());
+    }
+
+    @Test
+    public void failsOnARepeatedChunk() {
+        List<byte[]> chunks = chunks(records(record("Workshop", -40, 6)), 4);
+        parser.onChunk(chunks.get(0));
+        assertEquals(-1, parser.onChunk(chunks.get(0)));
+        assertTrue(survey.isFailed());
+    }
+
+    @Test
+    public void failsOnALastChunkEndingInsideARecord() {
+        byte[] record = record("Workshop", -40, 6);
+        assertEquals(0, parser.onChunk(chunk(0, WiFiProtocol.SCAN_FLAG_LAST,
+                Arrays.copyOf(record, record.length - 1))));
+        assertTrue(survey.isFailed());
+    }
+
+    @Test
+    public void failsWhenTheFirmwareCouldNotScan() {
+        assertEquals(1, parser.onChunk(chunk(0, WiFiProtocol.SCAN_FLAG_FAILED,
+                record("Workshop", -40, 6))));
+        assertTrue(survey.isFailed());
+        assertEquals(1, survey.getTotalCount());
+    }
+
+    @Test
+    public void failsOnAnOversizedSsid() {
+        byte[] record = record("Workshop", -40, 6);
+        record[3] = (byte) (WiFiProtocol.MAX_SSID_LENGTH + 1);
+        assertEquals(-1, parser.onChunk(chunk(0, 0, Arrays.copyOf(record,
+                WiFiProtocol.SCAN_RECORD_HEADER_LENGTH))));
+        assertTrue(survey.isFailed());
+    }
+
+    @Test
+    public void ignoresFramesThatAreNoChunks() {
+        assertEquals(-1, parser.onChunk(null));
+        assertEquals(-1, parser.onChunk(new byte[] {WiFiProtocol.WIFI_CMD_SCAN, 0}));
+        byte[] other = chunk(0, 0, new byte[0]);
+        other[0] = WiFiProtocol.WIFI_CMD_FRAGMENT;
+        assertEquals(-1, parser.onChunk(other));
+        assertEquals(-1, parser.onChunk(chunk(0, 0, new byte[0]), 1, 3));
+        assertFalse(survey.isComplete());
+
+        parser.abort();
+        assertTrue(survey.isFailed());
+    }
+    //endregion
+
+    private static byte[] record(String ssid, int rssi, int channel) {
+        byte[] name = ssid.getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[WiFiProtocol.SCAN_RECORD_HEADER_LENGTH + name.length];
+        record[0] = (byte) rssi;
+        record[1] = (byte) channel;
+        record[2] = (byte) WiFiAccessPoint.AUTH_OPEN;
+        record[3] = (byte) name.length;
+        System.arraycopy(name, 0, record, WiFiProtocol.SCAN_RECORD_HEADER_LENGTH, name.length);
+        return record;
+    }
+
+    private static byte[] records(byte[]... records) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] record : records)
+            out.write(record, 0, record.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Splits {@code records} into chunks of {@code payload} bytes, the last one flagged.
+     */
+    private static List<byte[]> chunks(byte[] records, int payload) {
+        List<byte[]> chunks = new ArrayList<>();
+        for (int pos = 0; pos < records.length; pos += payload) {
+            int end = Math.min(records.length, pos + payload);
+            chunks.add(chunk(chunks.size(), end == records.length ?
+                    WiFiProtocol.SCAN_FLAG_LAST : 0, Arrays.copyOfRange(records, pos, end)));
+        }
+        return chunks;
+    }
+
+    private static byte[] chunk(int sequence, int flags, byte[] payload) {
+        byte[] chunk = new byte[WiFiProtocol.SCAN_CHUNK_HEADER_LENGTH + payload.length];
+        chunk[0] = WiFiProtocol.WIFI_CMD_SCAN;
+        chunk[1] = (byte) sequence;
+        chunk[2] = (byte) flags;
+        System.arraycopy(payload, 0, chunk, WiFiProtocol.SCAN_CHUNK_HEADER_LENGTH,
+                payload.length);
+        return chunk;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class WiFiSessionKeyTest {
+    private final static byte[] KEY = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+    private final static byte[] FRAME = "\u0002correct horse".getBytes(StandardCharsets.US_ASCII);
+
+    //region Sealing
+    @Test
+    public void opensWhatItSeals() {
+        WiFiSessionKey key = new WiFiSessionKey(0x12345678, KEY, 1);
+        byte[] sealed = key.seal(FRAME, 0, FRAME.length);
+        assertEquals(WiFiSessionKey.sealedLength(FRAME.length), sealed.length);
+        assertEquals(WiFiProtocol.WIFI_CMD_SECURE, sealed[0]);
+        assertEquals(0x12345678, WiFiSessionKey.keyIdOf(sealed, 0));
+        assertEquals(1, WiFiSessionKey.counterOf(sealed, 0));
+
+        // The receiving side holds its own instance of the key.
+        WiFiSessionKey device = new WiFiSessionKey(0x12345678, KEY, 1);
+        assertArrayEquals(FRAME, device.open(sealed, 0, sealed.length, 0));
+
+        byte[] padded = new byte[sealed.length + 4];
+        System.arraycopy(sealed, 0, padded, 2, sealed.length);
+        assertArrayEquals(FRAME, device.open(padded, 2, sealed.length, 0));
+    }
+
+    @Test
+    public void takesANewCounterForEveryFrame() {
+        WiFiSessionKey key = new WiFiSessionKey(7, KEY, 1);
+        byte[] first = key.seal(FRAME, 0, FRAME.length);
+        byte[] second = key.seal(FRAME, 0, FRAME.length);
+        assertEquals(1, WiFiSessionKey.counterOf(first, 0));
+        assertEquals(2, WiFiSessionKey.counterOf(second, 0));
+        assertEquals(3, key.getNextCounter());
+        assertNotEquals(Arrays.toString(first), Arrays.toString(second));
+
+        // Counters above 32 bits travel in both header words.
+        WiFiSessionKey high = new WiFiSessionKey(7, KEY, 0x100000005L);
+        byte[] sealed = high.seal(FRAME, 0, FRAME.length);
+        assertEquals(0x100000005L, WiFiSessionKey.counterOf(sealed, 0));
+        assertArrayEquals(FRAME, key.open(sealed, 0, sealed.length, 0x100000004L));
+    }
+
+    @Test
+    public void rejectsTamperedFrames() {
+        WiFiSessionKey key = new WiFiSessionKey(7, KEY, 1);
+        byte[] sealed = key.seal(FRAME, 0, FRAME.length);
+        for (int i = 0; i < sealed.length; i++) {
+            byte[] tampered = sealed.clone();
+            tampered[i] ^= 0x01;
+            // Header (command, key id, counter), ciphertext and tag alike.
+            assertNull("byte " + i, key.open(tampered, 0, tampered.length, 0));
+        }
+        assertNull(key.open(sealed, 0, sealed.length - 1, 0));
+        assertNull(key.open(sealed, 0, WiFiProtocol.SECURE_OVERHEAD, 0));
+    }
+
+    @Test
+    public void rejectsOtherKeys() {
+        byte[] sealed = new WiFiSessionKey(7, KEY, 1).seal(FRAME, 0, FRAME.length);
+        byte[] other = KEY.clone();
+        other[0] ^= 1;
+        assertNull(new WiFiSessionKey(7, other, 1).open(sealed, 0, sealed.length, 0));
+        assertNull(new WiFiSessionKey(8, KEY, 1).open(sealed, 0, sealed.length, 0));
+    }
+
+    @Test
+    public void rejectsReplayedCounters() {
+        WiFiSessionKey key = new WiFiSessionKey(7, KEY, 5);
+        byte[] sealed = key.seal(FRAME, 0, FRAME.length);
+        assertNull(key.open(sealed, 0, sealed.length, 5));
+        assertNull(key.open(sealed, 0, sealed.length, 6));
+        // Counters compare unsigned.
+        assertNull(key.open(sealed, 0, sealed.length, -1));
+        assertArrayEquals(FRAME, key.open(sealed, 0, sealed.length, 4));
+    }
+
+    @Test
+    public void savesEachCounterBlockBeforeUsingIt() {
+        WiFiSessionKey key = new WiFiSessionKey(7, KEY, 1);
+        long[] saved = new long[1];
+        int[] saves = new int[1];
+        key.setCounterStore(stored -> {
+            saved[0] = stored.getReservedCounter();
+            saves[0]++;
+            return true;
+        });
+
+        for (int i = 0; i < WiFiSessionKey.COUNTER_BLOCK; i++)
+            key.seal(FRAME, 0, FRAME.length);
+        assertEquals(1, saves[0]);
+        assertEquals(1 + WiFiSessionKey.COUNTER_BLOCK, saved[0]);
+
+        byte[] sealed = key.seal(FRAME, 0, FRAME.length);
+        assertEquals(2, saves[0]);
+        assertEquals(1 + 2 * WiFiSessionKey.COUNTER_BLOCK, saved[0]);
+        assertEquals(saved[0] - WiFiSessionKey.COUNTER_BLOCK, WiFiSessionKey.counterOf(sealed, 0));
+    }
+
+    @Test
+    public void sealsNothingWhenTheBlockIsNotSaved() {
+        WiFiSessionKey key = new WiFiSessionKey(7, KEY, 1);
+        key.setCounterStore(stored -> false);
+        try {
+            key.seal(FRAME, 0, FRAME.length);
+            fail("Sealed without a saved reservation");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals(1, key.getNextCounter());
+        assertEquals(1, key.getReservedCounter());
+    }
+    //endregion
+
+    //region Key exchange
+    @Test
+    public void clientAndDeviceDeriveTheSameKey() {
+        KeyPair device = WiFiKeyExchange.generateKeyPair();
+        KeyPair client = WiFiKeyExchange.generateKeyPair();
+        byte[] devicePublic = WiFiKeyExchange.encodePublicKey((ECPublicKey) device.getPublic());
+        byte[] clientPublic = WiFiKeyExchange.encodePublicKey((ECPublicKey) client.getPublic());
+
+        WiFiSessionKey clientKey = WiFiKeyExchange.deriveClient(client, devicePublic);
+        WiFiSessionKey deviceKey = WiFiKeyExchange.deriveDevice(device, clientPublic);
+        assertEquals(clientKey.getKeyId(), deviceKey.getKeyId());
+        assertArrayEquals(clientKey.getKey(), deviceKey.getKey());
+
+        byte[] sealed = clientKey.seal(FRAME, 0, FRAME.length);
+        assertArrayEquals(FRAME, deviceKey.open(sealed, 0, sealed.length, 0));
+
+        // Every exchange agrees another key.
+        WiFiSessionKey next = WiFiKeyExchange.deriveClient(WiFiKeyExchange.generateKeyPair(),
+                devicePublic);
+        assertNotEquals(Arrays.toString(clientKey.getKey()), Arrays.toString(next.getKey()));
+    }
+
+    @Test
+    public void roundTripsPublicKeys() {
+        ECPublicKey key = (ECPublicKey) WiFiKeyExchange.generateKeyPair().getPublic();
+        byte[] encoded = WiFiKeyExchange.encodePublicKey(key);
+        assertEquals(WiFiProtocol.PUBLIC_KEY_LENGTH, encoded.length);
+        assertEquals(key.getW(), WiFiKeyExchange.decodePublicKey(encoded, 0).getW());
+
+        byte[] frame = new byte[WiFiProtocol.KEY_EXCHANGE_FRAME_LENGTH];
+        WiFiKeyExchange.encodeKeyExchange(encoded, frame, 0);
+        assertEquals(WiFiProtocol.WIFI_CMD_KEY_EXCHANGE, frame[0]);
+        assertEquals(key.getW(), WiFiKeyExchange.decodePublicKey(frame, 1).getW());
+    }
+
+    @Test
+    public void rejectsPointsOffTheCurve() {
+        byte[] encoded = WiFiKeyExchange.encodePublicKey(
+                (ECPublicKey) WiFiKeyExchange.generateKeyPair().getPublic());
+        byte[] offCurve = encoded.clone();
+        offCurve[WiFiProtocol.PUBLIC_KEY_LENGTH - 1] ^= 0x01;
+        assertRejected(offCurve);
+
+        byte[] compressed = encoded.clone();
+        compressed[0] = 0x02;
+        assertRejected(compressed);
+
+        // x and y beyond the field prime.
+        byte[] outOfField = new byte[WiFiProtocol.PUBLIC_KEY_LENGTH];
+        Arrays.fill(outOfField, (byte) 0xFF);
+        outOfField[0] = 0x04;
+        assertRejected(outOfField);
+
+        KeyPair client = WiFiKeyExchange.generateKeyPair();
+        try {
+            WiFiKeyExchange.deriveClient(client, offCurve);
+            fail("Derived a key from a point off the curve");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+    //endregion
+
+    private static void assertRejected(byte[] point) {
+        try {
+            WiFiKeyExchange.decodePublicKey(point, 0);
+            fail("Accepted " + Arrays.toString(point));
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WiFiTelemetryTest {
+    //region Ring
+    @Test
+    public void keepsTheNewestSamplesOnceFull() {
+        WiFiTelemetry telemetry = new WiFiTelemetry(4);
+        for (int i = 0; i < 10; i++)
+            assertTrue(telemetry.onFrame(frame(i, 1000L * i, 50_000 + i, 1, -40 - i)));
+        assertEquals(4, telemetry.getSize());
+        assertEquals(10, telemetry.getReceived());
+        assertEquals(9000, telemetry.getLatestUptimeMs());
+        assertEquals(50_009, telemetry.getLatest(WiFiTelemetry.Metric.FREE_HEAP));
+
+        // Samples 6 to 9, oldest first.
+        WiFiTelemetrySeries heap = telemetry.downsample(WiFiTelemetry.Metric.FREE_HEAP, 4);
+        assertEquals(4, heap.getBucketCount());
+        for (int bucket = 0; bucket < 4; bucket++) {
+            assertEquals(50_006 + bucket, heap.getMin(bucket));
+            assertEquals(50_006 + bucket, heap.getMax(bucket));
+        }
+    }
+
+    @Test
+    public void reportsTheLatestSample() {
+        WiFiTelemetry telemetry = new WiFiTelemetry();
+        assertEquals(0, telemetry.getLatest(WiFiTelemetry.Metric.RSSI));
+        assertEquals(0, telemetry.getLatestUptimeMs());
+
+        // The uptime is unsigned.
+        telemetry.onFrame(frame(0, 0xFFFFFFF0L, 120_000, 3, -40, -61, -70));
+        assertEquals(0xFFFFFFF0L, telemetry.getLatestUptimeMs());
+        assertEquals(3, telemetry.getLatest(WiFiTelemetry.Metric.STATIONS));
+        assertEquals(-57, telemetry.getLatest(WiFiTelemetry.Metric.RSSI));
+        assertEquals(120_000, telemetry.getLatest(WiFiTelemetry.Metric.FREE_HEAP));
+    }
+    //endregion
+
+    //region Loss
+    @Test
+    public void countsFramesMissingFromTheSequence() {
+        WiFiTelemetry telemetry = new WiFiTelemetry();
+        telemetry.onFrame(frame(10, 0, 0, 0));
+        telemetry.onFrame(frame(11, 0, 0, 0));
+        telemetry.onFrame(frame(14, 0, 0, 0));
+        assertEquals(2, telemetry.getLost());
+
+        // Across the wrap of the 16-bit sequence.
+        telemetry.onFrame(frame(0xFFFF, 0, 0, 0));
+        long lost = telemetry.getLost();
+        telemetry.onFrame(frame(1, 0, 0, 0));
+        assertEquals(lost + 1, telemetry.getLost());
+        assertEquals(5, telemetry.getReceived());
+    }
+
+    @Test
+    public void doesNotCountARestartAsLoss() {
+        WiFiTelemetry telemetry = new WiFiTelemetry();
+        telemetry.onFrame(frame(500, 0, 0, 0));
+        telemetry.onFrame(frame(501, 0, 0, 0));
+        // The device restarted and counts from 0 again.
+        telemetry.onFrame(frame(0, 0, 0, 0));
+        telemetry.onFrame(frame(1, 0, 0, 0));
+        assertEquals(0, telemetry.getLost());
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+        WiFiTelemetry telemetry = new WiFiTelemetry();
+        assertFalse(telemetry.onFrame(null));
+        byte[] frame = frame(0, 0, 0, 1, -40);
+        assertFalse(telemetry.onFrame(frame, 0, WiFiProtocol.TELEMETRY_HEADER_LENGTH - 1));
+        assertFalse(telemetry.onFrame(frame, 1, frame.length));
+        // More readings than stations.
+        assertFalse(telemetry.onFrame(frame(0, 0, 0, 1, -40, -50)));
+        byte[] other = frame.clone();
+        other[0] = WiFiProtocol.WIFI_CMD_SCAN;
+        assertFalse(telemetry.onFrame(other));
+        assertEquals(0, telemetry.getReceived());
+        assertEquals(0, telemetry.getSize());
+    }
+    //endregion
+
+    //region Downsampling
+    @Test
+    public void summarisesEachBucket() {
+        WiFiTelemetry telemetry = new WiFiTelemetry();
+        int[] stations = {1, 4, 2, 2, 0, 3};
+        for (int i = 0; i < stations.length; i++)
+            telemetry.onFrame(frame(i, i, 0, stations[i]));
+
+        WiFiTelemetrySeries series = telemetry.downsample(WiFiTelemetry.Metric.STATIONS, 3);
+        assertEquals(WiFiTelemetry.Metric.STATIONS, series.getMetric());
+        assertEquals(3, series.getBucketCount());
+        assertEquals(1, series.getMin(0));
+        assertEquals(4, series.getMax(0));
+        assertEquals(2.5f, series.getAverage(0), 0);
+        assertEquals(2, series.getMin(1));
+        assertEquals(2, series.getMax(1));
+        assertEquals(0, series.getMin(2));
+        assertEquals(1.5f, series.getAverage(2), 0);
+
+        // Never more buckets than samples.
+        assertEquals(6, telemetry.downsample(WiFiTelemetry.Metric.STATIONS, 100)
+                .getBucketCount());
+        assertEquals(0, new WiFiTelemetry().downsample(WiFiTelemetry.Metric.STATIONS, 10)
+                .getBucketCount());
+        try {
+            telemetry.downsample(WiFiTelemetry.Metric.STATIONS, 0);
+            fail("Downsampled into no buckets");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void leavesBucketsWithoutReadingsEmpty() {
+        WiFiTelemetry telemetry = new WiFiTelemetry();
+        telemetry.onFrame(frame(0, 0, 0, 2, -40, -60));
+        telemetry.onFrame(frame(1, 0, 0, 1, -45));
+        // Stations left: no readings for a while.
+        telemetry.onFrame(frame(2, 0, 0, 0));
+        telemetry.onFrame(frame(3, 0, 0, 0));
+        // A station that has not reported its RSSI yet.
+        telemetry.onFrame(frame(4, 0, 0, 1));
+        telemetry.onFrame(frame(5, 0, 0, 1, -70));
+
+        WiFiTelemetrySeries rssi = telemetry.downsample(WiFiTelemetry.Metric.RSSI, 3);
+        assertTrue(rssi.hasValue(0));
+        // Over single stations, the average over the sample means.
+        assertEquals(-60, rssi.getMin(0));
+        assertEquals(-40, rssi.getMax(0));
+        assertEquals(-47.5f, rssi.getAverage(0), 0);
+
+        assertFalse(rssi.hasValue(1));
+        assertTrue(Float.isNaN(rssi.getAverage(1)));
+        assertEquals(0, rssi.getMin(1));
+        assertEquals(0, rssi.getMax(1));
+
+        assertTrue(rssi.hasValue(2));
+        assertEquals(-70f, rssi.getAverage(2), 0);
+
+        // Other metrics count every sample.
+        assertTrue(telemetry.downsample(WiFiTelemetry.Metric.STATIONS, 3).hasValue(1));
+    }
+    //endregion
+
+    private static byte[] frame(int sequence, long uptimeMs, int freeHeap, int stations,
+                                int... rssi) {
+        byte[] frame = new byte[WiFiProtocol.TELEMETRY_HEADER_LENGTH + rssi.length];
+        frame[0] = WiFiProtocol.WIFI_CMD_TELEMETRY;
+        frame[1] = (byte) sequence;
+        frame[2] = (byte) (sequence >>> 8);
+        for (int i = 0; i < 4; i++) {
+            frame[3 + i] = (byte) (uptimeMs >>> (8 * i));
+            frame[7 + i] = (byte) (freeHeap >>> (8 * i));
+        }
+        frame[11] = (byte) stations;
+        for (int i = 0; i < rssi.length; i++)
+            frame[WiFiProtocol.TELEMETRY_HEADER_LENGTH + i] = (byte) rssi[i];
+        return frame;
+    }
+}
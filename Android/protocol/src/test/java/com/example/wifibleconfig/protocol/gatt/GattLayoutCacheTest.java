@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GattLayoutCacheTest {
+    private final static String ADDRESS = "A4:CF:12:00:00:01";
+    private final static long SIGNATURE = 0x1234L;
+
+    @Test
+    public void keepsALayoutOfTheSameVersion() {
+        GattLayoutCache cache = new GattLayoutCache();
+        cache.put(ADDRESS, SIGNATURE, 6, 247, 1000);
+        GattLayout layout = cache.lookup(ADDRESS, SIGNATURE);
+        assertNotNull(layout);
+        assertTrue(cache.verify(ADDRESS, layout, 6));
+        assertNotNull(cache.lookup(ADDRESS, SIGNATURE));
+
+        GattLayoutCacheMetrics metrics = cache.getMetrics();
+        assertEquals(2, metrics.getHits());
+        assertEquals(0, metrics.getMisses());
+    }
+
+    @Test
+    public void dropsALayoutWhoseVersionChanged() {
+        GattLayoutCache cache = new GattLayoutCache();
+        cache.put(ADDRESS, SIGNATURE, 6, 247, 1000);
+
+        // An update to v7, or a rollback, keeps the characteristics and so the signature.
+        GattLayout layout = cache.lookup(ADDRESS, SIGNATURE);
+        assertFalse(cache.verify(ADDRESS, layout, 7));
+        assertNull(cache.lookup(ADDRESS, SIGNATURE));
+
+        GattLayoutCacheMetrics metrics = cache.getMetrics();
+        assertEquals(0, metrics.getHits());
+        assertEquals(2, metrics.getMisses());
+        assertEquals(1, metrics.getInvalidations());
+        assertEquals(0, metrics.getSize());
+    }
+
+    @Test
+    public void acceptsALayoutWhoseVersionWasNeverRead() {
+        GattLayoutCache cache = new GattLayoutCache();
+        cache.put(ADDRESS, SIGNATURE, 0, 23, 1000);
+        GattLayout layout = cache.lookup(ADDRESS, SIGNATURE);
+        assertTrue(cache.verify(ADDRESS, layout, 6));
+
+        cache.update(ADDRESS, 6, 23);
+        layout = cache.lookup(ADDRESS, SIGNATURE);
+        assertEquals(6, layout.getProtocolVersion());
+        assertFalse(cache.verify(ADDRESS, layout, 5));
+    }
+
+    @Test
+    public void dropsALayoutWhoseSignatureChanged() {
+        GattLayoutCache cache = new GattLayoutCache();
+        cache.put(ADDRESS, SIGNATURE, 6, 247, 1000);
+        assertNull(cache.lookup(ADDRESS, SIGNATURE + 1));
+        assertNull(cache.lookup(ADDRESS, SIGNATURE));
+        assertEquals(1, cache.getMetrics().getInvalidations());
+    }
+}
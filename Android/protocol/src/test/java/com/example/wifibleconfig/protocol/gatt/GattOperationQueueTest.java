@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GattOperationQueueTest {
+    private final static UUID SERVICE = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
+    private final static UUID FIRST = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
+    private final static UUID SECOND = UUID.fromString("0000ffe2-0000-1000-8000-00805f9b34fb");
+    private final static UUID THIRD = UUID.fromString("0000ffe3-0000-1000-8000-00805f9b34fb");
+    private final static int GATT_ERROR = 133;
+
+    /**
+     * Records the operations the queue issues; the test answers them through the queue.
+     */
+    private final static class FakeTransport implements GattTransport {
+        final List<UUID> started = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        boolean accept = true;
+
+        private synchronized boolean start(UUID characteristic) {
+            started.add(characteristic);
+            threads.add(Thread.currentThread());
+            return accept;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return start(null);
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID service, UUID characteristic) {
+            return start(characteristic);
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                           int writeType) {
+            return start(characteristic);
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                     boolean enable) {
+            return true;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                       byte[] value) {
+            return start(descriptor);
+        }
+
+        synchronized int count() {
+            return started.size();
+        }
+    }
+
+    private ScheduledExecutorService scheduler;
+    private FakeTransport transport;
+    private GattOperationQueue queue;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        transport = new FakeTransport();
+        queue = new GattOperationQueue(transport, scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void runsOneOperationAtATime() throws Exception {
+        CompletableFuture<byte[]> first = queue.read(SERVICE, FIRST);
+        CompletableFuture<byte[]> second = queue.read(SERVICE, SECOND);
+        CompletableFuture<byte[]> third = queue.write(SERVICE, THIRD, new byte[] {3});
+        assertEquals(1, transport.count());
+        assertEquals(3, queue.getDepth());
+
+        queue.onCharacteristicRead(FIRST, new byte[] {1}, GattTransport.GATT_SUCCESS);
+        assertArrayEquals(new byte[] {1}, first.getNow(null));
+        assertEquals(2, transport.count());
+        assertFalse(second.isDone());
+
+        queue.onCharacteristicRead(SECOND, new byte[] {2}, GattTransport.GATT_SUCCESS);
+        queue.onCharacteristicWrite(THIRD, GattTransport.GATT_SUCCESS);
+        assertArrayEquals(new byte[] {2}, second.getNow(null));
+        assertArrayEquals(new byte[] {3}, third.getNow(null));
+        assertEquals(3, transport.count());
+        assertEquals(FIRST, transport.started.get(0));
+        assertEquals(SECOND, transport.started.get(1));
+        assertEquals(THIRD, transport.started.get(2));
+        assertEquals(0, queue.getDepth());
+        assertEquals(3, queue.getMetrics().getCompleted());
+    }
+
+    @Test
+    public void issuesNextOperationFromTheCallback() {
+        queue.read(SERVICE, FIRST);
+        queue.read(SERVICE, SECOND);
+
+        Thread callback = new Thread(() -> queue.onCharacteristicRead(FIRST, new byte[0],
+                GattTransport.GATT_SUCCESS), "callback");
+        callback.start();
+        join(callback);
+
+        assertEquals(2, transport.count());
+        assertSame(callback, transport.threads.get(1));
+    }
+
+    @Test
+    public void stageOfTheCallbackEnqueuesBeforeTheQueueMovesOn() {
+        CompletableFuture<byte[]> first = queue.read(SERVICE, FIRST);
+        queue.read(SERVICE, SECOND);
+        CompletableFuture<byte[]> chained = first.thenCompose(value ->
+                queue.read(SERVICE, THIRD));
+
+        queue.onCharacteristicRead(FIRST, new byte[0], GattTransport.GATT_SUCCESS);
+        queue.onCharacteristicRead(SECOND, new byte[0], GattTransport.GATT_SUCCESS);
+        queue.onCharacteristicRead(THIRD, new byte[] {3}, GattTransport.GATT_SUCCESS);
+
+        assertArrayEquals(new byte[] {3}, chained.getNow(null));
+        assertEquals(THIRD, transport.started.get(2));
+    }
+
+    @Test
+    public void timesOutTheCurrentOperationAndStartsTheNext() throws Exception {
+        CompletableFuture<byte[]> slow = queue.read(SERVICE, FIRST, 20);
+        CompletableFuture<byte[]> next = queue.read(SERVICE, SECOND);
+
+        assertTrue(causeOf(slow) instanceof TimeoutException);
+        // The timer thread issues the next operation after failing the slow one.
+        scheduler.submit(() -> { }).get(1, TimeUnit.SECONDS);
+        assertEquals(2, transport.count());
+
+        // The late answer no longer belongs to anything.
+        queue.onCharacteristicRead(FIRST, new byte[] {1}, GattTransport.GATT_SUCCESS);
+        assertFalse(next.isDone());
+        queue.onCharacteristicRead(SECOND, new byte[] {2}, GattTransport.GATT_SUCCESS);
+        assertArrayEquals(new byte[] {2}, next.get(1, TimeUnit.SECONDS));
+        assertEquals(1, queue.getMetrics().getTimedOut());
+    }
+
+    @Test
+    public void propagatesFailedStatus() throws Exception {
+        CompletableFuture<byte[]> failed = queue.write(SERVICE, FIRST, new byte[] {1});
+        CompletableFuture<byte[]> next = queue.read(SERVICE, SECOND);
+
+        queue.onCharacteristicWrite(FIRST, GATT_ERROR);
+        Throwable cause = causeOf(failed);
+        assertTrue(cause instanceof GattException);
+        assertEquals(GATT_ERROR, ((GattException) cause).getStatus());
+
+        queue.onCharacteristicRead(SECOND, new byte[] {2}, GattTransport.GATT_SUCCESS);
+        assertArrayEquals(new byte[] {2}, next.getNow(null));
+        assertEquals(1, queue.getMetrics().getFailed());
+    }
+
+    @Test
+    public void failsOperationsTheTransportRejects() throws Exception {
+        transport.accept = false;
+        CompletableFuture<byte[]> rejected = queue.read(SERVICE, FIRST);
+        transport.accept = true;
+        CompletableFuture<byte[]> next = queue.read(SERVICE, SECOND);
+
+        assertEquals(GattException.STATUS_NOT_STARTED,
+                ((GattException) causeOf(rejected)).getStatus());
+        assertEquals(2, transport.count());
+        assertFalse(next.isDone());
+    }
+
+    @Test
+    public void drainsAfterDisconnect() throws Exception {
+        CompletableFuture<byte[]> current = queue.read(SERVICE, FIRST);
+        CompletableFuture<byte[]> queued = queue.read(SERVICE, SECOND);
+
+        queue.cancelAll();
+        assertEquals(GattException.STATUS_CANCELLED,
+                ((GattException) causeOf(current)).getStatus());
+        assertEquals(GattException.STATUS_CANCELLED,
+                ((GattException) causeOf(queued)).getStatus());
+        assertEquals(0, queue.getDepth());
+
+        // Nothing is issued on the lost link any more.
+        CompletableFuture<byte[]> late = queue.read(SERVICE, THIRD);
+        assertEquals(GattException.STATUS_CANCELLED,
+                ((GattException) causeOf(late)).getStatus());
+        queue.onCharacteristicRead(FIRST, new byte[] {1}, GattTransport.GATT_SUCCESS);
+        assertEquals(1, transport.count());
+    }
+
+    @Test
+    public void keepsNegotiatedMtu() throws Exception {
+        CompletableFuture<Integer> mtu = queue.requestMtu(185);
+        queue.onMtuChanged(185, GattTransport.GATT_SUCCESS);
+        assertEquals(185, (int) mtu.get(1, TimeUnit.SECONDS));
+        assertEquals(185, queue.getMtu());
+
+        CompletableFuture<Integer> refused = queue.requestMtu(517);
+        queue.onMtuChanged(23, GATT_ERROR);
+        assertTrue(causeOf(refused) instanceof GattException);
+        assertEquals(185, queue.getMtu());
+    }
+
+    private static Throwable causeOf(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("Operation did not fail");
+        return null;
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
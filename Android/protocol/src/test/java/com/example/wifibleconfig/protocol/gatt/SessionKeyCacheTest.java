@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.protocol.gatt;
+
+import com.example.wifibleconfig.protocol.WiFiSessionKey;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionKeyCacheTest {
+    private final static String FIRST = "A4:CF:12:00:00:01";
+    private final static String SECOND = "A4:CF:12:00:00:02";
+    private final static byte[] KEY = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+    private final static byte[] FRAME = {0x03};
+
+    @Test
+    public void roundTripsThroughStoreAndLoad() throws IOException {
+        SessionKeyCache cache = new SessionKeyCache();
+        cache.put(FIRST, new WiFiSessionKey(0xCAFEF00D, KEY, 1));
+        cache.put(SECOND, new WiFiSessionKey(0x01, KEY, 1));
+        seal(cache.get(FIRST), 3);
+
+        SessionKeyCache loaded = load(store(cache));
+        assertEquals(2, loaded.size());
+        WiFiSessionKey key = loaded.get(FIRST);
+        assertEquals(0xCAFEF00D, key.getKeyId());
+        assertArrayEquals(KEY, key.getKey());
+        // Continues after the whole reserved block.
+        assertEquals(1 + WiFiSessionKey.COUNTER_BLOCK, key.getNextCounter());
+        // A key that sealed nothing continues where it was.
+        assertEquals(1, loaded.get(SECOND).getNextCounter());
+    }
+
+    @Test
+    public void savesTheReservationBeforeSealing() throws IOException {
+        SessionKeyCache cache = new SessionKeyCache();
+        StringWriter[] file = {new StringWriter()};
+        cache.setPersister(saved -> {
+            file[0] = new StringWriter();
+            saved.store(file[0]);
+        });
+        cache.put(FIRST, new WiFiSessionKey(7, KEY, 1));
+
+        // Crashes after each sealed frame: the saved file always continues beyond it.
+        WiFiSessionKey key = cache.get(FIRST);
+        for (int i = 0; i < 3 * WiFiSessionKey.COUNTER_BLOCK; i++) {
+            long counter = WiFiSessionKey.counterOf(key.seal(FRAME, 0, FRAME.length), 0);
+            long restart = load(file[0].toString()).get(FIRST).getNextCounter();
+            assertTrue("counter " + counter, Long.compareUnsigned(restart, counter) > 0);
+        }
+
+        // Again after a load, whose reservation is in use from the first frame on.
+        SessionKeyCache loaded = load(file[0].toString());
+        loaded.setPersister(saved -> {
+            file[0] = new StringWriter();
+            saved.store(file[0]);
+        });
+        long counter = WiFiSessionKey.counterOf(loaded.get(FIRST).seal(FRAME, 0, FRAME.length),
+                0);
+        assertTrue(load(file[0].toString()).get(FIRST).getNextCounter() > counter);
+    }
+
+    @Test
+    public void refusesToSealWhenTheReservationIsNotSaved() {
+        SessionKeyCache cache = new SessionKeyCache();
+        cache.setPersister(saved -> {
+            throw new IOException("Disk full");
+        });
+        cache.put(FIRST, new WiFiSessionKey(7, KEY, 1));
+        try {
+            cache.get(FIRST).seal(FRAME, 0, FRAME.length);
+            fail("Sealed without a saved reservation");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void skipsMalformedLines() throws IOException {
+        SessionKeyCache cache = new SessionKeyCache();
+        cache.put(FIRST, new WiFiSessionKey(7, KEY, 9));
+        String stored = store(cache);
+        String text = "garbage\n" + SECOND + " 1 0102 5\n" + SECOND + " zz " +
+                stored.split(" ")[2] + " 5\n" + stored;
+
+        SessionKeyCache loaded = load(text);
+        assertEquals(1, loaded.size());
+        assertNull(loaded.get(SECOND));
+        assertEquals(9, loaded.get(FIRST).getNextCounter());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() {
+        SessionKeyCache cache = new SessionKeyCache(2);
+        WiFiSessionKey first = new WiFiSessionKey(1, KEY, 1);
+        cache.put(FIRST, first);
+        cache.put(SECOND, new WiFiSessionKey(2, KEY, 1));
+        cache.get(FIRST);
+        cache.put("A4:CF:12:00:00:03", new WiFiSessionKey(3, KEY, 1));
+        assertSame(first, cache.get(FIRST));
+        assertNull(cache.get(SECOND));
+
+        cache.invalidate(FIRST, new WiFiSessionKey(1, KEY, 1));
+        assertSame(first, cache.get(FIRST));
+        cache.invalidate(FIRST, first);
+        assertNull(cache.get(FIRST));
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    private static void seal(WiFiSessionKey key, int frames) {
+        for (int i = 0; i < frames; i++)
+            key.seal(FRAME, 0, FRAME.length);
+    }
+
+    private static String store(SessionKeyCache cache) throws IOException {
+        StringWriter writer = new StringWriter();
+        cache.store(writer);
+        return writer.toString();
+    }
+
+    private static SessionKeyCache load(String text) throws IOException {
+        SessionKeyCache cache = new SessionKeyCache();
+        cache.load(new StringReader(text));
+        return cache;
+    }
+}
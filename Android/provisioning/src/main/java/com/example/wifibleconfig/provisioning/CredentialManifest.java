@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Credentials by device, read from a CSV or JSON manifest by {@link ManifestReader}, for fleet
+ * runs without operator input.
+ * <p>
+ * Each entry maps a device address or advertised name to an SSID and password. A key ending in
+ * {@code *} matches every address or name starting with the rest, {@code *} alone matches every
+ * device. A lookup tries the exact address, the exact name, the longest name prefix, the
+ * longest address prefix and the catch-all, in that order.
+ * <p>
+ * Manifests hold thousands of devices sharing a few per-site networks, so each distinct pair
+ * of credentials is stored once and exact addresses live in an open addressing table on the
+ * 48-bit address: about 24 bytes per device, and a lookup allocates nothing. Entries are
+ * validated against the protocol limits when they are added; rejected ones are counted and
+ * the first {@link #MAX_ERRORS} reasons kept. Not modified after reading, so safe to share.
+ */
+public final class CredentialManifest implements CredentialProvider {
+    public final static String WILDCARD = "*";
+    public final static int MAX_ERRORS = 100;
+
+    private final static int NONE = -1;
+    private final static int INITIAL_CAPACITY = 64;
+
+    //region Credentials
+    private final ArrayList<Credentials> credentials = new ArrayList<>();
+    // Index of each distinct pair, keyed by SSID and password separated by a newline, which
+    // neither may contain.
+    private final HashMap<String, Integer> credentialIndex = new HashMap<>();
+    //endregion
+
+    //region Exact addresses
+    private long[] addresses = new long[INITIAL_CAPACITY];
+    private int[] addressCredentials = new int[INITIAL_CAPACITY];
+    private int addressCount;
+    // Open addressing table with linear probing; holds entry index + 1, 0 is an empty slot.
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    private int mask = table.length - 1;
+    //endregion
+
+    //region Patterns
+    private final HashMap<String, Integer> names = new HashMap<>();
+    private final HashMap<String, Integer> namePrefixes = new HashMap<>();
+    private final HashMap<String, Integer> addressPrefixes = new HashMap<>();
+    private int maxNamePrefix;
+    private int maxAddressPrefix;
+    private int catchAll = NONE;
+    //endregion
+
+    //region Rejections
+    private final ArrayList<String> errors = new ArrayList<>();
+    private int rejected;
+    //endregion
+
+    //region Lookup
+    @Override
+    public Credentials credentialsFor(String address, String name) {
+        int index = NONE;
+        if (address != null && addressCount > 0)
+            index = findAddress(address);
+        if (index == NONE && name != null) {
+            Integer exact = names.get(name);
+            index = exact != null ? exact : longestPrefix(namePrefixes, maxNamePrefix, name);
+        }
+        if (index == NONE && address != null)
+            index = longestPrefix(addressPrefixes, maxAddressPrefix,
+                    address.toUpperCase(Locale.ROOT));
+        if (index == NONE)
+            index = catchAll;
+        return index == NONE ? null : credentials.get(index);
+    }
+
+    private int findAddress(String address) {
+        long key;
+        try {
+            key = ScanCache.parseAddress(address);
+        } catch (IllegalArgumentException e) {
+            return NONE;
+        }
+        int entry = find(key);
+        return entry == NONE ? NONE : addressCredentials[entry];
+    }
+
+    private static int longestPrefix(HashMap<String, Integer> prefixes, int maxLength,
+                                     String value) {
+        if (prefixes.isEmpty())
+            return NONE;
+        for (int length = Math.min(maxLength, value.length()); length > 0; length--) {
+            Integer index = prefixes.get(value.substring(0, length));
+            if (index != null)
+                return index;
+        }
+        return NONE;
+    }
+    //endregion
+
+    //region Building
+    /**
+     * Adds the entry read at {@code line}: exactly one of {@code address} and {@code name} is
+     * set. Returns false and records the reason when the entry is rejected.
+     */
+    boolean add(int line, String address, String name, String ssid, String password) {
+        boolean hasAddress = address != null && !address.isEmpty();
+        boolean hasName = name != null && !name.isEmpty();
+        if (hasAddress == hasName)
+            return reject(line, "needs either an address or a name");
+
+        Credentials entry;
+        try {
+            entry = new Credentials(ssid, password);
+        } catch (IllegalArgumentException e) {
+            return reject(line, e.getMessage());
+        }
+
+        if (hasName)
+            return addName(line, name, entry);
+        return addAddress(line, address.toUpperCase(Locale.ROOT), entry);
+    }
+
+    private boolean addName(int line, String name, Credentials entry) {
+        if (name.equals(WILDCARD))
+            return addCatchAll(line, entry);
+        if (!name.endsWith(WILDCARD))
+            return put(line, names, name, entry, "name " + name);
+
+        String prefix = name.substring(0, name.length() - 1);
+        if (!put(line, namePrefixes, prefix, entry, "name pattern " + name))
+            return false;
+        maxNamePrefix = Math.max(maxNamePrefix, prefix.length());
+        return true;
+    }
+
+    private boolean addAddress(int line, String address, Credentials entry) {
+        if (address.equals(WILDCARD))
+            return addCatchAll(line, entry);
+        if (address.endsWith(WILDCARD)) {
+            String prefix = address.substring(0, address.length() - 1);
+            for (int i = 0; i < prefix.length(); i++)
+                if (i % 3 == 2 ? prefix.charAt(i) != ':' :
+                        Character.digit(prefix.charAt(i), 16) < 0)
+                    return reject(line, "invalid address pattern " + address);
+            if (!put(line, addressPrefixes, prefix, entry, "address pattern " + address))
+                return false;
+            maxAddressPrefix = Math.max(maxAddressPrefix, prefix.length());
+            return true;
+        }
+
+        long key;
+        try {
+            key = ScanCache.parseAddress(address);
+        } catch (IllegalArgumentException e) {
+            return reject(line, e.getMessage());
+        }
+        if (find(key) != NONE)
+            return reject(line, "duplicate address " + address);
+
+        if (addressCount == addresses.length) {
+            addresses = Arrays.copyOf(addresses, addressCount * 2);
+            addressCredentials = Arrays.copyOf(addressCredentials, addressCount * 2);
+            rehash(table.length * 2);
+        }
+        addresses[addressCount] = key;
+        addressCredentials[addressCount] = indexOf(entry);
+        insert(key, addressCount);
+        addressCount++;
+        return true;
+    }
+
+    private boolean addCatchAll(int line, Credentials entry) {
+        if (catchAll != NONE)
+            return reject(line, "duplicate " + WILDCARD + " entry");
+        catchAll = indexOf(entry);
+        return true;
+    }
+
+    private boolean put(int line, HashMap<String, Integer> map, String key, Credentials entry,
+                        String description) {
+        if (map.containsKey(key))
+            return reject(line, "duplicate " + description);
+        map.put(key, indexOf(entry));
+        return true;
+    }
+
+    private int indexOf(Credentials entry) {
+        String key = entry.getSsid() + '\n' + entry.getPassword();
+        Integer index = credentialIndex.get(key);
+        if (index != null)
+            return index;
+        credentials.add(entry);
+        credentialIndex.put(key, credentials.size() - 1);
+        return credentials.size() - 1;
+    }
+
+    /**
+     * Records an entry that could not be added, such as one with a malformed field.
+     */
+    boolean reject(int line, String reason) {
+        rejected++;
+        if (errors.size() < MAX_ERRORS)
+            errors.add("Line " + line + ": " + reason);
+        return false;
+    }
+    //endregion
+
+    //region Address table
+    private static int slotOf(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            int value = table[slot];
+            if (value == 0)
+                return NONE;
+            if (addresses[value - 1] == key)
+                return value - 1;
+        }
+    }
+
+    private void insert(long key, int entry) {
+        int slot = slotOf(key, mask);
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = entry + 1;
+    }
+
+    /**
+     * Rebuilds the table with {@code capacity} slots, kept at twice the entry capacity so
+     * probe chains stay short.
+     */
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < addressCount; i++)
+            insert(addresses[i], i);
+    }
+    //endregion
+
+    //region Properties
+    /**
+     * Devices listed by exact address.
+     */
+    public int getAddressCount() {
+        return addressCount;
+    }
+
+    /**
+     * Names, name and address patterns and the catch-all.
+     */
+    public int getPatternCount() {
+        return names.size() + namePrefixes.size() + addressPrefixes.size() +
+                (catchAll == NONE ? 0 : 1);
+    }
+
+    /**
+     * Distinct SSID and password pairs.
+     */
+    public int getCredentialCount() {
+        return credentials.size();
+    }
+
+    public int getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Reasons of the first {@link #MAX_ERRORS} rejected entries, with their line.
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+    //endregion
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+/**
+ * Chooses the credentials for a discovered device. Returns null to skip the device.
+ */
+public interface CredentialProvider {
+    Credentials credentialsFor(String address, String name);
+}
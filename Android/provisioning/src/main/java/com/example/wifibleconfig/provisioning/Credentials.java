@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.WiFiCommandCodec;
+
+/**
+ * Immutable SSID/password pair, validated against the protocol limits on construction.
+ */
+public final class Credentials {
+    private final String ssid;
+    private final String password;
+
+    public Credentials(String ssid, String password) {
+        if (!WiFiCommandCodec.isValidSsid(ssid))
+            throw new IllegalArgumentException("Invalid SSID");
+        if (!WiFiCommandCodec.isValidPassword(password))
+            throw new IllegalArgumentException("Invalid password");
+
+        this.ssid = ssid;
+        this.password = password;
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    @Override
+    public String toString() {
+        // Never log the password.
+        return "Credentials{ssid=" + ssid + "}";
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Opens WiFiBle sessions for {@link FleetProvisioner} and {@link ProvisioningEngine}. The Android
+ * implementation connects over BluetoothGatt, provisioning stations over BlueZ; tests and
+ * benchmarks plug in a simulated transport.
+ */
+public interface DeviceConnector {
+    interface Listener {
+        /**
+         * The current link to {@code address} is gone: the device or the platform dropped it,
+         * it failed to come up or {@link #disconnect} closed it.
+         */
+        void onDisconnected(String address);
+    }
+
+    /**
+     * Connects, discovers services and starts the session. Completes exceptionally when the
+     * device cannot be reached.
+     */
+    CompletableFuture<WiFiClient> connect(String address);
+
+    /**
+     * Closes the session to {@code address}. A connect still in progress is cancelled, so the
+     * platform does not keep connecting once the returned future was given up.
+     */
+    void disconnect(String address);
+
+    /**
+     * The caller is done with the session to {@code address}. Connectors that keep sessions
+     * open for later use may keep it, the others disconnect.
+     */
+    default void release(String address) {
+        disconnect(address);
+    }
+
+    /**
+     * Reports lost links to {@code listener}; connectors that cannot tell ignore it.
+     */
+    default void setListener(Listener listener) {
+    }
+
+    /**
+     * Has the next connection to {@code address} record its setup phases into {@code trace};
+     * connectors that cannot tell the phases apart ignore it.
+     */
+    default void setTrace(String address, ProvisioningTrace trace) {
+    }
+}
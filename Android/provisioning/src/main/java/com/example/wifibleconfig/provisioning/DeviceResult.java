@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of provisioning one device.
+ */
+public final class DeviceResult {
+    private final String address;
+    private final boolean success;
+    private final Throwable error;
+    private final long durationNanos;
+    private final int attempts;
+
+    DeviceResult(String address, boolean success, Throwable error, long durationNanos,
+                 int attempts) {
+        this.address = address;
+        this.success = success;
+        this.error = error;
+        this.durationNanos = durationNanos;
+        this.attempts = attempts;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public long getDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    }
+
+    /**
+     * Attempts it took, including the first one.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return address + (success ? " ok" : " failed: " + error) + " in " + getDurationMillis() +
+                " ms" + (attempts > 1 ? " after " + attempts + " attempts" : "");
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+/**
+ * Progress callbacks of {@link FleetProvisioner}. Called on transport threads.
+ */
+public interface FleetListener {
+    default void onDeviceStarted(String address) {
+    }
+
+    void onDeviceCompleted(DeviceResult result, FleetStats stats);
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.LongSupplier;
+
+/**
+ * Provisions many devices concurrently while scanning continues.
+ * <p>
+ * Discovered devices are {@link #offer offered} from the scan callback. Up to
+ * {@code maxConcurrent} devices are provisioned at the same time (Android allows only a handful
+ * of simultaneous GATT connections); the rest wait in a bounded list. A device that fails is
+ * admitted again when it is rediscovered, up to {@link #MAX_ATTEMPTS} times. Each admission is
+ * provisioned by a {@link ProvisioningEngine}, which already retries transient failures with
+ * {@link RetryPolicy#DEFAULT}; pass a {@link RetryingConnector} to retry failed connects too.
+ * <p>
+ * With a {@link ProvisioningJournal} the attempts are journaled and devices it reports done, by
+ * this or an earlier run, are not admitted.
+ */
+public final class FleetProvisioner {
+    public final static int MAX_ATTEMPTS = 3;
+    public final static int MAX_WAITING = 256;
+    public final static long DEVICE_TIMEOUT_MS = 30000;
+
+    private final static class Candidate {
+        final String address;
+        final Credentials credentials;
+
+        Candidate(String address, Credentials credentials) {
+            this.address = address;
+            this.credentials = credentials;
+        }
+    }
+
+    private enum State {
+        WAITING,
+        ACTIVE,
+        FAILED,
+        DONE
+    }
+
+    private final ProvisioningEngine engine;
+    private final CredentialProvider credentialProvider;
+    private final FleetListener listener;
+    private final int maxConcurrent;
+    private final LongSupplier nanoClock;
+    private final ProvisioningJournal journal;
+
+    private final ArrayDeque<Candidate> waiting = new ArrayDeque<>();
+    private final HashMap<String, State> states = new HashMap<>();
+    private final HashMap<String, Integer> attempts = new HashMap<>();
+    private int active;
+    private long succeeded;
+    private long failed;
+    private boolean started;
+    private long startedNanos;
+    private boolean stopped;
+
+    public FleetProvisioner(DeviceConnector connector, CredentialProvider credentialProvider,
+                            FleetListener listener, ScheduledExecutorService scheduler,
+                            int maxConcurrent) {
+        this(connector, credentialProvider, listener, scheduler, maxConcurrent, null);
+    }
+
+    /**
+     * @param journal journal of the attempts, or null
+     */
+    public FleetProvisioner(DeviceConnector connector, CredentialProvider credentialProvider,
+                            FleetListener listener, ScheduledExecutorService scheduler,
+                            int maxConcurrent, ProvisioningJournal journal) {
+        this(connector, credentialProvider, listener, scheduler, maxConcurrent, journal,
+                System::nanoTime);
+    }
+
+    FleetProvisioner(DeviceConnector connector, CredentialProvider credentialProvider,
+                     FleetListener listener, ScheduledExecutorService scheduler,
+                     int maxConcurrent, ProvisioningJournal journal, LongSupplier nanoClock) {
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+
+        this.engine = new ProvisioningEngine(connector, scheduler, DEVICE_TIMEOUT_MS,
+                RetryPolicy.DEFAULT, journal, nanoClock);
+        this.credentialProvider = credentialProvider;
+        this.listener = listener;
+        this.maxConcurrent = maxConcurrent;
+        this.nanoClock = nanoClock;
+        this.journal = journal;
+    }
+
+    //region Admission
+    /**
+     * Offers a discovered device. Cheap for devices that are already known, so it can be called
+     * for every scan result. Returns true when the device was admitted.
+     */
+    public boolean offer(String address, String name) {
+        synchronized (this) {
+            if (stopped)
+                return false;
+            State state = states.get(address);
+            if (state != null && state != State.FAILED)
+                return false;
+            Integer count = attempts.get(address);
+            if (count != null && count >= MAX_ATTEMPTS)
+                return false;
+            if (waiting.size() >= MAX_WAITING && active >= maxConcurrent)
+                return false;
+        }
+        if (journal != null && journal.isDone(address))
+            return false;
+
+        Credentials credentials = credentialProvider.credentialsFor(address, name);
+        if (credentials == null)
+            return false;
+
+        Candidate candidate = new Candidate(address, credentials);
+        synchronized (this) {
+            if (stopped || states.get(address) == State.WAITING ||
+                    states.get(address) == State.ACTIVE)
+                return false;
+            if (!started) {
+                started = true;
+                startedNanos = nanoClock.getAsLong();
+            }
+            states.put(address, State.WAITING);
+            waiting.add(candidate);
+        }
+
+        admit();
+        return true;
+    }
+
+    private void admit() {
+        while (true) {
+            Candidate candidate;
+            synchronized (this) {
+                if (stopped || active >= maxConcurrent || waiting.isEmpty())
+                    return;
+                candidate = waiting.poll();
+                active++;
+                states.put(candidate.address, State.ACTIVE);
+                Integer count = attempts.get(candidate.address);
+                attempts.put(candidate.address, count == null ? 1 : count + 1);
+            }
+            provision(candidate);
+        }
+    }
+
+    /**
+     * Stops admitting devices. Devices in progress are allowed to finish.
+     */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            for (Candidate candidate : waiting)
+                states.remove(candidate.address);
+            waiting.clear();
+        }
+    }
+    //endregion
+
+    //region Provisioning
+    private void provision(Candidate candidate) {
+        listener.onDeviceStarted(candidate.address);
+        engine.provision(candidate.address, candidate.credentials, 0, null)
+                .thenAccept(result -> finish(candidate, result));
+    }
+
+    private void finish(Candidate candidate, DeviceResult result) {
+        FleetStats stats;
+        synchronized (this) {
+            active--;
+            if (result.isSuccess()) {
+                succeeded++;
+                states.put(candidate.address, State.DONE);
+            } else {
+                failed++;
+                states.put(candidate.address, State.FAILED);
+            }
+            stats = stats();
+        }
+
+        listener.onDeviceCompleted(result, stats);
+        admit();
+    }
+    //endregion
+
+    //region Properties
+    private FleetStats stats() {
+        long elapsed = started ? nanoClock.getAsLong() - startedNanos : 0;
+        return new FleetStats(active, waiting.size(), succeeded, failed, elapsed);
+    }
+
+    public synchronized FleetStats getStats() {
+        return stats();
+    }
+
+    /**
+     * Attempts, retries and resumes of the devices provisioned so far.
+     */
+    public RetryStats getRetryStats() {
+        return engine.getRetryStats();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+    //endregion
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of {@link FleetProvisioner} progress.
+ */
+public final class FleetStats {
+    private final int active;
+    private final int waiting;
+    private final long succeeded;
+    private final long failed;
+    private final long elapsedNanos;
+
+    FleetStats(int active, int waiting, long succeeded, long failed, long elapsedNanos) {
+        this.active = active;
+        this.waiting = waiting;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Successfully provisioned devices per minute since the first device was admitted.
+     */
+    public double getDevicesPerMinute() {
+        if (elapsedNanos <= 0)
+            return 0;
+        return succeeded * (double) TimeUnit.MINUTES.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d waiting=%d ok=%d failed=%d rate=%.1f/min",
+                active, waiting, succeeded, failed, getDevicesPerMinute());
+    }
+}
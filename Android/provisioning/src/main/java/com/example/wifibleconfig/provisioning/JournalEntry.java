@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+/**
+ * Last journaled state of one device, see {@link ProvisioningJournal}.
+ */
+public final class JournalEntry {
+    public enum Result {
+        PENDING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    private final long address;
+    private final ProvisioningPhase phase;
+    private final Result result;
+    private final int attempt;
+    private final long startedMillis;
+    private final long updatedMillis;
+
+    JournalEntry(long address, ProvisioningPhase phase, Result result, int attempt,
+                 long startedMillis, long updatedMillis) {
+        this.address = address;
+        this.phase = phase;
+        this.result = result;
+        this.attempt = attempt;
+        this.startedMillis = startedMillis;
+        this.updatedMillis = updatedMillis;
+    }
+
+    public String getAddress() {
+        return ScanCache.formatAddress(address);
+    }
+
+    long getPackedAddress() {
+        return address;
+    }
+
+    /**
+     * Last phase the attempt reached.
+     */
+    public ProvisioningPhase getPhase() {
+        return phase;
+    }
+
+    public Result getResult() {
+        return result;
+    }
+
+    public boolean isDone() {
+        return result == Result.SUCCEEDED;
+    }
+
+    /**
+     * Number of the attempt, counted from 1 over every run that used the journal.
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Wall clock time the attempt started at.
+     */
+    public long getStartedMillis() {
+        return startedMillis;
+    }
+
+    /**
+     * Wall clock time of the last change.
+     */
+    public long getUpdatedMillis() {
+        return updatedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return getAddress() + " " + result + " at " + phase + " (attempt " + attempt + ")";
+    }
+}
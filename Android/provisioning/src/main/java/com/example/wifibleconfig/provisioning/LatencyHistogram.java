@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed size latency histogram with HDR-style log-linear buckets.
+ * <p>
+ * Values are kept in microseconds. Every power of two is split into {@link #SUB_BUCKETS}
+ * linear buckets, which bounds the relative error of a reported value to about 3% over the
+ * whole range (1 us to about 70 minutes; larger values are clamped). Recording is a few
+ * arithmetic operations on a preallocated array and never allocates.
+ */
+public final class LatencyHistogram {
+    private final static int SUB_BUCKET_BITS = 5;
+    public final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int MAX_VALUE_BITS = 32;
+    public final static long MAX_VALUE_MICROS = (1L << MAX_VALUE_BITS) - 1;
+    private final static int BUCKETS = SUB_BUCKETS +
+            (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    //region Recording
+    public void recordNanos(long nanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public synchronized void recordMicros(long micros) {
+        if (micros < 0)
+            micros = 0;
+        else if (micros > MAX_VALUE_MICROS)
+            micros = MAX_VALUE_MICROS;
+
+        counts[indexOf(micros)]++;
+        count++;
+        sum += micros;
+        if (micros < min)
+            min = micros;
+        if (micros > max)
+            max = micros;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+    //endregion
+
+    //region Buckets
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int highestBit = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Highest value that falls into the bucket at {@code index}.
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+    //endregion
+
+    //region Statistics
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMeanMillis() {
+        return count == 0 ? 0 : sum / (double) count / 1000.0;
+    }
+
+    public synchronized double getMinMillis() {
+        return count == 0 ? 0 : min / 1000.0;
+    }
+
+    public synchronized double getMaxMillis() {
+        return max / 1000.0;
+    }
+
+    /**
+     * Value at the given percentile (0 to 100), reported as the upper bound of its bucket and
+     * never above the recorded maximum.
+     */
+    public synchronized double getPercentileMillis(double percentile) {
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), max) / 1000.0;
+        }
+        return max / 1000.0;
+    }
+    //endregion
+
+    @Override
+    public String toString() {
+        return String.format("n=%d min=%.1fms mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms " +
+                        "max=%.1fms", getCount(), getMinMillis(), getMeanMillis(),
+                getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99),
+                getMaxMillis());
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+/**
+ * BLE scanner driven by {@link ScanScheduler}. The Android implementation wraps
+ * BluetoothLeScanner with settings and filters built once; tests plug in a fake.
+ */
+public interface LeScanner {
+    enum Mode {
+        LOW_LATENCY,
+        BALANCED
+    }
+
+    /**
+     * Starts scanning in {@code mode}. Returns false when the platform refused.
+     */
+    boolean start(Mode mode);
+
+    void stop();
+}
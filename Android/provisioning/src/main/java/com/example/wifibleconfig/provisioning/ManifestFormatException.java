@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.io.IOException;
+
+/**
+ * A credential manifest is not valid CSV or JSON, so reading it stopped.
+ */
+public class ManifestFormatException extends IOException {
+    private final static long serialVersionUID = 1L;
+
+    private final int line;
+
+    public ManifestFormatException(String message, int line) {
+        super("Line " + line + ": " + message);
+        this.line = line;
+    }
+
+    /**
+     * Line the error was found on, starting at 1.
+     */
+    public int getLine() {
+        return line;
+    }
+}
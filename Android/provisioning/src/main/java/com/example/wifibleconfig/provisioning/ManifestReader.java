@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads a {@link CredentialManifest} from a CSV or JSON stream in a single pass, keeping only
+ * the current record in memory, so manifests of any size import in constant extra space.
+ * <p>
+ * A manifest starting with {@code [} is a JSON array of objects, such as
+ * {@code [{"address": "AA:BB:CC:DD:EE:FF", "ssid": "Site", "password": "..."}]}. Anything else
+ * is CSV (RFC 4180) with a header row naming the columns; lines starting with {@code #} are
+ * comments. Either way a record has the fields {@code address} or {@code name}, {@code ssid}
+ * and {@code password}, each a string or null; other fields may hold any value and are
+ * ignored.
+ * <p>
+ * Records that fail validation are skipped and reported by the manifest; a syntax error stops
+ * reading with a {@link ManifestFormatException}.
+ */
+public final class ManifestReader {
+    private final static int BUFFER_SIZE = 8192;
+    private final static char BOM = '\uFEFF';
+    private final static int END = -1;
+    // Arrays and objects inside an ignored field.
+    private final static int MAX_DEPTH = 64;
+
+    private final static String ADDRESS = "address";
+    private final static String NAME = "name";
+    private final static String SSID = "ssid";
+    private final static String PASSWORD = "password";
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private int line = 1;
+    // Line the last CSV record started on.
+    private int recordLine;
+
+    private final StringBuilder text = new StringBuilder();
+    private final CredentialManifest manifest = new CredentialManifest();
+
+    private ManifestReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads a UTF-8 manifest. The stream is not closed.
+     */
+    public static CredentialManifest read(InputStream in) throws IOException {
+        return read(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a manifest. The reader is not closed.
+     */
+    public static CredentialManifest read(Reader reader) throws IOException {
+        ManifestReader manifestReader = new ManifestReader(reader);
+        if (manifestReader.peek() == BOM)
+            manifestReader.next();
+        manifestReader.skipBlanks();
+        if (manifestReader.peek() == '[')
+            manifestReader.readJson();
+        else
+            manifestReader.readCsv();
+        return manifestReader.manifest;
+    }
+
+    //region Input
+    private int peek() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return END;
+            }
+        }
+        return buffer[position];
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        if (c != END) {
+            position++;
+            if (c == '\n')
+                line++;
+        }
+        return c;
+    }
+
+    private void skipBlanks() throws IOException {
+        int c = peek();
+        while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+            next();
+            c = peek();
+        }
+    }
+    //endregion
+
+    //region CSV
+    private void readCsv() throws IOException {
+        List<String> fields = new ArrayList<>();
+        if (!readCsvRecord(fields))
+            throw new ManifestFormatException("Missing header", line);
+        int header = recordLine;
+
+        int addressColumn = -1, nameColumn = -1, ssidColumn = -1, passwordColumn = -1;
+        for (int i = 0; i < fields.size(); i++) {
+            switch (fields.get(i).trim().toLowerCase(Locale.ROOT)) {
+                case ADDRESS:
+                    addressColumn = i;
+                    break;
+
+                case NAME:
+                    nameColumn = i;
+                    break;
+
+                case SSID:
+                    ssidColumn = i;
+                    break;
+
+                case PASSWORD:
+                    passwordColumn = i;
+                    break;
+            }
+        }
+        if (ssidColumn < 0 || passwordColumn < 0 || (addressColumn < 0 && nameColumn < 0))
+            throw new ManifestFormatException("Header needs the columns ssid, password and " +
+                    "address or name", header);
+
+        int columns = fields.size();
+        while (readCsvRecord(fields)) {
+            if (fields.size() != columns)
+                manifest.reject(recordLine, "expected " + columns + " fields, found " +
+                        fields.size());
+            else
+                manifest.add(recordLine,
+                        addressColumn < 0 ? null : fields.get(addressColumn).trim(),
+                        nameColumn < 0 ? null : fields.get(nameColumn),
+                        fields.get(ssidColumn), fields.get(passwordColumn));
+        }
+    }
+
+    /**
+     * Reads the next record into {@code fields}, skipping blank and comment lines. Returns
+     * false at the end of the input.
+     */
+    private boolean readCsvRecord(List<String> fields) throws IOException {
+        fields.clear();
+        int c = peek();
+        while (c == '\r' || c == '\n' || c == '#') {
+            if (c == '#')
+                while (c != '\n' && c != END)
+                    c = next();
+            else
+                next();
+            c = peek();
+        }
+        if (c == END)
+            return false;
+
+        recordLine = line;
+        while (true) {
+            fields.add(readCsvField());
+            c = next();
+            if (c == ',')
+                continue;
+            if (c == '\r' && peek() == '\n')
+                next();
+            return true;
+        }
+    }
+
+    /**
+     * Reads a field up to the comma, line break or end of input following it, which is left
+     * unread.
+     */
+    private String readCsvField() throws IOException {
+        text.setLength(0);
+        if (peek() != '"') {
+            for (int c = peek(); c != ',' && c != '\r' && c != '\n' && c != END; c = peek())
+                text.append((char) next());
+            return text.toString();
+        }
+
+        int start = line;
+        next();
+        while (true) {
+            int c = next();
+            if (c == END)
+                throw new ManifestFormatException("Unterminated quoted field", start);
+            if (c == '"') {
+                if (peek() != '"')
+                    break;
+                next();
+            }
+            text.append((char) c);
+        }
+        int c = peek();
+        if (c != ',' && c != '\r' && c != '\n' && c != END)
+            throw new ManifestFormatException("Unexpected character after quoted field",
+                    line);
+        return text.toString();
+    }
+    //endregion
+
+    //region JSON
+    private void readJson() throws IOException {
+        next();
+        skipBlanks();
+        if (peek() == ']') {
+            next();
+            expectEnd();
+            return;
+        }
+
+        while (true) {
+            readJsonObject();
+            skipBlanks();
+            int c = next();
+            if (c == ']')
+                break;
+            if (c != ',')
+                throw new ManifestFormatException("Expected , or ] after an object", line);
+            skipBlanks();
+        }
+        expectEnd();
+    }
+
+    private void readJsonObject() throws IOException {
+        int start = line;
+        if (next() != '{')
+            throw new ManifestFormatException("Expected an object", line);
+
+        String address = null, name = null, ssid = null, password = null;
+        skipBlanks();
+        if (peek() == '}') {
+            next();
+            manifest.reject(start, "empty object");
+            return;
+        }
+        while (true) {
+            skipBlanks();
+            String key = readJsonString();
+            skipBlanks();
+            if (next() != ':')
+                throw new ManifestFormatException("Expected : after a key", line);
+            skipBlanks();
+            switch (key) {
+                case ADDRESS:
+                    address = readJsonValue();
+                    break;
+
+                case NAME:
+                    name = readJsonValue();
+                    break;
+
+                case SSID:
+                    ssid = readJsonValue();
+                    break;
+
+                case PASSWORD:
+                    password = readJsonValue();
+                    break;
+
+                default:
+                    // Other fields may hold any value.
+                    skipJsonValue(0);
+                    break;
+            }
+
+            skipBlanks();
+            int c = next();
+            if (c == '}')
+                break;
+            if (c != ',')
+                throw new ManifestFormatException("Expected , or } in an object", line);
+        }
+        manifest.add(start, address, name, ssid, password);
+    }
+
+    /**
+     * Reads a string or null value.
+     */
+    private String readJsonValue() throws IOException {
+        if (peek() != 'n')
+            return readJsonString();
+        readJsonLiteral("null");
+        return null;
+    }
+
+    /**
+     * Reads any value without keeping it; {@code depth} counts the enclosing arrays and
+     * objects.
+     */
+    private void skipJsonValue(int depth) throws IOException {
+        if (depth == MAX_DEPTH)
+            throw new ManifestFormatException("Value nested too deeply", line);
+        int c = peek();
+        switch (c) {
+            case '"':
+                readJsonString();
+                break;
+
+            case '{':
+            case '[':
+                next();
+                int close = c == '{' ? '}' : ']';
+                skipBlanks();
+                if (peek() == close) {
+                    next();
+                    break;
+                }
+                while (true) {
+                    skipBlanks();
+                    if (close == '}') {
+                        readJsonString();
+                        skipBlanks();
+                        if (next() != ':')
+                            throw new ManifestFormatException("Expected : after a key", line);
+                        skipBlanks();
+                    }
+                    skipJsonValue(depth + 1);
+                    skipBlanks();
+                    c = next();
+                    if (c == close)
+                        break;
+                    if (c != ',')
+                        throw new ManifestFormatException("Expected , or " + (char) close,
+                                line);
+                }
+                break;
+
+            case 't':
+                readJsonLiteral("true");
+                break;
+
+            case 'f':
+                readJsonLiteral("false");
+                break;
+
+            case 'n':
+                readJsonLiteral("null");
+                break;
+
+            default:
+                readJsonNumber();
+                break;
+        }
+    }
+
+    private void readJsonLiteral(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++)
+            if (next() != literal.charAt(i))
+                throw new ManifestFormatException("Expected " + literal, line);
+    }
+
+    /**
+     * Reads a number: an optional minus, an integer part without leading zeros, then optional
+     * fraction and exponent.
+     */
+    private void readJsonNumber() throws IOException {
+        if (peek() == '-')
+            next();
+        if (peek() == '0')
+            next();
+        else if (skipDigits() == 0)
+            throw new ManifestFormatException("Expected a value", line);
+        if (peek() == '.') {
+            next();
+            if (skipDigits() == 0)
+                throw new ManifestFormatException("Expected digits after .", line);
+        }
+        if (peek() == 'e' || peek() == 'E') {
+            next();
+            if (peek() == '+' || peek() == '-')
+                next();
+            if (skipDigits() == 0)
+                throw new ManifestFormatException("Expected digits in the exponent", line);
+        }
+    }
+
+    private int skipDigits() throws IOException {
+        int count = 0;
+        while (peek() >= '0' && peek() <= '9') {
+            next();
+            count++;
+        }
+        return count;
+    }
+
+    private String readJsonString() throws IOException {
+        if (next() != '"')
+            throw new ManifestFormatException("Expected a string", line);
+        text.setLength(0);
+        while (true) {
+            int c = next();
+            if (c == END || c == '\n')
+                throw new ManifestFormatException("Unterminated string", line);
+            if (c == '"')
+                return text.toString();
+            if (c != '\\') {
+                text.append((char) c);
+                continue;
+            }
+
+            c = next();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    text.append((char) c);
+                    break;
+
+                case 'b':
+                    text.append('\b');
+                    break;
+
+                case 'f':
+                    text.append('\f');
+                    break;
+
+                case 'n':
+                    text.append('\n');
+                    break;
+
+                case 'r':
+                    text.append('\r');
+                    break;
+
+                case 't':
+                    text.append('\t');
+                    break;
+
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0)
+                            throw new ManifestFormatException("Invalid \\u escape", line);
+                        value = value * 16 + digit;
+                    }
+                    text.append((char) value);
+                    break;
+
+                default:
+                    throw new ManifestFormatException("Invalid escape", line);
+            }
+        }
+    }
+
+    private void expectEnd() throws IOException {
+        skipBlanks();
+        if (peek() != END)
+            throw new ManifestFormatException("Unexpected content after the array", line);
+    }
+    //endregion
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link DeviceConnector} over the sessions of a {@link SessionPool}, so a
+ * {@link ProvisioningEngine} runs on the link the app already holds for the device instead of
+ * opening a second one. {@link #release} gives the session back to the pool,
+ * {@link #disconnect} drops it from the pool, as a retry after a suspect link needs; either
+ * withdraws an acquire still waiting for a session. Thread safe.
+ */
+public final class PooledConnector implements DeviceConnector {
+    private final SessionPool pool;
+    // Sessions acquired through this connector and not given back yet.
+    private final Map<String, WiFiClient> held = new ConcurrentHashMap<>();
+    // Acquires not served yet, withdrawn when the caller gives up the device.
+    private final Map<String, CompletableFuture<WiFiClient>> acquiring =
+            new ConcurrentHashMap<>();
+
+    public PooledConnector(SessionPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public CompletableFuture<WiFiClient> connect(String address) {
+        CompletableFuture<WiFiClient> acquired = pool.acquire(address);
+        acquiring.put(address, acquired);
+        acquired.whenComplete((client, error) -> acquiring.remove(address, acquired));
+        return acquired.thenApply(client -> {
+            WiFiClient previous = held.put(address, client);
+            if (previous != null)
+                pool.release(address, previous);
+            return client;
+        });
+    }
+
+    @Override
+    public void disconnect(String address) {
+        withdraw(address);
+        // The session is only closed when it was handed out here, else it is someone else's.
+        if (held.remove(address) != null)
+            pool.close(address);
+    }
+
+    @Override
+    public void release(String address) {
+        withdraw(address);
+        WiFiClient client = held.remove(address);
+        if (client != null)
+            pool.release(address, client);
+    }
+
+    /**
+     * Withdraws an acquire of {@code address} still waiting for a session, so it is not
+     * served to a caller that is gone, such as an engine that timed out.
+     */
+    private void withdraw(String address) {
+        CompletableFuture<WiFiClient> acquired = acquiring.remove(address);
+        if (acquired != null)
+            acquired.completeExceptionally(new CancellationException("Acquire of " + address +
+                    " withdrawn"));
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+/**
+ * Provisions single devices through any {@link DeviceConnector}, without Android: connects,
+ * sends the credentials and checks the status the firmware reports, recording the phases into
+ * a {@link ProvisioningTrace}.
+ * <p>
+ * The engine marks the phases it sees itself; connectors that were given the trace by
+ * {@link DeviceConnector#setTrace} add the connection setup phases. A device only counts as
+ * provisioned when it reports {@link WiFiProtocol#WIFI_STATUS_STARTED}: firmware with a command
+ * queue reports it as the result of the command, older firmware is read after the writes.
+ * <p>
+ * Transient failures after the session came up are retried under the {@link RetryPolicy};
+ * connect failures are left to the connector, see {@link RetryingConnector}. A retry resumes
+ * after the last phase the device acknowledged: when the credentials were sent and the device
+ * reports its access point started on the new connection, though it did not before the first
+ * write, they are not sent again. Legacy firmware, which takes the credentials in three writes,
+ * continues with the first write it did not acknowledge; should the resumed attempt fail
+ * because the device lost the earlier writes, such as with a restart, the next attempt starts
+ * over.
+ */
+public final class ProvisioningEngine {
+    private final static class Run {
+        final String address;
+        final Credentials credentials;
+        final int channel;
+        final ProvisioningTrace trace;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        volatile int attempts;
+        // Whether the device reported started before anything was written to it, or null
+        // before the first session.
+        volatile Boolean startedBefore;
+        volatile boolean written;
+        // Legacy writes the device acknowledged, on any connection.
+        volatile int acknowledged;
+        // Whether the current attempt built on writes of an earlier one.
+        volatile boolean resumed;
+
+        Run(String address, Credentials credentials, int channel, ProvisioningTrace trace) {
+            this.address = address;
+            this.credentials = credentials;
+            this.channel = channel;
+            this.trace = trace;
+        }
+    }
+
+    private final DeviceConnector connector;
+    private final ScheduledExecutorService scheduler;
+    private final LongSupplier nanoClock;
+    private final long timeoutMs;
+    private final RetryPolicy policy;
+    private final ProvisioningJournal journal;
+    private final RetryStats stats = new RetryStats();
+
+    public ProvisioningEngine(DeviceConnector connector, ScheduledExecutorService scheduler) {
+        this(connector, scheduler, FleetProvisioner.DEVICE_TIMEOUT_MS);
+    }
+
+    public ProvisioningEngine(DeviceConnector connector, ScheduledExecutorService scheduler,
+                              long timeoutMs) {
+        this(connector, scheduler, timeoutMs, RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * @param timeoutMs time a device may take, retries included
+     */
+    public ProvisioningEngine(DeviceConnector connector, ScheduledExecutorService scheduler,
+                              long timeoutMs, RetryPolicy policy) {
+        this(connector, scheduler, timeoutMs, policy, null);
+    }
+
+    /**
+     * @param journal journal the attempts are recorded into, or null
+     */
+    public ProvisioningEngine(DeviceConnector connector, ScheduledExecutorService scheduler,
+                              long timeoutMs, RetryPolicy policy, ProvisioningJournal journal) {
+        this(connector, scheduler, timeoutMs, policy, journal, System::nanoTime);
+    }
+
+    ProvisioningEngine(DeviceConnector connector, ScheduledExecutorService scheduler,
+                       long timeoutMs, RetryPolicy policy, ProvisioningJournal journal,
+                       LongSupplier nanoClock) {
+        this.connector = connector;
+        this.scheduler = scheduler;
+        this.timeoutMs = timeoutMs;
+        this.policy = policy;
+        this.journal = journal;
+        this.nanoClock = nanoClock;
+    }
+
+    //region Provisioning
+    /**
+     * Provisions {@code address}, then releases the session, or disconnects it after a failure.
+     * Never completes exceptionally: failures, including the timeout, are reported in the
+     * result.
+     *
+     * @param channel soft AP channel, or 0 for the firmware default
+     * @param trace   trace the phases are recorded into, or null
+     */
+    public CompletableFuture<DeviceResult> provision(String address, Credentials credentials,
+                                                     int channel, ProvisioningTrace trace) {
+        long start = nanoClock.getAsLong();
+        if (journal != null)
+            journal.begin(address, ProvisioningPhase.CONNECT_GATT);
+        mark(trace, ProvisioningPhase.CONNECT_GATT);
+
+        Run run = new Run(address, credentials, channel, trace);
+        attempt(run);
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> run.result.completeExceptionally(
+                new TimeoutException("Device " + address + " timed out")), timeoutMs,
+                TimeUnit.MILLISECONDS);
+
+        return run.result.handle((value, error) -> {
+            timeout.cancel(false);
+            if (error == null)
+                connector.release(address);
+            else
+                connector.disconnect(address);
+            long duration = nanoClock.getAsLong() - start;
+            stats.recordOperation(duration, run.attempts, error == null);
+            if (journal != null)
+                journal.finish(address, error == null);
+            return new DeviceResult(address, error == null, RetryPolicy.unwrap(error),
+                    duration, run.attempts);
+        });
+    }
+
+    private void attempt(Run run) {
+        int attempt = ++run.attempts;
+        long start = nanoClock.getAsLong();
+        // Connectors forget the trace once a connection used it.
+        if (run.trace != null)
+            connector.setTrace(run.address, run.trace);
+
+        boolean[] connected = new boolean[1];
+        connector.connect(run.address)
+                .thenCompose(client -> {
+                    connected[0] = true;
+                    // Timed out while connecting: the session was not given back with the run.
+                    if (run.result.isDone()) {
+                        connector.release(run.address);
+                        return run.result;
+                    }
+                    if (journal != null)
+                        journal.mark(run.address, ProvisioningPhase.SERVICES_DISCOVERED);
+                    mark(run.trace, ProvisioningPhase.SERVICES_DISCOVERED);
+                    mark(run.trace, ProvisioningPhase.STATUS_READ);
+                    return send(run, client);
+                })
+                .whenComplete((value, error) -> {
+                    stats.recordAttempt(nanoClock.getAsLong() - start, error);
+                    // Timed out meanwhile.
+                    if (run.result.isDone())
+                        return;
+                    if (error == null) {
+                        run.result.complete(value);
+                        return;
+                    }
+                    boolean retry = connected[0] && policy.shouldRetry(error, attempt);
+                    if (!retry && connected[0] && run.resumed &&
+                            attempt < policy.getMaxAttempts()) {
+                        // The device may have lost the writes the attempt built on.
+                        run.acknowledged = WiFiClient.LEGACY_WRITE_SSID;
+                        retry = true;
+                    }
+                    if (!retry) {
+                        run.result.completeExceptionally(error);
+                        return;
+                    }
+
+                    stats.recordRetry();
+                    connector.disconnect(run.address);
+                    scheduler.schedule(() -> {
+                        if (!run.result.isDone())
+                            attempt(run);
+                    }, policy.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+                });
+    }
+
+    /**
+     * Sends the credentials, unless an earlier attempt of {@code run} already got them
+     * through.
+     */
+    private CompletableFuture<byte[]> send(Run run, WiFiClient client) {
+        byte[] status = client.getSessionStatus();
+        boolean started = isStarted(status);
+        run.resumed = false;
+        if (run.startedBefore == null)
+            run.startedBefore = started;
+        else if (run.written && !run.startedBefore && started) {
+            stats.recordResume();
+            mark(run.trace, ProvisioningPhase.WIFI_STARTED);
+            return CompletableFuture.completedFuture(status);
+        }
+
+        int from = client.supportsProvisionCommand() ? WiFiClient.LEGACY_WRITE_SSID :
+                run.acknowledged;
+        if (from != WiFiClient.LEGACY_WRITE_SSID) {
+            run.resumed = true;
+            stats.recordResume();
+        }
+        run.written = true;
+        return client.provision(run.credentials.getSsid(), run.credentials.getPassword(),
+                run.channel, from, write -> acknowledged(run, write))
+                .thenCompose(value -> started(run, client, value));
+    }
+
+    private void acknowledged(Run run, int write) {
+        run.acknowledged = write + 1;
+        ProvisioningPhase phase = write == WiFiClient.LEGACY_WRITE_SSID ?
+                ProvisioningPhase.SSID_WRITTEN : write == WiFiClient.LEGACY_WRITE_PASSWORD ?
+                ProvisioningPhase.PASSWORD_WRITTEN : ProvisioningPhase.START_WRITTEN;
+        if (journal != null)
+            journal.mark(run.address, phase);
+        mark(run.trace, phase);
+    }
+
+    /**
+     * Completes with the status once the device reports its access point started.
+     */
+    private CompletableFuture<byte[]> started(Run run, WiFiClient client, byte[] value) {
+        boolean reportsStatus = client.getKnownProtocolVersion() >=
+                WiFiProtocol.PROTOCOL_VERSION_COMMAND_QUEUE;
+        // The legacy writes were marked as the device acknowledged them.
+        if (client.supportsProvisionCommand()) {
+            if (journal != null)
+                journal.mark(run.address, ProvisioningPhase.PROVISION_WRITTEN);
+            mark(run.trace, ProvisioningPhase.PROVISION_WRITTEN);
+        }
+        CompletableFuture<byte[]> status = reportsStatus ?
+                CompletableFuture.completedFuture(value) :
+                client.getQueue().read(WiFiGattAttributes.SERVICE_UUID,
+                        client.getStatusCharacteristic());
+
+        return status.thenApply(reported -> {
+            int packed = WiFiStatusCodec.decode(reported);
+            if (packed == WiFiStatusCodec.INVALID)
+                throw new IllegalStateException("Invalid status frame");
+            if (WiFiStatusCodec.statusOf(packed) != WiFiProtocol.WIFI_STATUS_STARTED)
+                throw new IllegalStateException("Device reported status " +
+                        WiFiStatusCodec.statusOf(packed));
+            mark(run.trace, ProvisioningPhase.WIFI_STARTED);
+            return reported;
+        });
+    }
+
+    private static boolean isStarted(byte[] status) {
+        if (status == null)
+            return false;
+        int packed = WiFiStatusCodec.decode(status);
+        return packed != WiFiStatusCodec.INVALID &&
+                WiFiStatusCodec.statusOf(packed) == WiFiProtocol.WIFI_STATUS_STARTED;
+    }
+
+    private static void mark(ProvisioningTrace trace, ProvisioningPhase phase) {
+        if (trace != null)
+            trace.mark(phase);
+    }
+    //endregion
+
+    //region Properties
+    /**
+     * Attempts, retries and resumes of the devices provisioned so far.
+     */
+    public RetryStats getRetryStats() {
+        return stats;
+    }
+
+    public RetryPolicy getPolicy() {
+        return policy;
+    }
+    //endregion
+}
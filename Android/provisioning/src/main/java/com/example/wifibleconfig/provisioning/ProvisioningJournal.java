@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe log of provisioning attempts, so a fleet run cut short by the process dying resumes
+ * without provisioning the finished devices again.
+ * <p>
+ * Every change of an attempt appends a fixed size record with the whole state of the device
+ * (phase reached, result, attempt number and timestamps) to a memory-mapped file, and on
+ * {@link #open} the last valid record of each address wins. Records carry a checksum, so a
+ * record torn by a crash ends the replay instead of corrupting it. Credentials are never written.
+ * <p>
+ * Updates only change the in-memory state and queue the record, which keeps them cheap enough
+ * for GATT callbacks; the queued records are written and forced to storage in one batch on the
+ * scheduler. A full file is compacted to one record per device, dropping devices untouched for
+ * longer than the retention, and doubled only when it would still be more than half full.
+ */
+public final class ProvisioningJournal implements Closeable {
+    public final static int RECORD_LENGTH = 32;
+    public final static int DEFAULT_CAPACITY = 512;
+    public final static long FLUSH_DELAY_MS = 100;
+    public final static long DEFAULT_RETENTION_MS = TimeUnit.DAYS.toMillis(7);
+
+    //region Record layout
+    private final static short MAGIC = 0x574A;
+    private final static int PHASE_OFFSET = 2;
+    private final static int RESULT_OFFSET = 3;
+    private final static int ATTEMPT_OFFSET = 4;
+    private final static int ADDRESS_OFFSET = 8;
+    private final static int STARTED_OFFSET = 16;
+    private final static int UPDATED_OFFSET = 24;
+    private final static int CHECKSUM_OFFSET = 28;
+    //endregion
+
+    private final static ProvisioningPhase[] PHASES = ProvisioningPhase.values();
+    private final static JournalEntry.Result[] RESULTS = JournalEntry.Result.values();
+
+    private final File file;
+    private final File tempFile;
+    private final ScheduledExecutorService scheduler;
+    private final long retentionMs;
+    private final LongSupplier clock;
+
+    //region Device state, guarded by this
+    private final HashMap<Long, JournalEntry> entries = new HashMap<>();
+    private final CRC32 checksum = new CRC32();
+    private byte[] pending = new byte[RECORD_LENGTH * 16];
+    private int pendingLength;
+    private boolean flushScheduled;
+    private boolean closed;
+    //endregion
+
+    //region File, guarded by fileLock
+    private final Object fileLock = new Object();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private long compactions;
+    private IOException error;
+    //endregion
+
+    private ProvisioningJournal(File file, ScheduledExecutorService scheduler, long retentionMs,
+                                LongSupplier clock) {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        this.scheduler = scheduler;
+        this.retentionMs = retentionMs;
+        this.clock = clock;
+    }
+
+    /**
+     * Opens {@code file}, creating it when missing, and replays it. Batches are flushed on
+     * {@code scheduler}.
+     */
+    public static ProvisioningJournal open(File file, ScheduledExecutorService scheduler)
+            throws IOException {
+        return open(file, scheduler, DEFAULT_RETENTION_MS);
+    }
+
+    public static ProvisioningJournal open(File file, ScheduledExecutorService scheduler,
+                                           long retentionMs) throws IOException {
+        return open(file, scheduler, retentionMs, System::currentTimeMillis);
+    }
+
+    static ProvisioningJournal open(File file, ScheduledExecutorService scheduler,
+                                    long retentionMs, LongSupplier clock) throws IOException {
+        ProvisioningJournal journal = new ProvisioningJournal(file, scheduler, retentionMs, clock);
+        journal.recover();
+        return journal;
+    }
+
+    //region Recovery
+    private void recover() throws IOException {
+        // Left by a compaction that did not finish; the journal itself is still intact.
+        if (tempFile.exists() && !tempFile.delete())
+            throw new IOException("Cannot delete " + tempFile);
+
+        synchronized (fileLock) {
+            map(new RandomAccessFile(file, "rw").getChannel(), DEFAULT_CAPACITY);
+
+            byte[] record = new byte[RECORD_LENGTH];
+            synchronized (this) {
+                while (position + RECORD_LENGTH <= buffer.capacity()) {
+                    buffer.position(position);
+                    buffer.get(record);
+                    JournalEntry entry = decode(record);
+                    if (entry == null)
+                        break;
+                    entries.put(entry.getPackedAddress(), entry);
+                    position += RECORD_LENGTH;
+                }
+                evictExpired();
+            }
+
+            // Pages of a batch reach storage in any order, so intact records may follow a torn
+            // one. Replayed after the newer records appended here, they would win; clear them.
+            int end = position;
+            for (int i = position; i < buffer.capacity(); i++) {
+                if (buffer.get(i) != 0)
+                    end = i + 1;
+            }
+            if (end > position) {
+                for (int i = position; i < end; i++)
+                    buffer.put(i, (byte) 0);
+                buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Maps the whole file, at least {@code minCapacity} records.
+     */
+    private void map(FileChannel channel, int minCapacity) throws IOException {
+        int capacity = (int) Math.max(minCapacity, channel.size() / RECORD_LENGTH);
+        this.channel = channel;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_LENGTH);
+    }
+
+    private void evictExpired() {
+        long oldest = clock.getAsLong() - retentionMs;
+        entries.values().removeIf(entry -> entry.getUpdatedMillis() < oldest);
+    }
+    //endregion
+
+    //region Updates
+    /**
+     * Starts a new attempt for {@code address}, which has reached {@code phase}.
+     */
+    public JournalEntry begin(String address, ProvisioningPhase phase) {
+        long key = ScanCache.parseAddress(address);
+        long now = clock.getAsLong();
+        synchronized (this) {
+            JournalEntry previous = entries.get(key);
+            int attempt = previous == null ? 1 : previous.getAttempt() + 1;
+            return append(new JournalEntry(key, phase, JournalEntry.Result.PENDING, attempt, now,
+                    now));
+        }
+    }
+
+    /**
+     * Records that the current attempt reached {@code phase}. Ignored without an attempt.
+     */
+    public JournalEntry mark(String address, ProvisioningPhase phase) {
+        return update(address, phase, JournalEntry.Result.PENDING);
+    }
+
+    /**
+     * Closes the current attempt. A successful attempt reached
+     * {@link ProvisioningPhase#WIFI_STARTED}; a failed one keeps the phase it reached.
+     */
+    public JournalEntry finish(String address, boolean success) {
+        return update(address, success ? ProvisioningPhase.WIFI_STARTED : null,
+                success ? JournalEntry.Result.SUCCEEDED : JournalEntry.Result.FAILED);
+    }
+
+    private JournalEntry update(String address, ProvisioningPhase phase,
+                                JournalEntry.Result result) {
+        long key = ScanCache.parseAddress(address);
+        long now = clock.getAsLong();
+        synchronized (this) {
+            JournalEntry entry = entries.get(key);
+            if (entry == null)
+                return null;
+            return append(new JournalEntry(key, phase == null ? entry.getPhase() : phase, result,
+                    entry.getAttempt(), entry.getStartedMillis(), now));
+        }
+    }
+
+    private JournalEntry append(JournalEntry entry) {
+        entries.put(entry.getPackedAddress(), entry);
+        if (closed)
+            return entry;
+
+        if (pendingLength + RECORD_LENGTH > pending.length)
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        encode(entry, pending, pendingLength);
+        pendingLength += RECORD_LENGTH;
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+        return entry;
+    }
+    //endregion
+
+    //region Flushing
+    /**
+     * Writes the queued records and forces them to storage. Called on the scheduler; callable
+     * directly to persist right away.
+     */
+    public void flush() {
+        synchronized (fileLock) {
+            byte[] batch;
+            synchronized (this) {
+                flushScheduled = false;
+                batch = Arrays.copyOf(pending, pendingLength);
+                pendingLength = 0;
+            }
+            if (channel == null || batch.length == 0)
+                return;
+
+            try {
+                // The compacted file holds the current state, which includes the batch.
+                if (position + batch.length > buffer.capacity()) {
+                    compact();
+                } else {
+                    buffer.position(position);
+                    buffer.put(batch);
+                    position += batch.length;
+                }
+                buffer.force();
+            } catch (IOException e) {
+                // From here on the journal only lives in memory.
+                error = e;
+                closeChannel();
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        byte[] records;
+        synchronized (this) {
+            evictExpired();
+            records = new byte[entries.size() * RECORD_LENGTH];
+            int offset = 0;
+            for (JournalEntry entry : entries.values()) {
+                encode(entry, records, offset);
+                offset += RECORD_LENGTH;
+            }
+        }
+
+        int capacity = buffer.capacity() / RECORD_LENGTH;
+        while (records.length > capacity * RECORD_LENGTH / 2)
+            capacity *= 2;
+
+        // The new file replaces the journal in one rename; until then a crash leaves the old one.
+        try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+            out.setLength((long) capacity * RECORD_LENGTH);
+            out.write(records);
+            out.getFD().sync();
+        }
+        closeChannel();
+        if (!tempFile.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+
+        map(new RandomAccessFile(file, "rw").getChannel(), capacity);
+        position = records.length;
+        compactions++;
+    }
+
+    /**
+     * Flushes the queued records and closes the file. Later updates are kept in memory only.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+        synchronized (fileLock) {
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Everything written was forced already.
+        }
+        channel = null;
+        buffer = null;
+    }
+    //endregion
+
+    //region Encoding
+    private void encode(JournalEntry entry, byte[] data, int offset) {
+        data[offset] = (byte) (MAGIC >> 8);
+        data[offset + 1] = (byte) MAGIC;
+        data[offset + PHASE_OFFSET] = (byte) entry.getPhase().ordinal();
+        data[offset + RESULT_OFFSET] = (byte) entry.getResult().ordinal();
+        putInt(data, offset + ATTEMPT_OFFSET, entry.getAttempt());
+        putLong(data, offset + ADDRESS_OFFSET, entry.getPackedAddress());
+        putLong(data, offset + STARTED_OFFSET, entry.getStartedMillis());
+        putInt(data, offset + UPDATED_OFFSET, (int) Math.min(Integer.MAX_VALUE,
+                entry.getUpdatedMillis() - entry.getStartedMillis()));
+
+        checksum.reset();
+        checksum.update(data, offset, CHECKSUM_OFFSET);
+        putInt(data, offset + CHECKSUM_OFFSET, (int) checksum.getValue());
+    }
+
+    /**
+     * Returns null for a record that is empty, torn or otherwise invalid.
+     */
+    private JournalEntry decode(byte[] data) {
+        if (((data[0] & 0xFF) << 8 | (data[1] & 0xFF)) != MAGIC)
+            return null;
+
+        checksum.reset();
+        checksum.update(data, 0, CHECKSUM_OFFSET);
+        if (getInt(data, CHECKSUM_OFFSET) != (int) checksum.getValue())
+            return null;
+
+        int phase = data[PHASE_OFFSET] & 0xFF;
+        int result = data[RESULT_OFFSET] & 0xFF;
+        if (phase >= PHASES.length || result >= RESULTS.length)
+            return null;
+
+        long started = getLong(data, STARTED_OFFSET);
+        return new JournalEntry(getLong(data, ADDRESS_OFFSET), PHASES[phase], RESULTS[result],
+                getInt(data, ATTEMPT_OFFSET), started, started + getInt(data, UPDATED_OFFSET));
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        putInt(data, offset, (int) (value >>> 32));
+        putInt(data, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        return value;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+    //endregion
+
+    //region Queries
+    public synchronized JournalEntry get(String address) {
+        return entries.get(ScanCache.parseAddress(address));
+    }
+
+    /**
+     * True when the device was provisioned successfully by this or an earlier run.
+     */
+    public synchronized boolean isDone(String address) {
+        JournalEntry entry = entries.get(ScanCache.parseAddress(address));
+        return entry != null && entry.isDone();
+    }
+
+    public synchronized List<JournalEntry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Records in the file, including superseded ones.
+     */
+    public int getRecordCount() {
+        synchronized (fileLock) {
+            return position / RECORD_LENGTH;
+        }
+    }
+
+    public long getCompactions() {
+        synchronized (fileLock) {
+            return compactions;
+        }
+    }
+
+    /**
+     * The write error that detached the journal from its file, or null.
+     */
+    public IOException getError() {
+        synchronized (fileLock) {
+            return error;
+        }
+    }
+    //endregion
+}
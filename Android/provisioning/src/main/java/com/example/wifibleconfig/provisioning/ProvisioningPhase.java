@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+/**
+ * Traced steps of provisioning one device, in the order they normally happen. The compound
+ * command path reports {@link #PROVISION_WRITTEN} instead of the three legacy writes, and
+ * {@link #STATUS_READ} follows {@link #NOTIFICATIONS_ENABLED} when the firmware pushes its status
+ * on subscription.
+ */
+public enum ProvisioningPhase {
+    SCAN_STARTED,
+    SCAN_RESULT,
+    CONNECT_GATT,
+    CONNECTED,
+    SERVICES_DISCOVERED,
+    STATUS_READ,
+    NOTIFICATIONS_ENABLED,
+    SSID_WRITTEN,
+    PASSWORD_WRITTEN,
+    START_WRITTEN,
+    PROVISION_WRITTEN,
+    WIFI_STARTED
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.Arrays;
+
+/**
+ * Phase timestamps of one provisioning attempt. Each phase is recorded once; the time since
+ * the previously recorded phase goes into the phase histogram of the owning
+ * {@link ProvisioningTracer}. {@link ProvisioningPhase#WIFI_STARTED} closes the trace and
+ * records the end to end time.
+ */
+public final class ProvisioningTrace {
+    private final static long NOT_RECORDED = Long.MIN_VALUE;
+
+    private final ProvisioningTracer tracer;
+    private final long[] timestamps = new long[ProvisioningPhase.values().length];
+    private long firstNanos = NOT_RECORDED;
+    private long lastNanos;
+    private boolean finished;
+    private String profile;
+    private long connectionIntervalMicros = NOT_RECORDED;
+
+    ProvisioningTrace(ProvisioningTracer tracer) {
+        this.tracer = tracer;
+        Arrays.fill(timestamps, NOT_RECORDED);
+    }
+
+    /**
+     * Records {@code phase} now. Returns true when this mark finished the trace.
+     */
+    public boolean mark(ProvisioningPhase phase) {
+        long now = tracer.now();
+        synchronized (this) {
+            int index = phase.ordinal();
+            if (finished || timestamps[index] != NOT_RECORDED)
+                return false;
+
+            timestamps[index] = now;
+            if (firstNanos == NOT_RECORDED)
+                firstNanos = now;
+            else
+                tracer.getHistogram(phase).recordNanos(now - lastNanos);
+            lastNanos = now;
+
+            if (phase != ProvisioningPhase.WIFI_STARTED)
+                return false;
+            finished = true;
+        }
+
+        tracer.getTotal().recordNanos(now - firstNanos);
+        String linkProfile;
+        long intervalMicros;
+        synchronized (this) {
+            linkProfile = profile;
+            intervalMicros = connectionIntervalMicros;
+        }
+        if (linkProfile != null)
+            tracer.recordProfile(linkProfile, intervalMicros, now - firstNanos);
+        return true;
+    }
+
+    /**
+     * Names the link profile the connection was tuned with.
+     */
+    public synchronized void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Records the connection interval negotiated with the device; the last one counts.
+     */
+    public synchronized void setConnectionIntervalMicros(long connectionIntervalMicros) {
+        this.connectionIntervalMicros = connectionIntervalMicros;
+    }
+
+    /**
+     * Time from the first recorded phase to {@code phase} in nanoseconds, or -1 when the phase
+     * was not recorded.
+     */
+    public synchronized long getElapsedNanos(ProvisioningPhase phase) {
+        long timestamp = timestamps[phase.ordinal()];
+        return timestamp == NOT_RECORDED ? -1 : timestamp - firstNanos;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+}
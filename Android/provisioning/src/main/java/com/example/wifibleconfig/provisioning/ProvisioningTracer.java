@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms of the provisioning phases, fed by {@link ProvisioningTrace}s. Traces
+ * tagged with a link profile also feed that profile's end to end and negotiated connection
+ * interval histograms, to compare the profiles.
+ * <p>
+ * Timestamps come from a monotonic clock and recording allocates nothing, so tracing can stay
+ * enabled in release builds. Results are exported as text ({@link #dump}) or JSON
+ * ({@link #writeJson}).
+ */
+public final class ProvisioningTracer {
+    private final static ProvisioningPhase[] PHASES = ProvisioningPhase.values();
+
+    private final static class ProfileHistograms {
+        final LatencyHistogram total = new LatencyHistogram();
+        final LatencyHistogram interval = new LatencyHistogram();
+    }
+
+    private final LongSupplier nanoClock;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final ConcurrentHashMap<String, ProfileHistograms> profiles =
+            new ConcurrentHashMap<>();
+
+    public ProvisioningTracer() {
+        this(System::nanoTime);
+    }
+
+    public ProvisioningTracer(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    public ProvisioningTrace begin() {
+        return new ProvisioningTrace(this);
+    }
+
+    long now() {
+        return nanoClock.getAsLong();
+    }
+
+    //region Histograms
+    /**
+     * Time from the previous recorded phase to {@code phase}.
+     */
+    public LatencyHistogram getHistogram(ProvisioningPhase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * End to end time from the first phase of a trace to {@link ProvisioningPhase#WIFI_STARTED}.
+     */
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /**
+     * Link profiles with at least one finished trace, sorted by name.
+     */
+    public Set<String> getProfiles() {
+        return new TreeSet<>(profiles.keySet());
+    }
+
+    /**
+     * End to end time of the traces tuned with {@code profile}, or null when there are none.
+     */
+    public LatencyHistogram getProfileTotal(String profile) {
+        ProfileHistograms histograms = profiles.get(profile);
+        return histograms == null ? null : histograms.total;
+    }
+
+    /**
+     * Connection interval negotiated under {@code profile}, one value per finished trace, or
+     * null when there are no traces.
+     */
+    public LatencyHistogram getProfileInterval(String profile) {
+        ProfileHistograms histograms = profiles.get(profile);
+        return histograms == null ? null : histograms.interval;
+    }
+
+    void recordProfile(String profile, long intervalMicros, long totalNanos) {
+        ProfileHistograms histograms = profiles.computeIfAbsent(profile,
+                key -> new ProfileHistograms());
+        histograms.total.recordNanos(totalNanos);
+        if (intervalMicros > 0)
+            histograms.interval.recordMicros(intervalMicros);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms)
+            histogram.reset();
+        total.reset();
+        profiles.clear();
+    }
+    //endregion
+
+    //region Export
+    /**
+     * Appends one line per recorded phase, the end to end line and two lines per link profile.
+     */
+    public void dump(Appendable out) throws IOException {
+        for (ProvisioningPhase phase : PHASES) {
+            LatencyHistogram histogram = getHistogram(phase);
+            if (histogram.getCount() > 0)
+                out.append(phase.name()).append(' ').append(histogram.toString()).append('\n');
+        }
+        out.append("TOTAL ").append(total.toString()).append('\n');
+        for (Map.Entry<String, ProfileHistograms> entry : new TreeMap<>(profiles).entrySet()) {
+            out.append(entry.getKey()).append(" INTERVAL ")
+                    .append(entry.getValue().interval.toString()).append('\n');
+            out.append(entry.getKey()).append(" TOTAL ")
+                    .append(entry.getValue().total.toString()).append('\n');
+        }
+    }
+
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            dump(builder);
+        } catch (IOException e) {
+            // StringBuilder does not throw.
+        }
+        return builder.toString();
+    }
+
+    public void writeJson(Writer writer) throws IOException {
+        writer.write("{\n  \"phases\": {\n");
+        boolean first = true;
+        for (ProvisioningPhase phase : PHASES) {
+            LatencyHistogram histogram = getHistogram(phase);
+            if (histogram.getCount() == 0)
+                continue;
+            if (!first)
+                writer.write(",\n");
+            first = false;
+            writer.write("    \"" + phase.name() + "\": ");
+            writeJson(writer, histogram);
+        }
+        writer.write("\n  },\n  \"total\": ");
+        writeJson(writer, total);
+        writer.write(",\n  \"profiles\": {");
+        first = true;
+        for (Map.Entry<String, ProfileHistograms> entry : new TreeMap<>(profiles).entrySet()) {
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("    \"" + entry.getKey() + "\": {\"interval\": ");
+            writeJson(writer, entry.getValue().interval);
+            writer.write(", \"total\": ");
+            writeJson(writer, entry.getValue().total);
+            writer.write("}");
+        }
+        writer.write("\n  }\n}\n");
+        writer.flush();
+    }
+
+    private static void writeJson(Writer writer, LatencyHistogram histogram)
+            throws IOException {
+        writer.write(String.format(Locale.ROOT, "{\"count\": %d, \"min_ms\": %.3f, " +
+                        "\"mean_ms\": %.3f, \"p50_ms\": %.3f, \"p90_ms\": %.3f, " +
+                        "\"p99_ms\": %.3f, \"max_ms\": %.3f}", histogram.getCount(),
+                histogram.getMinMillis(), histogram.getMeanMillis(),
+                histogram.getPercentileMillis(50), histogram.getPercentileMillis(90),
+                histogram.getPercentileMillis(99), histogram.getMaxMillis()));
+    }
+    //endregion
+}
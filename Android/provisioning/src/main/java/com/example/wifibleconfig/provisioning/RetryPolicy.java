@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.GattConnectionException;
+import com.example.wifibleconfig.protocol.gatt.GattException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Decides which failures are worth another attempt and when it starts.
+ * <p>
+ * Failures of the link (status 133 on connect, supervision timeouts, a busy stack, lost
+ * callbacks) are transient: the same operation usually succeeds a moment later. Failures the
+ * device answered (an attribute it does not permit, a missing service, a status it reported)
+ * are permanent and fail at once. Retries wait an exponentially growing delay with equal
+ * jitter, so devices failing together do not retry in lockstep and the stack always gets a
+ * moment to release the failed connection.
+ * <p>
+ * Hedging cuts the tail of connects that hang until the platform gives up: once enough
+ * connects were observed, an attempt still pending at their {@link #HEDGE_PERCENTILE}th
+ * percentile is abandoned and a new one started right away. As a device takes one connection
+ * request at a time, the abandoned connect is cancelled through
+ * {@link DeviceConnector#disconnect} before the new one starts. Immutable.
+ */
+public final class RetryPolicy {
+    public final static int DEFAULT_MAX_ATTEMPTS = 4;
+    public final static long DEFAULT_BASE_DELAY_MS = 250;
+    public final static long DEFAULT_MAX_DELAY_MS = 4000;
+
+    public final static double HEDGE_PERCENTILE = 95;
+    public final static int HEDGE_MIN_SAMPLES = 20;
+    public final static long MIN_HEDGE_DELAY_MS = 1000;
+    public final static long NO_HEDGE = -1;
+
+    public final static RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_ATTEMPTS,
+            DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, true);
+    /**
+     * A single attempt, no hedging.
+     */
+    public final static RetryPolicy NONE = new RetryPolicy(1, 0, 0, false);
+
+    // ATT errors the device answers the same way every time.
+    private final static int GATT_INVALID_HANDLE = 0x01;
+    private final static int GATT_READ_NOT_PERMITTED = 0x02;
+    private final static int GATT_WRITE_NOT_PERMITTED = 0x03;
+    private final static int GATT_INSUFFICIENT_AUTHENTICATION = 0x05;
+    private final static int GATT_REQUEST_NOT_SUPPORTED = 0x06;
+    private final static int GATT_INVALID_OFFSET = 0x07;
+    private final static int GATT_INSUFFICIENT_AUTHORIZATION = 0x08;
+    private final static int GATT_ATTRIBUTE_NOT_FOUND = 0x0A;
+    private final static int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+    private final static int GATT_INSUFFICIENT_ENCRYPTION = 0x0F;
+
+    public enum Failure {
+        TRANSIENT,
+        PERMANENT
+    }
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final boolean hedging;
+
+    /**
+     * @param maxAttempts attempts including the first one
+     * @param baseDelayMs delay ceiling before the first retry, doubled for every further one
+     * @param maxDelayMs  upper bound of the delay ceiling
+     * @param hedging     abandons connects that take longer than almost all others
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, boolean hedging) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        if (baseDelayMs < 0 || maxDelayMs < baseDelayMs)
+            throw new IllegalArgumentException("Delays must satisfy 0 <= base <= max");
+
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.hedging = hedging;
+    }
+
+    //region Classification
+    public static Failure classify(Throwable error) {
+        Throwable cause = unwrap(error);
+        if (cause instanceof GattConnectionException)
+            return Failure.TRANSIENT;
+        if (cause instanceof GattException)
+            return isPermanentStatus(((GattException) cause).getStatus()) ? Failure.PERMANENT :
+                    Failure.TRANSIENT;
+        if (cause instanceof TimeoutException || cause instanceof IOException)
+            return Failure.TRANSIENT;
+        // Cancellation, invalid frames and statuses the firmware reported.
+        return Failure.PERMANENT;
+    }
+
+    /**
+     * Returns true for ATT errors of a GATT operation that another attempt gets again. Other
+     * statuses, 133 in particular, come from the stack or the link.
+     */
+    public static boolean isPermanentStatus(int status) {
+        switch (status) {
+            case GATT_INVALID_HANDLE:
+            case GATT_READ_NOT_PERMITTED:
+            case GATT_WRITE_NOT_PERMITTED:
+            case GATT_INSUFFICIENT_AUTHENTICATION:
+            case GATT_REQUEST_NOT_SUPPORTED:
+            case GATT_INVALID_OFFSET:
+            case GATT_INSUFFICIENT_AUTHORIZATION:
+            case GATT_ATTRIBUTE_NOT_FOUND:
+            case GATT_INVALID_ATTRIBUTE_LENGTH:
+            case GATT_INSUFFICIENT_ENCRYPTION:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Status of a GATT failure, or null for other failures.
+     */
+    public static Integer statusOf(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause instanceof GattException ? ((GattException) cause).getStatus() : null;
+    }
+
+    /**
+     * The failure itself, without the wrappers of CompletableFuture.
+     */
+    public static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) &&
+                error.getCause() != null)
+            error = error.getCause();
+        return error;
+    }
+    //endregion
+
+    //region Scheduling
+    /**
+     * Returns true when attempt {@code attempt}, counted from 1, failed with {@code error} and
+     * another one should follow.
+     */
+    public boolean shouldRetry(Throwable error, int attempt) {
+        return attempt < maxAttempts && classify(error) == Failure.TRANSIENT;
+    }
+
+    /**
+     * Delay before retry {@code retry}, counted from 1: at least half of the current ceiling,
+     * plus a random share of the other half.
+     */
+    public long backoffMillis(int retry) {
+        long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(retry - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling - ceiling / 2 + 1);
+    }
+
+    /**
+     * Time after which a pending connect is abandoned for a new one, from the latencies of
+     * the connects that succeeded, or {@link #NO_HEDGE} while there are too few of them.
+     */
+    public long hedgeDelayMillis(LatencyHistogram connects) {
+        if (!hedging || connects.getCount() < HEDGE_MIN_SAMPLES)
+            return NO_HEDGE;
+        return Math.max(MIN_HEDGE_DELAY_MS,
+                (long) Math.ceil(connects.getPercentileMillis(HEDGE_PERCENTILE)));
+    }
+    //endregion
+
+    //region Properties
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMs;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMs;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+    //endregion
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts + ", baseDelay=" + baseDelayMs +
+                "ms, maxDelay=" + maxDelayMs + "ms, hedging=" + hedging + "}";
+    }
+}
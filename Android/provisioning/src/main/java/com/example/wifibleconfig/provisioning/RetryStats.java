@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the attempts, retries and failures of a retrying layer, with the latency of single
+ * attempts and of whole operations including their retries, to see how much of the tail the
+ * retries cost or save.
+ * <p>
+ * Safe to update from any thread; counters and histograms never allocate.
+ */
+public final class RetryStats {
+    /**
+     * Attempts an operation may need to be counted separately; later ones share the last slot.
+     */
+    public final static int MAX_COUNTED_ATTEMPTS = 8;
+
+    private final LatencyHistogram attemptLatency = new LatencyHistogram();
+    private final LatencyHistogram successLatency = new LatencyHistogram();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong transientFailures = new AtomicLong();
+    private final AtomicLong permanentFailures = new AtomicLong();
+    private final AtomicLongArray succeededOnAttempt = new AtomicLongArray(MAX_COUNTED_ATTEMPTS);
+    // Failed attempts by GATT status; only a handful of statuses ever show up.
+    private final TreeMap<Integer, Long> statuses = new TreeMap<>();
+
+    //region Recording
+    void recordAttempt(long nanos, Throwable error) {
+        attempts.incrementAndGet();
+        attemptLatency.recordNanos(nanos);
+        if (error == null) {
+            successLatency.recordNanos(nanos);
+            return;
+        }
+
+        if (RetryPolicy.classify(error) == RetryPolicy.Failure.TRANSIENT)
+            transientFailures.incrementAndGet();
+        else
+            permanentFailures.incrementAndGet();
+        Integer status = RetryPolicy.statusOf(error);
+        if (status != null)
+            synchronized (statuses) {
+                statuses.merge(status, 1L, Long::sum);
+            }
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordHedge() {
+        hedges.incrementAndGet();
+    }
+
+    void recordResume() {
+        resumes.incrementAndGet();
+    }
+
+    /**
+     * An operation finished after {@code attempts} attempts.
+     */
+    void recordOperation(long nanos, int attempts, boolean success) {
+        operations.incrementAndGet();
+        totalLatency.recordNanos(nanos);
+        if (!success) {
+            failed.incrementAndGet();
+            return;
+        }
+        succeededOnAttempt.incrementAndGet(Math.min(attempts, MAX_COUNTED_ATTEMPTS) - 1);
+        if (attempts > 1)
+            recovered.incrementAndGet();
+    }
+
+    public void reset() {
+        attemptLatency.reset();
+        successLatency.reset();
+        totalLatency.reset();
+        for (AtomicLong counter : new AtomicLong[]{operations, attempts, retries, hedges,
+                resumes, recovered, failed, transientFailures, permanentFailures})
+            counter.set(0);
+        for (int i = 0; i < MAX_COUNTED_ATTEMPTS; i++)
+            succeededOnAttempt.set(i, 0);
+        synchronized (statuses) {
+            statuses.clear();
+        }
+    }
+    //endregion
+
+    //region Histograms
+    /**
+     * Every single attempt, failed or not.
+     */
+    public LatencyHistogram getAttemptLatency() {
+        return attemptLatency;
+    }
+
+    /**
+     * Attempts that succeeded; what hedging compares pending attempts against.
+     */
+    public LatencyHistogram getSuccessLatency() {
+        return successLatency;
+    }
+
+    /**
+     * Whole operations, from the first attempt to the last one, including the backoff.
+     */
+    public LatencyHistogram getTotalLatency() {
+        return totalLatency;
+    }
+    //endregion
+
+    //region Counters
+    public long getOperations() {
+        return operations.get();
+    }
+
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Attempts abandoned for taking longer than almost all others.
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Retries that found the work of an earlier attempt already applied by the device.
+     */
+    public long getResumes() {
+        return resumes.get();
+    }
+
+    /**
+     * Operations that succeeded after at least one failed attempt.
+     */
+    public long getRecovered() {
+        return recovered.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getTransientFailures() {
+        return transientFailures.get();
+    }
+
+    public long getPermanentFailures() {
+        return permanentFailures.get();
+    }
+
+    /**
+     * Operations that succeeded on attempt {@code attempt}, counted from 1.
+     */
+    public long getSucceededOnAttempt(int attempt) {
+        return succeededOnAttempt.get(Math.min(attempt, MAX_COUNTED_ATTEMPTS) - 1);
+    }
+
+    /**
+     * Failed attempts by GATT status.
+     */
+    public Map<Integer, Long> getStatusCounts() {
+        synchronized (statuses) {
+            return new TreeMap<>(statuses);
+        }
+    }
+    //endregion
+
+    //region Export
+    public void dump(Appendable out) throws IOException {
+        out.append("OPERATIONS ").append(Long.toString(getOperations()))
+                .append(" attempts=").append(Long.toString(getAttempts()))
+                .append(" retries=").append(Long.toString(getRetries()))
+                .append(" hedges=").append(Long.toString(getHedges()))
+                .append(" resumes=").append(Long.toString(getResumes()))
+                .append(" recovered=").append(Long.toString(getRecovered()))
+                .append(" failed=").append(Long.toString(getFailed())).append('\n');
+        out.append("FAILURES transient=").append(Long.toString(getTransientFailures()))
+                .append(" permanent=").append(Long.toString(getPermanentFailures()));
+        for (Map.Entry<Integer, Long> entry : getStatusCounts().entrySet())
+            out.append(" status").append(Integer.toString(entry.getKey())).append('=')
+                    .append(Long.toString(entry.getValue()));
+        out.append('\n');
+        out.append("SUCCEEDED_ON_ATTEMPT");
+        for (int i = 1; i <= MAX_COUNTED_ATTEMPTS; i++) {
+            long count = getSucceededOnAttempt(i);
+            if (count > 0)
+                out.append(' ').append(i == MAX_COUNTED_ATTEMPTS ? i + "+" :
+                        Integer.toString(i)).append('=').append(Long.toString(count));
+        }
+        out.append('\n');
+        out.append("ATTEMPT ").append(attemptLatency.toString()).append('\n');
+        out.append("TOTAL ").append(totalLatency.toString()).append('\n');
+    }
+
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            dump(builder);
+        } catch (IOException e) {
+            // StringBuilder does not throw.
+        }
+        return builder.toString();
+    }
+    //endregion
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+/**
+ * Retries failed connects of another {@link DeviceConnector} under a {@link RetryPolicy}.
+ * <p>
+ * A connect that fails transiently, such as with status 133, is disconnected and started again
+ * after the backoff of the policy; one that fails permanently or runs out of attempts fails
+ * the returned future. With hedging, an attempt still pending after the
+ * {@link RetryPolicy#hedgeDelayMillis hedge delay} is abandoned: the wrapped connector is
+ * disconnected, which cancels the pending platform connect, and only then does the next attempt
+ * start. Losses of links that were never handed out are not reported to the listener. Thread
+ * safe.
+ */
+public final class RetryingConnector implements DeviceConnector, DeviceConnector.Listener {
+    private final static class Connect {
+        final String address;
+        final CompletableFuture<WiFiClient> result = new CompletableFuture<>();
+        final long start;
+        ProvisioningTrace trace;
+        int attempts;
+        boolean hedged;
+        CompletableFuture<WiFiClient> current;
+        ScheduledFuture<?> timer;
+
+        Connect(String address, long start) {
+            this.address = address;
+            this.start = start;
+        }
+    }
+
+    private final DeviceConnector connector;
+    private final ScheduledExecutorService scheduler;
+    private final RetryPolicy policy;
+    private final LongSupplier nanoClock;
+    private final RetryStats stats = new RetryStats();
+    private final HashMap<String, Connect> pending = new HashMap<>();
+    private final HashMap<String, ProvisioningTrace> traces = new HashMap<>();
+    private volatile Listener listener;
+
+    public RetryingConnector(DeviceConnector connector, ScheduledExecutorService scheduler) {
+        this(connector, scheduler, RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * Becomes the listener of {@code connector}.
+     */
+    public RetryingConnector(DeviceConnector connector, ScheduledExecutorService scheduler,
+                             RetryPolicy policy) {
+        this(connector, scheduler, policy, System::nanoTime);
+    }
+
+    RetryingConnector(DeviceConnector connector, ScheduledExecutorService scheduler,
+                      RetryPolicy policy, LongSupplier nanoClock) {
+        this.connector = connector;
+        this.scheduler = scheduler;
+        this.policy = policy;
+        this.nanoClock = nanoClock;
+        connector.setListener(this);
+    }
+
+    //region DeviceConnector
+    @Override
+    public CompletableFuture<WiFiClient> connect(String address) {
+        Connect connect = new Connect(address, nanoClock.getAsLong());
+        Connect previous;
+        synchronized (this) {
+            connect.trace = traces.remove(address);
+            previous = pending.put(address, connect);
+        }
+        if (previous != null)
+            previous.result.completeExceptionally(new CancellationException(
+                    "Superseded by a new connect"));
+        attempt(connect);
+        return connect.result;
+    }
+
+    @Override
+    public void disconnect(String address) {
+        Connect connect;
+        synchronized (this) {
+            connect = pending.remove(address);
+            traces.remove(address);
+        }
+        if (connect != null) {
+            cancelTimer(connect);
+            connect.result.completeExceptionally(new CancellationException(
+                    "Disconnected while connecting"));
+        }
+        connector.disconnect(address);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void setTrace(String address, ProvisioningTrace trace) {
+        traces.put(address, trace);
+    }
+    //endregion
+
+    //region Attempts
+    private void attempt(Connect connect) {
+        ProvisioningTrace trace;
+        synchronized (this) {
+            if (pending.get(connect.address) != connect)
+                return;
+            connect.attempts++;
+            connect.hedged = false;
+            trace = connect.trace;
+        }
+
+        // The connector is called outside the lock, it may report back on this thread.
+        long start = nanoClock.getAsLong();
+        if (trace != null)
+            connector.setTrace(connect.address, trace);
+        CompletableFuture<WiFiClient> attempt;
+        try {
+            attempt = connector.connect(connect.address);
+        } catch (RuntimeException e) {
+            attempt = new CompletableFuture<>();
+            attempt.completeExceptionally(e);
+        }
+
+        boolean abandoned;
+        synchronized (this) {
+            abandoned = pending.get(connect.address) != connect;
+            if (!abandoned) {
+                connect.current = attempt;
+                long hedgeDelay = policy.hedgeDelayMillis(stats.getSuccessLatency());
+                if (hedgeDelay != RetryPolicy.NO_HEDGE &&
+                        connect.attempts < policy.getMaxAttempts())
+                    connect.timer = scheduler.schedule(() -> hedge(connect), hedgeDelay,
+                            TimeUnit.MILLISECONDS);
+            }
+        }
+        if (abandoned) {
+            // Disconnected while the attempt started; a superseding connect keeps the link.
+            if (!isPending(connect.address))
+                connector.disconnect(connect.address);
+            return;
+        }
+
+        CompletableFuture<WiFiClient> current = attempt;
+        current.whenComplete((client, error) -> completed(connect, current, client, error,
+                nanoClock.getAsLong() - start));
+    }
+
+    private synchronized boolean isPending(String address) {
+        return pending.containsKey(address);
+    }
+
+    /**
+     * Abandons the current attempt of {@code connect}, it takes longer than almost all others.
+     */
+    private void hedge(Connect connect) {
+        CompletableFuture<WiFiClient> current;
+        synchronized (this) {
+            if (pending.get(connect.address) != connect)
+                return;
+            connect.hedged = true;
+            current = connect.current;
+        }
+        stats.recordHedge();
+        current.completeExceptionally(new TimeoutException("Connect to " + connect.address +
+                " hedged"));
+    }
+
+    private void completed(Connect connect, CompletableFuture<WiFiClient> attempt,
+                           WiFiClient client, Throwable error, long nanos) {
+        stats.recordAttempt(nanos, error);
+        boolean retry;
+        boolean hedged;
+        synchronized (this) {
+            if (pending.get(connect.address) != connect || connect.current != attempt) {
+                // Disconnected or superseded meanwhile; the connector closed the link.
+                return;
+            }
+            cancelTimer(connect);
+            hedged = connect.hedged;
+            retry = error != null && connect.attempts < policy.getMaxAttempts() &&
+                    (hedged || policy.shouldRetry(error, connect.attempts));
+            if (!retry)
+                pending.remove(connect.address);
+        }
+
+        if (error == null) {
+            stats.recordOperation(nanoClock.getAsLong() - connect.start, connect.attempts, true);
+            connect.result.complete(client);
+            return;
+        }
+
+        connector.disconnect(connect.address);
+        if (!retry) {
+            stats.recordOperation(nanoClock.getAsLong() - connect.start, connect.attempts,
+                    false);
+            connect.result.completeExceptionally(RetryPolicy.unwrap(error));
+            return;
+        }
+
+        stats.recordRetry();
+        long delay = hedged ? 0 : policy.backoffMillis(connect.attempts);
+        scheduler.schedule(() -> attempt(connect), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void cancelTimer(Connect connect) {
+        if (connect.timer != null) {
+            connect.timer.cancel(false);
+            connect.timer = null;
+        }
+    }
+    //endregion
+
+    //region DeviceConnector.Listener
+    @Override
+    public void onDisconnected(String address) {
+        synchronized (this) {
+            // A failed attempt; the next one or the caller takes over.
+            if (pending.containsKey(address))
+                return;
+        }
+        Listener listener = this.listener;
+        if (listener != null)
+            listener.onDisconnected(address);
+    }
+    //endregion
+
+    //region Properties
+    /**
+     * Connect attempts, retries and hedges so far.
+     */
+    public RetryStats getStats() {
+        return stats;
+    }
+
+    public RetryPolicy getPolicy() {
+        return policy;
+    }
+    //endregion
+}
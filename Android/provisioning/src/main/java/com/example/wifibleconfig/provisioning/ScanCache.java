@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of scan results keyed by device address.
+ * <p>
+ * Entries live in parallel primitive arrays indexed through an open addressing table on the
+ * 48-bit address, so an update for a known device allocates nothing. RSSI is smoothed with an
+ * exponentially weighted moving average. The least recently seen entry is evicted when the
+ * cache is full, and entries not seen for the TTL are ignored and dropped.
+ * <p>
+ * Provisioned devices are remembered apart from the entries, in a sorted array of addresses
+ * that eviction and expiry do not touch, so a provisioned device seen again after being
+ * evicted is not offered again. A session provisions few devices, so the array stays small.
+ */
+public final class ScanCache {
+    public final static int DEFAULT_CAPACITY = 128;
+    public final static long DEFAULT_TTL_MS = 10000;
+    public final static float DEFAULT_SMOOTHING = 0.25f;
+
+    private final static int NONE = -1;
+    private final static int INITIAL_PROVISIONED = 16;
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final float smoothing;
+    private final LongSupplier nanoClock;
+
+    //region Entries
+    private final long[] addresses;
+    private final String[] addressStrings;
+    private final String[] names;
+    private final float[] rssi;
+    private final long[] seenNanos;
+    private final boolean[] provisioned;
+    // Doubly linked recency list: head is the most recently seen entry. The free list reuses
+    // the next links.
+    private final int[] previous;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int free = NONE;
+    private int allocated;
+    private int size;
+    //endregion
+
+    // Open addressing table with linear probing; holds entry index + 1, 0 is an empty slot.
+    private final int[] table;
+    private final int mask;
+
+    // Addresses marked provisioned, sorted; outlive their entries.
+    private long[] provisionedAddresses = new long[INITIAL_PROVISIONED];
+    private int provisionedCount;
+
+    public ScanCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MS, DEFAULT_SMOOTHING);
+    }
+
+    public ScanCache(int capacity, long ttlMs, float smoothing) {
+        this(capacity, ttlMs, smoothing, System::nanoTime);
+    }
+
+    ScanCache(int capacity, long ttlMs, float smoothing, LongSupplier nanoClock) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        if (smoothing <= 0 || smoothing > 1)
+            throw new IllegalArgumentException("smoothing must be in (0, 1]");
+
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.smoothing = smoothing;
+        this.nanoClock = nanoClock;
+
+        addresses = new long[capacity];
+        addressStrings = new String[capacity];
+        names = new String[capacity];
+        rssi = new float[capacity];
+        seenNanos = new long[capacity];
+        provisioned = new boolean[capacity];
+        previous = new int[capacity];
+        next = new int[capacity];
+
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    //region Updates
+    /**
+     * Records one advertisement. Returns true when the device was not in the cache.
+     */
+    public synchronized boolean update(String address, String name, int sampleRssi) {
+        long key = parseAddress(address);
+        long now = nanoClock.getAsLong();
+        int entry = find(key);
+        if (entry != NONE) {
+            rssi[entry] += smoothing * (sampleRssi - rssi[entry]);
+            seenNanos[entry] = now;
+            if (name != null)
+                names[entry] = name;
+            touch(entry);
+            return false;
+        }
+
+        evictExpired(now);
+        entry = allocate();
+        addresses[entry] = key;
+        addressStrings[entry] = address;
+        names[entry] = name;
+        rssi[entry] = sampleRssi;
+        seenNanos[entry] = now;
+        provisioned[entry] = isProvisioned(key);
+        insert(key, entry);
+        linkFirst(entry);
+        size++;
+        return true;
+    }
+
+    /**
+     * Excludes the device from {@link #bestUnprovisioned} from now on, also when it is evicted
+     * and seen again.
+     */
+    public synchronized void markProvisioned(String address) {
+        long key = parseAddress(address);
+        int entry = find(key);
+        if (entry != NONE)
+            provisioned[entry] = true;
+
+        int index = Arrays.binarySearch(provisionedAddresses, 0, provisionedCount, key);
+        if (index >= 0)
+            return;
+        index = -index - 1;
+        if (provisionedCount == provisionedAddresses.length)
+            provisionedAddresses = Arrays.copyOf(provisionedAddresses, provisionedCount * 2);
+        System.arraycopy(provisionedAddresses, index, provisionedAddresses, index + 1,
+                provisionedCount - index);
+        provisionedAddresses[index] = key;
+        provisionedCount++;
+    }
+
+    public synchronized void remove(String address) {
+        int entry = find(parseAddress(address));
+        if (entry != NONE)
+            release(entry);
+    }
+
+    /**
+     * Drops all entries; devices marked provisioned stay excluded.
+     */
+    public synchronized void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(addressStrings, null);
+        Arrays.fill(names, null);
+        head = NONE;
+        tail = NONE;
+        free = NONE;
+        allocated = 0;
+        size = 0;
+    }
+
+    /**
+     * Drops entries not seen for the TTL.
+     */
+    public synchronized void evictExpired() {
+        evictExpired(nanoClock.getAsLong());
+    }
+
+    private void evictExpired(long now) {
+        // The tail is the least recently seen entry, so expired entries are all at the end.
+        while (tail != NONE && now - seenNanos[tail] > ttlNanos)
+            release(tail);
+    }
+    //endregion
+
+    //region Queries
+    /**
+     * Address of the live, unprovisioned device with the strongest smoothed RSSI that is not
+     * weaker than {@code minRssi}, or null when there is none.
+     */
+    public synchronized String bestUnprovisioned(int minRssi) {
+        long now = nanoClock.getAsLong();
+        int best = NONE;
+        for (int entry = head; entry != NONE; entry = next[entry]) {
+            if (now - seenNanos[entry] > ttlNanos)
+                break;
+            if (!provisioned[entry] && rssi[entry] >= minRssi &&
+                    (best == NONE || rssi[entry] > rssi[best]))
+                best = entry;
+        }
+        return best == NONE ? null : addressStrings[best];
+    }
+
+    public String bestUnprovisioned() {
+        return bestUnprovisioned(Integer.MIN_VALUE);
+    }
+
+    /**
+     * Smoothed RSSI of the device, or {@link Float#NaN} when it is not cached.
+     */
+    public synchronized float getRssi(String address) {
+        int entry = find(parseAddress(address));
+        return entry == NONE ? Float.NaN : rssi[entry];
+    }
+
+    public synchronized String getName(String address) {
+        int entry = find(parseAddress(address));
+        return entry == NONE ? null : names[entry];
+    }
+
+    public synchronized boolean contains(String address) {
+        return find(parseAddress(address)) != NONE;
+    }
+
+    public synchronized boolean isProvisioned(String address) {
+        return isProvisioned(parseAddress(address));
+    }
+
+    private boolean isProvisioned(long key) {
+        return provisionedCount > 0 &&
+                Arrays.binarySearch(provisionedAddresses, 0, provisionedCount, key) >= 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+    //endregion
+
+    //region Entry management
+    private int allocate() {
+        if (free != NONE) {
+            int entry = free;
+            free = next[entry];
+            return entry;
+        }
+        if (allocated < capacity)
+            return allocated++;
+
+        int entry = tail;
+        release(entry);
+        free = next[entry];
+        return entry;
+    }
+
+    private void release(int entry) {
+        removeKey(addresses[entry]);
+        unlink(entry);
+        addressStrings[entry] = null;
+        names[entry] = null;
+        next[entry] = free;
+        free = entry;
+        size--;
+    }
+
+    private void linkFirst(int entry) {
+        previous[entry] = NONE;
+        next[entry] = head;
+        if (head != NONE)
+            previous[head] = entry;
+        head = entry;
+        if (tail == NONE)
+            tail = entry;
+    }
+
+    private void unlink(int entry) {
+        int before = previous[entry];
+        int after = next[entry];
+        if (before == NONE)
+            head = after;
+        else
+            next[before] = after;
+        if (after == NONE)
+            tail = before;
+        else
+            previous[after] = before;
+    }
+
+    private void touch(int entry) {
+        if (head == entry)
+            return;
+        unlink(entry);
+        linkFirst(entry);
+    }
+    //endregion
+
+    //region Address table
+    private static int slotOf(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            int value = table[slot];
+            if (value == 0)
+                return NONE;
+            if (addresses[value - 1] == key)
+                return value - 1;
+        }
+    }
+
+    private void insert(long key, int entry) {
+        int slot = slotOf(key, mask);
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = entry + 1;
+    }
+
+    private void removeKey(long key) {
+        int slot = slotOf(key, mask);
+        while (table[slot] != 0 && addresses[table[slot] - 1] != key)
+            slot = (slot + 1) & mask;
+        if (table[slot] == 0)
+            return;
+
+        // Backward shift deletion keeps probe chains intact without tombstones.
+        table[slot] = 0;
+        for (int current = (slot + 1) & mask; table[current] != 0;
+             current = (current + 1) & mask) {
+            int home = slotOf(addresses[table[current] - 1], mask);
+            boolean reachable = slot <= current ? (home > slot && home <= current) :
+                    (home > slot || home <= current);
+            if (!reachable) {
+                table[slot] = table[current];
+                table[current] = 0;
+                slot = current;
+            }
+        }
+    }
+
+    /**
+     * Packs a "XX:XX:XX:XX:XX:XX" Bluetooth address into the low 48 bits of a long.
+     */
+    public static long parseAddress(String address) {
+        if (address.length() != 17)
+            throw new IllegalArgumentException("Invalid Bluetooth address " + address);
+
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':')
+                    throw new IllegalArgumentException("Invalid Bluetooth address " + address);
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0)
+                throw new IllegalArgumentException("Invalid Bluetooth address " + address);
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Formats an address packed by {@link #parseAddress}.
+     */
+    public static String formatAddress(long address) {
+        char[] chars = new char[17];
+        for (int i = 16; i >= 0; i--) {
+            if (i % 3 == 2) {
+                chars[i] = ':';
+                continue;
+            }
+            chars[i] = Character.toUpperCase(Character.forDigit((int) (address & 0xF), 16));
+            address >>>= 4;
+        }
+        return new String(chars);
+    }
+    //endregion
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when and how the {@link LeScanner} runs, and never starts it more than
+ * {@link #MAX_STARTS} times per {@link #START_WINDOW_MS}: beyond that Android throttles the
+ * app and its scans silently find nothing.
+ * <p>
+ * A scan starts out hunting with a continuous low latency scan. After {@link #HUNT_TIMEOUT_MS}
+ * without a discovery it goes idle and cycles balanced scans of {@link #IDLE_SCAN_MS} with pauses
+ * of {@link #IDLE_PAUSE_MS}, one start per cycle; the next discovery switches back to hunting.
+ * A start that would exceed the budget is deferred until the oldest start leaves the window, a
+ * pending mode switch keeps the running scan until then. Scans running for
+ * {@link #MAX_SCAN_MS} are restarted before the platform downgrades them.
+ * <p>
+ * Not thread safe, all calls come from one thread. The scheduler sets no timers: after each
+ * call the owner asks for {@link #getWakeUpDelayMillis} and calls {@link #tick} then.
+ */
+public final class ScanScheduler {
+    public final static int MAX_STARTS = 5;
+    public final static long START_WINDOW_MS = 30000;
+    public final static long START_MARGIN_MS = 1000;
+    public final static long HUNT_TIMEOUT_MS = 20000;
+    public final static long IDLE_SCAN_MS = 10000;
+    public final static long IDLE_PAUSE_MS = 20000;
+    public final static long MAX_SCAN_MS = TimeUnit.MINUTES.toMillis(25);
+    public final static long RETRY_MS = 1000;
+    public final static long NO_WAKE_UP = -1;
+
+    private final LeScanner scanner;
+    private final LongSupplier nanoClock;
+
+    private boolean active;
+    private boolean hunting;
+    private LeScanner.Mode running;
+    private long runningSinceNanos;
+    private long pauseUntilNanos;
+    private long retryNanos;
+    private boolean deferred;
+    private long sessionNanos;
+    // Hunting ends HUNT_TIMEOUT_MS after the later of the last discovery and the scan start.
+    private long huntNanos;
+
+    //region Start budget
+    private final long[] startNanos = new long[MAX_STARTS];
+    private long starts;
+    //endregion
+
+    //region Statistics
+    private final LatencyHistogram discoveryLatency = new LatencyHistogram();
+    private long deferredStarts;
+    private long failedStarts;
+    //endregion
+
+    public ScanScheduler(LeScanner scanner) {
+        this(scanner, System::nanoTime);
+    }
+
+    public ScanScheduler(LeScanner scanner, LongSupplier nanoClock) {
+        this.scanner = scanner;
+        this.nanoClock = nanoClock;
+    }
+
+    //region Control
+    /**
+     * Starts hunting. Ignored while active.
+     */
+    public void start() {
+        if (active)
+            return;
+
+        long now = nanoClock.getAsLong();
+        active = true;
+        hunting = true;
+        sessionNanos = now;
+        huntNanos = now;
+        pauseUntilNanos = 0;
+        retryNanos = 0;
+        deferred = false;
+        apply(now);
+    }
+
+    public void stop() {
+        active = false;
+        retryNanos = 0;
+        if (running != null) {
+            scanner.stop();
+            running = null;
+        }
+    }
+
+    /**
+     * Reports a device worth hunting for: its latency since {@link #start} is recorded and an
+     * idle scan switches back to hunting.
+     */
+    public void onDiscovery() {
+        if (!active)
+            return;
+
+        long now = nanoClock.getAsLong();
+        discoveryLatency.recordNanos(now - sessionNanos);
+        huntNanos = now;
+        if (!hunting) {
+            hunting = true;
+            apply(now);
+        }
+    }
+
+    /**
+     * Reports that the platform failed the running scan; it is started again after
+     * {@link #RETRY_MS}.
+     */
+    public void onScanFailed() {
+        if (running == null)
+            return;
+
+        running = null;
+        failedStarts++;
+        retryNanos = nanoClock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(RETRY_MS);
+    }
+
+    /**
+     * Advances the duty cycle and runs deferred starts that are due.
+     */
+    public void tick() {
+        if (!active)
+            return;
+
+        long now = nanoClock.getAsLong();
+        if (hunting) {
+            // Going idle begins with a pause, which spares a start.
+            if (running != null &&
+                    now - huntNanos >= TimeUnit.MILLISECONDS.toNanos(HUNT_TIMEOUT_MS)) {
+                hunting = false;
+                pause(now);
+                return;
+            }
+        } else if (running != null) {
+            if (now - runningSinceNanos >= TimeUnit.MILLISECONDS.toNanos(IDLE_SCAN_MS)) {
+                pause(now);
+                return;
+            }
+        } else if (now < pauseUntilNanos) {
+            return;
+        }
+        apply(now);
+    }
+
+    /**
+     * Milliseconds until {@link #tick} is due, or {@link #NO_WAKE_UP} when stopped.
+     */
+    public long getWakeUpDelayMillis() {
+        if (!active)
+            return NO_WAKE_UP;
+
+        long next = retryNanos != 0 ? retryNanos : Long.MAX_VALUE;
+        if (hunting) {
+            if (running != null)
+                next = Math.min(next, huntNanos + TimeUnit.MILLISECONDS.toNanos(HUNT_TIMEOUT_MS));
+        } else if (running != null) {
+            next = Math.min(next, runningSinceNanos + TimeUnit.MILLISECONDS.toNanos(IDLE_SCAN_MS));
+        } else {
+            next = Math.min(next, pauseUntilNanos);
+        }
+        if (running != null)
+            next = Math.min(next, runningSinceNanos + TimeUnit.MILLISECONDS.toNanos(MAX_SCAN_MS));
+
+        long delay = next - nanoClock.getAsLong();
+        return delay <= 0 ? 0 : (delay + TimeUnit.MILLISECONDS.toNanos(1) - 1) /
+                TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private void pause(long now) {
+        if (running != null) {
+            scanner.stop();
+            running = null;
+        }
+        pauseUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(IDLE_PAUSE_MS);
+        retryNanos = 0;
+        deferred = false;
+    }
+
+    /**
+     * Runs the scan the current duty cycle asks for, if the start budget allows.
+     */
+    private void apply(long now) {
+        LeScanner.Mode mode = hunting ? LeScanner.Mode.LOW_LATENCY : LeScanner.Mode.BALANCED;
+        if (running == mode &&
+                now - runningSinceNanos < TimeUnit.MILLISECONDS.toNanos(MAX_SCAN_MS))
+            return;
+
+        long allowed = nextStartNanos(now);
+        if (allowed > now) {
+            if (!deferred)
+                deferredStarts++;
+            deferred = true;
+            retryNanos = allowed;
+            return;
+        }
+
+        if (running != null) {
+            scanner.stop();
+            running = null;
+        }
+        deferred = false;
+        retryNanos = 0;
+
+        // A refused start may still count against the platform limit.
+        recordStart(now);
+        if (!scanner.start(mode)) {
+            failedStarts++;
+            retryNanos = now + TimeUnit.MILLISECONDS.toNanos(RETRY_MS);
+            return;
+        }
+        if (hunting)
+            huntNanos = Math.max(huntNanos, now);
+        running = mode;
+        runningSinceNanos = now;
+    }
+    //endregion
+
+    //region Start budget
+    private long nextStartNanos(long now) {
+        if (starts < MAX_STARTS)
+            return now;
+        long oldest = startNanos[(int) (starts % MAX_STARTS)];
+        return Math.max(now, oldest + TimeUnit.MILLISECONDS.toNanos(START_WINDOW_MS +
+                START_MARGIN_MS));
+    }
+
+    private void recordStart(long now) {
+        startNanos[(int) (starts % MAX_STARTS)] = now;
+        starts++;
+    }
+    //endregion
+
+    //region Properties
+    public boolean isActive() {
+        return active;
+    }
+
+    public boolean isHunting() {
+        return active && hunting;
+    }
+
+    /**
+     * Mode of the running scan, or null while none runs.
+     */
+    public LeScanner.Mode getMode() {
+        return running;
+    }
+
+    /**
+     * Time from {@link #start} to each reported discovery.
+     */
+    public LatencyHistogram getDiscoveryLatency() {
+        return discoveryLatency;
+    }
+
+    public ScanStats getStats() {
+        return new ScanStats(starts, deferredStarts, failedStarts, discoveryLatency.getCount(),
+                discoveryLatency.getPercentileMillis(50), discoveryLatency.getPercentileMillis(90));
+    }
+    //endregion
+}
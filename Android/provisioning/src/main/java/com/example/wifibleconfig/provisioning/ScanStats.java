@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+/**
+ * Snapshot of {@link ScanScheduler} counters.
+ */
+public final class ScanStats {
+    private final long starts;
+    private final long deferredStarts;
+    private final long failedStarts;
+    private final long discoveries;
+    private final double discoveryP50Millis;
+    private final double discoveryP90Millis;
+
+    ScanStats(long starts, long deferredStarts, long failedStarts, long discoveries,
+              double discoveryP50Millis, double discoveryP90Millis) {
+        this.starts = starts;
+        this.deferredStarts = deferredStarts;
+        this.failedStarts = failedStarts;
+        this.discoveries = discoveries;
+        this.discoveryP50Millis = discoveryP50Millis;
+        this.discoveryP90Millis = discoveryP90Millis;
+    }
+
+    public long getStarts() {
+        return starts;
+    }
+
+    /**
+     * Starts postponed because they would have exceeded the platform start limit.
+     */
+    public long getDeferredStarts() {
+        return deferredStarts;
+    }
+
+    public long getFailedStarts() {
+        return failedStarts;
+    }
+
+    public long getDiscoveries() {
+        return discoveries;
+    }
+
+    public double getDiscoveryP50Millis() {
+        return discoveryP50Millis;
+    }
+
+    public double getDiscoveryP90Millis() {
+        return discoveryP90Millis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("starts=%d deferred=%d failed=%d discoveries=%d " +
+                        "p50=%.0fms p90=%.0fms", starts, deferredStarts, failedStarts,
+                discoveries, discoveryP50Millis, discoveryP90Millis);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps up to {@code capacity} WiFiBle sessions open, keyed by device address, so switching
+ * back to a device reuses its link instead of paying connect, discovery and session setup
+ * again.
+ * <p>
+ * {@link #acquire} hands out the session of a device and {@link #release} gives it back; a
+ * session nobody holds is idle and stays open. When the pool is full, the least recently used
+ * idle session is disconnected to make room, and connected again by the next acquire. Acquires
+ * that find every session held wait until one is released.
+ * <p>
+ * The capacity belongs at or below the connections the platform allows at once; links the
+ * connector reports lost are dropped from the pool. Thread safe.
+ */
+public final class SessionPool implements DeviceConnector.Listener {
+    public final static int DEFAULT_CAPACITY = 7;
+
+    private final static class Entry {
+        final String address;
+        final CompletableFuture<WiFiClient> client = new CompletableFuture<>();
+        int holders;
+
+        Entry(String address) {
+            this.address = address;
+        }
+    }
+
+    private final static class Waiter {
+        final String address;
+        final CompletableFuture<WiFiClient> result;
+
+        Waiter(String address, CompletableFuture<WiFiClient> result) {
+            this.address = address;
+            this.result = result;
+        }
+    }
+
+    private final DeviceConnector connector;
+    private final int capacity;
+    // Moved to the end on every use: the eldest entry is the least recently used.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+
+    //region Statistics
+    private long hits;
+    private long connects;
+    private long evictions;
+    private long losses;
+    //endregion
+
+    public SessionPool(DeviceConnector connector) {
+        this(connector, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Becomes the listener of {@code connector}.
+     */
+    public SessionPool(DeviceConnector connector, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        this.connector = connector;
+        this.capacity = capacity;
+        connector.setListener(this);
+    }
+
+    //region Sessions
+    /**
+     * Returns the session of {@code address}, connecting it when it is not open. Completes
+     * exceptionally when the device cannot be reached. Every session handed out must be
+     * {@link #release released}, a failed one need not be. Completing the returned future
+     * first, such as by cancelling it, withdraws the acquire.
+     */
+    public CompletableFuture<WiFiClient> acquire(String address) {
+        CompletableFuture<WiFiClient> result = new CompletableFuture<>();
+        if (!tryAcquire(address, result)) {
+            synchronized (this) {
+                waiting.add(new Waiter(address, result));
+            }
+            // A release may have come in between.
+            drain();
+        }
+        return result;
+    }
+
+    /**
+     * Gives back a session handed out by {@link #acquire}; it stays open until evicted.
+     * Ignored when the session is no longer in the pool.
+     */
+    public void release(String address, WiFiClient client) {
+        synchronized (this) {
+            Entry entry = entries.get(address);
+            if (entry == null || entry.holders == 0 || entry.client.getNow(null) != client)
+                return;
+            entry.holders--;
+            touch(entry);
+        }
+        drain();
+    }
+
+    /**
+     * Disconnects the session of {@code address} at once, held or not.
+     */
+    public void close(String address) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(address);
+        }
+        if (entry != null)
+            connector.disconnect(address);
+        drain();
+    }
+
+    public void closeAll() {
+        List<String> addresses;
+        synchronized (this) {
+            addresses = new ArrayList<>(entries.keySet());
+            entries.clear();
+        }
+        for (String address : addresses)
+            connector.disconnect(address);
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        synchronized (this) {
+            Entry entry = entries.remove(address);
+            if (entry != null && entry.client.isDone())
+                losses++;
+        }
+        drain();
+    }
+
+    /**
+     * Completes {@code result} with the session of {@code address}, unless the pool is full of
+     * held sessions.
+     */
+    private boolean tryAcquire(String address, CompletableFuture<WiFiClient> result) {
+        Entry entry;
+        Entry evicted = null;
+        boolean connect = false;
+        synchronized (this) {
+            entry = entries.get(address);
+            if (entry != null) {
+                hits++;
+                touch(entry);
+            } else {
+                if (entries.size() >= capacity) {
+                    evicted = eldestIdle();
+                    if (evicted == null)
+                        return false;
+                    entries.remove(evicted.address);
+                    evictions++;
+                }
+                entry = new Entry(address);
+                entries.put(address, entry);
+                connects++;
+                connect = true;
+            }
+            entry.holders++;
+        }
+
+        // The connector is called outside the lock, it may report back on this thread.
+        if (evicted != null)
+            connector.disconnect(evicted.address);
+        if (connect)
+            connect(entry);
+        entry.client.whenComplete((client, error) -> {
+            if (error != null)
+                result.completeExceptionally(error);
+            // Withdrawn while connecting: nobody will release it.
+            else if (!result.complete(client))
+                release(address, client);
+        });
+        return true;
+    }
+
+    private void connect(Entry entry) {
+        CompletableFuture<WiFiClient> connected;
+        try {
+            connected = connector.connect(entry.address);
+        } catch (RuntimeException e) {
+            connected = new CompletableFuture<>();
+            connected.completeExceptionally(e);
+        }
+        connected.whenComplete((client, error) -> {
+            if (error == null) {
+                entry.client.complete(client);
+                return;
+            }
+            synchronized (this) {
+                entries.remove(entry.address, entry);
+            }
+            entry.client.completeExceptionally(error);
+            drain();
+        });
+    }
+
+    private void touch(Entry entry) {
+        entries.remove(entry.address);
+        entries.put(entry.address, entry);
+    }
+
+    private Entry eldestIdle() {
+        // Sessions still connecting count as held, their callers are waiting for them.
+        for (Entry entry : entries.values())
+            if (entry.holders == 0 && entry.client.isDone())
+                return entry;
+        return null;
+    }
+
+    /**
+     * Serves waiting acquires in arrival order while there is room.
+     */
+    private void drain() {
+        while (true) {
+            Waiter waiter;
+            synchronized (this) {
+                waiter = waiting.poll();
+            }
+            if (waiter == null)
+                return;
+            // Cancelled or timed out by the caller.
+            if (waiter.result.isDone())
+                continue;
+            if (!tryAcquire(waiter.address, waiter.result)) {
+                synchronized (this) {
+                    waiting.addFirst(waiter);
+                    // A release in between found no waiter to serve.
+                    if (!hasRoom(waiter.address))
+                        return;
+                }
+            }
+        }
+    }
+
+    private boolean hasRoom(String address) {
+        return entries.containsKey(address) || entries.size() < capacity || eldestIdle() != null;
+    }
+    //endregion
+
+    //region Properties
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Addresses of the sessions in the pool, most recently used first.
+     */
+    public synchronized List<String> getAddresses() {
+        List<String> addresses = new ArrayList<>(entries.keySet());
+        Collections.reverse(addresses);
+        return addresses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Acquires served by a session already in the pool.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getConnects() {
+        return connects;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Open sessions whose link was lost outside of the pool.
+     */
+    public synchronized long getLosses() {
+        return losses;
+    }
+    //endregion
+}
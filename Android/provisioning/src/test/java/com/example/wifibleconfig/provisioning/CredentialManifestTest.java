@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import org.junit.Test;
+
+import static com.example.wifibleconfig.provisioning.CredentialManifest.WILDCARD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CredentialManifestTest {
+    private final static String ADDRESS = "A4:CF:12:00:00:01";
+
+    @Test
+    public void looksUpInOrderOfPrecedence() {
+        CredentialManifest manifest = new CredentialManifest();
+        assertTrue(manifest.add(1, null, WILDCARD, "CatchAll", "password0"));
+        assertTrue(manifest.add(2, "A4:*", null, "AddressPrefix", "password1"));
+        assertTrue(manifest.add(3, "a4:cf:*", null, "LongerAddressPrefix", "password2"));
+        assertTrue(manifest.add(4, null, "ESP*", "NamePrefix", "password3"));
+        assertTrue(manifest.add(5, null, "ESP32-*", "LongerNamePrefix", "password4"));
+        assertTrue(manifest.add(6, null, "ESP32-1", "Name", "password5"));
+        assertTrue(manifest.add(7, ADDRESS.toLowerCase(), null, "Address", "password6"));
+
+        assertEquals("Address", ssid(manifest, ADDRESS, "ESP32-1"));
+        assertEquals("Address", ssid(manifest, ADDRESS.toLowerCase(), null));
+        assertEquals("Name", ssid(manifest, "A4:CF:12:00:00:02", "ESP32-1"));
+        assertEquals("LongerNamePrefix", ssid(manifest, "A4:CF:12:00:00:02", "ESP32-2"));
+        assertEquals("NamePrefix", ssid(manifest, "A4:CF:12:00:00:02", "ESP8266"));
+        assertEquals("LongerAddressPrefix", ssid(manifest, "a4:cf:12:00:00:02", "Other"));
+        assertEquals("AddressPrefix", ssid(manifest, "A4:00:00:00:00:02", null));
+        assertEquals("CatchAll", ssid(manifest, "B4:00:00:00:00:02", "Other"));
+        assertEquals("CatchAll", ssid(manifest, "not an address", null));
+        assertEquals(7, manifest.getCredentialCount());
+        assertEquals(1, manifest.getAddressCount());
+        assertEquals(6, manifest.getPatternCount());
+
+        CredentialManifest empty = new CredentialManifest();
+        assertNull(empty.credentialsFor(ADDRESS, "ESP32-1"));
+    }
+
+    @Test
+    public void rejectsDuplicates() {
+        CredentialManifest manifest = new CredentialManifest();
+        assertTrue(manifest.add(1, ADDRESS, null, "Workshop", "correct horse"));
+        assertFalse(manifest.add(2, ADDRESS.toLowerCase(), null, "Other", "correct horse"));
+        assertTrue(manifest.add(3, null, "ESP32-1", "Workshop", "correct horse"));
+        assertFalse(manifest.add(4, null, "ESP32-1", "Workshop", "correct horse"));
+        assertTrue(manifest.add(5, null, "ESP*", "Workshop", "correct horse"));
+        assertFalse(manifest.add(6, null, "ESP*", "Workshop", "correct horse"));
+        assertTrue(manifest.add(7, "A4:CF:*", null, "Workshop", "correct horse"));
+        assertFalse(manifest.add(8, "a4:cf:*", null, "Workshop", "correct horse"));
+        assertTrue(manifest.add(9, WILDCARD, null, "Workshop", "correct horse"));
+        assertFalse(manifest.add(10, null, WILDCARD, "Workshop", "correct horse"));
+
+        assertEquals(5, manifest.getRejectedCount());
+        assertEquals("Line 2: duplicate address " + ADDRESS, manifest.getErrors().get(0));
+        assertEquals("Line 10: duplicate * entry", manifest.getErrors().get(4));
+        // The first entry stays.
+        assertEquals("Workshop", ssid(manifest, ADDRESS, null));
+        // Every entry shares one pair of credentials.
+        assertEquals(1, manifest.getCredentialCount());
+    }
+
+    @Test
+    public void rejectsInvalidEntries() {
+        CredentialManifest manifest = new CredentialManifest();
+        assertFalse(manifest.add(1, ADDRESS, "ESP32-1", "Workshop", "correct horse"));
+        assertFalse(manifest.add(2, "", null, "Workshop", "correct horse"));
+        assertFalse(manifest.add(3, ADDRESS, null, "Workshop", "short"));
+        assertFalse(manifest.add(4, "A4:CF:12", null, "Workshop", "correct horse"));
+        assertFalse(manifest.add(5, "A4C*", null, "Workshop", "correct horse"));
+        assertFalse(manifest.add(6, "A4-*", null, "Workshop", "correct horse"));
+        assertEquals(6, manifest.getRejectedCount());
+        assertEquals(0, manifest.getAddressCount());
+        assertEquals(0, manifest.getPatternCount());
+
+        for (int i = 0; i < CredentialManifest.MAX_ERRORS; i++)
+            manifest.reject(i, "rejected");
+        assertEquals(6 + CredentialManifest.MAX_ERRORS, manifest.getRejectedCount());
+        assertEquals(CredentialManifest.MAX_ERRORS, manifest.getErrors().size());
+    }
+
+    @Test
+    public void growsTheAddressTable() {
+        CredentialManifest manifest = new CredentialManifest();
+        int devices = 1000;
+        for (int i = 0; i < devices; i++)
+            assertTrue(manifest.add(i + 1, address(i), null, "Site" + i % 4,
+                    "password" + i % 4));
+        assertEquals(devices, manifest.getAddressCount());
+        assertEquals(4, manifest.getCredentialCount());
+
+        for (int i = 0; i < devices; i++)
+            assertEquals("Site" + (i % 4), ssid(manifest, address(i), null));
+        assertNull(manifest.credentialsFor(address(devices), null));
+        // Still rejected once moved by a rehash.
+        assertFalse(manifest.add(devices + 1, address(0), null, "Site0", "password0"));
+
+        Credentials first = manifest.credentialsFor(address(0), null);
+        assertSame(first, manifest.credentialsFor(address(4), null));
+    }
+
+    private static String ssid(CredentialManifest manifest, String address, String name) {
+        Credentials credentials = manifest.credentialsFor(address, name);
+        return credentials == null ? null : credentials.getSsid();
+    }
+
+    private static String address(int device) {
+        return ScanCache.formatAddress(0xA4CF12000000L + device * 0x010203L);
+    }
+}
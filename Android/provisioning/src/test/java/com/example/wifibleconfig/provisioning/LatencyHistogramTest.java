@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    // Each bucket spans at most 1/32 of its values.
+    private final static double PRECISION = 1.0 / LatencyHistogram.SUB_BUCKETS;
+
+    @Test
+    public void reportsPercentilesWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 1000 ms in a random order.
+        Random random = new Random(1);
+        int[] values = new int[1000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i + 1;
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+        for (int value : values)
+            histogram.recordMicros(value * 1000L);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1, histogram.getMinMillis(), 0);
+        assertEquals(1000, histogram.getMaxMillis(), 0);
+        assertEquals(500.5, histogram.getMeanMillis(), 1e-9);
+        for (double percentile : new double[] {1, 10, 50, 90, 95, 99, 99.9}) {
+            double expected = Math.ceil(percentile * 10);
+            double reported = histogram.getPercentileMillis(percentile);
+            // The upper bound of the bucket: never below the value, at most one bucket above.
+            assertTrue(percentile + ": " + reported, reported >= expected);
+            assertTrue(percentile + ": " + reported, reported <= expected * (1 + PRECISION));
+        }
+        assertEquals(1000, histogram.getPercentileMillis(100), 0);
+    }
+
+    @Test
+    public void neverReportsAboveTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(1000);
+        histogram.recordMicros(1000);
+        assertEquals(1, histogram.getPercentileMillis(50), 0);
+        assertEquals(1, histogram.getPercentileMillis(99), 0);
+        // The lowest percentile still counts the first value.
+        assertEquals(1, histogram.getPercentileMillis(0), 0);
+    }
+
+    @Test
+    public void keepsSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 0; micros < LatencyHistogram.SUB_BUCKETS; micros++)
+            histogram.recordMicros(micros);
+        for (int micros = 1; micros < LatencyHistogram.SUB_BUCKETS; micros++)
+            assertEquals(micros / 1000.0, histogram.getPercentileMillis(
+                    100.0 * (micros + 1) / LatencyHistogram.SUB_BUCKETS), 0);
+    }
+
+    @Test
+    public void boundsEveryValueByItsBucket() {
+        Random random = new Random(2);
+        for (int i = 0; i < 100_000; i++) {
+            long micros = random.nextLong() & LatencyHistogram.MAX_VALUE_MICROS;
+            long highest = LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(micros));
+            assertTrue(micros + " " + highest, highest >= micros);
+            assertTrue(micros + " " + highest, highest - micros <= micros * PRECISION);
+        }
+        // Adjacent buckets meet without a gap.
+        for (int index = 0; index < LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE_MICROS);
+             index++)
+            assertEquals(index + 1, LatencyHistogram.indexOf(
+                    LatencyHistogram.highestValueOf(index) + 1));
+    }
+
+    @Test
+    public void clampsValuesOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(-5);
+        histogram.recordMicros(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMinMillis(), 0);
+        assertEquals(LatencyHistogram.MAX_VALUE_MICROS / 1000.0, histogram.getMaxMillis(), 0);
+        assertEquals(LatencyHistogram.MAX_VALUE_MICROS / 1000.0,
+                histogram.getPercentileMillis(100), 0);
+    }
+
+    @Test
+    public void startsOverAfterAReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMillis(50), 0);
+        assertEquals(0, histogram.getMeanMillis(), 0);
+        histogram.recordMicros(5000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMinMillis(), 0);
+        assertEquals(0, histogram.getMaxMillis(), 0);
+        histogram.recordMicros(2000);
+        assertEquals(2, histogram.getMinMillis(), 0);
+        assertEquals(2, histogram.getPercentileMillis(50), 0);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ManifestReaderTest {
+    private final static String FIRST = "A4:CF:12:00:00:01";
+    private final static String SECOND = "A4:CF:12:00:00:02";
+
+    //region CSV
+    @Test
+    public void readsQuotedCsvFields() throws IOException {
+        CredentialManifest manifest = read("address,ssid,password\r\n" +
+                FIRST + ",\"Site, \"\"North\"\"\",\"correct horse\"\r\n" +
+                SECOND + ",\"\",\"\"\"quoted\"\"\"\n" +
+                "A4:CF:12:00:00:03,Workshop,\"correct\nhorse\"\n" +
+                "A4:CF:12:00:00:04,Workshop,correct horse\n");
+        assertCredentials(manifest, FIRST, "Site, \"North\"", "correct horse");
+        assertCredentials(manifest, SECOND, null, null);
+        // The line break is part of the field: the password is rejected by the manifest,
+        // and the next record is read from line 5.
+        assertCredentials(manifest, "A4:CF:12:00:00:03", null, null);
+        assertCredentials(manifest, "A4:CF:12:00:00:04", "Workshop", "correct horse");
+        assertEquals(2, manifest.getRejectedCount());
+        assertEquals("Line 3: Invalid SSID", manifest.getErrors().get(0));
+        assertEquals("Line 4: Invalid password", manifest.getErrors().get(1));
+    }
+
+    @Test
+    public void skipsCommentsAndBlankLines() throws IOException {
+        CredentialManifest manifest = read("# Site manifest\n\nSSID, Password ,Name\n" +
+                "# North wing\nWorkshop,correct horse,ESP32-1\n\n#,,\nWorkshop,battery staple,*\n");
+        assertEquals(0, manifest.getRejectedCount());
+        assertEquals("correct horse", manifest.credentialsFor(null, "ESP32-1").getPassword());
+        assertEquals("battery staple", manifest.credentialsFor(null, "ESP32-2").getPassword());
+    }
+
+    @Test
+    public void rejectsRowsWithTheWrongNumberOfFields() throws IOException {
+        CredentialManifest manifest = read("address,ssid,password\n" +
+                FIRST + ",Workshop\n" +
+                SECOND + ",Workshop,correct horse,extra\n" +
+                "A4:CF:12:00:00:03,Workshop,correct horse\n");
+        assertEquals(1, manifest.getAddressCount());
+        assertEquals(2, manifest.getRejectedCount());
+        assertEquals("Line 2: expected 3 fields, found 2", manifest.getErrors().get(0));
+        assertEquals("Line 3: expected 3 fields, found 4", manifest.getErrors().get(1));
+    }
+
+    @Test
+    public void rejectsMalformedCsv() throws IOException {
+        assertFormatError("ssid,password\n", 1);
+        assertFormatError("address,ssid,password\n" + FIRST + ",\"Workshop,x\n", 2);
+        assertFormatError("address,ssid,password\n" + FIRST + ",\"Work\"shop,x\n", 2);
+        assertFormatError("", 1);
+    }
+
+    @Test
+    public void skipsALeadingByteOrderMark() throws IOException {
+        byte[] bytes = ("\uFEFFaddress,ssid,password\n" + FIRST + ",Workshop,correct horse\n")
+                .getBytes(StandardCharsets.UTF_8);
+        CredentialManifest manifest = ManifestReader.read(new ByteArrayInputStream(bytes));
+        assertCredentials(manifest, FIRST, "Workshop", "correct horse");
+
+        manifest = read("\uFEFF[{\"address\": \"" + FIRST + "\", \"ssid\": \"Workshop\", " +
+                "\"password\": \"correct horse\"}]");
+        assertCredentials(manifest, FIRST, "Workshop", "correct horse");
+    }
+    //endregion
+
+    //region JSON
+    @Test
+    public void decodesJsonEscapes() throws IOException {
+        CredentialManifest manifest = read("[{\"address\": \"" + FIRST + "\", " +
+                "\"ssid\": \"\\u0057ork\\/shop \\\"1\\\"\", " +
+                "\"password\": \"back\\\\slash\\u0020x\"}]");
+        assertCredentials(manifest, FIRST, "Work/shop \"1\"", "back\\slash x");
+
+        // Control characters decode, and are then rejected by the manifest.
+        manifest = read("[{\"address\": \"" + FIRST + "\", \"ssid\": \"a\\tb\\u0000\", " +
+                "\"password\": \"correct horse\"}]");
+        assertEquals("Line 1: Invalid SSID", manifest.getErrors().get(0));
+
+        assertFormatError("[{\"ssid\": \"\\x\"}]", 1);
+        assertFormatError("[{\"ssid\": \"\\u00G1\"}]", 1);
+        assertFormatError("[{\"ssid\": \"Workshop}]", 1);
+    }
+
+    @Test
+    public void ignoresFieldsOfAnyOtherValue() throws IOException {
+        CredentialManifest manifest = read("[\n" +
+                "  {\"address\": \"" + FIRST + "\", \"channel\": 6, \"ssid\": \"Workshop\",\n" +
+                "   \"enabled\": true, \"retired\": false, \"note\": null,\n" +
+                "   \"weight\": -1.5e+3, \"tags\": [\"north\", 2, [], {}],\n" +
+                "   \"location\": {\"floor\": 0, \"room\": {\"id\": \"B\", \"seats\": [1]}},\n" +
+                "   \"password\": \"correct horse\"},\n" +
+                "  {\"name\": \"ESP32-1\", \"ssid\": \"Workshop\", \"password\": null}\n" +
+                "]\n");
+        assertCredentials(manifest, FIRST, "Workshop", "correct horse");
+        assertEquals(1, manifest.getRejectedCount());
+        assertNull(manifest.credentialsFor(null, "ESP32-1"));
+    }
+
+    @Test
+    public void rejectsMalformedJson() throws IOException {
+        // The known fields hold strings.
+        assertFormatError("[{\"ssid\": 6}]", 1);
+        assertFormatError("[{\"channel\": 06}]", 1);
+        assertFormatError("[{\"channel\": 1.}]", 1);
+        assertFormatError("[{\"channel\": tru}]", 1);
+        assertFormatError("[{\"tags\": [1 2]}]", 1);
+        assertFormatError("[{\"location\": {\"floor\" 0}}]", 1);
+        assertFormatError("[{\"ssid\": \"Workshop\"}\n{}]", 2);
+        assertFormatError("[]\n[]", 2);
+
+        StringBuilder nested = new StringBuilder("[{\"deep\": ");
+        for (int i = 0; i < 100; i++)
+            nested.append('[');
+        assertFormatError(nested.toString(), 1);
+    }
+
+    @Test
+    public void readsAnEmptyArray() throws IOException {
+        CredentialManifest manifest = read(" \n[ ]\n");
+        assertEquals(0, manifest.getAddressCount());
+        assertEquals(0, manifest.getRejectedCount());
+        assertEquals(1, read("[{}]").getRejectedCount());
+    }
+    //endregion
+
+    private static CredentialManifest read(String text) throws IOException {
+        return ManifestReader.read(new StringReader(text));
+    }
+
+    private static void assertCredentials(CredentialManifest manifest, String address,
+                                          String ssid, String password) {
+        Credentials credentials = manifest.credentialsFor(address, null);
+        if (ssid == null) {
+            assertNull(credentials);
+            return;
+        }
+        assertEquals(ssid, credentials.getSsid());
+        assertEquals(password, credentials.getPassword());
+    }
+
+    private static void assertFormatError(String text, int line) throws IOException {
+        try {
+            read(text);
+            fail("Read " + text);
+        } catch (ManifestFormatException e) {
+            assertEquals(line, e.getLine());
+            assertTrue(e.getMessage().startsWith("Line " + line + ": "));
+        }
+    }
+}
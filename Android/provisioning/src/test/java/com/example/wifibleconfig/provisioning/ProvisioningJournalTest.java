@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProvisioningJournalTest {
+    private final static String FIRST = "A4:CF:12:00:00:01";
+    private final static String SECOND = "A4:CF:12:00:00:02";
+    private final static String THIRD = "A4:CF:12:00:00:03";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ScheduledExecutorService scheduler;
+    private File file;
+    private long millis;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        file = new File(folder.getRoot(), "journal");
+        millis = TimeUnit.DAYS.toMillis(365);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void replaysTheLastRecordOfEachDevice() throws IOException {
+        ProvisioningJournal journal = open();
+        journal.begin(FIRST, ProvisioningPhase.CONNECT_GATT);
+        journal.mark(FIRST, ProvisioningPhase.SERVICES_DISCOVERED);
+        journal.finish(FIRST, true);
+        journal.begin(SECOND, ProvisioningPhase.CONNECT_GATT);
+        journal.mark(SECOND, ProvisioningPhase.SSID_WRITTEN);
+        journal.close();
+
+        journal = open();
+        assertEquals(5, journal.getRecordCount());
+        assertEquals(2, journal.size());
+        assertTrue(journal.isDone(FIRST));
+        assertFalse(journal.isDone(SECOND));
+        assertEquals(ProvisioningPhase.SSID_WRITTEN, journal.get(SECOND).getPhase());
+        assertEquals(JournalEntry.Result.PENDING, journal.get(SECOND).getResult());
+        journal.close();
+    }
+
+    @Test
+    public void dropsARecordCutShortByACrash() throws IOException {
+        ProvisioningJournal journal = open();
+        journal.begin(FIRST, ProvisioningPhase.CONNECT_GATT);
+        journal.finish(FIRST, true);
+        journal.begin(SECOND, ProvisioningPhase.CONNECT_GATT);
+        journal.finish(SECOND, true);
+        journal.close();
+
+        // The last record lost its tail.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(3 * ProvisioningJournal.RECORD_LENGTH +
+                    ProvisioningJournal.RECORD_LENGTH / 2);
+        }
+
+        journal = open();
+        assertEquals(3, journal.getRecordCount());
+        assertTrue(journal.isDone(FIRST));
+        assertFalse(journal.isDone(SECOND));
+        assertEquals(ProvisioningPhase.CONNECT_GATT, journal.get(SECOND).getPhase());
+
+        // Appends where the replay stopped.
+        journal.finish(SECOND, true);
+        journal.close();
+        journal = open();
+        assertEquals(4, journal.getRecordCount());
+        assertTrue(journal.isDone(SECOND));
+        journal.close();
+    }
+
+    @Test
+    public void stopsAtATornRecordAndForgetsTheRecordsBehindIt() throws IOException {
+        ProvisioningJournal journal = open();
+        journal.begin(FIRST, ProvisioningPhase.CONNECT_GATT);
+        journal.begin(SECOND, ProvisioningPhase.CONNECT_GATT);
+        journal.finish(FIRST, true);
+        journal.finish(SECOND, true);
+        journal.close();
+
+        // The second record never fully reached storage, the ones behind it did.
+        flipByte(ProvisioningJournal.RECORD_LENGTH + 10);
+
+        journal = open();
+        assertEquals(1, journal.getRecordCount());
+        assertFalse(journal.isDone(FIRST));
+        assertNull(journal.get(SECOND));
+
+        // Records appended now must not bring back the ones behind the torn record.
+        journal.begin(THIRD, ProvisioningPhase.CONNECT_GATT);
+        journal.close();
+        journal = open();
+        assertEquals(2, journal.getRecordCount());
+        assertFalse(journal.isDone(FIRST));
+        assertNull(journal.get(SECOND));
+        assertEquals(ProvisioningPhase.CONNECT_GATT, journal.get(THIRD).getPhase());
+        journal.close();
+    }
+
+    @Test
+    public void ignoresAnUnfinishedCompaction() throws IOException {
+        ProvisioningJournal journal = open();
+        journal.begin(FIRST, ProvisioningPhase.CONNECT_GATT);
+        journal.finish(FIRST, true);
+        journal.close();
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(ProvisioningJournal.RECORD_LENGTH);
+        }
+
+        journal = open();
+        assertFalse(temp.exists());
+        assertTrue(journal.isDone(FIRST));
+        journal.close();
+    }
+
+    @Test
+    public void forgetsDevicesBeyondTheRetention() throws IOException {
+        ProvisioningJournal journal = open();
+        journal.begin(FIRST, ProvisioningPhase.CONNECT_GATT);
+        journal.finish(FIRST, true);
+        millis += ProvisioningJournal.DEFAULT_RETENTION_MS;
+        journal.begin(SECOND, ProvisioningPhase.CONNECT_GATT);
+        journal.finish(SECOND, true);
+        journal.close();
+
+        millis += 1;
+        journal = open();
+        assertNull(journal.get(FIRST));
+        assertTrue(journal.isDone(SECOND));
+        journal.close();
+    }
+
+    private ProvisioningJournal open() throws IOException {
+        return ProvisioningJournal.open(file, scheduler, ProvisioningJournal.DEFAULT_RETENTION_MS,
+                () -> millis);
+    }
+
+    private void flipByte(long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(value ^ 0xFF);
+        }
+    }
+}
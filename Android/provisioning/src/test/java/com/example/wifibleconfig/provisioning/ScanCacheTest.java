@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanCacheTest {
+    private final static long TTL_MS = 10000;
+    private final static float SMOOTHING = 0.25f;
+    private final static float DELTA = 1e-4f;
+
+    private long nanos;
+
+    @Before
+    public void setUp() {
+        nanos = TimeUnit.DAYS.toNanos(1);
+    }
+
+    @Test
+    public void smoothsRssi() {
+        ScanCache cache = cache(4);
+        assertTrue(cache.update(address(1), "first", -60));
+        assertEquals(-60, cache.getRssi(address(1)), DELTA);
+
+        assertFalse(cache.update(address(1), null, -80));
+        assertEquals(-65, cache.getRssi(address(1)), DELTA);
+        cache.update(address(1), null, -80);
+        assertEquals(-68.75f, cache.getRssi(address(1)), DELTA);
+        // Advertisements without a name keep the one seen before.
+        assertEquals("first", cache.getName(address(1)));
+        assertTrue(Float.isNaN(cache.getRssi(address(2))));
+    }
+
+    @Test
+    public void smoothedRssiPicksTheBestDevice() {
+        ScanCache cache = cache(4);
+        cache.update(address(1), null, -50);
+        cache.update(address(2), null, -55);
+        assertEquals(address(1), cache.bestUnprovisioned());
+
+        // A single weak sample does not outweigh the history.
+        cache.update(address(1), null, -75);
+        assertEquals(address(2), cache.bestUnprovisioned());
+        assertNull(cache.bestUnprovisioned(-40));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlySeen() {
+        ScanCache cache = cache(3);
+        cache.update(address(1), null, -60);
+        cache.update(address(2), null, -60);
+        cache.update(address(3), null, -60);
+        cache.update(address(1), null, -60);
+
+        cache.update(address(4), null, -60);
+        assertEquals(3, cache.size());
+        assertFalse(cache.contains(address(2)));
+        assertTrue(cache.contains(address(1)));
+        assertTrue(cache.contains(address(3)));
+        assertTrue(cache.contains(address(4)));
+
+        cache.update(address(5), null, -60);
+        assertFalse(cache.contains(address(3)));
+    }
+
+    @Test
+    public void expiresEntriesAfterTheTtl() {
+        ScanCache cache = cache(4);
+        cache.update(address(1), null, -40);
+        advance(TTL_MS / 2);
+        cache.update(address(2), null, -70);
+        advance(TTL_MS / 2 + 1);
+
+        assertEquals(address(2), cache.bestUnprovisioned());
+        cache.evictExpired();
+        assertFalse(cache.contains(address(1)));
+        assertTrue(cache.contains(address(2)));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void keepsProvisionedDevicesExcludedAfterEviction() {
+        ScanCache cache = cache(2);
+        cache.update(address(1), null, -40);
+        cache.markProvisioned(address(1));
+        cache.update(address(2), null, -70);
+        assertEquals(address(2), cache.bestUnprovisioned());
+
+        // Evicts the provisioned device, then sees it again.
+        cache.update(address(3), null, -80);
+        assertFalse(cache.contains(address(1)));
+        cache.update(address(1), null, -30);
+        assertTrue(cache.isProvisioned(address(1)));
+        assertEquals(address(3), cache.bestUnprovisioned());
+
+        cache.clear();
+        cache.update(address(1), null, -30);
+        assertNull(cache.bestUnprovisioned());
+    }
+
+    @Test
+    public void findsEveryEntryAfterRemovals() {
+        // A table of 16 slots for 8 entries out of 24 addresses: probe chains form and wrap
+        // around, and every removal or eviction shifts entries back within them.
+        ScanCache cache = cache(8);
+        LinkedHashSet<String> expected = new LinkedHashSet<>();
+        Random random = new Random(42);
+        for (int step = 0; step < 20000; step++) {
+            String address = address(random.nextInt(24));
+            if (random.nextInt(3) == 0) {
+                cache.remove(address);
+                expected.remove(address);
+            } else {
+                cache.update(address, null, -60);
+                // The model keeps the most recently seen address last.
+                expected.remove(address);
+                expected.add(address);
+                if (expected.size() > 8) {
+                    Iterator<String> eldest = expected.iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+
+            assertEquals(expected.size(), cache.size());
+            for (int i = 0; i < 24; i++)
+                assertEquals("step " + step + ", " + address(i), expected.contains(address(i)),
+                        cache.contains(address(i)));
+        }
+    }
+
+    @Test
+    public void packsAddresses() {
+        String address = "A4:CF:12:0B:7E:01";
+        long packed = ScanCache.parseAddress(address);
+        assertEquals(0xA4CF120B7E01L, packed);
+        assertEquals(address, ScanCache.formatAddress(packed));
+        assertEquals(packed, ScanCache.parseAddress("a4:cf:12:0b:7e:01"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedAddresses() {
+        ScanCache.parseAddress("A4-CF-12-0B-7E-01");
+    }
+
+    private ScanCache cache(int capacity) {
+        return new ScanCache(capacity, TTL_MS, SMOOTHING, () -> nanos);
+    }
+
+    private void advance(long millis) {
+        nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static String address(int device) {
+        return ScanCache.formatAddress(0xA4CF12000000L + device * 0x010203L);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSchedulerTest {
+    /**
+     * Records starts and stops; refuses starts while {@code accept} is false.
+     */
+    private final static class FakeScanner implements LeScanner {
+        final List<String> calls = new ArrayList<>();
+        boolean accept = true;
+
+        @Override
+        public boolean start(Mode mode) {
+            calls.add("start " + mode);
+            return accept;
+        }
+
+        @Override
+        public void stop() {
+            calls.add("stop");
+        }
+
+        int starts() {
+            int starts = 0;
+            for (String call : calls)
+                if (call.startsWith("start"))
+                    starts++;
+            return starts;
+        }
+    }
+
+    private FakeScanner scanner;
+    private long nanos;
+    private ScanScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scanner = new FakeScanner();
+        // Far from zero, as System.nanoTime may be.
+        nanos = TimeUnit.DAYS.toNanos(1);
+        scheduler = new ScanScheduler(scanner, () -> nanos);
+    }
+
+    @Test
+    public void huntsWithLowLatencyFirst() {
+        scheduler.start();
+        assertEquals(LeScanner.Mode.LOW_LATENCY, scheduler.getMode());
+        assertTrue(scheduler.isHunting());
+        assertEquals(ScanScheduler.HUNT_TIMEOUT_MS, scheduler.getWakeUpDelayMillis());
+
+        // Starting again changes nothing.
+        scheduler.start();
+        assertEquals(1, scanner.starts());
+    }
+
+    @Test
+    public void cyclesBalancedScansWhenIdle() {
+        scheduler.start();
+        advanceAndTick(ScanScheduler.HUNT_TIMEOUT_MS);
+        assertFalse(scheduler.isHunting());
+        assertNull(scheduler.getMode());
+        assertEquals(ScanScheduler.IDLE_PAUSE_MS, scheduler.getWakeUpDelayMillis());
+
+        advanceAndTick(ScanScheduler.IDLE_PAUSE_MS);
+        assertEquals(LeScanner.Mode.BALANCED, scheduler.getMode());
+        assertEquals(ScanScheduler.IDLE_SCAN_MS, scheduler.getWakeUpDelayMillis());
+
+        advanceAndTick(ScanScheduler.IDLE_SCAN_MS);
+        assertNull(scheduler.getMode());
+        advanceAndTick(ScanScheduler.IDLE_PAUSE_MS);
+        assertEquals(LeScanner.Mode.BALANCED, scheduler.getMode());
+
+        assertEquals("[start LOW_LATENCY, stop, start BALANCED, stop, start BALANCED]",
+                scanner.calls.toString());
+    }
+
+    @Test
+    public void ticksBeforeTheWakeUpChangeNothing() {
+        scheduler.start();
+        advanceAndTick(ScanScheduler.HUNT_TIMEOUT_MS - 1);
+        assertEquals(LeScanner.Mode.LOW_LATENCY, scheduler.getMode());
+        assertEquals(1, scheduler.getWakeUpDelayMillis());
+        assertEquals(1, scanner.calls.size());
+    }
+
+    @Test
+    public void discoveryExtendsHuntingAndEndsIdling() {
+        scheduler.start();
+        advance(ScanScheduler.HUNT_TIMEOUT_MS / 2);
+        scheduler.onDiscovery();
+        advanceAndTick(ScanScheduler.HUNT_TIMEOUT_MS / 2);
+        assertTrue(scheduler.isHunting());
+        assertEquals(ScanScheduler.HUNT_TIMEOUT_MS / 2, scheduler.getWakeUpDelayMillis());
+
+        advanceAndTick(ScanScheduler.HUNT_TIMEOUT_MS / 2);
+        advanceAndTick(ScanScheduler.IDLE_PAUSE_MS);
+        assertEquals(LeScanner.Mode.BALANCED, scheduler.getMode());
+
+        scheduler.onDiscovery();
+        assertEquals(LeScanner.Mode.LOW_LATENCY, scheduler.getMode());
+        assertEquals(2, scheduler.getDiscoveryLatency().getCount());
+    }
+
+    @Test
+    public void retriesRefusedStarts() {
+        scanner.accept = false;
+        scheduler.start();
+        assertNull(scheduler.getMode());
+        assertEquals(ScanScheduler.RETRY_MS, scheduler.getWakeUpDelayMillis());
+
+        scanner.accept = true;
+        advanceAndTick(ScanScheduler.RETRY_MS);
+        assertEquals(LeScanner.Mode.LOW_LATENCY, scheduler.getMode());
+
+        scheduler.onScanFailed();
+        assertNull(scheduler.getMode());
+        advanceAndTick(ScanScheduler.RETRY_MS);
+        assertEquals(LeScanner.Mode.LOW_LATENCY, scheduler.getMode());
+        assertEquals(2, scheduler.getStats().getFailedStarts());
+    }
+
+    @Test
+    public void defersStartsBeyondThePlatformBudget() {
+        scheduler.start();
+        for (int i = 1; i < ScanScheduler.MAX_STARTS; i++) {
+            scheduler.onScanFailed();
+            advanceAndTick(ScanScheduler.RETRY_MS);
+        }
+        assertEquals(ScanScheduler.MAX_STARTS, scanner.starts());
+
+        // The next start waits for the first one to leave the window.
+        scheduler.onScanFailed();
+        advanceAndTick(ScanScheduler.RETRY_MS);
+        assertEquals(ScanScheduler.MAX_STARTS, scanner.starts());
+        assertEquals(1, scheduler.getStats().getDeferredStarts());
+        long elapsed = ScanScheduler.MAX_STARTS * ScanScheduler.RETRY_MS;
+        long wait = ScanScheduler.START_WINDOW_MS + ScanScheduler.START_MARGIN_MS - elapsed;
+        assertEquals(wait, scheduler.getWakeUpDelayMillis());
+
+        advanceAndTick(wait - 1);
+        assertEquals(ScanScheduler.MAX_STARTS, scanner.starts());
+        advanceAndTick(1);
+        assertEquals(ScanScheduler.MAX_STARTS + 1, scanner.starts());
+        assertEquals(LeScanner.Mode.LOW_LATENCY, scheduler.getMode());
+    }
+
+    @Test
+    public void restartsLongScansBeforeThePlatformDowngradesThem() {
+        scheduler.start();
+        long step = ScanScheduler.HUNT_TIMEOUT_MS / 2;
+        for (long elapsed = step; elapsed < ScanScheduler.MAX_SCAN_MS; elapsed += step) {
+            advance(step);
+            scheduler.onDiscovery();
+            scheduler.tick();
+        }
+        assertEquals(1, scanner.starts());
+
+        advanceAndTick(scheduler.getWakeUpDelayMillis());
+        assertEquals(2, scanner.starts());
+        assertEquals("stop", scanner.calls.get(scanner.calls.size() - 2));
+        assertEquals(LeScanner.Mode.LOW_LATENCY, scheduler.getMode());
+    }
+
+    @Test
+    public void stopEndsTheCycle() {
+        scheduler.start();
+        scheduler.stop();
+        assertFalse(scheduler.isActive());
+        assertNull(scheduler.getMode());
+        assertEquals(ScanScheduler.NO_WAKE_UP, scheduler.getWakeUpDelayMillis());
+        assertEquals("[start LOW_LATENCY, stop]", scanner.calls.toString());
+
+        advanceAndTick(ScanScheduler.HUNT_TIMEOUT_MS);
+        scheduler.onDiscovery();
+        assertEquals(2, scanner.calls.size());
+    }
+
+    private void advance(long millis) {
+        nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private void advanceAndTick(long millis) {
+        advance(millis);
+        scheduler.tick();
+    }
+}
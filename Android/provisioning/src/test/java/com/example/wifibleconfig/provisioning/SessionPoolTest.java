@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.GattConnectionException;
+import com.example.wifibleconfig.protocol.gatt.GattOperationQueue;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionPoolTest {
+    private final static String FIRST = "A4:CF:12:00:00:01";
+    private final static String SECOND = "A4:CF:12:00:00:02";
+    private final static String THIRD = "A4:CF:12:00:00:03";
+    private final static String FOURTH = "A4:CF:12:00:00:04";
+
+    /**
+     * Completes connects when told to, or at once when {@code immediate}.
+     */
+    private final static class FakeConnector implements DeviceConnector {
+        final Map<String, CompletableFuture<WiFiClient>> connecting = new HashMap<>();
+        final List<String> connects = new ArrayList<>();
+        final List<String> disconnects = new ArrayList<>();
+        final boolean immediate;
+        Listener listener;
+
+        FakeConnector(boolean immediate) {
+            this.immediate = immediate;
+        }
+
+        @Override
+        public CompletableFuture<WiFiClient> connect(String address) {
+            CompletableFuture<WiFiClient> connected = new CompletableFuture<>();
+            synchronized (this) {
+                connects.add(address);
+                if (!immediate)
+                    connecting.put(address, connected);
+            }
+            if (immediate)
+                connected.complete(client());
+            return connected;
+        }
+
+        @Override
+        public synchronized void disconnect(String address) {
+            disconnects.add(address);
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        WiFiClient complete(String address) {
+            WiFiClient client = client();
+            connecting.remove(address).complete(client);
+            return client;
+        }
+
+        void fail(String address) {
+            connecting.remove(address).completeExceptionally(new GattConnectionException(
+                    "Connection failed with status 133", GattConnectionException.GATT_ERROR));
+        }
+
+        static WiFiClient client() {
+            return new WiFiClient(new GattOperationQueue(null, null), true);
+        }
+    }
+
+    private final FakeConnector connector = new FakeConnector(false);
+
+    @Test
+    public void evictsTheLeastRecentlyUsedIdleSession() {
+        SessionPool pool = new SessionPool(connector, 2);
+        assertSame(pool, connector.listener);
+        WiFiClient first = open(pool, FIRST);
+        WiFiClient second = open(pool, SECOND);
+        pool.release(FIRST, first);
+        pool.release(SECOND, second);
+
+        // Used again, so the second session is now the least recently used.
+        assertSame(first, pool.acquire(FIRST).getNow(null));
+        pool.release(FIRST, first);
+        assertEquals(Arrays.asList(FIRST, SECOND), pool.getAddresses());
+
+        open(pool, THIRD);
+        assertEquals(Collections.singletonList(SECOND), connector.disconnects);
+        assertEquals(Arrays.asList(THIRD, FIRST), pool.getAddresses());
+        assertEquals(1, pool.getHits());
+        assertEquals(3, pool.getConnects());
+        assertEquals(1, pool.getEvictions());
+
+        // A held session is never evicted.
+        CompletableFuture<WiFiClient> fourth = pool.acquire(FOURTH);
+        assertEquals(Arrays.asList(FOURTH, THIRD), pool.getAddresses());
+        assertEquals(Arrays.asList(SECOND, FIRST), connector.disconnects);
+        assertFalse(fourth.isDone());
+    }
+
+    @Test
+    public void servesWaitersInArrivalOrder() {
+        SessionPool pool = new SessionPool(connector, 1);
+        WiFiClient first = open(pool, FIRST);
+        CompletableFuture<WiFiClient> second = pool.acquire(SECOND);
+        CompletableFuture<WiFiClient> third = pool.acquire(THIRD);
+        // The open session is shared, whatever the capacity.
+        assertSame(first, pool.acquire(FIRST).getNow(null));
+        assertEquals(Collections.singletonList(FIRST), connector.connects);
+
+        pool.release(FIRST, first);
+        assertEquals(Collections.singletonList(FIRST), connector.connects);
+        pool.release(FIRST, first);
+        assertEquals(Arrays.asList(FIRST, SECOND), connector.connects);
+        assertEquals(Collections.singletonList(FIRST), connector.disconnects);
+        WiFiClient client = connector.complete(SECOND);
+        assertSame(client, second.getNow(null));
+        assertFalse(third.isDone());
+
+        // A cancelled waiter is skipped.
+        CompletableFuture<WiFiClient> fourth = pool.acquire(FOURTH);
+        third.cancel(false);
+        pool.release(SECOND, client);
+        assertEquals(Arrays.asList(FIRST, SECOND, FOURTH), connector.connects);
+        connector.complete(FOURTH);
+        assertTrue(fourth.isDone());
+    }
+
+    @Test
+    public void dropsASessionThatFailedToConnect() {
+        SessionPool pool = new SessionPool(connector, 1);
+        CompletableFuture<WiFiClient> first = pool.acquire(FIRST);
+        CompletableFuture<WiFiClient> second = pool.acquire(SECOND);
+        assertEquals(Collections.singletonList(FIRST), pool.getAddresses());
+
+        connector.fail(FIRST);
+        assertTrue(first.isCompletedExceptionally());
+        // The failed connect made room for the waiter.
+        assertEquals(Collections.singletonList(SECOND), pool.getAddresses());
+        connector.complete(SECOND);
+        assertTrue(second.isDone());
+        assertEquals(Collections.emptyList(), connector.disconnects);
+    }
+
+    @Test
+    public void forgetsLostSessions() {
+        SessionPool pool = new SessionPool(connector, 1);
+        WiFiClient first = open(pool, FIRST);
+        CompletableFuture<WiFiClient> second = pool.acquire(SECOND);
+
+        connector.listener.onDisconnected(FIRST);
+        assertEquals(1, pool.getLosses());
+        // The lost session made room for the waiter; giving it back is ignored.
+        assertEquals(Collections.singletonList(SECOND), pool.getAddresses());
+        pool.release(FIRST, first);
+        WiFiClient client = connector.complete(SECOND);
+        assertSame(client, second.getNow(null));
+
+        // A session still connecting is not lost, it just failed.
+        pool.release(SECOND, client);
+        pool.acquire(THIRD);
+        connector.listener.onDisconnected(THIRD);
+        assertEquals(1, pool.getLosses());
+        assertEquals(0, pool.size());
+
+        // Closed sessions are not lost either.
+        open(pool, FOURTH);
+        pool.close(FOURTH);
+        connector.listener.onDisconnected(FOURTH);
+        assertEquals(1, pool.getLosses());
+    }
+
+    @Test
+    public void leavesNoAcquireWaitingBesideAnIdleSession() throws Exception {
+        // Every acquire evicts the session of another thread, so releases race the waiters
+        // being put back in the queue; a lost wakeup leaves an acquire waiting for good.
+        SessionPool pool = new SessionPool(new FakeConnector(true), 1);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String address = "A4:CF:12:00:01:0" + t;
+                workers.add(threads.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        WiFiClient client = pool.acquire(address).get(5, TimeUnit.SECONDS);
+                        pool.release(address, client);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers)
+                worker.get(60, TimeUnit.SECONDS);
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1, pool.size());
+        assertEquals(0, pool.getLosses());
+    }
+
+    private WiFiClient open(SessionPool pool, String address) {
+        CompletableFuture<WiFiClient> acquired = pool.acquire(address);
+        WiFiClient client = connector.complete(address);
+        assertSame(client, acquired.getNow(null));
+        return client;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.simulator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Radio link model of a {@link SimulatedGattTransport}.
+ * <p>
+ * PDUs go out on connection events spaced by the connection interval; an ATT request and its
+ * response take two events. A lost PDU is retransmitted by the link layer on the next event,
+ * which costs one more interval. Dropped operations never get their callback, like a stack that
+ * loses a GATT response, and end in the operation timeout.
+ */
+public final class LinkConditions {
+    private final double connectionIntervalMs;
+    private final double jitterMs;
+    private final double lossRate;
+    private final double dropRate;
+
+    /**
+     * @param connectionIntervalMs connection interval, 7.5 to 4000 ms
+     * @param jitterMs             upper bound of a uniformly distributed extra delay per
+     *                             delivery (host stack scheduling)
+     * @param lossRate             probability that a PDU has to be retransmitted
+     * @param dropRate             probability that an operation callback never arrives
+     */
+    public LinkConditions(double connectionIntervalMs, double jitterMs, double lossRate,
+                          double dropRate) {
+        if (connectionIntervalMs < 7.5 || connectionIntervalMs > 4000)
+            throw new IllegalArgumentException("Connection interval must be 7.5 to 4000 ms");
+        if (jitterMs < 0)
+            throw new IllegalArgumentException("Jitter must not be negative");
+        if (lossRate < 0 || lossRate >= 1 || dropRate < 0 || dropRate >= 1)
+            throw new IllegalArgumentException("Rates must be in [0, 1)");
+
+        this.connectionIntervalMs = connectionIntervalMs;
+        this.jitterMs = jitterMs;
+        this.lossRate = lossRate;
+        this.dropRate = dropRate;
+    }
+
+    public static LinkConditions ideal(double connectionIntervalMs) {
+        return new LinkConditions(connectionIntervalMs, 0, 0, 0);
+    }
+
+    //region Properties
+    public double getConnectionIntervalMs() {
+        return connectionIntervalMs;
+    }
+
+    long getConnectionIntervalNanos() {
+        return (long) (connectionIntervalMs * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public double getJitterMs() {
+        return jitterMs;
+    }
+
+    long getJitterNanos() {
+        return (long) (jitterMs * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    public double getDropRate() {
+        return dropRate;
+    }
+    //endregion
+
+    @Override
+    public String toString() {
+        return String.format("interval=%.2fms jitter=%.1fms loss=%.3f drop=%.3f",
+                connectionIntervalMs, jitterMs, lossRate, dropRate);
+    }
+}
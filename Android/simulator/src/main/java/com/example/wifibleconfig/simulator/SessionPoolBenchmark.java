@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.simulator;
+
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+import com.example.wifibleconfig.provisioning.LatencyHistogram;
+import com.example.wifibleconfig.provisioning.SessionPool;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A supervisor switching between simulated access points at random and refreshing the status
+ * of each, once per pool capacity: prints the hit ratio of the {@link SessionPool} and refresh
+ * latency percentiles. Capacity 0 connects for every refresh, as the app did without a pool.
+ * Runs in real time on any JVM.
+ * <p>
+ * Options: --devices N, --capacities 0,4,7,12, --refreshes N, --interval MS, --jitter MS,
+ * --loss RATE, --seed N.
+ */
+public final class SessionPoolBenchmark {
+    private final static long REFRESH_TIMEOUT_MS = 10000;
+
+    private int devices = 12;
+    private int[] capacities = {0, 4, 7, 12};
+    private int refreshes = 100;
+    private double intervalMs = 30;
+    private double jitterMs = 1;
+    private double lossRate = 0;
+    private long seed = 1;
+
+    public static void main(String[] args) throws InterruptedException {
+        SessionPoolBenchmark benchmark = new SessionPoolBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--devices":
+                    devices = Integer.parseInt(value);
+                    break;
+
+                case "--capacities":
+                    String[] parts = value.split(",");
+                    capacities = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++)
+                        capacities[j] = Integer.parseInt(parts[j]);
+                    break;
+
+                case "--refreshes":
+                    refreshes = Integer.parseInt(value);
+                    break;
+
+                case "--interval":
+                    intervalMs = Double.parseDouble(value);
+                    break;
+
+                case "--jitter":
+                    jitterMs = Double.parseDouble(value);
+                    break;
+
+                case "--loss":
+                    lossRate = Double.parseDouble(value);
+                    break;
+
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf(Locale.ROOT, "devices=%d refreshes=%d interval=%.1fms jitter=%.1fms " +
+                "loss=%.3f%n", devices, refreshes, intervalMs, jitterMs, lossRate);
+        System.out.println("capacity  hits  connects  evictions  failed  p50_ms  p90_ms  p99_ms");
+        for (int capacity : capacities)
+            run(capacity);
+    }
+
+    private void run(int capacity) throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        SimulatedDeviceConnector connector = new SimulatedDeviceConnector(
+                new LinkConditions(intervalMs, jitterMs, lossRate, 0), scheduler, seed);
+        SessionPool pool = capacity > 0 ? new SessionPool(connector, capacity) : null;
+        Random random = new Random(seed);
+        LatencyHistogram latency = new LatencyHistogram();
+        int failed = 0;
+
+        for (int i = 0; i < refreshes; i++) {
+            String address = String.format("24:0A:C4:00:00:%02X", random.nextInt(devices));
+            long start = System.nanoTime();
+            try {
+                if (pool != null) {
+                    WiFiClient client = pool.acquire(address).get(REFRESH_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS);
+                    try {
+                        client.requestStatus().get(REFRESH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } finally {
+                        pool.release(address, client);
+                    }
+                } else {
+                    try {
+                        connector.connect(address).get(REFRESH_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                                .requestStatus().get(REFRESH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } finally {
+                        connector.disconnect(address);
+                    }
+                }
+                latency.recordNanos(System.nanoTime() - start);
+            } catch (ExecutionException | TimeoutException e) {
+                // The session is dropped, the next refresh of the device connects again.
+                failed++;
+                if (pool != null)
+                    pool.close(address);
+            }
+        }
+        if (pool != null)
+            pool.closeAll();
+        scheduler.shutdownNow();
+
+        System.out.printf(Locale.ROOT, "%8d %5d %9d %10d %7d %7.1f %7.1f %7.1f%n", capacity,
+                pool == null ? 0 : pool.getHits(), pool == null ? refreshes : pool.getConnects(),
+                pool == null ? 0 : pool.getEvictions(), failed, latency.getPercentileMillis(50),
+                latency.getPercentileMillis(90), latency.getPercentileMillis(99));
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.simulator;
+
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.gatt.GattConnectionException;
+import com.example.wifibleconfig.protocol.gatt.GattOperationQueue;
+import com.example.wifibleconfig.protocol.gatt.SessionKeyCache;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+import com.example.wifibleconfig.provisioning.DeviceConnector;
+import com.example.wifibleconfig.provisioning.ProvisioningPhase;
+import com.example.wifibleconfig.provisioning.ProvisioningTrace;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DeviceConnector} over simulated devices, one {@link SimulatedWiFiBle} per address.
+ * Connection setup and service discovery are charged as a fixed number of link exchanges, then
+ * the regular {@link WiFiClient} session runs over a {@link SimulatedGattTransport}.
+ */
+public final class SimulatedDeviceConnector implements DeviceConnector {
+    /**
+     * Connection events spent on connection setup before the first ATT exchange.
+     */
+    public final static int CONNECT_EVENTS = 2;
+    /**
+     * ATT exchanges of service discovery: primary services, characteristics and descriptors.
+     */
+    public final static int DISCOVERY_EXCHANGES = 6;
+
+    private final static class Connection {
+        final SimulatedGattTransport transport;
+        final GattOperationQueue queue;
+        final WiFiClient client;
+
+        Connection(SimulatedGattTransport transport, GattOperationQueue queue,
+                   WiFiClient client) {
+            this.transport = transport;
+            this.queue = queue;
+            this.client = client;
+        }
+    }
+
+    private final LinkConditions link;
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+    private final int protocolVersion;
+    private final Map<String, SimulatedWiFiBle> devices = new ConcurrentHashMap<>();
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<WiFiClient>> connecting =
+            new ConcurrentHashMap<>();
+    private final Map<String, ProvisioningTrace> traces = new ConcurrentHashMap<>();
+    private volatile SessionKeyCache sessionKeys;
+    private volatile Listener listener;
+    private volatile double connectFailureRate;
+    private volatile long connectFailureDelayMs;
+
+    public SimulatedDeviceConnector(LinkConditions link, ScheduledExecutorService scheduler,
+                                    long seed) {
+        this(link, scheduler, seed, WiFiProtocol.PROTOCOL_VERSION);
+    }
+
+    public SimulatedDeviceConnector(LinkConditions link, ScheduledExecutorService scheduler,
+                                    long seed, int protocolVersion) {
+        this.link = link;
+        this.scheduler = scheduler;
+        this.random = new Random(seed);
+        this.protocolVersion = protocolVersion;
+    }
+
+    public SimulatedWiFiBle getDevice(String address) {
+        return devices.computeIfAbsent(address, key -> new SimulatedWiFiBle(protocolVersion,
+                scheduler));
+    }
+
+    /**
+     * Shares session keys across connections, as the app does; without a cache every
+     * provisioning runs a key exchange.
+     */
+    public void setSessionKeys(SessionKeyCache sessionKeys) {
+        this.sessionKeys = sessionKeys;
+    }
+
+    /**
+     * Fails the given share of connects with status 133 after {@code delayMs}, as Android
+     * does when the device does not answer the connection request.
+     */
+    public void setConnectFailures(double rate, long delayMs) {
+        connectFailureRate = rate;
+        connectFailureDelayMs = delayMs;
+    }
+
+    @Override
+    public CompletableFuture<WiFiClient> connect(String address) {
+        SimulatedWiFiBle device = getDevice(address);
+        CompletableFuture<WiFiClient> ready = new CompletableFuture<>();
+        ProvisioningTrace trace = traces.remove(address);
+        connecting.put(address, ready);
+        if (connectFailureRate > 0 && random.nextDouble() < connectFailureRate) {
+            scheduler.schedule(() -> {
+                connecting.remove(address, ready);
+                ready.completeExceptionally(new GattConnectionException(
+                        "Connection failed with status " + GattConnectionException.GATT_ERROR,
+                        GattConnectionException.GATT_ERROR));
+            }, connectFailureDelayMs, TimeUnit.MILLISECONDS);
+            return ready;
+        }
+        long eventNanos = (long) (link.getConnectionIntervalMs() *
+                TimeUnit.MILLISECONDS.toNanos(1));
+        long setupNanos = (CONNECT_EVENTS + 2 * DISCOVERY_EXCHANGES) * eventNanos;
+        if (trace != null)
+            scheduler.schedule(() -> trace.mark(ProvisioningPhase.CONNECTED),
+                    CONNECT_EVENTS * eventNanos, TimeUnit.NANOSECONDS);
+
+        scheduler.schedule(() -> {
+            // Abandoned by the caller or cancelled by a disconnect.
+            if (!connecting.remove(address, ready) || ready.isDone())
+                return;
+            if (trace != null)
+                trace.mark(ProvisioningPhase.SERVICES_DISCOVERED);
+            GattOperationQueue[] queue = new GattOperationQueue[1];
+            WiFiClient[] client = new WiFiClient[1];
+            SimulatedGattTransport transport = new SimulatedGattTransport(device, link,
+                    scheduler, new SimulatedGattTransport.Callback() {
+                @Override
+                public void onMtuChanged(int mtu, int status) {
+                    queue[0].onMtuChanged(mtu, status);
+                }
+
+                @Override
+                public void onCharacteristicRead(UUID characteristic, byte[] value,
+                                                 int status) {
+                    queue[0].onCharacteristicRead(characteristic, value, status);
+                }
+
+                @Override
+                public void onCharacteristicWrite(UUID characteristic, int status) {
+                    queue[0].onCharacteristicWrite(characteristic, status);
+                }
+
+                @Override
+                public void onDescriptorWrite(UUID descriptor, int status) {
+                    queue[0].onDescriptorWrite(descriptor, status);
+                }
+
+                @Override
+                public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+                    if (WiFiGattAttributes.SCAN_CHARACTERISTIC_UUID.equals(characteristic))
+                        client[0].onScanNotification(value);
+                    else if (WiFiGattAttributes.TELEMETRY_CHARACTERISTIC_UUID.equals(
+                            characteristic))
+                        client[0].onTelemetryNotification(value);
+                    else
+                        client[0].onStatusNotification(value);
+                }
+            }, random);
+            queue[0] = new GattOperationQueue(transport, scheduler);
+            client[0] = new WiFiClient(queue[0], device.hasVersionCharacteristic());
+            connections.put(address, new Connection(transport, queue[0], client[0]));
+
+            client[0].setSeparateStatusCharacteristic(device.hasStatusCharacteristic());
+            client[0].setSessionKeys(sessionKeys, address);
+            client[0].startSession().whenComplete((value, error) -> {
+                if (error != null) {
+                    ready.completeExceptionally(error);
+                    return;
+                }
+                if (trace != null)
+                    trace.mark(ProvisioningPhase.STATUS_READ);
+                ready.complete(client[0]);
+            });
+        }, setupNanos, TimeUnit.NANOSECONDS);
+        return ready;
+    }
+
+    /**
+     * Also stands for the device dropping the link.
+     */
+    @Override
+    public void disconnect(String address) {
+        CompletableFuture<WiFiClient> pending = connecting.remove(address);
+        if (pending != null)
+            pending.completeExceptionally(new CancellationException(
+                    "Disconnected while connecting"));
+        Connection connection = connections.remove(address);
+        if (connection == null)
+            return;
+        connection.transport.close();
+        connection.queue.cancelAll();
+        connection.client.cancelCommands();
+
+        Listener current = listener;
+        if (current != null)
+            current.onDisconnected(address);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setTrace(String address, ProvisioningTrace trace) {
+        traces.put(address, trace);
+    }
+}
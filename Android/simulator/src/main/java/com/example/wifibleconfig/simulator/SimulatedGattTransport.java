@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.simulator;
+
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.gatt.GattTransport;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GattTransport} connected to a {@link SimulatedWiFiBle} over a modelled radio link,
+ * used by the client code in place of BluetoothGatt.
+ * <p>
+ * Results are delivered to a {@link Callback}, the counterpart of BluetoothGattCallback, on the
+ * scheduler. Deliveries of one link never overtake each other, so a single threaded scheduler
+ * keeps the callback order of a real connection.
+ */
+public final class SimulatedGattTransport implements GattTransport {
+    public interface Callback {
+        void onMtuChanged(int mtu, int status);
+
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(UUID characteristic, int status);
+
+        void onDescriptorWrite(UUID descriptor, int status);
+
+        void onCharacteristicChanged(UUID characteristic, byte[] value);
+    }
+
+    private final SimulatedWiFiBle peripheral;
+    private final LinkConditions link;
+    private final ScheduledExecutorService scheduler;
+    private final Callback callback;
+    private final Random random;
+    private final long anchorNanos;
+
+    private long lastDeliveryNanos;
+    private final ArrayDeque<Runnable> deliveries = new ArrayDeque<>();
+    private int mtu = WiFiProtocol.DEFAULT_ATT_MTU;
+    private volatile boolean closed;
+
+    public SimulatedGattTransport(SimulatedWiFiBle peripheral, LinkConditions link,
+                                  ScheduledExecutorService scheduler, Callback callback,
+                                  Random random) {
+        this.peripheral = peripheral;
+        this.link = link;
+        this.scheduler = scheduler;
+        this.callback = callback;
+        this.random = random;
+        this.anchorNanos = System.nanoTime();
+
+        peripheral.onConnect((characteristic, value) -> deliver(nextEvent(System.nanoTime()),
+                () -> callback.onCharacteristicChanged(characteristic, value)));
+    }
+
+    /**
+     * Disconnects; nothing is delivered afterwards.
+     */
+    public void close() {
+        closed = true;
+        peripheral.onDisconnect();
+    }
+
+    //region GattTransport
+    @Override
+    public boolean requestMtu(int requestedMtu) {
+        if (closed)
+            return false;
+
+        long response = exchange(System.nanoTime());
+        int negotiated = Math.max(WiFiProtocol.DEFAULT_ATT_MTU,
+                Math.min(requestedMtu, peripheral.getLocalMtu()));
+        deliverResponse(response, () -> {
+            synchronized (this) {
+                mtu = negotiated;
+            }
+            callback.onMtuChanged(negotiated, GATT_SUCCESS);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        if (closed || !isReadable(service, characteristic))
+            return false;
+
+        long request = transmit(System.nanoTime());
+        long response = transmit(request);
+        deliverResponse(response, () -> {
+            byte[] value;
+            if (WiFiGattAttributes.VERSION_CHARACTERISTIC_UUID.equals(characteristic))
+                value = peripheral.readVersion();
+            else if (WiFiGattAttributes.SECURITY_CHARACTERISTIC_UUID.equals(characteristic))
+                value = peripheral.readSecurity();
+            else
+                value = peripheral.onRead();
+            callback.onCharacteristicRead(characteristic, value, GATT_SUCCESS);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                       int writeType) {
+        if (closed || !WiFiGattAttributes.SERVICE_UUID.equals(service) ||
+                !WiFiGattAttributes.CHARACTERISTIC_UUID.equals(characteristic))
+            return false;
+
+        byte[] data = value.clone();
+        int maxWrite = currentMtu() - WiFiProtocol.ATT_WRITE_OVERHEAD;
+        long now = System.nanoTime();
+
+        if (writeType == WRITE_TYPE_NO_RESPONSE) {
+            if (data.length > maxWrite)
+                return false;
+            // The stack reports the write once the PDU is handed to the controller.
+            long sent = transmit(now);
+            deliver(sent, () -> peripheral.onWrite(data));
+            deliverResponse(sent, () -> callback.onCharacteristicWrite(characteristic,
+                    GATT_SUCCESS));
+            return true;
+        }
+
+        // A value longer than the MTU allows goes out as a prepared (long) write: one
+        // exchange per part plus the execute request.
+        long arrival = now;
+        int exchanges = data.length <= maxWrite ? 1 :
+                (data.length + maxWrite - 3) / (maxWrite - 2) + 1;
+        for (int i = 0; i < exchanges - 1; i++)
+            arrival = exchange(arrival);
+        arrival = transmit(arrival);
+        long response = transmit(arrival);
+
+        deliver(arrival, () -> peripheral.onWrite(data));
+        deliverResponse(response, () -> callback.onCharacteristicWrite(characteristic,
+                GATT_SUCCESS));
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                 boolean enable) {
+        return !closed && hasNotifyingCharacteristic(service, characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                   byte[] value) {
+        if (closed || !hasNotifyingCharacteristic(service, characteristic) ||
+                !WiFiGattAttributes.CCC_DESCRIPTOR_UUID.equals(descriptor))
+            return false;
+
+        byte[] data = value.clone();
+        long arrival = transmit(System.nanoTime());
+        long response = transmit(arrival);
+        deliver(arrival, () -> peripheral.onDescriptorWrite(characteristic, data));
+        deliverResponse(response, () -> callback.onDescriptorWrite(descriptor, GATT_SUCCESS));
+        return true;
+    }
+
+    private boolean isReadable(UUID service, UUID characteristic) {
+        if (!WiFiGattAttributes.SERVICE_UUID.equals(service))
+            return false;
+        if (WiFiGattAttributes.CHARACTERISTIC_UUID.equals(characteristic))
+            return true;
+        if (WiFiGattAttributes.STATUS_CHARACTERISTIC_UUID.equals(characteristic))
+            return peripheral.hasStatusCharacteristic();
+        if (WiFiGattAttributes.SECURITY_CHARACTERISTIC_UUID.equals(characteristic))
+            return peripheral.hasSecurityCharacteristic();
+        return WiFiGattAttributes.VERSION_CHARACTERISTIC_UUID.equals(characteristic) &&
+                peripheral.hasVersionCharacteristic();
+    }
+
+    private boolean hasNotifyingCharacteristic(UUID service, UUID characteristic) {
+        if (!WiFiGattAttributes.SERVICE_UUID.equals(service))
+            return false;
+        if (WiFiGattAttributes.CHARACTERISTIC_UUID.equals(characteristic))
+            return true;
+        if (WiFiGattAttributes.STATUS_CHARACTERISTIC_UUID.equals(characteristic))
+            return peripheral.hasStatusCharacteristic();
+        if (WiFiGattAttributes.SCAN_CHARACTERISTIC_UUID.equals(characteristic))
+            return peripheral.hasScanCharacteristic();
+        return WiFiGattAttributes.TELEMETRY_CHARACTERISTIC_UUID.equals(characteristic) &&
+                peripheral.hasTelemetryCharacteristic();
+    }
+
+    public synchronized int currentMtu() {
+        return mtu;
+    }
+    //endregion
+
+    //region Link model
+    /**
+     * Time of the first connection event after {@code nanos}.
+     */
+    private long nextEvent(long nanos) {
+        long interval = link.getConnectionIntervalNanos();
+        long events = (nanos - anchorNanos + interval - 1) / interval;
+        return anchorNanos + Math.max(1, events) * interval;
+    }
+
+    /**
+     * Time at which a PDU queued at {@code nanos} is received, including retransmissions.
+     */
+    private long transmit(long nanos) {
+        long time = nextEvent(nanos);
+        synchronized (random) {
+            while (random.nextDouble() < link.getLossRate())
+                time += link.getConnectionIntervalNanos();
+        }
+        return time;
+    }
+
+    private long exchange(long nanos) {
+        return transmit(transmit(nanos));
+    }
+
+    private void deliverResponse(long nanos, Runnable action) {
+        boolean dropped;
+        synchronized (random) {
+            dropped = random.nextDouble() < link.getDropRate();
+        }
+        if (!dropped)
+            deliver(nanos, action);
+    }
+
+    private void deliver(long nanos, Runnable action) {
+        long jitter = link.getJitterNanos();
+        long at;
+        synchronized (this) {
+            if (jitter > 0) {
+                synchronized (random) {
+                    nanos += (long) (random.nextDouble() * jitter);
+                }
+            }
+            at = Math.max(nanos, lastDeliveryNanos);
+            lastDeliveryNanos = at;
+            deliveries.add(action);
+        }
+
+        // Tasks due at the same time may fire in either order; each one runs the oldest
+        // pending delivery, so the link stays in order (notification chunks rely on it).
+        scheduler.schedule(this::deliverNext, Math.max(0, at - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+    }
+
+    private void deliverNext() {
+        Runnable action;
+        synchronized (this) {
+            action = deliveries.poll();
+        }
+        if (action != null && !closed)
+            action.run();
+    }
+    //endregion
+}
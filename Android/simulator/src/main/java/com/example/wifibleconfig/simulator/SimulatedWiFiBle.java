@@ -0,0 +1,644 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.simulator;
+
+import com.example.wifibleconfig.protocol.WiFiAccessPoint;
+import com.example.wifibleconfig.protocol.WiFiCommandCodec;
+import com.example.wifibleconfig.protocol.WiFiGattAttributes;
+import com.example.wifibleconfig.protocol.WiFiKeyExchange;
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.WiFiReassembler;
+import com.example.wifibleconfig.protocol.WiFiSessionKey;
+import com.example.wifibleconfig.protocol.WiFiStatusCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Java port of the BleWiFi class of WiFiBle.ino: command handling in onWrite, the
+ * m_WiFiStatus transitions, the status value with the station count in the high byte and
+ * notifications on whichever of the command and status characteristics are subscribed. The
+ * soft AP is modelled by {@link #setStationCount} and by failing to start with a password
+ * shorter than 8 characters, as WiFi.softAP does. WIFI_CMD_SCAN streams the access points set
+ * by {@link #setAccessPoints} at once, without the seconds a real scan takes. Commands run
+ * inside onWrite; the firmware's worker task only moves them off the BLE task. Telemetry frames
+ * are sent on the scheduler given to the constructor, with the RSSIs of
+ * {@link #setStationRssi} and a fixed free heap. Session keys survive disconnects, as they do in
+ * the NVS of the firmware.
+ */
+public final class SimulatedWiFiBle {
+    private final static int DEFAULT_CHANNEL = 1;
+    private final static int DEFAULT_STATION_RSSI = -60;
+    private final static int FREE_HEAP = 180000;
+
+    private final int protocolVersion;
+    private final ScheduledExecutorService scheduler;
+    private final long bootNanos = System.nanoTime();
+    private final WiFiReassembler reassembler = new WiFiReassembler();
+
+    private BiConsumer<UUID, byte[]> notifier;
+    private boolean deviceConnected;
+    private boolean commandNotifications;
+    private boolean statusNotifications;
+    private boolean scanNotifications;
+    private boolean telemetryNotifications;
+
+    private String ssid = "";
+    private String password = "";
+    private byte wifiStatus = WiFiProtocol.WIFI_STATUS_NO_CONFIG;
+    private int stationCount;
+    private int channel = DEFAULT_CHANNEL;
+    private int[] stationRssi = new int[0];
+    private List<WiFiAccessPoint> accessPoints = new ArrayList<>();
+
+    private ScheduledFuture<?> telemetryTask;
+    private int telemetryFrameLength;
+    private int telemetrySequence;
+
+    //region Session keys
+    private KeyPair deviceKey;
+    // Most recently used first, with the counter last accepted under each key.
+    private final WiFiSessionKey[] sessionKeys = new WiFiSessionKey[WiFiProtocol.MAX_SESSION_KEYS];
+    private final long[] lastCounters = new long[WiFiProtocol.MAX_SESSION_KEYS];
+    private int sessionKeyCount;
+    private int keyExchanges;
+    private int secureFrames;
+    //endregion
+
+    public SimulatedWiFiBle() {
+        this(WiFiProtocol.PROTOCOL_VERSION);
+    }
+
+    /**
+     * @param protocolVersion firmware generation to behave like; version 1 has no version
+     *                        characteristic and ignores the newer commands
+     */
+    public SimulatedWiFiBle(int protocolVersion) {
+        this(protocolVersion, null);
+    }
+
+    /**
+     * @param scheduler runs the telemetry frames; without one WIFI_CMD_TELEMETRY is accepted
+     *                  but sends nothing
+     */
+    public SimulatedWiFiBle(int protocolVersion, ScheduledExecutorService scheduler) {
+        this.protocolVersion = protocolVersion;
+        this.scheduler = scheduler;
+    }
+
+    //region Connection
+    /**
+     * @param notifier receives the characteristic and value of every notification
+     */
+    public synchronized void onConnect(BiConsumer<UUID, byte[]> notifier) {
+        this.notifier = notifier;
+        deviceConnected = true;
+        commandNotifications = false;
+        statusNotifications = false;
+        scanNotifications = false;
+        telemetryNotifications = false;
+    }
+
+    public synchronized void onDisconnect() {
+        deviceConnected = false;
+        commandNotifications = false;
+        statusNotifications = false;
+        scanNotifications = false;
+        telemetryNotifications = false;
+        stopTelemetry();
+        notifier = null;
+        reassembler.reset();
+    }
+
+    /**
+     * CCC descriptor write of {@code characteristic}. Since version 4 the current status is
+     * pushed on subscription.
+     */
+    public synchronized void onDescriptorWrite(UUID characteristic, byte[] value) {
+        boolean enabled = value != null && value.length > 0 && (value[0] & 0x01) != 0;
+        if (WiFiGattAttributes.SCAN_CHARACTERISTIC_UUID.equals(characteristic)) {
+            scanNotifications = enabled;
+            return;
+        }
+        if (WiFiGattAttributes.TELEMETRY_CHARACTERISTIC_UUID.equals(characteristic)) {
+            telemetryNotifications = enabled;
+            return;
+        }
+        if (WiFiGattAttributes.STATUS_CHARACTERISTIC_UUID.equals(characteristic))
+            statusNotifications = enabled;
+        else
+            commandNotifications = enabled;
+        if (protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_STATUS_PUSH)
+            notifyStatus();
+    }
+    //endregion
+
+    //region Characteristics
+    public synchronized void onWrite(byte[] data) {
+        if (data != null && data.length > 0)
+            handleCommand(data, data.length);
+    }
+
+    public synchronized byte[] onRead() {
+        return statusValue();
+    }
+
+    public boolean hasVersionCharacteristic() {
+        return protocolVersion > WiFiProtocol.PROTOCOL_VERSION_LEGACY;
+    }
+
+    public boolean hasStatusCharacteristic() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_STATUS_CHARACTERISTIC;
+    }
+
+    public boolean hasScanCharacteristic() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_SCAN;
+    }
+
+    public boolean hasTelemetryCharacteristic() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_TELEMETRY;
+    }
+
+    public boolean hasSecurityCharacteristic() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_SECURE;
+    }
+
+    public synchronized byte[] readSecurity() {
+        int[] keyIds = new int[sessionKeyCount];
+        for (int i = 0; i < sessionKeyCount; i++)
+            keyIds[i] = sessionKeys[i].getKeyId();
+        return new WiFiKeyExchange.DeviceInfo(WiFiKeyExchange.encodePublicKey(
+                (ECPublicKey) deviceKey().getPublic()), keyIds).encode();
+    }
+
+    public byte[] readVersion() {
+        return new byte[]{(byte) protocolVersion};
+    }
+
+    /**
+     * Largest ATT MTU the device accepts. BLEDevice::setMTU arrived with fragmented writes;
+     * older firmware keeps the default.
+     */
+    public int getLocalMtu() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_FRAGMENTS ?
+                WiFiProtocol.PREFERRED_ATT_MTU : WiFiProtocol.DEFAULT_ATT_MTU;
+    }
+    //endregion
+
+    //region Soft AP model
+    /**
+     * Simulates stations joining or leaving the soft AP (ARDUINO_EVENT_WIFI_AP_STACONNECTED).
+     */
+    public synchronized void setStationCount(int stationCount) {
+        int[] rssi = new int[stationCount];
+        Arrays.fill(rssi, DEFAULT_STATION_RSSI);
+        setStationRssi(rssi);
+    }
+
+    /**
+     * Like {@link #setStationCount}, one station per value, with the RSSI the soft AP reports
+     * for it in telemetry frames.
+     */
+    public synchronized void setStationRssi(int... rssi) {
+        this.stationRssi = rssi.clone();
+        this.stationCount = rssi.length;
+        notifyStatus();
+    }
+
+    public synchronized byte getWiFiStatus() {
+        return wifiStatus;
+    }
+
+    public synchronized String getSsid() {
+        return ssid;
+    }
+
+    public synchronized String getPassword() {
+        return password;
+    }
+
+    /**
+     * Soft AP channel from the last WIFI_CMD_PROVISION, 1 unless a channel TLV set it.
+     */
+    public synchronized int getChannel() {
+        return channel;
+    }
+
+    /**
+     * Networks around the device, reported in this order by WIFI_CMD_SCAN.
+     */
+    public synchronized void setAccessPoints(List<WiFiAccessPoint> accessPoints) {
+        this.accessPoints = new ArrayList<>(accessPoints);
+    }
+
+    private boolean startAp() {
+        if (wifiStatus != WiFiProtocol.WIFI_STATUS_STOPPED)
+            return false;
+        // WiFi.softAP rejects WPA2 passwords shorter than 8 characters.
+        if (password.length() < WiFiProtocol.MIN_PASSWORD_LENGTH)
+            return false;
+        wifiStatus = WiFiProtocol.WIFI_STATUS_STARTED;
+        return true;
+    }
+
+    private void stopAp() {
+        stationCount = 0;
+        stationRssi = new int[0];
+    }
+    //endregion
+
+    //region Firmware state machine
+    private byte[] statusValue() {
+        byte[] value = new byte[WiFiProtocol.STATUS_FRAME_LENGTH];
+        WiFiStatusCodec.encode(wifiStatus, wifiStatus == WiFiProtocol.WIFI_STATUS_STARTED ?
+                stationCount : 0, value, 0);
+        return value;
+    }
+
+    private void notifyStatus() {
+        if (!deviceConnected || notifier == null)
+            return;
+        if (statusNotifications)
+            notifier.accept(WiFiGattAttributes.STATUS_CHARACTERISTIC_UUID, statusValue());
+        if (commandNotifications)
+            notifier.accept(WiFiGattAttributes.CHARACTERISTIC_UUID, statusValue());
+    }
+
+    /**
+     * NotifyError of the firmware: one WIFI_STATUS_ERROR notification, reads keep returning
+     * the AP status.
+     */
+    private void notifyError() {
+        byte status = wifiStatus;
+        wifiStatus = WiFiProtocol.WIFI_STATUS_ERROR;
+        notifyStatus();
+        wifiStatus = status;
+    }
+
+    private void updateWiFiStatus() {
+        if (wifiStatus == WiFiProtocol.WIFI_STATUS_STARTED)
+            stopAp();
+
+        if (password.isEmpty() || ssid.isEmpty())
+            wifiStatus = WiFiProtocol.WIFI_STATUS_NO_CONFIG;
+        else
+            wifiStatus = WiFiProtocol.WIFI_STATUS_STOPPED;
+
+        notifyStatus();
+    }
+
+    private void provision(byte[] data, int offset, int length) {
+        String newSsid = "";
+        String newPassword = "";
+        boolean start = false;
+        int newChannel = DEFAULT_CHANNEL;
+        boolean valid = true;
+
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            if (end - pos < WiFiProtocol.TLV_HEADER_LENGTH) {
+                valid = false;
+                break;
+            }
+            byte type = data[pos];
+            int valueLength = data[pos + 1] & 0xFF;
+            int valueOffset = pos + WiFiProtocol.TLV_HEADER_LENGTH;
+            if (valueLength > end - valueOffset) {
+                valid = false;
+                break;
+            }
+
+            switch (type) {
+                case WiFiProtocol.TLV_SSID:
+                    newSsid = string(data, valueOffset, valueLength);
+                    break;
+
+                case WiFiProtocol.TLV_PASSWORD:
+                    newPassword = string(data, valueOffset, valueLength);
+                    break;
+
+                case WiFiProtocol.TLV_START:
+                    start = valueLength == 1 && data[valueOffset] != 0;
+                    break;
+
+                case WiFiProtocol.TLV_CHANNEL:
+                    if (protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_SCAN &&
+                            valueLength == 1 && WiFiCommandCodec.isValidChannel(
+                            data[valueOffset] & 0xFF))
+                        newChannel = data[valueOffset] & 0xFF;
+                    break;
+            }
+            pos = valueOffset + valueLength;
+        }
+
+        if (valid && !newSsid.isEmpty() && !newPassword.isEmpty()) {
+            ssid = newSsid;
+            password = newPassword;
+            channel = newChannel;
+            if (wifiStatus == WiFiProtocol.WIFI_STATUS_STARTED)
+                stopAp();
+            wifiStatus = WiFiProtocol.WIFI_STATUS_STOPPED;
+            if (start)
+                startAp();
+        }
+
+        // Single notification for the whole SSID/PWD/START sequence.
+        notifyStatus();
+    }
+
+    private void handleCommand(byte[] data, int length) {
+        byte command = data[0];
+        if (protocolVersion == WiFiProtocol.PROTOCOL_VERSION_LEGACY &&
+                command > WiFiProtocol.WIFI_CMD_GET_STATUS)
+            return;
+        if (protocolVersion < WiFiProtocol.PROTOCOL_VERSION_FRAGMENTS &&
+                command > WiFiProtocol.WIFI_CMD_PROVISION)
+            return;
+        if (protocolVersion < WiFiProtocol.PROTOCOL_VERSION_SCAN &&
+                command > WiFiProtocol.WIFI_CMD_COMMIT)
+            return;
+        if (protocolVersion < WiFiProtocol.PROTOCOL_VERSION_TELEMETRY &&
+                command > WiFiProtocol.WIFI_CMD_SCAN)
+            return;
+        if (protocolVersion < WiFiProtocol.PROTOCOL_VERSION_SECURE &&
+                command > WiFiProtocol.WIFI_CMD_TELEMETRY)
+            return;
+
+        switch (command) {
+            case WiFiProtocol.WIFI_CMD_SET_SSID:
+                ssid = string(data, 1, length - 1);
+                updateWiFiStatus();
+                break;
+
+            case WiFiProtocol.WIFI_CMD_SET_PWD:
+                password = string(data, 1, length - 1);
+                updateWiFiStatus();
+                break;
+
+            case WiFiProtocol.WIFI_CMD_START:
+                // Since version 7 every command reports its completion, also when it failed
+                // or had nothing to do.
+                if (startAp() || reportsEveryCommand())
+                    notifyStatus();
+                break;
+
+            case WiFiProtocol.WIFI_CMD_STOP:
+                if (wifiStatus == WiFiProtocol.WIFI_STATUS_STARTED) {
+                    stopAp();
+                    wifiStatus = WiFiProtocol.WIFI_STATUS_STOPPED;
+                    notifyStatus();
+                } else if (reportsEveryCommand())
+                    notifyStatus();
+                break;
+
+            case WiFiProtocol.WIFI_CMD_GET_STATUS:
+                notifyStatus();
+                break;
+
+            case WiFiProtocol.WIFI_CMD_PROVISION:
+                provision(data, 1, length - 1);
+                break;
+
+            case WiFiProtocol.WIFI_CMD_FRAGMENT:
+                reassembler.onFragment(data, 0, length);
+                break;
+
+            case WiFiProtocol.WIFI_CMD_COMMIT:
+                int frameLength = reassembler.onCommit(data, 0, length);
+                byte[] frame = reassembler.getBuffer();
+                if (frameLength > 0 && frame[0] != WiFiProtocol.WIFI_CMD_FRAGMENT &&
+                        frame[0] != WiFiProtocol.WIFI_CMD_COMMIT)
+                    handleCommand(frame, frameLength);
+                else
+                    notifyStatus();
+                break;
+
+            case WiFiProtocol.WIFI_CMD_SCAN:
+                if (length == WiFiProtocol.SCAN_COMMAND_LENGTH)
+                    streamSurvey((data[1] & 0xFF) | ((data[2] & 0xFF) << 8));
+                break;
+
+            case WiFiProtocol.WIFI_CMD_TELEMETRY:
+                if (length == WiFiProtocol.TELEMETRY_COMMAND_LENGTH)
+                    setTelemetry((data[1] & 0xFF) | ((data[2] & 0xFF) << 8),
+                            (data[3] & 0xFF) | ((data[4] & 0xFF) << 8));
+                notifyStatus();
+                break;
+
+            case WiFiProtocol.WIFI_CMD_KEY_EXCHANGE:
+                if (length == WiFiProtocol.KEY_EXCHANGE_FRAME_LENGTH &&
+                        exchangeKeys(Arrays.copyOfRange(data, 1, length)))
+                    notifyStatus();
+                else
+                    notifyError();
+                break;
+
+            case WiFiProtocol.WIFI_CMD_SECURE:
+                byte[] inner = openSecure(data, length);
+                if (inner != null)
+                    handleCommand(inner, inner.length);
+                else
+                    notifyError();
+                break;
+        }
+    }
+
+    /**
+     * SetTelemetry of the firmware: the interval is clamped, 0 stops.
+     */
+    private void setTelemetry(int intervalMs, int maxFrameLength) {
+        stopTelemetry();
+        if (intervalMs == 0 || scheduler == null)
+            return;
+
+        long interval = Math.max(WiFiProtocol.MIN_TELEMETRY_INTERVAL_MS,
+                Math.min(intervalMs, WiFiProtocol.MAX_TELEMETRY_INTERVAL_MS));
+        telemetryFrameLength = Math.max(WiFiProtocol.MIN_SCAN_CHUNK_LENGTH,
+                Math.min(maxFrameLength, WiFiProtocol.PREFERRED_ATT_MTU -
+                        WiFiProtocol.ATT_NOTIFICATION_OVERHEAD));
+        telemetryTask = scheduler.scheduleAtFixedRate(this::sendTelemetry, interval, interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void stopTelemetry() {
+        if (telemetryTask != null)
+            telemetryTask.cancel(false);
+        telemetryTask = null;
+    }
+
+    private synchronized void sendTelemetry() {
+        if (!deviceConnected || !telemetryNotifications || notifier == null) {
+            stopTelemetry();
+            return;
+        }
+
+        int rssiCount = Math.min(stationRssi.length,
+                telemetryFrameLength - WiFiProtocol.TELEMETRY_HEADER_LENGTH);
+        byte[] frame = new byte[WiFiProtocol.TELEMETRY_HEADER_LENGTH + rssiCount];
+        int uptimeMs = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bootNanos);
+        frame[0] = WiFiProtocol.WIFI_CMD_TELEMETRY;
+        frame[1] = (byte) telemetrySequence;
+        frame[2] = (byte) (telemetrySequence >> 8);
+        telemetrySequence = (telemetrySequence + 1) & 0xFFFF;
+        putInt(uptimeMs, frame, 3);
+        putInt(FREE_HEAP, frame, 7);
+        frame[11] = (byte) stationRssi.length;
+        for (int i = 0; i < rssiCount; i++)
+            frame[WiFiProtocol.TELEMETRY_HEADER_LENGTH + i] = (byte) stationRssi[i];
+        notifier.accept(WiFiGattAttributes.TELEMETRY_CHARACTERISTIC_UUID, frame);
+    }
+
+    private static void putInt(int value, byte[] dst, int offset) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+        dst[offset + 2] = (byte) (value >> 16);
+        dst[offset + 3] = (byte) (value >> 24);
+    }
+
+    private boolean reportsEveryCommand() {
+        return protocolVersion >= WiFiProtocol.PROTOCOL_VERSION_COMMAND_QUEUE;
+    }
+
+    /**
+     * SendScanChunk of the firmware: records cut into chunks of at most
+     * {@code maxChunkLength} bytes, the last one flagged.
+     */
+    private void streamSurvey(int maxChunkLength) {
+        if (!deviceConnected || !scanNotifications || notifier == null)
+            return;
+        int chunkLength = Math.max(WiFiProtocol.MIN_SCAN_CHUNK_LENGTH,
+                Math.min(maxChunkLength, WiFiProtocol.PREFERRED_ATT_MTU -
+                        WiFiProtocol.ATT_NOTIFICATION_OVERHEAD));
+
+        byte[] records = new byte[accessPoints.size() * WiFiProtocol.MAX_SCAN_RECORD_LENGTH];
+        int recordsLength = 0;
+        for (WiFiAccessPoint accessPoint : accessPoints) {
+            byte[] ssidBytes = accessPoint.getSsid().getBytes(StandardCharsets.UTF_8);
+            int ssidLength = Math.min(ssidBytes.length, WiFiProtocol.MAX_SSID_LENGTH);
+            records[recordsLength++] = (byte) accessPoint.getRssi();
+            records[recordsLength++] = (byte) accessPoint.getChannel();
+            records[recordsLength++] = (byte) accessPoint.getAuthMode();
+            records[recordsLength++] = (byte) ssidLength;
+            System.arraycopy(ssidBytes, 0, records, recordsLength, ssidLength);
+            recordsLength += ssidLength;
+        }
+
+        int payload = chunkLength - WiFiProtocol.SCAN_CHUNK_HEADER_LENGTH;
+        int sequence = 0;
+        int pos = 0;
+        do {
+            int part = Math.min(payload, recordsLength - pos);
+            byte[] chunk = new byte[WiFiProtocol.SCAN_CHUNK_HEADER_LENGTH + part];
+            chunk[0] = WiFiProtocol.WIFI_CMD_SCAN;
+            chunk[1] = (byte) sequence++;
+            chunk[2] = (byte) (pos + part == recordsLength ? WiFiProtocol.SCAN_FLAG_LAST : 0);
+            System.arraycopy(records, pos, chunk, WiFiProtocol.SCAN_CHUNK_HEADER_LENGTH, part);
+            pos += part;
+            notifier.accept(WiFiGattAttributes.SCAN_CHARACTERISTIC_UUID, chunk);
+        } while (pos < recordsLength);
+    }
+
+    private static String string(byte[] data, int offset, int length) {
+        return length > 0 ? new String(data, offset, length, StandardCharsets.ISO_8859_1) : "";
+    }
+    //endregion
+
+    //region Session keys
+    /**
+     * Number of key exchanges run, to tell a reused key from a new one.
+     */
+    public synchronized int getKeyExchanges() {
+        return keyExchanges;
+    }
+
+    /**
+     * Number of WIFI_CMD_SECURE frames opened.
+     */
+    public synchronized int getSecureFrames() {
+        return secureFrames;
+    }
+
+    private KeyPair deviceKey() {
+        if (deviceKey == null)
+            deviceKey = WiFiKeyExchange.generateKeyPair();
+        return deviceKey;
+    }
+
+    /**
+     * Returns false when the client public key is invalid.
+     */
+    private boolean exchangeKeys(byte[] clientPublicKey) {
+        WiFiSessionKey key;
+        try {
+            key = WiFiKeyExchange.deriveDevice(deviceKey(), clientPublicKey);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        keyExchanges++;
+
+        // The new key takes the front slot, the least recently used one falls off.
+        int count = Math.min(sessionKeyCount + 1, WiFiProtocol.MAX_SESSION_KEYS);
+        System.arraycopy(sessionKeys, 0, sessionKeys, 1, count - 1);
+        System.arraycopy(lastCounters, 0, lastCounters, 1, count - 1);
+        sessionKeys[0] = key;
+        lastCounters[0] = 0;
+        sessionKeyCount = count;
+        return true;
+    }
+
+    /**
+     * Opens a WIFI_CMD_SECURE frame. Returns the command frame it carries, or null when no key
+     * opens it, its counter was seen already or it carries a command that does not report its
+     * completion.
+     */
+    private byte[] openSecure(byte[] data, int length) {
+        if (length <= WiFiProtocol.SECURE_OVERHEAD)
+            return null;
+
+        int keyId = WiFiSessionKey.keyIdOf(data, 0);
+        for (int i = 0; i < sessionKeyCount; i++) {
+            if (sessionKeys[i].getKeyId() != keyId)
+                continue;
+
+            byte[] inner = sessionKeys[i].open(data, 0, length, lastCounters[i]);
+            if (inner == null)
+                return null;
+            byte command = inner[0];
+            if (command == WiFiProtocol.WIFI_CMD_SECURE ||
+                    command == WiFiProtocol.WIFI_CMD_KEY_EXCHANGE ||
+                    command == WiFiProtocol.WIFI_CMD_FRAGMENT ||
+                    command == WiFiProtocol.WIFI_CMD_COMMIT ||
+                    command == WiFiProtocol.WIFI_CMD_SCAN)
+                return null;
+
+            WiFiSessionKey key = sessionKeys[i];
+            System.arraycopy(sessionKeys, 0, sessionKeys, 1, i);
+            System.arraycopy(lastCounters, 0, lastCounters, 1, i);
+            sessionKeys[0] = key;
+            lastCounters[0] = WiFiSessionKey.counterOf(data, 0);
+            secureFrames++;
+            return inner;
+        }
+        return null;
+    }
+    //endregion
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.simulator;
+
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.provisioning.Credentials;
+import com.example.wifibleconfig.provisioning.DeviceResult;
+import com.example.wifibleconfig.provisioning.FleetListener;
+import com.example.wifibleconfig.provisioning.FleetProvisioner;
+import com.example.wifibleconfig.provisioning.FleetStats;
+import com.example.wifibleconfig.provisioning.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provisions a simulated fleet with {@link FleetProvisioner} once per connection interval and
+ * prints per-device latency percentiles and devices per minute. Runs in real time on any JVM.
+ * <p>
+ * Options: --devices N, --concurrency N, --intervals 7.5,15,30,50, --jitter MS, --loss RATE,
+ * --drop RATE, --protocol VERSION, --seed N.
+ */
+public final class SimulatorBenchmark {
+    private int devices = 50;
+    private int concurrency = 4;
+    private double[] intervals = {7.5, 15, 30, 50};
+    private double jitterMs = 1;
+    private double lossRate = 0.01;
+    private double dropRate = 0;
+    private int protocolVersion = WiFiProtocol.PROTOCOL_VERSION;
+    private long seed = 1;
+
+    public static void main(String[] args) throws InterruptedException {
+        SimulatorBenchmark benchmark = new SimulatorBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--devices":
+                    devices = Integer.parseInt(value);
+                    break;
+
+                case "--concurrency":
+                    concurrency = Integer.parseInt(value);
+                    break;
+
+                case "--intervals":
+                    String[] parts = value.split(",");
+                    intervals = new double[parts.length];
+                    for (int j = 0; j < parts.length; j++)
+                        intervals[j] = Double.parseDouble(parts[j]);
+                    break;
+
+                case "--jitter":
+                    jitterMs = Double.parseDouble(value);
+                    break;
+
+                case "--loss":
+                    lossRate = Double.parseDouble(value);
+                    break;
+
+                case "--drop":
+                    dropRate = Double.parseDouble(value);
+                    break;
+
+                case "--protocol":
+                    protocolVersion = Integer.parseInt(value);
+                    break;
+
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf(Locale.ROOT, "devices=%d concurrency=%d protocol=%d jitter=%.1fms " +
+                        "loss=%.3f drop=%.3f%n", devices, concurrency, protocolVersion, jitterMs,
+                lossRate, dropRate);
+        System.out.println("interval_ms   ok  failed  p50_ms  p90_ms  p99_ms  max_ms  dev/min");
+        for (double interval : intervals)
+            run(new LinkConditions(interval, jitterMs, lossRate, dropRate));
+    }
+
+    private void run(LinkConditions link) throws InterruptedException {
+        // One thread keeps the callback order of every simulated link, like the binder thread
+        // of a real BluetoothGatt.
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        SimulatedDeviceConnector connector = new SimulatedDeviceConnector(link, scheduler, seed,
+                protocolVersion);
+        LatencyHistogram latency = new LatencyHistogram();
+        CountDownLatch done = new CountDownLatch(devices);
+        FleetStats[] last = new FleetStats[1];
+        FleetProvisioner[] provisioner = new FleetProvisioner[1];
+        AtomicInteger offered = new AtomicInteger();
+
+        Credentials credentials = new Credentials("WiFiBle", "123456789");
+        provisioner[0] = new FleetProvisioner(connector, (address, name) -> credentials,
+                new FleetListener() {
+            @Override
+            public void onDeviceCompleted(DeviceResult result, FleetStats stats) {
+                if (result.isSuccess())
+                    latency.recordNanos(result.getDurationNanos());
+                synchronized (last) {
+                    last[0] = stats;
+                }
+                done.countDown();
+                feed(provisioner[0], offered);
+            }
+        }, scheduler, concurrency);
+
+        feed(provisioner[0], offered);
+        done.await(devices * FleetProvisioner.DEVICE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        provisioner[0].stop();
+        scheduler.shutdownNow();
+
+        FleetStats stats;
+        synchronized (last) {
+            stats = last[0];
+        }
+        System.out.printf(Locale.ROOT, "%11.1f %4d %7d %7.1f %7.1f %7.1f %7.1f %8.1f%n",
+                link.getConnectionIntervalMs(), stats.getSucceeded(), stats.getFailed(),
+                latency.getPercentileMillis(50), latency.getPercentileMillis(90),
+                latency.getPercentileMillis(99), latency.getMaxMillis(),
+                stats.getDevicesPerMinute());
+    }
+
+    /**
+     * Offers devices until the bounded waiting list of the provisioner is full.
+     */
+    private void feed(FleetProvisioner provisioner, AtomicInteger offered) {
+        synchronized (offered) {
+            while (offered.get() < devices) {
+                int i = offered.get();
+                if (!provisioner.offer(String.format("24:0A:C4:00:%02X:%02X", i >> 8, i & 0xFF),
+                        null))
+                    return;
+                offered.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.GattConnectionException;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fails the first connects of chosen devices with status 133 and never answers the
+ * connects of others; passes everything else to the simulator.
+ */
+final class FaultyConnector implements DeviceConnector {
+    final DeviceConnector connector;
+    final Map<String, Integer> failures = new HashMap<>();
+    final Set<String> hanging = new HashSet<>();
+    final Map<String, Integer> connects = new HashMap<>();
+
+    FaultyConnector(DeviceConnector connector) {
+        this.connector = connector;
+    }
+
+    @Override
+    public CompletableFuture<WiFiClient> connect(String address) {
+        connects.merge(address, 1, Integer::sum);
+        if (hanging.contains(address))
+            return new CompletableFuture<>();
+        Integer remaining = failures.get(address);
+        if (remaining == null || remaining == 0)
+            return connector.connect(address);
+
+        failures.put(address, remaining - 1);
+        CompletableFuture<WiFiClient> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new GattConnectionException("Connection failed " +
+                "with status 133", GattConnectionException.GATT_ERROR));
+        return failed;
+    }
+
+    @Override
+    public void disconnect(String address) {
+        connector.disconnect(address);
+    }
+
+    @Override
+    public void release(String address) {
+        connector.release(address);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        connector.setListener(listener);
+    }
+
+    @Override
+    public void setTrace(String address, ProvisioningTrace trace) {
+        connector.setTrace(address, trace);
+    }
+
+    int connects(String address) {
+        Integer count = connects.get(address);
+        return count == null ? 0 : count;
+    }
+}
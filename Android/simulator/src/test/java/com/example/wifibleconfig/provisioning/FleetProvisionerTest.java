@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.GattConnectionException;
+import com.example.wifibleconfig.simulator.LinkConditions;
+import com.example.wifibleconfig.simulator.SimulatedDeviceConnector;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the fleet over simulated devices on a virtual clock, so device timeouts and retry
+ * backoffs pass without waiting and every run takes the same course.
+ */
+public class FleetProvisionerTest {
+    private final static Credentials CREDENTIALS = new Credentials("Workshop", "correct horse");
+    // Far beyond the device timeout.
+    private final static long IDLE_MS = 10 * FleetProvisioner.DEVICE_TIMEOUT_MS;
+
+    /**
+     * Keeps the results and the largest number of devices in progress at once.
+     */
+    private final class RecordingListener implements FleetListener {
+        final Map<String, DeviceResult> results = new HashMap<>();
+        final Map<String, Long> completedNanos = new HashMap<>();
+        int active;
+        int maxActive;
+
+        @Override
+        public void onDeviceStarted(String address) {
+            maxActive = Math.max(maxActive, ++active);
+        }
+
+        @Override
+        public void onDeviceCompleted(DeviceResult result, FleetStats stats) {
+            active--;
+            results.put(result.getAddress(), result);
+            completedNanos.put(result.getAddress(), scheduler.nanoTime());
+        }
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private VirtualScheduler scheduler;
+    private SimulatedDeviceConnector devices;
+    private FaultyConnector connector;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        devices = new SimulatedDeviceConnector(LinkConditions.ideal(7.5), scheduler, 1);
+        connector = new FaultyConnector(devices);
+        listener = new RecordingListener();
+    }
+
+    @Test
+    public void admitsNoMoreThanMaxConcurrent() {
+        FleetProvisioner fleet = fleet(3, null, (address, name) -> CREDENTIALS);
+        for (int i = 0; i < 10; i++)
+            assertTrue(fleet.offer(address(i), null));
+        FleetStats stats = fleet.getStats();
+        assertEquals(3, stats.getActive());
+        assertEquals(7, stats.getWaiting());
+
+        // Known devices are not admitted twice.
+        assertFalse(fleet.offer(address(0), null));
+        assertFalse(fleet.offer(address(9), null));
+
+        scheduler.runUntilIdle(IDLE_MS);
+        assertEquals(3, listener.maxActive);
+        assertEquals(10, listener.results.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(listener.results.get(address(i)).isSuccess());
+            assertEquals(1, connector.connects(address(i)));
+        }
+        stats = fleet.getStats();
+        assertEquals(0, stats.getActive());
+        assertEquals(10, stats.getSucceeded());
+
+        // Done devices stay done.
+        assertFalse(fleet.offer(address(0), null));
+    }
+
+    @Test
+    public void isolatesFailingDevices() {
+        String unreachable = address(0);
+        String hanging = address(1);
+        String flaky = address(2);
+        String unknown = address(3);
+        connector.failures.put(unreachable, Integer.MAX_VALUE);
+        connector.hanging.add(hanging);
+        connector.failures.put(flaky, 1);
+
+        FleetProvisioner fleet = fleet(2, null, (address, name) ->
+                address.equals(unknown) ? null : CREDENTIALS);
+        assertFalse(fleet.offer(unknown, null));
+        for (int i = 0; i < 8; i++)
+            if (!address(i).equals(unknown))
+                assertTrue(fleet.offer(address(i), null));
+        scheduler.runUntilIdle(IDLE_MS);
+
+        // Retried by the connector, invisible to the fleet.
+        assertTrue(listener.results.get(flaky).isSuccess());
+        assertEquals(2, connector.connects(flaky));
+
+        DeviceResult timedOut = listener.results.get(hanging);
+        assertFalse(timedOut.isSuccess());
+        assertTrue(timedOut.getError() instanceof TimeoutException);
+        // The others went on in the other slot meanwhile.
+        long timeoutNanos = listener.completedNanos.get(hanging);
+        for (int i = 4; i < 8; i++) {
+            assertTrue(listener.results.get(address(i)).isSuccess());
+            assertTrue(listener.completedNanos.get(address(i)) < timeoutNanos);
+        }
+
+        DeviceResult failed = listener.results.get(unreachable);
+        assertTrue(failed.getError() instanceof GattConnectionException);
+        assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS, connector.connects(unreachable));
+        assertNull(listener.results.get(unknown));
+        assertEquals(0, connector.connects(unknown));
+
+        FleetStats stats = fleet.getStats();
+        assertEquals(5, stats.getSucceeded());
+        assertEquals(2, stats.getFailed());
+    }
+
+    @Test
+    public void readmitsFailedDevicesUpToMaxAttempts() {
+        String unreachable = address(0);
+        connector.failures.put(unreachable, Integer.MAX_VALUE);
+        FleetProvisioner fleet = fleet(2, null, (address, name) -> CREDENTIALS);
+
+        for (int attempt = 1; attempt <= FleetProvisioner.MAX_ATTEMPTS; attempt++) {
+            assertTrue(fleet.offer(unreachable, null));
+            // Still in progress.
+            assertFalse(fleet.offer(unreachable, null));
+            scheduler.runUntilIdle(IDLE_MS);
+            assertFalse(listener.results.get(unreachable).isSuccess());
+        }
+        assertFalse(fleet.offer(unreachable, null));
+        assertEquals(FleetProvisioner.MAX_ATTEMPTS * RetryPolicy.DEFAULT_MAX_ATTEMPTS,
+                connector.connects(unreachable));
+        assertEquals(FleetProvisioner.MAX_ATTEMPTS, fleet.getStats().getFailed());
+    }
+
+    @Test
+    public void skipsDevicesTheJournalReportsDone() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        String done = address(0);
+        String failed = address(1);
+        String fresh = address(2);
+
+        ProvisioningJournal journal = ProvisioningJournal.open(file, scheduler);
+        journal.begin(done, ProvisioningPhase.CONNECT_GATT);
+        journal.finish(done, true);
+        journal.begin(failed, ProvisioningPhase.CONNECT_GATT);
+        journal.finish(failed, false);
+
+        FleetProvisioner fleet = fleet(2, journal, (address, name) -> CREDENTIALS);
+        assertFalse(fleet.offer(done, null));
+        assertTrue(fleet.offer(failed, null));
+        assertTrue(fleet.offer(fresh, null));
+        scheduler.runUntilIdle(IDLE_MS);
+        assertTrue(journal.isDone(failed));
+        assertTrue(journal.isDone(fresh));
+        journal.close();
+
+        // A later run skips all of them.
+        journal = ProvisioningJournal.open(file, scheduler);
+        listener = new RecordingListener();
+        fleet = fleet(2, journal, (address, name) -> CREDENTIALS);
+        for (int i = 0; i < 3; i++)
+            assertFalse(fleet.offer(address(i), null));
+        assertTrue(fleet.offer(address(3), null));
+        scheduler.runUntilIdle(IDLE_MS);
+        journal.close();
+
+        assertEquals(1, listener.results.size());
+        assertEquals(0, connector.connects(done));
+        assertEquals(1, connector.connects(fresh));
+        assertEquals(1, connector.connects(address(3)));
+    }
+
+    private FleetProvisioner fleet(int maxConcurrent, ProvisioningJournal journal,
+                                   CredentialProvider credentials) {
+        DeviceConnector retrying = new RetryingConnector(connector, scheduler,
+                RetryPolicy.DEFAULT, scheduler::nanoTime);
+        return new FleetProvisioner(retrying, credentials, listener, scheduler, maxConcurrent,
+                journal, scheduler::nanoTime);
+    }
+
+    private static String address(int device) {
+        return ScanCache.formatAddress(0xA4CF12000000L + device * 0x010203L);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.WiFiProtocol;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+import com.example.wifibleconfig.simulator.LinkConditions;
+import com.example.wifibleconfig.simulator.SimulatedDeviceConnector;
+import com.example.wifibleconfig.simulator.SimulatedWiFiBle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the engine over simulated devices on a virtual clock.
+ */
+public class ProvisioningEngineTest {
+    private final static Credentials CREDENTIALS = new Credentials("Workshop", "correct horse");
+    private final static RetryPolicy FAST_RETRIES = new RetryPolicy(4, 10, 20, false);
+    private final static long IDLE_MS = 10 * FleetProvisioner.DEVICE_TIMEOUT_MS;
+
+    private VirtualScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+    }
+
+    @Test
+    public void resumesAfterTheLastAcknowledgedWrite() throws Exception {
+        // Legacy firmware takes the SSID, password and start in three writes.
+        SimulatedDeviceConnector devices = new SimulatedDeviceConnector(
+                LinkConditions.ideal(7.5), scheduler, 1, WiFiProtocol.PROTOCOL_VERSION_LEGACY);
+        String address = address(0);
+        SimulatedWiFiBle device = devices.getDevice(address);
+
+        // The link drops as soon as the device took the SSID.
+        ScheduledFuture<?>[] watch = new ScheduledFuture<?>[1];
+        watch[0] = scheduler.scheduleAtFixedRate(() -> {
+            if (CREDENTIALS.getSsid().equals(device.getSsid())) {
+                devices.disconnect(address);
+                watch[0].cancel(false);
+            }
+        }, 1, 1, TimeUnit.MILLISECONDS);
+
+        ProvisioningEngine engine = engine(devices, FAST_RETRIES);
+        CompletableFuture<DeviceResult> result = engine.provision(address, CREDENTIALS, 0,
+                null);
+        scheduler.runUntilIdle(IDLE_MS);
+
+        DeviceResult done = result.get();
+        assertTrue(String.valueOf(done.getError()), done.isSuccess());
+        assertEquals(2, done.getAttempts());
+        // The second attempt went on with the password.
+        assertEquals(1, engine.getRetryStats().getResumes());
+        assertEquals(CREDENTIALS.getPassword(), device.getPassword());
+        assertEquals(WiFiProtocol.WIFI_STATUS_STARTED, device.getWiFiStatus());
+    }
+
+    @Test
+    public void withdrawsAnAcquireStillWaitingAtTheTimeout() throws Exception {
+        SessionPool pool = new SessionPool(new SimulatedDeviceConnector(
+                LinkConditions.ideal(7.5), scheduler, 1), 1);
+        CompletableFuture<WiFiClient> held = pool.acquire(address(0));
+        scheduler.runUntilIdle(IDLE_MS);
+        WiFiClient client = held.get();
+
+        // The only session is held, the engine waits for it until it times out.
+        ProvisioningEngine engine = new ProvisioningEngine(new PooledConnector(pool), scheduler,
+                1000, RetryPolicy.NONE, null, scheduler::nanoTime);
+        CompletableFuture<DeviceResult> result = engine.provision(address(1), CREDENTIALS, 0,
+                null);
+        scheduler.runUntilIdle(IDLE_MS);
+        assertTrue(result.get().getError() instanceof TimeoutException);
+        // The session of the other device stays.
+        assertEquals(Collections.singletonList(address(0)), pool.getAddresses());
+
+        // Not served to the engine that is gone, so it cannot pin the pool.
+        pool.release(address(0), client);
+        scheduler.runUntilIdle(IDLE_MS);
+        assertEquals(Collections.singletonList(address(0)), pool.getAddresses());
+        CompletableFuture<WiFiClient> next = pool.acquire(address(2));
+        scheduler.runUntilIdle(IDLE_MS);
+        assertTrue(next.isDone());
+        assertFalse(next.isCompletedExceptionally());
+    }
+
+    @Test
+    public void givesBackASessionConnectedAfterTheTimeout() throws Exception {
+        SessionPool pool = new SessionPool(new SimulatedDeviceConnector(
+                LinkConditions.ideal(7.5), scheduler, 1), 1);
+        // Times out while the pool connects the device.
+        ProvisioningEngine engine = new ProvisioningEngine(new PooledConnector(pool), scheduler,
+                1, RetryPolicy.NONE, null, scheduler::nanoTime);
+        CompletableFuture<DeviceResult> result = engine.provision(address(1), CREDENTIALS, 0,
+                null);
+        scheduler.runUntilIdle(IDLE_MS);
+        assertTrue(result.get().getError() instanceof TimeoutException);
+
+        // Idle, so the next device may take its place.
+        CompletableFuture<WiFiClient> next = pool.acquire(address(2));
+        scheduler.runUntilIdle(IDLE_MS);
+        assertTrue(next.isDone());
+        assertEquals(Collections.singletonList(address(2)), pool.getAddresses());
+    }
+
+    @Test
+    public void releasesAClientThatArrivesAfterTheTimeout() throws Exception {
+        SimulatedDeviceConnector devices = new SimulatedDeviceConnector(
+                LinkConditions.ideal(7.5), scheduler, 1);
+        Set<String> released = new HashSet<>();
+        DeviceConnector slow = new DeviceConnector() {
+            @Override
+            public CompletableFuture<WiFiClient> connect(String address) {
+                CompletableFuture<WiFiClient> late = new CompletableFuture<>();
+                scheduler.schedule(() -> devices.connect(address).thenAccept(late::complete),
+                        2000, TimeUnit.MILLISECONDS);
+                return late;
+            }
+
+            @Override
+            public void disconnect(String address) {
+                devices.disconnect(address);
+            }
+
+            @Override
+            public void release(String address) {
+                released.add(address);
+                devices.release(address);
+            }
+        };
+
+        ProvisioningEngine engine = new ProvisioningEngine(slow, scheduler, 1000,
+                RetryPolicy.NONE, null, scheduler::nanoTime);
+        CompletableFuture<DeviceResult> result = engine.provision(address(0), CREDENTIALS, 0,
+                null);
+        scheduler.runUntilIdle(IDLE_MS);
+        assertTrue(result.get().getError() instanceof TimeoutException);
+        assertEquals(Collections.singleton(address(0)), released);
+        // Nothing was sent on the late session.
+        assertTrue(devices.getDevice(address(0)).getSsid().isEmpty());
+    }
+
+    private ProvisioningEngine engine(DeviceConnector connector, RetryPolicy policy) {
+        return new ProvisioningEngine(connector, scheduler, FleetProvisioner.DEVICE_TIMEOUT_MS,
+                policy, null, scheduler::nanoTime);
+    }
+
+    private static String address(int device) {
+        return ScanCache.formatAddress(0xA4CF12000000L + device * 0x010203L);
+    }
+}
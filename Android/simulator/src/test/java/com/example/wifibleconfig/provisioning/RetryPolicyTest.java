@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.GattConnectionException;
+import com.example.wifibleconfig.protocol.gatt.GattException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+    private final static int[] ATT_ERRORS = {0x01, 0x02, 0x03, 0x05, 0x06, 0x07, 0x08, 0x0A,
+            0x0D, 0x0F};
+
+    @Test
+    public void retriesLinkFailuresButNotAttErrors() {
+        GattConnectionException dropped = new GattConnectionException("Connection failed",
+                GattConnectionException.GATT_ERROR);
+        assertEquals(RetryPolicy.Failure.TRANSIENT, RetryPolicy.classify(dropped));
+        // 133 on an operation comes from the stack, not the device.
+        assertEquals(RetryPolicy.Failure.TRANSIENT, RetryPolicy.classify(
+                new GattException("Write failed", GattConnectionException.GATT_ERROR)));
+        assertEquals(RetryPolicy.Failure.TRANSIENT, RetryPolicy.classify(
+                new GattException("Write timed out", GattException.STATUS_NOT_STARTED)));
+        for (int status : ATT_ERRORS) {
+            assertTrue(RetryPolicy.isPermanentStatus(status));
+            assertEquals(RetryPolicy.Failure.PERMANENT, RetryPolicy.classify(
+                    new GattException("Write failed", status)));
+        }
+        assertFalse(RetryPolicy.isPermanentStatus(0x04));
+
+        assertEquals(RetryPolicy.Failure.TRANSIENT, RetryPolicy.classify(
+                new TimeoutException()));
+        assertEquals(RetryPolicy.Failure.TRANSIENT, RetryPolicy.classify(new IOException()));
+        assertEquals(RetryPolicy.Failure.PERMANENT, RetryPolicy.classify(
+                new CancellationException()));
+        assertEquals(RetryPolicy.Failure.PERMANENT, RetryPolicy.classify(
+                new IllegalStateException("Device reported status 3")));
+    }
+
+    @Test
+    public void looksThroughFutureWrappers() {
+        GattException denied = new GattException("Write failed", 0x03);
+        Throwable wrapped = new CompletionException(new ExecutionException(denied));
+        assertEquals(denied, RetryPolicy.unwrap(wrapped));
+        assertEquals(RetryPolicy.Failure.PERMANENT, RetryPolicy.classify(wrapped));
+        assertEquals(Integer.valueOf(0x03), RetryPolicy.statusOf(wrapped));
+        assertNull(RetryPolicy.statusOf(new TimeoutException()));
+
+        assertEquals(RetryPolicy.Failure.TRANSIENT, RetryPolicy.classify(
+                new CompletionException(new GattConnectionException("Connection failed",
+                        GattConnectionException.GATT_ERROR))));
+    }
+
+    @Test
+    public void stopsAfterMaxAttempts() {
+        Throwable dropped = new GattConnectionException("Connection failed",
+                GattConnectionException.GATT_ERROR);
+        for (int attempt = 1; attempt < RetryPolicy.DEFAULT_MAX_ATTEMPTS; attempt++)
+            assertTrue(RetryPolicy.DEFAULT.shouldRetry(dropped, attempt));
+        assertFalse(RetryPolicy.DEFAULT.shouldRetry(dropped,
+                RetryPolicy.DEFAULT_MAX_ATTEMPTS));
+        assertFalse(RetryPolicy.DEFAULT.shouldRetry(new GattException("Read failed", 0x02), 1));
+        assertFalse(RetryPolicy.NONE.shouldRetry(dropped, 1));
+    }
+
+    @Test
+    public void keepsBackoffsWithinTheirBounds() {
+        RetryPolicy policy = new RetryPolicy(10, 250, 4000, false);
+        for (int retry = 1; retry <= 40; retry++) {
+            long ceiling = Math.min(4000, 250L << Math.min(retry - 1, 20));
+            long min = Long.MAX_VALUE, max = 0;
+            for (int i = 0; i < 2000; i++) {
+                long delay = policy.backoffMillis(retry);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // Equal jitter: half of the ceiling, then up to the ceiling.
+            assertTrue("retry " + retry + ": " + min, min >= ceiling / 2);
+            assertTrue("retry " + retry + ": " + max, max <= ceiling);
+            // Spread over the range, so retries of many devices do not line up.
+            assertTrue("retry " + retry, max - min > ceiling / 4);
+        }
+
+        RetryPolicy fixed = new RetryPolicy(3, 0, 0, false);
+        assertEquals(0, fixed.backoffMillis(1));
+        assertEquals(0, fixed.backoffMillis(2));
+    }
+
+    @Test
+    public void hedgesOnlyWithEnoughSamples() {
+        LatencyHistogram connects = new LatencyHistogram();
+        for (int i = 1; i < RetryPolicy.HEDGE_MIN_SAMPLES; i++)
+            connects.recordMicros(100_000);
+        assertEquals(RetryPolicy.NO_HEDGE, RetryPolicy.DEFAULT.hedgeDelayMillis(connects));
+
+        // Fast connects still wait the minimum.
+        connects.recordMicros(100_000);
+        assertEquals(RetryPolicy.MIN_HEDGE_DELAY_MS,
+                RetryPolicy.DEFAULT.hedgeDelayMillis(connects));
+        assertEquals(RetryPolicy.NO_HEDGE, new RetryPolicy(4, 250, 4000, false)
+                .hedgeDelayMillis(connects));
+
+        for (int i = 0; i < 10 * RetryPolicy.HEDGE_MIN_SAMPLES; i++)
+            connects.recordMicros(3_000_000);
+        long delay = RetryPolicy.DEFAULT.hedgeDelayMillis(connects);
+        assertTrue(String.valueOf(delay), delay >= 3000 && delay <= 3100);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import com.example.wifibleconfig.protocol.gatt.GattConnectionException;
+import com.example.wifibleconfig.protocol.gatt.WiFiClient;
+import com.example.wifibleconfig.simulator.LinkConditions;
+import com.example.wifibleconfig.simulator.SimulatedDeviceConnector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the retries and hedges over simulated devices on a virtual clock, so their timing
+ * can be checked to the millisecond.
+ */
+public class RetryingConnectorTest {
+    private final static long IDLE_MS = 60_000;
+
+    private VirtualScheduler scheduler;
+    private FaultyConnector connector;
+    private RetryingConnector retrying;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        connector = new FaultyConnector(new SimulatedDeviceConnector(LinkConditions.ideal(7.5),
+                scheduler, 1));
+        retrying = new RetryingConnector(connector, scheduler, RetryPolicy.DEFAULT,
+                scheduler::nanoTime);
+    }
+
+    @Test
+    public void backsOffBetweenRetries() throws Exception {
+        String flaky = address(0);
+        connector.failures.put(flaky, 2);
+        CompletableFuture<WiFiClient> result = retrying.connect(flaky);
+        assertEquals(1, connector.connects(flaky));
+
+        // The first retry comes after 125 to 250 ms, the second 250 to 500 ms after it.
+        long base = RetryPolicy.DEFAULT_BASE_DELAY_MS;
+        scheduler.advance(base / 2 - 1);
+        assertEquals(1, connector.connects(flaky));
+        scheduler.advance(base / 2 + 1);
+        assertEquals(2, connector.connects(flaky));
+        scheduler.advance(base / 2 - 1);
+        assertEquals(2, connector.connects(flaky));
+        scheduler.advance(3 * base / 2 + 1);
+        assertEquals(3, connector.connects(flaky));
+
+        scheduler.runUntilIdle(IDLE_MS);
+        assertTrue(result.isDone());
+        result.get();
+        RetryStats stats = retrying.getStats();
+        assertEquals(2, stats.getRetries());
+        assertEquals(1, stats.getRecovered());
+        assertEquals(Long.valueOf(2), stats.getStatusCounts().get(
+                GattConnectionException.GATT_ERROR));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        String unreachable = address(0);
+        connector.failures.put(unreachable, Integer.MAX_VALUE);
+        CompletableFuture<WiFiClient> result = retrying.connect(unreachable);
+        scheduler.runUntilIdle(IDLE_MS);
+
+        assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS, connector.connects(unreachable));
+        try {
+            result.get();
+            fail("Connected to an unreachable device");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GattConnectionException);
+        }
+        assertEquals(1, retrying.getStats().getFailed());
+    }
+
+    @Test
+    public void hedgesOnlyOnceTheLatencyIsKnown() {
+        String slow = address(100);
+        connector.hanging.add(slow);
+        CompletableFuture<WiFiClient> result = retrying.connect(slow);
+        scheduler.advance(IDLE_MS);
+        assertFalse(result.isDone());
+        assertEquals(1, connector.connects(slow));
+        assertEquals(0, retrying.getStats().getHedges());
+    }
+
+    @Test
+    public void hedgesConnectsSlowerThanAlmostAllOthers() throws Exception {
+        warmUp();
+
+        // Simulated connects take far less than the minimum hedge delay.
+        String slow = address(100);
+        connector.hanging.add(slow);
+        CompletableFuture<WiFiClient> result = retrying.connect(slow);
+        scheduler.advance(RetryPolicy.MIN_HEDGE_DELAY_MS - 1);
+        assertEquals(1, connector.connects(slow));
+
+        // Abandoned for a new attempt at once, without a backoff.
+        scheduler.advance(1);
+        assertEquals(2, connector.connects(slow));
+        assertEquals(1, retrying.getStats().getHedges());
+
+        connector.hanging.remove(slow);
+        scheduler.advance(RetryPolicy.MIN_HEDGE_DELAY_MS - 1);
+        assertEquals(2, connector.connects(slow));
+        scheduler.advance(1);
+        assertEquals(3, connector.connects(slow));
+
+        scheduler.runUntilIdle(IDLE_MS);
+        result.get();
+        assertEquals(2, retrying.getStats().getHedges());
+    }
+
+    @Test
+    public void neverHedgesTheLastAttempt() {
+        warmUp();
+
+        String slow = address(100);
+        connector.hanging.add(slow);
+        CompletableFuture<WiFiClient> result = retrying.connect(slow);
+        scheduler.advance(IDLE_MS);
+        assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS, connector.connects(slow));
+        assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS - 1, retrying.getStats().getHedges());
+        // The last attempt is left to the caller's timeout.
+        assertFalse(result.isDone());
+
+        retrying.disconnect(slow);
+        assertTrue(result.isCompletedExceptionally());
+    }
+
+    /**
+     * Connects enough devices for the policy to know the usual connect latency.
+     */
+    private void warmUp() {
+        for (int i = 0; i < RetryPolicy.HEDGE_MIN_SAMPLES; i++) {
+            retrying.connect(address(i));
+            scheduler.runUntilIdle(IDLE_MS);
+            retrying.release(address(i));
+        }
+        scheduler.runUntilIdle(IDLE_MS);
+        assertEquals(RetryPolicy.MIN_HEDGE_DELAY_MS, RetryPolicy.DEFAULT.hedgeDelayMillis(
+                retrying.getStats().getSuccessLatency()));
+    }
+
+    private static String address(int device) {
+        return ScanCache.formatAddress(0xA4CF12000000L + device * 0x010203L);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2023 Marina Petrichenko
+ * 
+ * marina@btframework.com  
+ *   https://www.facebook.com/marina.petrichenko.1  
+ *   https://www.btframework.com
+ * 
+ * It is free for non-commercial and/or education use only.
+ *   
+ */
+
+package com.example.wifibleconfig.provisioning;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ScheduledExecutorService on a virtual clock: tasks run on the thread that advances the clock,
+ * in the order they are due, so timeouts of minutes pass in milliseconds and runs repeat
+ * exactly. Not thread safe.
+ */
+final class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+    private final class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        final long periodNanos;
+        long dueNanos;
+        long sequence;
+
+        Task(Callable<V> callable, long dueNanos, long periodNanos) {
+            super(callable);
+            this.dueNanos = dueNanos;
+            this.periodNanos = periodNanos;
+            this.sequence = nextSequence++;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return periodNanos != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Task<?> task = (Task<?>) other;
+            if (dueNanos != task.dueNanos)
+                return Long.compare(dueNanos, task.dueNanos);
+            return Long.compare(sequence, task.sequence);
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+                return;
+            }
+            if (runAndReset()) {
+                dueNanos += periodNanos;
+                sequence = nextSequence++;
+                tasks.add(this);
+            }
+        }
+    }
+
+    private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>();
+    private long nanos = TimeUnit.DAYS.toNanos(1);
+    private long nextSequence;
+    private boolean shutdown;
+
+    /**
+     * Current virtual time, in the units of System.nanoTime.
+     */
+    long nanoTime() {
+        return nanos;
+    }
+
+    /**
+     * Runs the tasks due within {@code millis} and moves the clock forward by that much.
+     */
+    void advance(long millis) {
+        long end = nanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (!tasks.isEmpty() && tasks.peek().dueNanos <= end)
+            runNext();
+        nanos = end;
+    }
+
+    /**
+     * Runs tasks until none is left, or fails when they keep coming for {@code maxMillis}.
+     */
+    void runUntilIdle(long maxMillis) {
+        long end = nanos + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        while (!tasks.isEmpty()) {
+            if (tasks.peek().dueNanos > end)
+                throw new AssertionError("Still busy after " + maxMillis + " ms");
+            runNext();
+        }
+    }
+
+    private void runNext() {
+        Task<?> task = tasks.poll();
+        nanos = Math.max(nanos, task.dueNanos);
+        if (!task.isCancelled())
+            task.run();
+    }
+
+    private <V> Task<V> add(Task<V> task) {
+        if (shutdown)
+            throw new IllegalStateException("Scheduler is shut down");
+        tasks.add(task);
+        return task;
+    }
+
+    //region ScheduledExecutorService
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return add(new Task<>(Executors.callable(command), due(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return add(new Task<>(callable, due(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+                                                  long period, TimeUnit unit) {
+        return add(new Task<>(Executors.callable(command), due(initialDelay, unit),
+                unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+                                                     long delay, TimeUnit unit) {
+        // Tasks take no virtual time, so both coincide.
+        return scheduleAtFixedRate(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        tasks.clear();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+    //endregion
+
+    private long due(long delay, TimeUnit unit) {
+        return nanos + Math.max(0, unit.toNanos(delay));
+    }
+}
@@ -13,6 +13,12 @@
 #include <BLEDevice.h>
 #include <BLEUtils.h>
 #include <WiFi.h>
+#include <esp_wifi.h>
+#include <esp_system.h>
+#include <Preferences.h>
+#include <mbedtls/ecdh.h>
+#include <mbedtls/gcm.h>
+#include <mbedtls/md.h>
 
 using namespace std;
 
@@ -23,6 +29,107 @@ using namespace std;
 #define WIFI_CMD_START      0x03
 #define WIFI_CMD_STOP       0x04
 #define WIFI_CMD_GET_STATUS 0x05
+#define WIFI_CMD_PROVISION  0x06
+#define WIFI_CMD_FRAGMENT   0x07
+#define WIFI_CMD_COMMIT     0x08
+#define WIFI_CMD_SCAN       0x09
+#define WIFI_CMD_TELEMETRY  0x0A
+#define WIFI_CMD_KEY_EXCHANGE 0x0B
+#define WIFI_CMD_SECURE     0x0C
+
+/* WIFI_CMD_PROVISION TLV types */
+
+#define TLV_SSID            0x01
+#define TLV_PASSWORD        0x02
+#define TLV_START           0x03
+#define TLV_CHANNEL         0x04
+
+#define TLV_HEADER_LENGTH   2
+
+/* Fragmentation (WIFI_CMD_FRAGMENT: [cmd][index][chunk], WIFI_CMD_COMMIT: [cmd][count][len lo][len hi]) */
+
+#define FRAGMENT_HEADER_LENGTH  2
+#define COMMIT_FRAME_LENGTH     4
+#define MAX_REASSEMBLY_LENGTH   512
+
+#define PREFERRED_ATT_MTU   517
+
+/* Access point survey (WIFI_CMD_SCAN: [cmd][max chunk lo][max chunk hi]; results are notified
+   as chunks [cmd][sequence][flags][records...], record: [rssi][channel][auth][ssid len][ssid],
+   records may span chunks) */
+
+#define SCAN_COMMAND_LENGTH         3
+#define SCAN_CHUNK_HEADER_LENGTH    3
+#define SCAN_RECORD_HEADER_LENGTH   4
+#define MAX_SCAN_RECORD_LENGTH      (SCAN_RECORD_HEADER_LENGTH + 32)
+#define MIN_SCAN_CHUNK_LENGTH       20
+#define MAX_SCAN_CHUNK_LENGTH       (PREFERRED_ATT_MTU - 3)
+#define SCAN_FLAG_LAST              0x01
+#define SCAN_FLAG_FAILED            0x02
+
+/* Telemetry (WIFI_CMD_TELEMETRY: [cmd][interval ms lo][interval ms hi][max frame lo][max frame hi],
+   interval 0 stops; frames are notified as [cmd][sequence lo][sequence hi][uptime ms, 4 bytes]
+   [free heap, 4 bytes][station count][rssi per station...], multi-byte values little endian) */
+
+#define TELEMETRY_COMMAND_LENGTH    5
+#define TELEMETRY_HEADER_LENGTH     12
+#define MIN_TELEMETRY_INTERVAL_MS   250
+#define MAX_TELEMETRY_INTERVAL_MS   60000
+#define MAX_TELEMETRY_FRAME_LENGTH  (TELEMETRY_HEADER_LENGTH + ESP_WIFI_MAX_CONN_NUM)
+
+/* Credential encryption: [cmd][client public key] agrees a session key by P-256 ECDH and
+   HKDF-SHA256; [cmd][key id, 4][counter, 8][ciphertext][tag, 16] carries a command frame
+   sealed with AES-128-GCM under nonce key id + counter. The security characteristic reads
+   [scheme][device public key][key count][key ids, most recently used first]. A key exchange
+   or sealed frame the device rejects is answered with one WIFI_STATUS_ERROR notification. */
+
+#define SECURITY_SCHEME_P256_AES128_GCM 1
+#define PUBLIC_KEY_LENGTH           65
+#define PRIVATE_KEY_LENGTH          32
+#define KEY_EXCHANGE_FRAME_LENGTH   (1 + PUBLIC_KEY_LENGTH)
+#define SESSION_KEY_LENGTH          16
+#define KEY_ID_LENGTH               4
+#define SECURE_NONCE_LENGTH         12
+#define SECURE_HEADER_LENGTH        (1 + SECURE_NONCE_LENGTH)
+#define SECURE_TAG_LENGTH           16
+#define MAX_SESSION_KEYS            4
+#define MAX_SECURITY_INFO_LENGTH    (1 + PUBLIC_KEY_LENGTH + 1 + MAX_SESSION_KEYS * KEY_ID_LENGTH)
+#define HKDF_SALT                   "WiFiBle-ECDH-v1"
+
+/* NVS storage of the device key and the session keys */
+
+#define NVS_NAMESPACE       "wifible"
+#define NVS_PRIVATE_KEY     "private"
+#define NVS_SESSION_KEYS    "keys"
+
+/* Sealed frame counters are saved as the end of a block of this many counters, so NVS is
+   written once per block instead of once per frame. */
+
+#define COUNTER_RESERVE     256
+
+/* Soft AP channels */
+
+#define DEFAULT_CHANNEL     1
+#define MAX_CHANNEL         13
+
+/* Worker task (runs the commands; the BLE task only queues them) */
+
+#define COMMAND_QUEUE_LENGTH    4
+// ECDH of a key exchange takes about 3 KB of stack on top of the WiFi calls.
+#define WORKER_STACK_SIZE       12288
+#define WORKER_PRIORITY         1
+
+/* Worker poll period while a survey runs, also the spacing of streamed scan chunks */
+
+#define SCAN_POLL_INTERVAL_MS   10
+
+/* Protocol version (1 - legacy SSID/PWD/START chain, 2 - WIFI_CMD_PROVISION,
+   3 - fragmented writes, 4 - status notified on subscription,
+   5 - separate status characteristic, 6 - WIFI_CMD_SCAN and TLV_CHANNEL,
+   7 - commands run off the BLE task, one status notification per command,
+   8 - WIFI_CMD_TELEMETRY, 9 - WIFI_CMD_KEY_EXCHANGE/WIFI_CMD_SECURE) */
+
+#define PROTOCOL_VERSION    9
 
 /* WiFi AP status */
 
@@ -35,6 +142,11 @@ using namespace std;
 
 #define SERVICE_UUID        "4fafc201-1fb5-459e-8fcc-c5c9c331914b"
 #define CHARACTERISTIC_UUID "beb5483e-36e1-4688-b7f5-ea07361b26a8"
+#define VERSION_CHARACTERISTIC_UUID "beb5483f-36e1-4688-b7f5-ea07361b26a8"
+#define STATUS_CHARACTERISTIC_UUID "beb54840-36e1-4688-b7f5-ea07361b26a8"
+#define SCAN_CHARACTERISTIC_UUID "beb54841-36e1-4688-b7f5-ea07361b26a8"
+#define TELEMETRY_CHARACTERISTIC_UUID "beb54842-36e1-4688-b7f5-ea07361b26a8"
+#define SECURITY_CHARACTERISTIC_UUID "beb54843-36e1-4688-b7f5-ea07361b26a8"
 
 /* LED Pins */
 
@@ -49,6 +161,24 @@ using namespace std;
 
 class BleWiFi;
 
+/* Command queue item: a complete command frame, or a status update posted by the firmware */
+
+struct WiFiCommand
+{
+    uint8_t Data[MAX_REASSEMBLY_LENGTH];
+    size_t  Len;
+    bool    Internal;
+};
+
+/* Session key agreed by WIFI_CMD_KEY_EXCHANGE, with the last counter it opened */
+
+struct SessionKey
+{
+    uint32_t Id;
+    uint8_t  Key[SESSION_KEY_LENGTH];
+    uint64_t LastCounter;
+};
+
 /* Global variables */
 
 static BleWiFi* g_pBleWiFi = NULL;
@@ -57,19 +187,76 @@ static BleWiFi* g_pBleWiFi = NULL;
 
 class BleWiFi : BLESecurityCallbacks,
                 BLEServerCallbacks,
-                BLECharacteristicCallbacks
+                BLECharacteristicCallbacks,
+                BLEDescriptorCallbacks
 {
 private:
     /* GATT members */
     BLECharacteristic*  m_pCharacteristic;
-    bool                m_DeviceConnected;
+    BLECharacteristic*  m_pVersionCharacteristic;
+    BLEDescriptor*      m_pCccDescriptor;
+    BLECharacteristic*  m_pStatusCharacteristic;
+    BLEDescriptor*      m_pStatusCccDescriptor;
+    BLECharacteristic*  m_pScanCharacteristic;
+    BLEDescriptor*      m_pScanCccDescriptor;
+    BLECharacteristic*  m_pTelemetryCharacteristic;
+    BLEDescriptor*      m_pTelemetryCccDescriptor;
+    BLECharacteristic*  m_pSecurityCharacteristic;
+    volatile bool       m_DeviceConnected;
+
+    /* Worker task */
+
+    QueueHandle_t       m_CommandQueue;
+    TaskHandle_t        m_hWorker;
+    WiFiCommand         m_Command;
+    WiFiCommand         m_NextCommand;
 
     /* WiFi members */
 
     string              m_Password;
     string              m_Ssid;
+    uint8_t             m_Channel;
     uint16_t            m_WiFiStatus;
 
+    /* Access point survey */
+
+    bool                m_Scanning;
+    bool                m_ScanStreaming;
+    size_t              m_ScanChunkLen;
+    int16_t             m_ScanCount;
+    int16_t             m_ScanIndex;
+    uint8_t             m_ScanSequence;
+    uint8_t             m_ScanRecord[MAX_SCAN_RECORD_LENGTH];
+    size_t              m_ScanRecordLen;
+    size_t              m_ScanRecordPos;
+    uint8_t             m_ScanChunk[MAX_SCAN_CHUNK_LENGTH];
+
+    /* Telemetry (interval 0 - off) */
+
+    TickType_t          m_TelemetryInterval;
+    TickType_t          m_NextTelemetry;
+    size_t              m_TelemetryFrameLen;
+    uint16_t            m_TelemetrySequence;
+    uint8_t             m_TelemetryFrame[MAX_TELEMETRY_FRAME_LENGTH];
+
+    /* Credential encryption (worker task) */
+
+    Preferences         m_Preferences;
+    mbedtls_ecp_group   m_EcGroup;
+    mbedtls_mpi         m_PrivateKey;
+    uint8_t             m_PublicKey[PUBLIC_KEY_LENGTH];
+    SessionKey          m_SessionKeys[MAX_SESSION_KEYS];
+    uint64_t            m_ReservedCounters[MAX_SESSION_KEYS];
+    size_t              m_SessionKeyCount;
+    uint8_t             m_Plain[MAX_REASSEMBLY_LENGTH];
+
+    /* Fragment reassembly (BLE task) */
+
+    uint8_t             m_Reassembly[MAX_REASSEMBLY_LENGTH];
+    size_t              m_ReassemblyLen;
+    uint8_t             m_NextFragment;
+    bool                m_ReassemblyValid;
+
     /* LEDs control */
 
     void UpdateLeds()
@@ -146,12 +333,60 @@ private:
             CHARACTERISTIC_UUID,
             BLECharacteristic::PROPERTY_READ |
             BLECharacteristic::PROPERTY_WRITE |
+            BLECharacteristic::PROPERTY_WRITE_NR |
             BLECharacteristic::PROPERTY_NOTIFY);
         
         m_pCharacteristic->setValue(m_WiFiStatus);
         
-        m_pCharacteristic->addDescriptor(new BLEDescriptor(BLEUUID((uint16_t)0x2902)));
+        m_pCccDescriptor = new BLEDescriptor(BLEUUID((uint16_t)0x2902));
+        m_pCccDescriptor->setCallbacks((BLEDescriptorCallbacks*)this);
+        m_pCharacteristic->addDescriptor(m_pCccDescriptor);
         m_pCharacteristic->setCallbacks((BLECharacteristicCallbacks*)this);
+
+        // Clients detect WIFI_CMD_PROVISION support by the presence of this characteristic.
+        m_pVersionCharacteristic = pService->createCharacteristic(
+            VERSION_CHARACTERISTIC_UUID,
+            BLECharacteristic::PROPERTY_READ);
+        uint8_t Version = PROTOCOL_VERSION;
+        m_pVersionCharacteristic->setValue(&Version, sizeof(Version));
+
+        // Status is also published on its own characteristic, so notifications do not share
+        // the attribute that takes command writes. Old clients keep using the combined one.
+        m_pStatusCharacteristic = pService->createCharacteristic(
+            STATUS_CHARACTERISTIC_UUID,
+            BLECharacteristic::PROPERTY_READ |
+            BLECharacteristic::PROPERTY_NOTIFY);
+
+        m_pStatusCharacteristic->setValue(m_WiFiStatus);
+
+        m_pStatusCccDescriptor = new BLEDescriptor(BLEUUID((uint16_t)0x2902));
+        m_pStatusCccDescriptor->setCallbacks((BLEDescriptorCallbacks*)this);
+        m_pStatusCharacteristic->addDescriptor(m_pStatusCccDescriptor);
+        m_pStatusCharacteristic->setCallbacks((BLECharacteristicCallbacks*)this);
+
+        // Survey results are streamed here, away from the status notifications.
+        m_pScanCharacteristic = pService->createCharacteristic(
+            SCAN_CHARACTERISTIC_UUID,
+            BLECharacteristic::PROPERTY_NOTIFY);
+
+        m_pScanCccDescriptor = new BLEDescriptor(BLEUUID((uint16_t)0x2902));
+        m_pScanCccDescriptor->setCallbacks((BLEDescriptorCallbacks*)this);
+        m_pScanCharacteristic->addDescriptor(m_pScanCccDescriptor);
+
+        // Telemetry frames, only while a client asked for them.
+        m_pTelemetryCharacteristic = pService->createCharacteristic(
+            TELEMETRY_CHARACTERISTIC_UUID,
+            BLECharacteristic::PROPERTY_NOTIFY);
+
+        m_pTelemetryCccDescriptor = new BLEDescriptor(BLEUUID((uint16_t)0x2902));
+        m_pTelemetryCccDescriptor->setCallbacks((BLEDescriptorCallbacks*)this);
+        m_pTelemetryCharacteristic->addDescriptor(m_pTelemetryCccDescriptor);
+
+        // Device public key and the session keys it keeps, read before sealing credentials.
+        m_pSecurityCharacteristic = pService->createCharacteristic(
+            SECURITY_CHARACTERISTIC_UUID,
+            BLECharacteristic::PROPERTY_READ);
+        UpdateSecurityValue();
         
         pService->start();
     }
@@ -161,20 +396,35 @@ private:
         BLEAdvertising *pAdvertising = BLEDevice::getAdvertising();
         pAdvertising->addServiceUUID(SERVICE_UUID);
         pAdvertising->setScanResponse(true);    
+        // Preferred connection interval range 7.5..22.5 ms (1.25 ms units). The second call
+        // used to be setMinPreferred too, which overwrote the minimum and left no range.
         pAdvertising->setMinPreferred(0x06); // Helps with iPhone connections issue
-        pAdvertising->setMinPreferred(0x12);
+        pAdvertising->setMaxPreferred(0x12);
         
         BLEDevice::startAdvertising();
     }
 
+    uint16_t GetStatusValue()
+    {
+        uint16_t val = m_WiFiStatus;
+        if (m_WiFiStatus == WIFI_STATUS_STARTED)
+            val = val + (WiFi.softAPgetStationNum() << 8);
+        return val;
+    }
+
+    static bool IsSubscribed(BLEDescriptor* pDescriptor)
+    {
+        return pDescriptor != NULL && pDescriptor->getLength() > 0 &&
+            (pDescriptor->getValue()[0] & 0x01) != 0;
+    }
+
     bool SetCharacteristicValue()
     {
-        if (m_pCharacteristic != NULL)
+        if (m_pCharacteristic != NULL && m_pStatusCharacteristic != NULL)
         {
-            uint16_t val = m_WiFiStatus;
-            if (m_WiFiStatus == WIFI_STATUS_STARTED)
-                val = val + (WiFi.softAPgetStationNum() << 8);
+            uint16_t val = GetStatusValue();
             m_pCharacteristic->setValue(val);
+            m_pStatusCharacteristic->setValue(val);
             return true;
         }
         return false;
@@ -184,13 +434,32 @@ private:
     {
         if (SetCharacteristicValue())
         {
+            // Only subscribed characteristics are notified, so a client on the status
+            // characteristic gets one notification per change instead of two.
             if (m_DeviceConnected)
-                m_pCharacteristic->notify(true);
+            {
+                if (IsSubscribed(m_pStatusCccDescriptor))
+                    m_pStatusCharacteristic->notify(true);
+                if (IsSubscribed(m_pCccDescriptor))
+                    m_pCharacteristic->notify(true);
+            }
         }
 
         UpdateLeds();
     }
 
+    // Reports a rejected command with one WIFI_STATUS_ERROR notification; reads keep
+    // returning the AP status.
+    void NotifyError()
+    {
+        uint16_t Status = m_WiFiStatus;
+        m_WiFiStatus = WIFI_STATUS_ERROR;
+        Notify();
+        m_WiFiStatus = Status;
+        SetCharacteristicValue();
+        UpdateLeds();
+    }
+
     /* WiFi support */
 
     void UpdateWiFiStatus()
@@ -206,12 +475,700 @@ private:
         Notify();
     }
 
+    bool StartAp()
+    {
+        if (m_WiFiStatus == WIFI_STATUS_STOPPED)
+        {
+            if (WiFi.softAP(m_Ssid.c_str(), m_Password.c_str(), m_Channel))
+            {
+                m_WiFiStatus = WIFI_STATUS_STARTED;
+                return true;
+            }
+        }
+        return false;
+    }
+
     void StopAp()
     {
         WiFi.enableAP(false);
         WiFi.softAPdisconnect(true);
     }
 
+    /* WIFI_CMD_PROVISION support */
+
+    bool ParseProvision(uint8_t* Data, size_t Len, string& Ssid, string& Password, bool& Start,
+        uint8_t& Channel)
+    {
+        size_t Pos = 0;
+        while (Pos < Len)
+        {
+            if (Len - Pos < TLV_HEADER_LENGTH)
+                return false;
+
+            uint8_t Type = Data[Pos];
+            size_t ValueLen = Data[Pos + 1];
+            uint8_t* Value = &Data[Pos + TLV_HEADER_LENGTH];
+            Pos += TLV_HEADER_LENGTH;
+            if (ValueLen > Len - Pos)
+                return false;
+
+            switch (Type)
+            {
+                case TLV_SSID:
+                    Ssid = string((char*)Value, ValueLen);
+                    break;
+
+                case TLV_PASSWORD:
+                    Password = string((char*)Value, ValueLen);
+                    break;
+
+                case TLV_START:
+                    Start = (ValueLen == 1 && Value[0] != 0);
+                    break;
+
+                case TLV_CHANNEL:
+                    if (ValueLen == 1 && Value[0] >= 1 && Value[0] <= MAX_CHANNEL)
+                        Channel = Value[0];
+                    break;
+
+                // Unknown TLVs are skipped so newer clients can add fields.
+            }
+            Pos += ValueLen;
+        }
+        return (Ssid != "" && Password != "");
+    }
+
+    void Provision(uint8_t* Data, size_t Len)
+    {
+        string Ssid = "";
+        string Password = "";
+        bool Start = false;
+        uint8_t Channel = DEFAULT_CHANNEL;
+
+        if (ParseProvision(Data, Len, Ssid, Password, Start, Channel))
+        {
+            m_Ssid = Ssid;
+            m_Password = Password;
+            m_Channel = Channel;
+
+            if (m_WiFiStatus == WIFI_STATUS_STARTED)
+                StopAp();
+            m_WiFiStatus = WIFI_STATUS_STOPPED;
+
+            if (Start)
+                StartAp();
+        }
+
+        // Single notification for the whole SSID/PWD/START sequence.
+        Notify();
+    }
+
+    /* Fragment reassembly */
+
+    void OnFragment(uint8_t* Data, size_t Len)
+    {
+        if (Len < FRAGMENT_HEADER_LENGTH)
+            return;
+
+        uint8_t Index = Data[1];
+        if (Index == 0)
+        {
+            m_ReassemblyLen = 0;
+            m_NextFragment = 0;
+            m_ReassemblyValid = true;
+        }
+
+        size_t Chunk = Len - FRAGMENT_HEADER_LENGTH;
+        if (!m_ReassemblyValid || Index != m_NextFragment ||
+            Chunk > MAX_REASSEMBLY_LENGTH - m_ReassemblyLen)
+        {
+            m_ReassemblyValid = false;
+            return;
+        }
+
+        memcpy(&m_Reassembly[m_ReassemblyLen], &Data[FRAGMENT_HEADER_LENGTH], Chunk);
+        m_ReassemblyLen += Chunk;
+        m_NextFragment++;
+    }
+
+    void OnCommit(uint8_t* Data, size_t Len)
+    {
+        bool Complete = false;
+        if (Len == COMMIT_FRAME_LENGTH && m_ReassemblyValid)
+        {
+            size_t Total = Data[2] | (Data[3] << 8);
+            Complete = (Data[1] == m_NextFragment && Total == m_ReassemblyLen);
+        }
+        m_ReassemblyValid = false;
+        m_NextFragment = 0;
+
+        // Fragments must not nest: the reassembled frame is a regular command.
+        if (Complete && m_ReassemblyLen > 0 &&
+            m_Reassembly[0] != WIFI_CMD_FRAGMENT && m_Reassembly[0] != WIFI_CMD_COMMIT)
+        {
+            PostCommand(m_Reassembly, m_ReassemblyLen, false);
+        }
+        else
+        {
+            // Answers the client's commit, so it is queued like a command of its own.
+            uint8_t GetStatus = WIFI_CMD_GET_STATUS;
+            PostCommand(&GetStatus, sizeof(GetStatus), false);
+        }
+    }
+
+    /* Access point survey */
+
+    void StartScan(uint8_t* Data, size_t Len)
+    {
+        if (Len != SCAN_COMMAND_LENGTH || m_Scanning || m_ScanStreaming)
+            return;
+
+        size_t ChunkLen = Data[1] | (Data[2] << 8);
+        if (ChunkLen < MIN_SCAN_CHUNK_LENGTH)
+            ChunkLen = MIN_SCAN_CHUNK_LENGTH;
+        if (ChunkLen > MAX_SCAN_CHUNK_LENGTH)
+            ChunkLen = MAX_SCAN_CHUNK_LENGTH;
+        m_ScanChunkLen = ChunkLen;
+
+        // Scanning needs the station interface; a running soft AP keeps serving meanwhile.
+        WiFi.enableSTA(true);
+        WiFi.scanNetworks(true, true);
+        m_Scanning = true;
+    }
+
+    void LoadScanRecord(int16_t Index)
+    {
+        String Ssid = WiFi.SSID(Index);
+        size_t SsidLen = Ssid.length();
+        if (SsidLen > MAX_SCAN_RECORD_LENGTH - SCAN_RECORD_HEADER_LENGTH)
+            SsidLen = MAX_SCAN_RECORD_LENGTH - SCAN_RECORD_HEADER_LENGTH;
+
+        m_ScanRecord[0] = (uint8_t)(int8_t)WiFi.RSSI(Index);
+        m_ScanRecord[1] = (uint8_t)WiFi.channel(Index);
+        m_ScanRecord[2] = (uint8_t)WiFi.encryptionType(Index);
+        m_ScanRecord[3] = (uint8_t)SsidLen;
+        memcpy(&m_ScanRecord[SCAN_RECORD_HEADER_LENGTH], Ssid.c_str(), SsidLen);
+        m_ScanRecordLen = SCAN_RECORD_HEADER_LENGTH + SsidLen;
+        m_ScanRecordPos = 0;
+    }
+
+    // Fills and notifies the next chunk. Returns false after the last one.
+    bool SendScanChunk()
+    {
+        size_t Len = SCAN_CHUNK_HEADER_LENGTH;
+        uint8_t Flags = 0;
+        if (m_ScanCount < 0)
+            Flags = SCAN_FLAG_FAILED | SCAN_FLAG_LAST;
+        else
+        {
+            while (Len < m_ScanChunkLen)
+            {
+                if (m_ScanRecordPos == m_ScanRecordLen)
+                {
+                    if (m_ScanIndex == m_ScanCount)
+                        break;
+                    LoadScanRecord(m_ScanIndex++);
+                }
+
+                size_t Part = m_ScanRecordLen - m_ScanRecordPos;
+                if (Part > m_ScanChunkLen - Len)
+                    Part = m_ScanChunkLen - Len;
+                memcpy(&m_ScanChunk[Len], &m_ScanRecord[m_ScanRecordPos], Part);
+                Len += Part;
+                m_ScanRecordPos += Part;
+            }
+            if (m_ScanIndex == m_ScanCount && m_ScanRecordPos == m_ScanRecordLen)
+                Flags = SCAN_FLAG_LAST;
+        }
+
+        m_ScanChunk[0] = WIFI_CMD_SCAN;
+        m_ScanChunk[1] = m_ScanSequence++;
+        m_ScanChunk[2] = Flags;
+        m_pScanCharacteristic->setValue(m_ScanChunk, Len);
+        m_pScanCharacteristic->notify(true);
+        return (Flags & SCAN_FLAG_LAST) == 0;
+    }
+
+    void EndScan()
+    {
+        m_ScanStreaming = false;
+        WiFi.scanDelete();
+        WiFi.enableSTA(false);
+    }
+
+    // One step per call from the worker: wait for the scan, then send one chunk. The
+    // worker's poll period paces the chunks.
+    void PollScan()
+    {
+        if (m_Scanning)
+        {
+            int16_t Count = WiFi.scanComplete();
+            if (Count == WIFI_SCAN_RUNNING)
+                return;
+
+            // WIFI_SCAN_FAILED is streamed as a single failed chunk.
+            m_Scanning = false;
+            m_ScanCount = Count;
+            m_ScanIndex = 0;
+            m_ScanSequence = 0;
+            m_ScanRecordLen = 0;
+            m_ScanRecordPos = 0;
+            m_ScanStreaming = true;
+        }
+
+        if (m_ScanStreaming)
+        {
+            if (!m_DeviceConnected || !IsSubscribed(m_pScanCccDescriptor) || !SendScanChunk())
+                EndScan();
+        }
+    }
+
+    /* Telemetry */
+
+    void SetTelemetry(uint8_t* Data, size_t Len)
+    {
+        if (Len != TELEMETRY_COMMAND_LENGTH)
+            return;
+
+        uint32_t Interval = Data[1] | (Data[2] << 8);
+        size_t FrameLen = Data[3] | (Data[4] << 8);
+        if (Interval == 0)
+        {
+            m_TelemetryInterval = 0;
+            return;
+        }
+
+        if (Interval < MIN_TELEMETRY_INTERVAL_MS)
+            Interval = MIN_TELEMETRY_INTERVAL_MS;
+        if (Interval > MAX_TELEMETRY_INTERVAL_MS)
+            Interval = MAX_TELEMETRY_INTERVAL_MS;
+        if (FrameLen < MIN_SCAN_CHUNK_LENGTH)
+            FrameLen = MIN_SCAN_CHUNK_LENGTH;
+        if (FrameLen > MAX_TELEMETRY_FRAME_LENGTH)
+            FrameLen = MAX_TELEMETRY_FRAME_LENGTH;
+
+        m_TelemetryInterval = pdMS_TO_TICKS(Interval);
+        m_TelemetryFrameLen = FrameLen;
+        m_NextTelemetry = xTaskGetTickCount() + m_TelemetryInterval;
+    }
+
+    static void PutUInt32(uint8_t* Dst, uint32_t Value)
+    {
+        Dst[0] = (uint8_t)Value;
+        Dst[1] = (uint8_t)(Value >> 8);
+        Dst[2] = (uint8_t)(Value >> 16);
+        Dst[3] = (uint8_t)(Value >> 24);
+    }
+
+    void SendTelemetry()
+    {
+        wifi_sta_list_t Stations;
+        Stations.num = 0;
+        if (m_WiFiStatus == WIFI_STATUS_STARTED)
+            esp_wifi_ap_get_sta_list(&Stations);
+
+        // The station count is exact; RSSIs are sent for as many stations as fit.
+        size_t RssiCount = Stations.num;
+        if (RssiCount > m_TelemetryFrameLen - TELEMETRY_HEADER_LENGTH)
+            RssiCount = m_TelemetryFrameLen - TELEMETRY_HEADER_LENGTH;
+
+        m_TelemetryFrame[0] = WIFI_CMD_TELEMETRY;
+        m_TelemetryFrame[1] = (uint8_t)m_TelemetrySequence;
+        m_TelemetryFrame[2] = (uint8_t)(m_TelemetrySequence >> 8);
+        m_TelemetrySequence++;
+        PutUInt32(&m_TelemetryFrame[3], millis());
+        PutUInt32(&m_TelemetryFrame[7], esp_get_free_heap_size());
+        m_TelemetryFrame[11] = (uint8_t)Stations.num;
+        for (size_t i = 0; i < RssiCount; i++)
+            m_TelemetryFrame[TELEMETRY_HEADER_LENGTH + i] = (uint8_t)Stations.sta[i].rssi;
+
+        m_pTelemetryCharacteristic->setValue(m_TelemetryFrame, TELEMETRY_HEADER_LENGTH + RssiCount);
+        m_pTelemetryCharacteristic->notify(true);
+    }
+
+    // Sends the frame that is due, if any. Telemetry ends with the connection or the
+    // subscription; a stalled worker resumes the schedule instead of sending a burst.
+    void PollTelemetry()
+    {
+        if (m_TelemetryInterval == 0)
+            return;
+
+        if (!m_DeviceConnected || !IsSubscribed(m_pTelemetryCccDescriptor))
+        {
+            m_TelemetryInterval = 0;
+            return;
+        }
+
+        TickType_t Now = xTaskGetTickCount();
+        if ((int32_t)(Now - m_NextTelemetry) < 0)
+            return;
+
+        SendTelemetry();
+        m_NextTelemetry += m_TelemetryInterval;
+        if ((int32_t)(Now - m_NextTelemetry) >= 0)
+            m_NextTelemetry = Now + m_TelemetryInterval;
+    }
+
+    /* Credential encryption */
+
+    static int Random(void* pParam, unsigned char* Output, size_t Len)
+    {
+        // A true random source while the radio runs.
+        esp_fill_random(Output, Len);
+        return 0;
+    }
+
+    static uint32_t GetUInt32(const uint8_t* Src)
+    {
+        return Src[0] | (Src[1] << 8) | (Src[2] << 16) | ((uint32_t)Src[3] << 24);
+    }
+
+    // Loads the device key from NVS, creating it on first boot, and the session keys.
+    void InitKeys()
+    {
+        mbedtls_ecp_group_init(&m_EcGroup);
+        mbedtls_mpi_init(&m_PrivateKey);
+        mbedtls_ecp_group_load(&m_EcGroup, MBEDTLS_ECP_DP_SECP256R1);
+        m_Preferences.begin(NVS_NAMESPACE, false);
+
+        mbedtls_ecp_point Public;
+        mbedtls_ecp_point_init(&Public);
+        uint8_t Private[PRIVATE_KEY_LENGTH];
+        bool Loaded = m_Preferences.getBytes(NVS_PRIVATE_KEY, Private, sizeof(Private)) ==
+            sizeof(Private) &&
+            mbedtls_mpi_read_binary(&m_PrivateKey, Private, sizeof(Private)) == 0 &&
+            mbedtls_ecp_check_privkey(&m_EcGroup, &m_PrivateKey) == 0 &&
+            mbedtls_ecp_mul(&m_EcGroup, &Public, &m_PrivateKey, &m_EcGroup.G, Random,
+                NULL) == 0;
+        if (!Loaded)
+        {
+            // The key lives as long as the board; session keys of an older one are useless.
+            mbedtls_ecp_gen_keypair(&m_EcGroup, &m_PrivateKey, &Public, Random, NULL);
+            mbedtls_mpi_write_binary(&m_PrivateKey, Private, sizeof(Private));
+            m_Preferences.putBytes(NVS_PRIVATE_KEY, Private, sizeof(Private));
+            m_Preferences.remove(NVS_SESSION_KEYS);
+        }
+        memset(Private, 0, sizeof(Private));
+
+        size_t Len = 0;
+        mbedtls_ecp_point_write_binary(&m_EcGroup, &Public, MBEDTLS_ECP_PF_UNCOMPRESSED, &Len,
+            m_PublicKey, sizeof(m_PublicKey));
+        mbedtls_ecp_point_free(&Public);
+
+        size_t Stored = m_Preferences.getBytes(NVS_SESSION_KEYS, m_SessionKeys,
+            sizeof(m_SessionKeys));
+        m_SessionKeyCount = (Stored % sizeof(SessionKey) == 0) ? Stored / sizeof(SessionKey) : 0;
+        // Saved counters are reservations: frames up to them are refused after a reboot, and
+        // clients behind them exchange a new key.
+        for (size_t i = 0; i < m_SessionKeyCount; i++)
+            m_ReservedCounters[i] = m_SessionKeys[i].LastCounter;
+    }
+
+    void UpdateSecurityValue()
+    {
+        if (m_pSecurityCharacteristic == NULL)
+            return;
+
+        uint8_t Value[MAX_SECURITY_INFO_LENGTH];
+        size_t Len = 0;
+        Value[Len++] = SECURITY_SCHEME_P256_AES128_GCM;
+        memcpy(&Value[Len], m_PublicKey, PUBLIC_KEY_LENGTH);
+        Len += PUBLIC_KEY_LENGTH;
+        Value[Len++] = (uint8_t)m_SessionKeyCount;
+        for (size_t i = 0; i < m_SessionKeyCount; i++, Len += KEY_ID_LENGTH)
+            PutUInt32(&Value[Len], m_SessionKeys[i].Id);
+        m_pSecurityCharacteristic->setValue(Value, Len);
+    }
+
+    // Moves the key in slot Index to the front, most recently used first. The slots are
+    // saved only when the order changes or the counter reaches its reservation.
+    void UseSessionKey(size_t Index, const SessionKey& Key)
+    {
+        uint64_t Reserved = m_ReservedCounters[Index];
+        memmove(&m_SessionKeys[1], &m_SessionKeys[0], Index * sizeof(SessionKey));
+        memmove(&m_ReservedCounters[1], &m_ReservedCounters[0], Index * sizeof(uint64_t));
+        m_SessionKeys[0] = Key;
+        m_ReservedCounters[0] = Reserved;
+        if (Index != 0 || Key.LastCounter >= Reserved)
+            SaveSessionKeys();
+        UpdateSecurityValue();
+    }
+
+    // Saves the slots with each counter replaced by the end of its block, never below a
+    // counter the device accepted.
+    void SaveSessionKeys()
+    {
+        SessionKey Stored[MAX_SESSION_KEYS];
+        for (size_t i = 0; i < m_SessionKeyCount; i++)
+        {
+            if (m_SessionKeys[i].LastCounter >= m_ReservedCounters[i])
+                m_ReservedCounters[i] =
+                    (m_SessionKeys[i].LastCounter / COUNTER_RESERVE + 1) * COUNTER_RESERVE;
+            Stored[i] = m_SessionKeys[i];
+            Stored[i].LastCounter = m_ReservedCounters[i];
+        }
+        m_Preferences.putBytes(NVS_SESSION_KEYS, Stored, m_SessionKeyCount * sizeof(SessionKey));
+        memset(Stored, 0, sizeof(Stored));
+    }
+
+    // Returns false when the frame or the client public key is invalid.
+    bool KeyExchange(uint8_t* Data, size_t Len)
+    {
+        if (Len != KEY_EXCHANGE_FRAME_LENGTH)
+            return false;
+
+        // Points off the curve are rejected before they can leak the device key.
+        mbedtls_ecp_point Peer;
+        mbedtls_mpi Shared;
+        mbedtls_ecp_point_init(&Peer);
+        mbedtls_mpi_init(&Shared);
+        uint8_t Secret[PRIVATE_KEY_LENGTH];
+        bool Valid = mbedtls_ecp_point_read_binary(&m_EcGroup, &Peer, &Data[1],
+            PUBLIC_KEY_LENGTH) == 0 &&
+            mbedtls_ecp_check_pubkey(&m_EcGroup, &Peer) == 0 &&
+            mbedtls_ecdh_compute_shared(&m_EcGroup, &Shared, &Peer, &m_PrivateKey, Random,
+                NULL) == 0 &&
+            mbedtls_mpi_write_binary(&Shared, Secret, sizeof(Secret)) == 0;
+        mbedtls_ecp_point_free(&Peer);
+        mbedtls_mpi_free(&Shared);
+        if (!Valid)
+            return false;
+
+        // HKDF-SHA256 with both public keys as context; one block holds key and key id.
+        const mbedtls_md_info_t* pSha256 = mbedtls_md_info_from_type(MBEDTLS_MD_SHA256);
+        uint8_t Prk[32];
+        uint8_t Okm[32];
+        uint8_t Block = 1;
+        mbedtls_md_hmac(pSha256, (const uint8_t*)HKDF_SALT, strlen(HKDF_SALT), Secret,
+            sizeof(Secret), Prk);
+        mbedtls_md_context_t Hmac;
+        mbedtls_md_init(&Hmac);
+        mbedtls_md_setup(&Hmac, pSha256, 1);
+        mbedtls_md_hmac_starts(&Hmac, Prk, sizeof(Prk));
+        mbedtls_md_hmac_update(&Hmac, m_PublicKey, PUBLIC_KEY_LENGTH);
+        mbedtls_md_hmac_update(&Hmac, &Data[1], PUBLIC_KEY_LENGTH);
+        mbedtls_md_hmac_update(&Hmac, &Block, sizeof(Block));
+        mbedtls_md_hmac_finish(&Hmac, Okm);
+        mbedtls_md_free(&Hmac);
+
+        SessionKey Key;
+        Key.Id = GetUInt32(&Okm[SESSION_KEY_LENGTH]);
+        memcpy(Key.Key, Okm, SESSION_KEY_LENGTH);
+        Key.LastCounter = 0;
+        memset(Secret, 0, sizeof(Secret));
+        memset(Prk, 0, sizeof(Prk));
+        memset(Okm, 0, sizeof(Okm));
+
+        // The new key takes the front slot, the least recently used one falls off.
+        if (m_SessionKeyCount < MAX_SESSION_KEYS)
+            m_SessionKeyCount++;
+        m_ReservedCounters[m_SessionKeyCount - 1] = 0;
+        UseSessionKey(m_SessionKeyCount - 1, Key);
+        return true;
+    }
+
+    // Opens a WIFI_CMD_SECURE frame into m_Plain; returns the length of the command frame it
+    // carries, 0 when no key opens it or its counter was seen already.
+    size_t OpenSecure(uint8_t* Data, size_t Len)
+    {
+        if (Len <= SECURE_HEADER_LENGTH + SECURE_TAG_LENGTH)
+            return 0;
+
+        uint32_t Id = GetUInt32(&Data[1]);
+        uint64_t Counter = GetUInt32(&Data[5]) | ((uint64_t)GetUInt32(&Data[9]) << 32);
+        for (size_t i = 0; i < m_SessionKeyCount; i++)
+        {
+            if (m_SessionKeys[i].Id != Id)
+                continue;
+            if (Counter <= m_SessionKeys[i].LastCounter)
+                return 0;
+
+            size_t PlainLen = Len - SECURE_HEADER_LENGTH - SECURE_TAG_LENGTH;
+            mbedtls_gcm_context Gcm;
+            mbedtls_gcm_init(&Gcm);
+            int Result = mbedtls_gcm_setkey(&Gcm, MBEDTLS_CIPHER_ID_AES, m_SessionKeys[i].Key,
+                SESSION_KEY_LENGTH * 8);
+            if (Result == 0)
+                Result = mbedtls_gcm_auth_decrypt(&Gcm, PlainLen, &Data[1],
+                    SECURE_NONCE_LENGTH, Data, SECURE_HEADER_LENGTH,
+                    &Data[Len - SECURE_TAG_LENGTH], SECURE_TAG_LENGTH,
+                    &Data[SECURE_HEADER_LENGTH], m_Plain);
+            mbedtls_gcm_free(&Gcm);
+            if (Result != 0)
+                return 0;
+
+            // Sealed frames carry plain commands that report their completion.
+            uint8_t Inner = m_Plain[0];
+            if (Inner == WIFI_CMD_SECURE || Inner == WIFI_CMD_KEY_EXCHANGE ||
+                Inner == WIFI_CMD_FRAGMENT || Inner == WIFI_CMD_COMMIT ||
+                Inner == WIFI_CMD_SCAN)
+            {
+                return 0;
+            }
+
+            SessionKey Key = m_SessionKeys[i];
+            Key.LastCounter = Counter;
+            UseSessionKey(i, Key);
+            return PlainLen;
+        }
+        return 0;
+    }
+
+    /* Command handling */
+
+    void HandleCommand(uint8_t* Data, size_t Len)
+    {
+        uint8_t Cmd = Data[0];
+        switch (Cmd)
+        {
+            case WIFI_CMD_SET_SSID:
+                if (Len > 1)
+                    m_Ssid = string((char*)&Data[1], Len - 1);
+                else
+                    m_Ssid = "";
+                UpdateWiFiStatus();
+                break;
+
+            case WIFI_CMD_SET_PWD:
+                if (Len > 1)
+                    m_Password = string((char*)&Data[1], Len - 1);
+                else
+                    m_Password = "";
+                UpdateWiFiStatus();
+                break;
+                
+            case WIFI_CMD_START:
+                // Notified also when the AP did not start: every command reports its
+                // completion, the client waits for it.
+                StartAp();
+                Notify();
+                break;
+                
+            case WIFI_CMD_STOP:
+                if (m_WiFiStatus == WIFI_STATUS_STARTED)
+                {
+                    StopAp();
+                    m_WiFiStatus = WIFI_STATUS_STOPPED;
+                }
+                Notify();
+                break;
+            
+            case WIFI_CMD_GET_STATUS:
+                Notify();
+                break;
+
+            case WIFI_CMD_PROVISION:
+                Provision(&Data[1], Len - 1);
+                break;
+
+            case WIFI_CMD_SCAN:
+                // Results are streamed on the scan characteristic, not notified as status.
+                StartScan(Data, Len);
+                break;
+
+            case WIFI_CMD_TELEMETRY:
+                SetTelemetry(Data, Len);
+                Notify();
+                break;
+
+            case WIFI_CMD_KEY_EXCHANGE:
+                // The client also reads the security characteristic to confirm the key.
+                if (KeyExchange(Data, Len))
+                    Notify();
+                else
+                    NotifyError();
+                break;
+
+            case WIFI_CMD_SECURE:
+            {
+                size_t PlainLen = OpenSecure(Data, Len);
+                if (PlainLen > 0)
+                    HandleCommand(m_Plain, PlainLen);
+                else
+                    NotifyError();
+                break;
+            }
+        }
+    }
+
+    /* Command queue */
+
+    // Called on the BLE task and the WiFi event task: copies the frame and returns at once,
+    // so write responses never wait for the WiFi driver. Internal posts notify the status.
+    void PostCommand(uint8_t* Data, size_t Len, bool Internal)
+    {
+        if (Len > MAX_REASSEMBLY_LENGTH)
+            return;
+
+        WiFiCommand Command;
+        if (Len > 0)
+            memcpy(Command.Data, Data, Len);
+        Command.Len = Len;
+        Command.Internal = Internal;
+        // A full queue drops the command; the client times it out.
+        xQueueSend(m_CommandQueue, &Command, 0);
+    }
+
+    static bool NotifiesStatus(const WiFiCommand& Command)
+    {
+        return Command.Internal || (Command.Len > 0 && Command.Data[0] != WIFI_CMD_SCAN);
+    }
+
+    void Execute(WiFiCommand& Command)
+    {
+        if (!Command.Internal)
+        {
+            HandleCommand(Command.Data, Command.Len);
+            return;
+        }
+
+        // A status update queued ahead of a command would be taken for that command's
+        // completion; skip it when what follows notifies the newer status anyway.
+        if (xQueuePeek(m_CommandQueue, &m_NextCommand, 0) == pdTRUE &&
+            NotifiesStatus(m_NextCommand))
+        {
+            return;
+        }
+        Notify();
+    }
+
+    static void WorkerTask(void* pParam)
+    {
+        ((BleWiFi*)pParam)->RunWorker();
+    }
+
+    // How long the worker may block on the queue: until the next scan poll or telemetry
+    // frame, forever when neither is active.
+    TickType_t NextWait()
+    {
+        TickType_t Wait = portMAX_DELAY;
+        if (m_Scanning || m_ScanStreaming)
+            Wait = pdMS_TO_TICKS(SCAN_POLL_INTERVAL_MS);
+
+        if (m_TelemetryInterval != 0)
+        {
+            int32_t Due = (int32_t)(m_NextTelemetry - xTaskGetTickCount());
+            if (Due < 0)
+                Due = 0;
+            if ((TickType_t)Due < Wait)
+                Wait = (TickType_t)Due;
+        }
+        return Wait;
+    }
+
+    // Runs the queued commands in write order. The queue wait doubles as the scan poll
+    // period and the telemetry timer.
+    void RunWorker()
+    {
+        for (;;)
+        {
+            if (xQueueReceive(m_CommandQueue, &m_Command, NextWait()) == pdTRUE)
+                Execute(m_Command);
+            PollScan();
+            PollTelemetry();
+        }
+    }
+
     void SetWiFiEvents()
     {
         WiFi.onEvent(WiFiEvent);
@@ -226,7 +1183,7 @@ private:
             case ARDUINO_EVENT_WIFI_AP_STACONNECTED:
             case ARDUINO_EVENT_WIFI_AP_STADISCONNECTED:
                 if (g_pBleWiFi != NULL)
-                    g_pBleWiFi->Notify();
+                    g_pBleWiFi->PostCommand(NULL, 0, true);
                 break;
         }
     }
@@ -246,7 +1203,6 @@ public:
 
     virtual bool onConfirmPIN(uint32_t pass_key) override
     {
-        vTaskDelay(5000);
         return true;
     }
 
@@ -266,15 +1222,25 @@ public:
     virtual void onConnect(BLEServer* pServer) override
     {
         m_DeviceConnected = true;
-        UpdateLeds();
+        PostCommand(NULL, 0, true);
     }
 
     virtual void onDisconnect(BLEServer* pServer) override
     {
         m_DeviceConnected = false;
+        // Subscriptions belong to the connection; the next client subscribes again.
+        uint8_t Disabled[2] = { 0, 0 };
+        if (m_pCccDescriptor != NULL)
+            m_pCccDescriptor->setValue(Disabled, sizeof(Disabled));
+        if (m_pStatusCccDescriptor != NULL)
+            m_pStatusCccDescriptor->setValue(Disabled, sizeof(Disabled));
+        if (m_pScanCccDescriptor != NULL)
+            m_pScanCccDescriptor->setValue(Disabled, sizeof(Disabled));
+        if (m_pTelemetryCccDescriptor != NULL)
+            m_pTelemetryCccDescriptor->setValue(Disabled, sizeof(Disabled));
         // We need to restart advertising.
         BLEDevice::startAdvertising();
-        UpdateLeds();
+        PostCommand(NULL, 0, true);
     }
 
 public:
@@ -288,47 +1254,20 @@ public:
             if (Len > 0)
             {
                 uint8_t* Data = pCharacteristic->getData();
-                uint8_t Cmd = Data[0];
-                switch (Cmd)
+                // Fragments are reassembled here; only complete commands are queued.
+                switch (Data[0])
                 {
-                    case WIFI_CMD_SET_SSID:
-                        if (Len > 1)
-                            m_Ssid = string((char*)&Data[1]);
-                        else
-                            m_Ssid = "";
-                        UpdateWiFiStatus();
+                    case WIFI_CMD_FRAGMENT:
+                        // Written without response, nothing to notify until the commit.
+                        OnFragment(Data, Len);
                         break;
 
-                    case WIFI_CMD_SET_PWD:
-                        if (Len > 1)
-                            m_Password = string((char*)&Data[1]);
-                        else
-                            m_Password = "";
-                        UpdateWiFiStatus();
-                        break;
-                        
-                    case WIFI_CMD_START:
-                        if (m_WiFiStatus == WIFI_STATUS_STOPPED)
-                        {
-                            if (WiFi.softAP(m_Ssid.c_str(), m_Password.c_str()))
-                            {
-                                m_WiFiStatus = WIFI_STATUS_STARTED;
-                                Notify();
-                            }
-                        }
-                        break;
-                        
-                    case WIFI_CMD_STOP:
-                        if (m_WiFiStatus == WIFI_STATUS_STARTED)
-                        {
-                            StopAp();
-                            m_WiFiStatus = WIFI_STATUS_STOPPED;
-                            Notify();
-                        }
+                    case WIFI_CMD_COMMIT:
+                        OnCommit(Data, Len);
                         break;
-                    
-                    case WIFI_CMD_GET_STATUS:
-                        Notify();
+
+                    default:
+                        PostCommand(Data, Len, false);
                         break;
                 }
             }
@@ -337,28 +1276,80 @@ public:
 
     virtual void onRead(BLECharacteristic* pCharacteristic) override
     {
-        if (pCharacteristic == m_pCharacteristic)
+        if (pCharacteristic == m_pCharacteristic || pCharacteristic == m_pStatusCharacteristic)
             SetCharacteristicValue();
     }
 
+public:
+    /* BLEDescriptorCallbacks */
+
+    virtual void onWrite(BLEDescriptor* pDescriptor) override
+    {
+        // Subscribing delivers the current status right away, so clients do not have to
+        // read it first.
+        if ((pDescriptor == m_pCccDescriptor || pDescriptor == m_pStatusCccDescriptor) &&
+            IsSubscribed(pDescriptor))
+        {
+            PostCommand(NULL, 0, true);
+        }
+    }
+
 public:
     BleWiFi()
     {
         m_pCharacteristic = NULL;
+        m_pVersionCharacteristic = NULL;
+        m_pCccDescriptor = NULL;
+        m_pStatusCharacteristic = NULL;
+        m_pStatusCccDescriptor = NULL;
+        m_pScanCharacteristic = NULL;
+        m_pScanCccDescriptor = NULL;
+        m_pTelemetryCharacteristic = NULL;
+        m_pTelemetryCccDescriptor = NULL;
+        m_pSecurityCharacteristic = NULL;
         m_DeviceConnected = false;
 
         m_Password = "";
         m_Ssid = "";
+        m_Channel = DEFAULT_CHANNEL;
         m_WiFiStatus = WIFI_STATUS_NO_CONFIG;
+
+        m_Scanning = false;
+        m_ScanStreaming = false;
+        m_ScanChunkLen = MIN_SCAN_CHUNK_LENGTH;
+        m_ScanCount = 0;
+        m_ScanIndex = 0;
+        m_ScanSequence = 0;
+        m_ScanRecordLen = 0;
+        m_ScanRecordPos = 0;
+
+        m_TelemetryInterval = 0;
+        m_NextTelemetry = 0;
+        m_TelemetryFrameLen = MIN_SCAN_CHUNK_LENGTH;
+        m_TelemetrySequence = 0;
+
+        m_ReassemblyLen = 0;
+        m_NextFragment = 0;
+        m_ReassemblyValid = false;
+
+        // The queue has to exist before the first BLE or WiFi callback posts to it.
+        m_CommandQueue = xQueueCreate(COMMAND_QUEUE_LENGTH, sizeof(WiFiCommand));
+        m_hWorker = NULL;
         
         BLEDevice::init("GATT WiFi AP");
-        
+        BLEDevice::setMTU(PREFERRED_ATT_MTU);
+
+        // After BLEDevice::init: the radio has to run for the random numbers of a new key.
+        InitKeys();
         InitSecurity();
         StartGattServer();
         StartLeAdvertising();
 
         StopAp();
         SetWiFiEvents();
+
+        xTaskCreate(WorkerTask, "WiFiBleWorker", WORKER_STACK_SIZE, this, WORKER_PRIORITY,
+            &m_hWorker);
     }
 };
 